@@ -33,8 +33,6 @@ import com.salesforce.androidsdk.config.BootConfig;
 import com.salesforce.androidsdk.phonegap.ui.SalesforceDroidGapActivity;
 import com.salesforce.androidsdk.smartsync.app.SmartSyncSDKManager;
 import com.salesforce.androidsdk.ui.LoginActivity;
-import com.salesforce.androidsdk.util.EventsObservable;
-import com.salesforce.androidsdk.util.EventsObservable.EventType;
 
 /**
  * SDK Manager for all hybrid applications
@@ -71,7 +69,8 @@ public class SalesforceHybridSDKManager extends SmartSyncSDKManager {
 
         // Upgrade to the latest version.
         SalesforceHybridUpgradeManager.getInstance().upgrade();
-        EventsObservable.get().notifyEvent(EventType.AppCreateComplete);
+
+        completeInit();
 	}
 
 	/**
@@ -206,6 +206,9 @@ public class SmartSyncReactBridge extends ReactContextBaseJavaModule {
                 case FAILED:
                     errorCallback.invoke("Sync failed");
                     break;
+                case STOPPED:
+                    errorCallback.invoke("Sync stopped");
+                    break;
             }
         } catch (JSONException e) {
             Log.e(LOG_TAG, "handleSyncUpdate", e);
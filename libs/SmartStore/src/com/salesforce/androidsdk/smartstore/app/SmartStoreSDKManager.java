@@ -28,19 +28,23 @@ package com.salesforce.androidsdk.smartstore.app;
 
 import android.accounts.Account;
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.salesforce.androidsdk.accounts.UserAccount;
 import com.salesforce.androidsdk.app.SalesforceSDKManager;
+import com.salesforce.androidsdk.smartstore.store.DBHelper;
 import com.salesforce.androidsdk.smartstore.store.DBOpenHelper;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
+import com.salesforce.androidsdk.smartstore.store.StoreTuning;
 import com.salesforce.androidsdk.ui.LoginActivity;
 import com.salesforce.androidsdk.util.EventsObservable;
 import com.salesforce.androidsdk.util.EventsObservable.EventType;
 
 import net.sqlcipher.database.SQLiteDatabase;
-import net.sqlcipher.database.SQLiteOpenHelper;
 
 import java.util.Collection;
 import java.util.List;
@@ -51,6 +55,13 @@ import java.util.Map;
  */
 public class SmartStoreSDKManager extends SalesforceSDKManager {
 
+    private static final String TAG = "SmartStoreSDKManager";
+
+    // Store caches grow back once no memory pressure was reported for that long
+    public static final long MEMORY_PRESSURE_QUIET_MILLIS = 60000;
+
+    private StoreMaintenanceScheduler maintenanceScheduler;
+
     /**
      * Protected constructor.
      *
@@ -62,6 +73,24 @@ public class SmartStoreSDKManager extends SalesforceSDKManager {
     protected SmartStoreSDKManager(Context context, KeyInterface keyImpl,
                                    Class<? extends Activity> mainActivity, Class<? extends Activity> loginActivity) {
         super(context, keyImpl, mainActivity, loginActivity);
+        DBOpenHelper.setDefaultTuning(StoreTuning.getDefault(context));
+
+        // Shrinks store caches under memory pressure
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                DBOpenHelper.onTrimMemory(level);
+            }
+
+            @Override
+            public void onLowMemory() {
+                DBOpenHelper.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+        });
     }
 
     /**
@@ -83,6 +112,17 @@ public class SmartStoreSDKManager extends SalesforceSDKManager {
 
         // Upgrade to the latest version.
         SmartStoreUpgradeManager.getInstance().upgrade();
+
+        completeInit();
+    }
+
+    /**
+     * For internal use by Salesforce Mobile SDK or by subclasses
+     * of SmartStoreSDKManager. Finishes initialization once upgrades
+     * are done: opens stores and fills their caches in the background.
+     */
+    protected static void completeInit() {
+        ((SmartStoreSDKManager) INSTANCE).warmUpSmartStores(false);
         EventsObservable.get().notifyEvent(EventType.AppCreateComplete);
     }
 
@@ -159,6 +199,16 @@ public class SmartStoreSDKManager extends SalesforceSDKManager {
             if (dbMap != null) {
                 final Collection<DBOpenHelper> dbHelpers = dbMap.values();
                 if (dbHelpers != null) {
+
+                    // Attached stores must be detached from all stores before any of them is rekeyed.
+                    for (final DBOpenHelper dbHelper : dbHelpers) {
+                        if (dbHelper != null) {
+                            final SQLiteDatabase db = dbHelper.getWritableDatabase(getEncryptionKeyForPasscode(oldPass));
+                            synchronized (db) {
+                                DBHelper.getInstance(db).detachAllDatabases(db);
+                            }
+                        }
+                    }
                     for (final DBOpenHelper dbHelper : dbHelpers) {
                         if (dbHelper != null) {
 
@@ -175,6 +225,78 @@ public class SmartStoreSDKManager extends SalesforceSDKManager {
         }
     }
 
+    /**
+     * Returns the scheduler running maintenance (ANALYZE, incremental vacuum) in the background
+     * on the stores returned by getSmartStore() and getGlobalSmartStore().
+     *
+     * @return StoreMaintenanceScheduler instance.
+     */
+    public synchronized StoreMaintenanceScheduler getMaintenanceScheduler() {
+        if (maintenanceScheduler == null) {
+            maintenanceScheduler = new StoreMaintenanceScheduler();
+            maintenanceScheduler.start(StoreMaintenanceScheduler.DEFAULT_PERIOD_MILLIS);
+        }
+        return maintenanceScheduler;
+    }
+
+    /**
+     * Sets the memory / IO settings (page cache, page size, mmap, temp store) of stores that don't have their own.
+     * Use DBOpenHelper.setTuning to change the settings of a specific store.
+     * Under memory pressure, caches are shrunk and grow back once the pressure is gone.
+     *
+     * @param tuning StoreTuning instance e.g. StoreTuning.forLargeStore().
+     */
+    public void setStoreTuning(StoreTuning tuning) {
+        DBOpenHelper.setDefaultTuning(tuning);
+    }
+
+    /**
+     * Opens the store of the current user and the global store (if they exist) on a background thread
+     * and fills their caches (soup meta data, compiled statements) so that the first store operations
+     * on the UI thread don't pay for them. Callers using a store while it is being warmed up
+     * only wait for the work in progress.
+     *
+     * @param touchPages True - to also read soup rows into the page cache, False - otherwise.
+     */
+    public void warmUpSmartStores(final boolean touchPages) {
+        final Thread warmUpThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+
+                    // The key isn't known until the passcode is entered.
+                    if (getPasscodeHash() == null && getPasscodeManager().hasStoredPasscode(context)) {
+                        return;
+                    }
+                    final long start = System.currentTimeMillis();
+                    final UserAccount account = getUserAccountManager().getCurrentUser();
+                    if (account != null && hasSmartStore(account)) {
+                        getSmartStore(account).warmUp(touchPages);
+                    }
+                    if (hasGlobalSmartStore(null)) {
+                        getGlobalSmartStore().warmUp(touchPages);
+                    }
+                    Log.i(TAG, "Stores warmed up in " + (System.currentTimeMillis() - start) + "ms");
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to warm up stores", e);
+                }
+            }
+        }, "SmartStoreWarmUp");
+        warmUpThread.setPriority(Thread.MIN_PRIORITY);
+        warmUpThread.start();
+    }
+
+    /**
+     * Sets when stores are closed to free their memory (page cache, statements, meta data and query result caches).
+     * Closed stores are re-opened transparently the next time they are used (stores are not closed unless this is called).
+     *
+     * @param idleMillis Stores not used for that long are closed (-1 to never close stores based on idle time).
+     * @param maxOpenStores Maximum number of stores kept open - the least recently used ones are closed first.
+     */
+    public void setIdleStorePolicy(long idleMillis, int maxOpenStores) {
+        DBOpenHelper.setIdlePolicy(idleMillis, maxOpenStores);
+    }
+
     /**
      * Return default database used by smart store in the global context
      *
@@ -199,8 +321,10 @@ public class SmartStoreSDKManager extends SalesforceSDKManager {
         final String passcodeHash = getPasscodeHash();
         final String passcode = (passcodeHash == null ?
                 getEncryptionKeyForPasscode(null) : passcodeHash);
-        final SQLiteOpenHelper dbOpenHelper = DBOpenHelper.getOpenHelper(context,
+        final DBOpenHelper dbOpenHelper = DBOpenHelper.getOpenHelper(context,
                 dbName, null, null);
+        DBOpenHelper.relieveMemoryPressure(MEMORY_PRESSURE_QUIET_MILLIS);
+        getMaintenanceScheduler().watch(dbOpenHelper, passcode);
         return new SmartStore(dbOpenHelper, passcode);
     }
 
@@ -249,11 +373,27 @@ public class SmartStoreSDKManager extends SalesforceSDKManager {
         final String passcodeHash = getPasscodeHash();
         final String passcode = (passcodeHash == null ?
                 getEncryptionKeyForPasscode(null) : passcodeHash);
-        final SQLiteOpenHelper dbOpenHelper = DBOpenHelper.getOpenHelper(context,
+        final DBOpenHelper dbOpenHelper = DBOpenHelper.getOpenHelper(context,
                 dbNamePrefix, account, communityId);
+        DBOpenHelper.relieveMemoryPressure(MEMORY_PRESSURE_QUIET_MILLIS);
+        getMaintenanceScheduler().watch(dbOpenHelper, passcode);
         return new SmartStore(dbOpenHelper, passcode);
     }
 
+    /**
+     * Returns the database used by smart store for the current user, with the default
+     * global database attached to it so that smart sql queries can reference soups of both
+     * stores e.g. {global:soupName:path} (see SmartStore.attachStore).
+     * NB: the global database is detached when the passcode changes, call this method again afterwards.
+     *
+     * @return SmartStore instance.
+     */
+    public SmartStore getSmartStoreWithGlobalStore() {
+        final SmartStore smartStore = getSmartStore();
+        smartStore.attachStore(SmartStore.GLOBAL_STORE_ALIAS, getGlobalSmartStore());
+        return smartStore;
+    }
+
     /**
      * Returns whether global smart store is enabled or not.
      *
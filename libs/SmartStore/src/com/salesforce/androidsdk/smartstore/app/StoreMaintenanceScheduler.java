@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.app;
+
+import android.util.Log;
+
+import com.salesforce.androidsdk.smartstore.store.DBHelper;
+import com.salesforce.androidsdk.smartstore.store.DBOpenHelper;
+import com.salesforce.androidsdk.smartstore.store.SmartStore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs maintenance on the smart stores handed out by SmartStoreSDKManager in the background:
+ * - refreshes query planner statistics (ANALYZE) of soups that have seen a lot of writes
+ * - returns free pages to the file system (incremental vacuum) in small steps when the store is idle
+ * - closes stores that are no longer used (see DBOpenHelper.setIdlePolicy)
+ */
+public class StoreMaintenanceScheduler {
+
+    private static final String TAG = "StoreMaintenance";
+
+    // Defaults
+    public static final long DEFAULT_PERIOD_MILLIS = 60000;
+    public static final int DEFAULT_ANALYZE_THRESHOLD = 1000;
+    public static final long DEFAULT_IDLE_DELAY_MILLIS = 30000;
+    public static final int DEFAULT_MAX_VACUUM_PAGES_PER_STEP = 256;
+    public static final int DEFAULT_MAX_VACUUM_STEPS = 16;
+
+    /**
+     * Listener notified after each maintenance pass that did some work
+     */
+    public interface Listener {
+        void onMaintenance(DBOpenHelper dbOpenHelper, Report report);
+    }
+
+    /**
+     * Outcome of a maintenance pass
+     */
+    public static class Report {
+        public final List<String> soupsAnalyzed;
+        public final int plannerStatsChanged;
+        public final long bytesReclaimed;
+        public final long durationMillis;
+
+        public Report(List<String> soupsAnalyzed, int plannerStatsChanged, long bytesReclaimed, long durationMillis) {
+            this.soupsAnalyzed = soupsAnalyzed;
+            this.plannerStatsChanged = plannerStatsChanged;
+            this.bytesReclaimed = bytesReclaimed;
+            this.durationMillis = durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return "analyzed:" + soupsAnalyzed + " statsChanged:" + plannerStatsChanged
+                    + " bytesReclaimed:" + bytesReclaimed + " duration:" + durationMillis + "ms";
+        }
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final Map<DBOpenHelper, String> watchedStores = new HashMap<DBOpenHelper, String>();
+    private ScheduledFuture<?> scheduledPass;
+    private volatile int analyzeThreshold = DEFAULT_ANALYZE_THRESHOLD;
+    private volatile long idleDelayMillis = DEFAULT_IDLE_DELAY_MILLIS;
+    private volatile int maxVacuumPagesPerStep = DEFAULT_MAX_VACUUM_PAGES_PER_STEP;
+    private volatile int maxVacuumSteps = DEFAULT_MAX_VACUUM_STEPS;
+    private volatile long convertThresholdBytes = -1;
+    private volatile Listener listener;
+
+    /**
+     * Start running maintenance passes every periodMillis
+     * @param periodMillis
+     */
+    public synchronized void start(long periodMillis) {
+        stop();
+        scheduledPass = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                runMaintenance();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop running maintenance passes (a pass in progress finishes its current step)
+     */
+    public synchronized void stop() {
+        if (scheduledPass != null) {
+            scheduledPass.cancel(false);
+            scheduledPass = null;
+        }
+    }
+
+    /**
+     * @return true if maintenance passes are scheduled
+     */
+    public synchronized boolean isStarted() {
+        return scheduledPass != null;
+    }
+
+    /**
+     * Add store to the ones maintained
+     * @param dbOpenHelper
+     * @param passcode
+     */
+    public synchronized void watch(DBOpenHelper dbOpenHelper, String passcode) {
+        watchedStores.put(dbOpenHelper, passcode);
+    }
+
+    /**
+     * Remove store from the ones maintained
+     * @param dbOpenHelper
+     */
+    public synchronized void unwatch(DBOpenHelper dbOpenHelper) {
+        watchedStores.remove(dbOpenHelper);
+    }
+
+    /**
+     * Soups are analyzed once they have seen that many writes since they were last analyzed
+     * @param analyzeThreshold
+     */
+    public void setAnalyzeThreshold(int analyzeThreshold) {
+        this.analyzeThreshold = analyzeThreshold;
+    }
+
+    /**
+     * Free pages are only reclaimed when there were no writes for that long
+     * @param idleDelayMillis
+     */
+    public void setIdleDelay(long idleDelayMillis) {
+        this.idleDelayMillis = idleDelayMillis;
+    }
+
+    /**
+     * Bound the work done by a single maintenance pass: at most maxPagesPerStep x maxSteps pages are reclaimed
+     * and the database lock is released between steps
+     * @param maxPagesPerStep
+     * @param maxSteps
+     */
+    public void setVacuumLimits(int maxPagesPerStep, int maxSteps) {
+        this.maxVacuumPagesPerStep = maxPagesPerStep;
+        this.maxVacuumSteps = maxSteps;
+    }
+
+    /**
+     * Databases not using incremental auto vacuum (created by earlier versions of the SDK) are rebuilt
+     * once they hold more than convertThresholdBytes of free space - pass -1 (the default) to never rebuild them
+     * @param convertThresholdBytes
+     */
+    public void setConvertThreshold(long convertThresholdBytes) {
+        this.convertThresholdBytes = convertThresholdBytes;
+    }
+
+    /**
+     * @param listener
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Run a maintenance pass on all watched stores (on the calling thread)
+     */
+    public void runMaintenance() {
+        // Let store caches grow back if memory pressure is gone
+        DBOpenHelper.relieveMemoryPressure(SmartStoreSDKManager.MEMORY_PRESSURE_QUIET_MILLIS);
+
+        final Map<DBOpenHelper, String> stores;
+        synchronized (this) {
+            stores = new HashMap<DBOpenHelper, String>(watchedStores);
+        }
+        for (Map.Entry<DBOpenHelper, String> entry : stores.entrySet()) {
+            final DBOpenHelper dbOpenHelper = entry.getKey();
+
+            // Database was deleted (e.g. on logout) - don't re-create it
+            if (!DBOpenHelper.getOpenHelpers().containsValue(dbOpenHelper)) {
+                unwatch(dbOpenHelper);
+                continue;
+            }
+
+            // Database was closed because it was idle - don't re-open it
+            if (!dbOpenHelper.isDatabaseOpen()) {
+                continue;
+            }
+
+            // Maintenance doesn't count as activity
+            final long lastAccessTime = dbOpenHelper.getLastAccessTime();
+            try {
+                final Report report = runMaintenance(new SmartStore(dbOpenHelper, entry.getValue()));
+                final Listener currentListener = listener;
+                if (currentListener != null && (!report.soupsAnalyzed.isEmpty() || report.bytesReclaimed > 0)) {
+                    currentListener.onMaintenance(dbOpenHelper, report);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Maintenance failed", e);
+            } finally {
+                dbOpenHelper.setLastAccessTime(lastAccessTime);
+            }
+        }
+
+        // Close stores no longer used
+        final int closed = DBOpenHelper.closeIdleDatabases();
+        if (closed > 0) {
+            Log.i(TAG, "Closed " + closed + " idle store(s)");
+        }
+    }
+
+    /**
+     * Run a maintenance pass on the given store (on the calling thread)
+     * @param store
+     * @return report
+     */
+    public Report runMaintenance(SmartStore store) {
+        final long start = System.currentTimeMillis();
+        final DBHelper dbHelper = DBHelper.getInstance(store.getDatabase());
+
+        // Analyze soups with enough writes
+        final List<String> soupsToAnalyze = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : dbHelper.getPendingWrites().entrySet()) {
+            if (entry.getValue() >= analyzeThreshold && store.hasSoup(entry.getKey())) {
+                soupsToAnalyze.add(entry.getKey());
+            }
+        }
+        int plannerStatsChanged = 0;
+        if (!soupsToAnalyze.isEmpty()) {
+            plannerStatsChanged = store.analyze(soupsToAnalyze.toArray(new String[0]));
+        }
+
+        // Reclaim free pages if idle
+        long bytesReclaimed = 0;
+        final long lastWriteTime = dbHelper.getLastWriteTime();
+        if (System.currentTimeMillis() - lastWriteTime >= idleDelayMillis) {
+            if (store.getAutoVacuumMode() == SmartStore.AutoVacuumMode.incremental) {
+                for (int step = 0; step < maxVacuumSteps; step++) {
+
+                    // Back off as soon as the app writes again
+                    if (dbHelper.getLastWriteTime() != lastWriteTime) {
+                        break;
+                    }
+                    final long reclaimed = store.incrementalVacuum(maxVacuumPagesPerStep);
+                    if (reclaimed == 0) {
+                        break;
+                    }
+                    bytesReclaimed += reclaimed;
+                }
+            } else if (convertThresholdBytes >= 0 && store.getFreeBytes() > convertThresholdBytes) {
+                bytesReclaimed = store.enableIncrementalAutoVacuum();
+            }
+        }
+        return new Report(soupsToAnalyze, plannerStatsChanged, bytesReclaimed, System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.store;
+
+import android.database.Cursor;
+
+import java.util.Arrays;
+
+/**
+ * One row of the results of an aggregate query: the group by values followed by the aggregate values
+ * Values are Long, Double, String or null depending on what SQLite returned
+ */
+public class AggregateResult {
+
+    private final Object[] groupByValues;
+    private final Object[] values;
+
+    public AggregateResult(Object[] groupByValues, Object[] values) {
+        this.groupByValues = groupByValues;
+        this.values = values;
+    }
+
+    /**
+     * @return number of group by values
+     */
+    public int getGroupByCount() {
+        return groupByValues.length;
+    }
+
+    /**
+     * @param index (in the order of the group by paths of the query spec)
+     * @return group by value
+     */
+    public Object getGroupByValue(int index) {
+        return groupByValues[index];
+    }
+
+    /**
+     * @param index (in the order of the group by paths of the query spec)
+     * @return group by value as a string
+     */
+    public String getGroupByString(int index) {
+        Object value = groupByValues[index];
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * @param index (in the order of the aggregates of the query spec)
+     * @return aggregate value
+     */
+    public Object getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @param index (in the order of the aggregates of the query spec)
+     * @return aggregate value as a long (0 if null e.g. sum over no rows)
+     */
+    public long getLong(int index) {
+        Object value = values[index];
+        return value instanceof Number ? ((Number) value).longValue() : (value == null ? 0 : Long.parseLong(value.toString()));
+    }
+
+    /**
+     * @param index (in the order of the aggregates of the query spec)
+     * @return aggregate value as a double (0 if null e.g. avg over no rows)
+     */
+    public double getDouble(int index) {
+        Object value = values[index];
+        return value instanceof Number ? ((Number) value).doubleValue() : (value == null ? 0 : Double.parseDouble(value.toString()));
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(groupByValues) + ":" + Arrays.toString(values);
+    }
+
+    /**
+     * @param groupByCount number of group by columns at the start of each row
+     * @return row mapper building aggregate results
+     */
+    static RowMapper<AggregateResult> getRowMapper(final int groupByCount) {
+        return new RowMapper<AggregateResult>() {
+            @Override
+            public AggregateResult mapRow(Cursor cursor) {
+                Object[] groupByValues = new Object[groupByCount];
+                Object[] values = new Object[cursor.getColumnCount() - groupByCount];
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    Object value = getValue(cursor, i);
+                    if (i < groupByCount) {
+                        groupByValues[i] = value;
+                    } else {
+                        values[i - groupByCount] = value;
+                    }
+                }
+                return new AggregateResult(groupByValues, values);
+            }
+        };
+    }
+
+    private static Object getValue(Cursor cursor, int i) {
+        switch (cursor.getType(i)) {
+            case Cursor.FIELD_TYPE_INTEGER: return cursor.getLong(i);
+            case Cursor.FIELD_TYPE_FLOAT: return cursor.getDouble(i);
+            case Cursor.FIELD_TYPE_STRING: return cursor.getString(i);
+            default: return null;
+        }
+    }
+}
@@ -28,10 +28,15 @@ package com.salesforce.androidsdk.smartstore.store;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import net.sqlcipher.DatabaseUtils.InsertHelper;
 import net.sqlcipher.database.SQLiteDatabase;
@@ -44,6 +49,7 @@ import android.util.Log;
 
 import com.salesforce.androidsdk.accounts.UserAccount;
 import com.salesforce.androidsdk.smartstore.app.SmartStoreSDKManager;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.FtsExtension;
 import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
 import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
 
@@ -85,11 +91,51 @@ public class DBHelper {
 		return instance;
 	}
 
+	/**
+	 * Drops the instance associated with the database specified along with its cached data (e.g. when the database is closed).
+	 *
+	 * @param db Database.
+	 */
+	public static void removeInstance(SQLiteDatabase db) {
+		final DBHelper instance;
+		synchronized (DBHelper.class) {
+			instance = INSTANCES == null ? null : INSTANCES.remove(db);
+		}
+		if (instance != null) {
+			instance.clearMemoryCache();
+		}
+	}
+
+	/**
+	 * @param db Database.
+	 * @return true if the database specified is attached to another database (see attachDatabase).
+	 */
+	public static boolean isAttached(SQLiteDatabase db) {
+		final List<DBHelper> instances;
+		synchronized (DBHelper.class) {
+			instances = INSTANCES == null ? new ArrayList<DBHelper>() : new ArrayList<DBHelper>(INSTANCES.values());
+		}
+		for (DBHelper instance : instances) {
+			synchronized (instance) {
+				for (Attachment attachment : instance.aliasToAttachments.values()) {
+					if (attachment.db == db) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
 	// Some queries
 	private static final String COUNT_SELECT = "SELECT count(*) FROM %s %s";
 	private static final String SEQ_SELECT = "SELECT seq FROM SQLITE_SEQUENCE WHERE name = ?";
 	private static final String LIMIT_SELECT = "SELECT * FROM (%s) LIMIT %s";
 
+	// Temporary table used to match large sets of ids
+	private static final String ID_SET_TABLE = "temp.smartstore_id_set";
+	private static final String ID_SET_VALUE_COL = "value";
+
 	// Cache of soup name to soup table names
 	private Map<String, String> soupNameToTableNamesMap = new HashMap<String, String>();
 
@@ -99,6 +145,9 @@ public class DBHelper {
 	// Cache of soup name to boolean indicating if soup uses FTS
 	private Map<String, Boolean> soupNameToHasFTS = new HashMap<String, Boolean>();
 
+	// Cache of soup name to fts extension used by its fts table
+	private Map<String, FtsExtension> soupNameToFtsExtension = new HashMap<String, FtsExtension>();
+
 	// Cache of soup name to soup features
 	private Map<String, List<String>> soupNameToFeaturesMap = new HashMap<>();
 
@@ -111,12 +160,42 @@ public class DBHelper {
 	// Cache of raw count sql to compiled statements
 	private Map<String, SQLiteStatement> rawCountSqlToStatementsMap = new HashMap<String, SQLiteStatement>();
 
+	// Page size used by SQLCipher 3.x unless told otherwise
+	private static final int SQLCIPHER_DEFAULT_PAGE_SIZE = 1024;
+
+	// Databases of other stores attached to this database (alias to attachment)
+	private Map<String, Attachment> aliasToAttachments = new LinkedHashMap<String, Attachment>();
+
+	// Cache of table name to boolean indicating if table has a content hash column (soups created before it was introduced don't)
+	private Map<String, Boolean> tableNameToHasContentHash = new HashMap<String, Boolean>();
+
+	// Tables whose content hash column was added inside a transaction that had not ended yet (the column is gone if it was rolled back)
+	private Set<String> uncommittedContentHashTables = new HashSet<String>();
+
 	// Boolean to turn explain query plan capture on or off
 	private boolean captureExplainQueryPlan;
 
 	// Last explain query plan
 	private JSONObject lastExplainQueryPlan;
 
+	// Number of rows written per soup since the soup was last analyzed (used by maintenance)
+	private Map<String, Integer> soupNameToPendingWritesMap = new HashMap<String, Integer>();
+
+	// Time of last write (used by maintenance to detect idle time)
+	private long lastWriteTime;
+
+	// Cache of query results (disabled by default)
+	private QueryResultCache queryResultCache = new QueryResultCache(0);
+
+	// Cache of smart sql to converted sql (most recently used), so that regex rewriting is only done once per query shape
+	private static final int MAX_CONVERTED_SMART_SQLS = 200;
+	private Map<String, String> smartSqlToSqlMap = new LinkedHashMap<String, String>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Entry<String, String> eldest) {
+			return size() > MAX_CONVERTED_SMART_SQLS;
+		}
+	};
+
 	/**
 	 * @param soupName
 	 * @param tableName
@@ -191,11 +270,119 @@ public class DBHelper {
 				prog.close();
 			
 			cleanupRawCountSqlToStatementMaps(tableName);
+			tableNameToHasContentHash.remove(tableName);
+			uncommittedContentHashTables.remove(tableName);
 		}
 		soupNameToTableNamesMap.remove(soupName);
 		soupNameToIndexSpecsMap.remove(soupName);
 		soupNameToHasFTS.remove(soupName);
+		soupNameToFtsExtension.remove(soupName);
 		soupNameToFeaturesMap.remove(soupName);
+		soupNameToPendingWritesMap.remove(soupName);
+		queryResultCache.invalidate(soupName);
+		cleanupSmartSqlToSqlMap(soupName);
+	}
+
+	private void cleanupSmartSqlToSqlMap(String soupName) {
+		List<String> smartSqlToRemove = new ArrayList<String>();
+		for (String smartSql : smartSqlToSqlMap.keySet()) {
+			if (smartSql.contains("{" + soupName + "}") || smartSql.contains("{" + soupName + ":")) {
+				smartSqlToRemove.add(smartSql);
+			}
+		}
+		for (String smartSql : smartSqlToRemove) {
+			smartSqlToSqlMap.remove(smartSql);
+		}
+	}
+
+	/**
+	 * Attach the database of another store (smart sql can then reference its soups as {alias:soupName} and {alias:soupName:path})
+	 * NB: cannot be called within a transaction
+	 * @param db
+	 * @param alias
+	 * @param attachedDb
+	 * @param key key of the attached database (empty for an unencrypted database)
+	 * @param pageSize page size the attached database was created with (0 for the SQLCipher default)
+	 */
+	public synchronized void attachDatabase(SQLiteDatabase db, String alias, SQLiteDatabase attachedDb, String key, int pageSize) {
+		if (aliasToAttachments.containsKey(alias)) {
+			return; // already attached
+		}
+		// Attached databases are opened with the default cipher settings
+		if (pageSize > 0) {
+			db.execSQL("PRAGMA cipher_default_page_size = " + pageSize);
+		}
+		try {
+			db.execSQL("ATTACH DATABASE ? AS " + alias + " KEY ?", new Object[] {attachedDb.getPath(), key == null ? "" : key});
+		} finally {
+			if (pageSize > 0) {
+				db.execSQL("PRAGMA cipher_default_page_size = " + SQLCIPHER_DEFAULT_PAGE_SIZE);
+			}
+		}
+		aliasToAttachments.put(alias, new Attachment(attachedDb, key, pageSize));
+		cleanupSmartSqlToSqlMap(alias);
+	}
+
+	/**
+	 * Detach the database of another store
+	 * @param db
+	 * @param alias
+	 */
+	public synchronized void detachDatabase(SQLiteDatabase db, String alias) {
+		if (aliasToAttachments.remove(alias) != null) {
+			db.execSQL("DETACH DATABASE " + alias);
+			cleanupSmartSqlToSqlMap(alias);
+		}
+	}
+
+	/**
+	 * Detach the databases of all other stores (e.g. before changing keys)
+	 * @param db
+	 */
+	public synchronized void detachAllDatabases(SQLiteDatabase db) {
+		for (String alias : new ArrayList<String>(aliasToAttachments.keySet())) {
+			detachDatabase(db, alias);
+		}
+	}
+
+	/**
+	 * @param alias
+	 * @return database attached with that alias or null
+	 */
+	public synchronized SQLiteDatabase getAttachedDatabase(String alias) {
+		Attachment attachment = aliasToAttachments.get(alias);
+		return attachment == null ? null : attachment.db;
+	}
+
+	/**
+	 * @param smartSql
+	 * @return true if smartSql references soups of an attached database
+	 *         (their changes are not tracked by this database's caches)
+	 */
+	public synchronized boolean referencesAttachedDatabase(String smartSql) {
+		for (String alias : aliasToAttachments.keySet()) {
+			if (smartSql.contains("{" + alias + ":")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param smartSql
+	 * @return sql previously converted from smartSql or null
+	 */
+	public String getConvertedSmartSql(String smartSql) {
+		return smartSqlToSqlMap.get(smartSql);
+	}
+
+	/**
+	 * Remember sql converted from smartSql (until a soup it references is altered or dropped)
+	 * @param smartSql
+	 * @param sql
+	 */
+	public void putConvertedSmartSql(String smartSql, String sql) {
+		smartSqlToSqlMap.put(smartSql, sql);
 	}
 
 	private void cleanupRawCountSqlToStatementMaps(String tableName) {
@@ -242,6 +429,7 @@ public class DBHelper {
 	 * @return
 	 */
 	public InsertHelper getInsertHelper(SQLiteDatabase db, String table) {
+		checkUncommittedContentHashColumns(db);
 		InsertHelper insertHelper = tableNameToInsertHelpersMap.get(table);
 		if (insertHelper == null) {
 			insertHelper = new InsertHelper(db, table);
@@ -250,6 +438,78 @@ public class DBHelper {
 		return insertHelper;
 	}
 
+	/**
+	 * @param db
+	 * @param soupTableName
+	 * @return true if the soup table has a content hash column
+	 */
+	public boolean hasContentHashColumn(SQLiteDatabase db, String soupTableName) {
+		checkUncommittedContentHashColumns(db);
+		Boolean hasContentHash = tableNameToHasContentHash.get(soupTableName);
+		if (hasContentHash == null) {
+			hasContentHash = false;
+			Cursor cursor = null;
+			try {
+				cursor = db.rawQuery("PRAGMA table_info(" + soupTableName + ")", null);
+				int nameIndex = cursor.getColumnIndex("name");
+				while (cursor.moveToNext()) {
+					if (SmartStore.CONTENT_HASH_COL.equals(cursor.getString(nameIndex))) {
+						hasContentHash = true;
+						break;
+					}
+				}
+			} finally {
+				safeClose(cursor);
+			}
+			if (!uncommittedContentHashTables.contains(soupTableName)) {
+				tableNameToHasContentHash.put(soupTableName, hasContentHash);
+			}
+		}
+		return hasContentHash;
+	}
+
+	/**
+	 * Add content hash column to soup table if it doesn't have one yet (soups created by earlier versions of the SDK)
+	 * @param db
+	 * @param soupTableName
+	 */
+	public void ensureContentHashColumn(SQLiteDatabase db, String soupTableName) {
+		if (!hasContentHashColumn(db, soupTableName)) {
+			db.execSQL("ALTER TABLE " + soupTableName + " ADD COLUMN " + SmartStore.CONTENT_HASH_COL + " INTEGER");
+
+			// Insert helper was built for the old columns
+			InsertHelper ih = tableNameToInsertHelpersMap.remove(soupTableName);
+			if (ih != null)
+				ih.close();
+
+			if (db.inTransaction()) {
+				// Only cached once we know the caller's transaction was committed
+				uncommittedContentHashTables.add(soupTableName);
+			}
+			else {
+				tableNameToHasContentHash.put(soupTableName, true);
+			}
+		}
+	}
+
+	/**
+	 * Once the transaction that added content hash columns has ended, forget what was cached about those tables:
+	 * if it was rolled back, the columns are gone and the insert helpers built with them are no longer valid
+	 * @param db
+	 */
+	private void checkUncommittedContentHashColumns(SQLiteDatabase db) {
+		if (uncommittedContentHashTables.isEmpty() || db.inTransaction()) {
+			return;
+		}
+		for (String tableName : uncommittedContentHashTables) {
+			tableNameToHasContentHash.remove(tableName);
+			InsertHelper ih = tableNameToInsertHelpersMap.remove(tableName);
+			if (ih != null)
+				ih.close();
+		}
+		uncommittedContentHashTables.clear();
+	}
+
 	/**
 	 * Does a count query
 	 * @param db
@@ -393,9 +653,131 @@ public class DBHelper {
 	 * @param table
 	 * @param whereClause
 	 * @param whereArgs
+	 * @return number of rows affected
+	 */
+	public int delete(SQLiteDatabase db, String table, String whereClause, String... whereArgs) {
+		return db.delete(table, whereClause, whereArgs);
+	}
+
+	/**
+	 * Load values into the temporary id set table (replacing its previous content)
+	 * Values are inserted with a single prepared statement, so the set can be arbitrarily large (unlike an IN (...) list)
+	 * NB: caller should synchronize on db and use the id set before anyone else loads it
+	 * @param db
+	 * @param values Long or String values (nulls are skipped, they can't match anything through an IN predicate)
+	 */
+	public void loadIdSet(SQLiteDatabase db, Collection<?> values) {
+		db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + ID_SET_TABLE + " (" + ID_SET_VALUE_COL + " PRIMARY KEY)");
+		db.execSQL("DELETE FROM " + ID_SET_TABLE);
+		SQLiteStatement insertStatement = null;
+		db.beginTransaction();
+		try {
+			insertStatement = db.compileStatement("INSERT OR IGNORE INTO " + ID_SET_TABLE + " VALUES (?)");
+			for (Object value : values) {
+				if (value == null) {
+					continue;
+				}
+				if (value instanceof Number) {
+					insertStatement.bindLong(1, ((Number) value).longValue());
+				} else {
+					insertStatement.bindString(1, value.toString());
+				}
+				insertStatement.execute();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			if (insertStatement != null) {
+				insertStatement.close();
+			}
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * @param column
+	 * @return predicate to match column against the values loaded with loadIdSet
+	 */
+	public String getIdSetPredicate(String column) {
+		return String.format("%s IN (SELECT %s FROM %s)", column, ID_SET_VALUE_COL, ID_SET_TABLE);
+	}
+
+	/**
+	 * Empty the temporary id set table
+	 * @param db
+	 */
+	public void clearIdSet(SQLiteDatabase db) {
+		db.execSQL("DELETE FROM " + ID_SET_TABLE);
+	}
+
+	/**
+	 * Record rows written to a soup (so that maintenance knows which soups need to be analyzed)
+	 * @param soupName
+	 * @param count
+	 */
+	public synchronized void recordWrites(String soupName, int count) {
+		Integer pending = soupNameToPendingWritesMap.get(soupName);
+		soupNameToPendingWritesMap.put(soupName, (pending == null ? 0 : pending) + count);
+		lastWriteTime = System.currentTimeMillis();
+		queryResultCache.invalidate(soupName);
+	}
+
+	/**
+	 * @return cache of query results for the database
+	 */
+	public QueryResultCache getQueryResultCache() {
+		return queryResultCache;
+	}
+
+	/**
+	 * @return map of soup name to number of rows written since the soup was last analyzed
+	 */
+	public synchronized Map<String, Integer> getPendingWrites() {
+		return new HashMap<String, Integer>(soupNameToPendingWritesMap);
+	}
+
+	/**
+	 * Forget rows written to the given soups (typically after they have been analyzed)
+	 * @param soupNames
+	 */
+	public synchronized void clearPendingWrites(List<String> soupNames) {
+		for (String soupName : soupNames) {
+			soupNameToPendingWritesMap.remove(soupName);
+		}
+	}
+
+	/**
+	 * @return time of last write recorded with recordWrites or 0 if there were none
 	 */
-	public void delete(SQLiteDatabase db, String table, String whereClause, String... whereArgs) {
-		db.delete(table, whereClause, whereArgs);
+	public synchronized long getLastWriteTime() {
+		return lastWriteTime;
+	}
+
+	/**
+	 * @return what this helper knows that must outlive the connection (see DBOpenHelper.closeIfIdle)
+	 */
+	synchronized RetainedState getRetainedState() {
+		return new RetainedState(new LinkedHashMap<String, Attachment>(aliasToAttachments), queryResultCache.getMaxBytes(),
+				new HashMap<String, Integer>(soupNameToPendingWritesMap), lastWriteTime);
+	}
+
+	/**
+	 * Re-apply what was known about a connection that was closed to the new connection
+	 * NB: cannot be called within a transaction (databases get attached again)
+	 * @param db
+	 * @param state
+	 */
+	synchronized void restoreRetainedState(SQLiteDatabase db, RetainedState state) {
+		queryResultCache.setMaxBytes(state.queryCacheMaxBytes);
+		soupNameToPendingWritesMap.putAll(state.soupNameToPendingWrites);
+		lastWriteTime = Math.max(lastWriteTime, state.lastWriteTime);
+		for (Entry<String, Attachment> entry : state.aliasToAttachments.entrySet()) {
+			final Attachment attachment = entry.getValue();
+			try {
+				attachDatabase(db, entry.getKey(), attachment.db, attachment.key, attachment.pageSize);
+			} catch (Exception e) {
+				Log.e("DBHelper:restoreRetainedState", "Could not attach database again: " + entry.getKey(), e);
+			}
+		}
 	}
 
 	/**
@@ -444,9 +826,15 @@ public class DBHelper {
 		soupNameToTableNamesMap.clear();
 		soupNameToIndexSpecsMap.clear();
 		soupNameToFeaturesMap.clear();
+		soupNameToFtsExtension.clear();
 		tableNameToInsertHelpersMap.clear();
 		tableNameToNextIdStatementsMap.clear();
 		rawCountSqlToStatementsMap.clear();
+		tableNameToHasContentHash.clear();
+		uncommittedContentHashTables.clear();
+		soupNameToPendingWritesMap.clear();
+		queryResultCache.clear();
+		smartSqlToSqlMap.clear();
 	}
 
     /**
@@ -513,6 +901,30 @@ public class DBHelper {
 		return getCachedHasFTS(soupName);
 	}
 
+	/**
+	 * @param db
+	 * @param soupName
+	 * @return fts extension used by the full-text-search table of the soup or null if soup has no full-text-search index
+	 */
+	public FtsExtension getFtsExtension(SQLiteDatabase db, String soupName) {
+		if (!hasFTS(db, soupName)) {
+			return null;
+		}
+		FtsExtension ftsExtension = soupNameToFtsExtension.get(soupName);
+		if (ftsExtension == null) {
+			Cursor cursor = null;
+			try {
+				cursor = query(db, "sqlite_master", new String[] {"sql"}, null, null, "type = ? and name = ?", "table", getSoupTableName(db, soupName) + SmartStore.FTS_SUFFIX);
+				ftsExtension = cursor.moveToFirst() && cursor.getString(0).toLowerCase(Locale.US).contains(FtsExtension.fts5.name()) ? FtsExtension.fts5 : FtsExtension.fts4;
+			}
+			finally {
+				safeClose(cursor);
+			}
+			soupNameToFtsExtension.put(soupName, ftsExtension);
+		}
+		return ftsExtension;
+	}
+
 	/**
 	 * Retrieves the set of features belonging to the given soup.
 	 *
@@ -614,4 +1026,37 @@ public class DBHelper {
             cursor.close();
         }
     }
+
+	/**
+	 * Database of another store attached to this database along with what is needed to attach it again
+	 */
+	static class Attachment {
+		final SQLiteDatabase db;
+		final String key;
+		final int pageSize;
+
+		Attachment(SQLiteDatabase db, String key, int pageSize) {
+			this.db = db;
+			this.key = key;
+			this.pageSize = pageSize;
+		}
+	}
+
+	/**
+	 * What a helper knows that is not just a cache of the database content and must outlive the connection:
+	 * databases attached, query cache limit and writes maintenance has not analyzed yet
+	 */
+	static class RetainedState {
+		final Map<String, Attachment> aliasToAttachments;
+		final long queryCacheMaxBytes;
+		final Map<String, Integer> soupNameToPendingWrites;
+		final long lastWriteTime;
+
+		RetainedState(Map<String, Attachment> aliasToAttachments, long queryCacheMaxBytes, Map<String, Integer> soupNameToPendingWrites, long lastWriteTime) {
+			this.aliasToAttachments = aliasToAttachments;
+			this.queryCacheMaxBytes = queryCacheMaxBytes;
+			this.soupNameToPendingWrites = soupNameToPendingWrites;
+			this.lastWriteTime = lastWriteTime;
+		}
+	}
 }
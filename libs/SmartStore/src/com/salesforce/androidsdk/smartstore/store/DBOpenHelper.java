@@ -32,8 +32,14 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -46,6 +52,8 @@ import net.sqlcipher.database.SQLiteDatabaseHook;
 import net.sqlcipher.database.SQLiteOpenHelper;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -63,8 +71,33 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 	private static final String DB_NAME_SUFFIX = ".db";
 	private static final String ORG_KEY_PREFIX = "00D";
 	private static final String EXTERNAL_BLOBS_SUFFIX = "_external_soup_blobs/";
+	private static final String PAGE_SIZES_PREFS = "smartstore_page_sizes";
 	private static String dataDir;
 	private String dbName;
+	private static volatile StoreTuning defaultTuning = StoreTuning.DEFAULT;
+	private volatile StoreTuning tuning; // null to use defaultTuning
+	private int cipherPageSize; // page size the database was created with (0 for the SQLCipher default)
+	private SQLiteDatabase openDatabase;
+	private volatile long lastAccessTime;
+	private DBHelper.RetainedState retainedState; // saved by closeIfIdle, re-applied by onOpen
+	private boolean stagingSoupsDropped; // leftovers of bulk replaces interrupted by the death of a previous process
+
+	/*
+	 * Idle policy (off by default, see setIdlePolicy): databases not accessed for idleCloseMillis and least recently used ones beyond maxOpenDatabases get closed
+	 * Databases handed out more recently than MIN_IDLE_MILLIS are never closed: their callers may not have locked them yet
+	 */
+	public static final long DEFAULT_IDLE_CLOSE_MILLIS = -1;
+	public static final int DEFAULT_MAX_OPEN_DATABASES = -1;
+	public static final long MIN_IDLE_MILLIS = 1000;
+	private static volatile long idleCloseMillis = DEFAULT_IDLE_CLOSE_MILLIS;
+	private static volatile int maxOpenDatabases = DEFAULT_MAX_OPEN_DATABASES;
+
+	/*
+	 * Memory pressure reported by the system (see onTrimMemory) - tuning changes are applied off the calling thread
+	 */
+	private static StoreTuning.MemoryPressure memoryPressure = StoreTuning.MemoryPressure.none;
+	private static long memoryPressureTime;
+	private static final ExecutorService backgroundExecutor = Executors.newSingleThreadExecutor();
 
 	/*
 	 * Cache for the helper instances
@@ -142,7 +175,12 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 	}
 
 	protected DBOpenHelper(Context context, String dbName) {
-		super(context, dbName, null, DB_VERSION, new DBHook());
+		this(context, dbName, new DBHook(context.getApplicationContext()));
+	}
+
+	private DBOpenHelper(Context context, String dbName, DBHook dbHook) {
+		super(context, dbName, null, DB_VERSION, dbHook);
+		dbHook.dbOpenHelper = this;
 		this.loadLibs(context);
 		this.dbName = dbName;
 		dataDir = context.getApplicationInfo().dataDir;
@@ -164,6 +202,9 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 		 * manage locking at our level anyway.
 		 */
 		db.setLockingEnabled(false);
+
+		// Must be set before any table is created - free pages can then be reclaimed with incremental_vacuum
+		db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
 		SmartStore.createMetaTables(db);
 	}
 
@@ -192,7 +233,307 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 	@Override
 	@SuppressWarnings("deprecation")
 	public void onOpen(SQLiteDatabase db) {
-		(new SmartStore(db)).resumeLongOperations();
+		final DBHelper.RetainedState state;
+		synchronized (this) {
+			openDatabase = db;
+			state = retainedState;
+			retainedState = null;
+		}
+		applyTuning(db);
+		if (state != null) {
+			// Re-opened after an idle close
+			DBHelper.getInstance(db).restoreRetainedState(db, state);
+		}
+		final SmartStore store = new SmartStore(db);
+		if (!stagingSoupsDropped) {
+			// Only on first open: later ones (after an idle close) could be in the middle of a bulk replace
+			stagingSoupsDropped = true;
+			store.dropStagingSoups();
+		}
+		store.resumeLongOperations();
+
+		// Make room for this database
+		if (isIdlePolicyOn()) {
+			backgroundExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					closeIdleDatabases();
+				}
+			});
+		}
+	}
+
+	@Override
+	public synchronized SQLiteDatabase getWritableDatabase(String password) {
+		lastAccessTime = System.currentTimeMillis();
+		return super.getWritableDatabase(password);
+	}
+
+	@Override
+	public synchronized void close() {
+		retainedState = null;
+		closeConnection();
+	}
+
+	private synchronized void closeConnection() {
+
+		// Cached data (statements, soup meta data, query results) goes away with the connection
+		if (openDatabase != null) {
+			DBHelper.removeInstance(openDatabase);
+			SmartSqlHelper.removeInstance(openDatabase);
+			openDatabase = null;
+		}
+		super.close();
+	}
+
+	/**
+	 * @return true if the database is currently open
+	 */
+	public synchronized boolean isDatabaseOpen() {
+		return openDatabase != null && openDatabase.isOpen();
+	}
+
+	/**
+	 * @return last time the database was handed out by getWritableDatabase
+	 */
+	public long getLastAccessTime() {
+		return lastAccessTime;
+	}
+
+	/**
+	 * Restore the last access time (for background work such as maintenance that should not keep the database open)
+	 * @param lastAccessTime
+	 */
+	public void setLastAccessTime(long lastAccessTime) {
+		this.lastAccessTime = lastAccessTime;
+	}
+
+	/**
+	 * Close the database unless it is in use: handed out less than MIN_IDLE_MILLIS ago, in a transaction or attached to another database
+	 * It gets re-opened by the next getWritableDatabase, with the databases it had attached, its query cache limit
+	 * and the writes maintenance had not analyzed yet
+	 *
+	 * @return true if the database was closed
+	 */
+	public boolean closeIfIdle() {
+		final SQLiteDatabase db = getOpenDatabase();
+		if (db == null || DBHelper.isAttached(db)) {
+			return false;
+		}
+
+		// Same locks as store operations (database then helper): waits for the operation in progress if any,
+		// and getWritableDatabase can't hand out the database while it is being closed
+		synchronized (db) {
+			synchronized (this) {
+				if (openDatabase != db || db.inTransaction() || System.currentTimeMillis() - lastAccessTime < MIN_IDLE_MILLIS) {
+					return false;
+				}
+				retainedState = DBHelper.getInstance(db).getRetainedState();
+				closeConnection();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Change the idle policy (databases are not closed by default)
+	 *
+	 * @param idleMillis databases not accessed for that long get closed (-1 to not close databases based on idle time)
+	 * @param maxOpen maximum number of databases kept open, least recently used ones get closed first (-1 for no maximum)
+	 */
+	public static void setIdlePolicy(long idleMillis, int maxOpen) {
+		idleCloseMillis = idleMillis;
+		maxOpenDatabases = maxOpen;
+	}
+
+	private static boolean isIdlePolicyOn() {
+		return idleCloseMillis >= 0 || maxOpenDatabases >= 0;
+	}
+
+	/**
+	 * Close databases according to the idle policy (see setIdlePolicy)
+	 *
+	 * @return number of databases closed
+	 */
+	public static int closeIdleDatabases() {
+		if (!isIdlePolicyOn()) {
+			return 0;
+		}
+		final List<DBOpenHelper> openedHelpers = new ArrayList<DBOpenHelper>();
+		synchronized (DBOpenHelper.class) {
+			for (DBOpenHelper helper : openHelpers.values()) {
+				if (helper.isDatabaseOpen()) {
+					openedHelpers.add(helper);
+				}
+			}
+		}
+
+		// Most recently used first
+		Collections.sort(openedHelpers, new Comparator<DBOpenHelper>() {
+			@Override
+			public int compare(DBOpenHelper lhs, DBOpenHelper rhs) {
+				return Long.valueOf(rhs.lastAccessTime).compareTo(lhs.lastAccessTime);
+			}
+		});
+		final long now = System.currentTimeMillis();
+		int closed = 0;
+		for (int i = 0; i < openedHelpers.size(); i++) {
+			final DBOpenHelper helper = openedHelpers.get(i);
+			final boolean tooMany = maxOpenDatabases >= 0 && i - closed >= maxOpenDatabases;
+			final boolean idle = idleCloseMillis >= 0 && now - helper.lastAccessTime >= idleCloseMillis;
+			if ((tooMany || idle) && helper.closeIfIdle()) {
+				closed++;
+			}
+		}
+		return closed;
+	}
+
+	/**
+	 * Change the memory / IO settings of stores that don't have their own (see setTuning)
+	 *
+	 * @param tuning
+	 */
+	public static void setDefaultTuning(StoreTuning tuning) {
+		defaultTuning = tuning;
+		retuneOpenHelpers();
+	}
+
+	/**
+	 * Change the memory / IO settings of this store
+	 * Cache size, mmap size and temp store are applied right away if the database is open, page size only when the database gets created
+	 *
+	 * @param tuning
+	 */
+	public void setTuning(StoreTuning tuning) {
+		this.tuning = tuning;
+		final SQLiteDatabase db = getOpenDatabase();
+		if (db != null) {
+			applyTuning(db);
+		}
+	}
+
+	/**
+	 * @return memory / IO settings of this store
+	 */
+	public StoreTuning getTuning() {
+		final StoreTuning storeTuning = tuning;
+		return storeTuning != null ? storeTuning : defaultTuning;
+	}
+
+	/**
+	 * @return settings currently in effect (given the memory pressure)
+	 */
+	public StoreTuning getEffectiveTuning() {
+		return getTuning().underPressure(getMemoryPressure());
+	}
+
+	/**
+	 * @return page size the database was created with (0 for the SQLCipher default)
+	 */
+	public int getCipherPageSize() {
+		return cipherPageSize;
+	}
+
+	private synchronized SQLiteDatabase getOpenDatabase() {
+		return openDatabase;
+	}
+
+	private void applyTuning(SQLiteDatabase db) {
+		final StoreTuning storeTuning = getTuning();
+		final StoreTuning effectiveTuning = storeTuning.underPressure(getMemoryPressure());
+		synchronized (db) {
+			runPragma(db, "cache_size = -" + effectiveTuning.cacheSizeKb);
+			runPragma(db, "mmap_size = " + effectiveTuning.mmapSize);
+
+			// Changing temp_store is not allowed within a transaction - it will be applied next time
+			if (!db.inTransaction()) {
+				runPragma(db, "temp_store = " + effectiveTuning.tempStore.ordinal());
+			}
+			if (effectiveTuning != storeTuning) {
+				// Give back memory no longer needed by the smaller cache
+				runPragma(db, "shrink_memory");
+			}
+		}
+	}
+
+	private static void runPragma(SQLiteDatabase db, String pragma) {
+		Cursor cursor = null;
+		try {
+			// Some pragmas return their new value
+			cursor = db.rawQuery("PRAGMA " + pragma, null);
+			cursor.moveToFirst();
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+	}
+
+	/**
+	 * Shrink the page caches of all open stores - to be called from ComponentCallbacks2.onTrimMemory
+	 * Caches grow back once relieveMemoryPressure is called
+	 *
+	 * @param level level passed to onTrimMemory
+	 */
+	public static void onTrimMemory(int level) {
+		final StoreTuning.MemoryPressure pressure = StoreTuning.MemoryPressure.fromTrimLevel(level);
+		synchronized (DBOpenHelper.class) {
+			memoryPressureTime = System.currentTimeMillis();
+			if (pressure.ordinal() <= memoryPressure.ordinal()) {
+				return; // already shrunk as much
+			}
+			memoryPressure = pressure;
+		}
+		retuneOpenHelpers();
+	}
+
+	/**
+	 * Let the page caches of all open stores grow back if no memory pressure was reported for quietMillis
+	 *
+	 * @param quietMillis
+	 * @return true if caches were restored
+	 */
+	public static boolean relieveMemoryPressure(long quietMillis) {
+		synchronized (DBOpenHelper.class) {
+			if (memoryPressure == StoreTuning.MemoryPressure.none
+					|| System.currentTimeMillis() - memoryPressureTime < quietMillis) {
+				return false;
+			}
+			memoryPressure = StoreTuning.MemoryPressure.none;
+		}
+		retuneOpenHelpers();
+		return true;
+	}
+
+	/**
+	 * @return memory pressure currently reported
+	 */
+	public static synchronized StoreTuning.MemoryPressure getMemoryPressure() {
+		return memoryPressure;
+	}
+
+	private static void retuneOpenHelpers() {
+		final List<DBOpenHelper> helpers;
+		synchronized (DBOpenHelper.class) {
+			helpers = new ArrayList<DBOpenHelper>(openHelpers.values());
+		}
+
+		// Not blocking the caller (typically the main thread) while stores are busy
+		backgroundExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (DBOpenHelper helper : helpers) {
+					final SQLiteDatabase db = helper.getOpenDatabase();
+					if (db != null && db.isOpen()) {
+						try {
+							helper.applyTuning(db);
+						} catch (Exception e) {
+							Log.e("DBOpenHelper:retune", "Exception occurred while tuning database.", e);
+						}
+					}
+				}
+			}
+		});
 	}
 
 	/**
@@ -316,6 +657,13 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 	}
 
 	static class DBHook implements SQLiteDatabaseHook {
+		private final Context context;
+		private DBOpenHelper dbOpenHelper;
+
+		DBHook(Context context) {
+			this.context = context;
+		}
+
 		public void preKey(SQLiteDatabase database) {
 			database.execSQL("PRAGMA cipher_default_kdf_iter = '4000'"); 
 			// the new default for sqlcipher 3.x (64000) is too slow
@@ -323,6 +671,17 @@ public class DBOpenHelper extends SQLiteOpenHelper {
 		}
 
 		public void postKey(SQLiteDatabase database) {
+			// The page size can't change once the database is created, so the one used at creation is recorded
+			final SharedPreferences pageSizes = context.getSharedPreferences(PAGE_SIZES_PREFS, Context.MODE_PRIVATE);
+			int pageSize = pageSizes.getInt(dbOpenHelper.dbName, 0);
+			if (new File(database.getPath()).length() == 0) {
+				pageSize = dbOpenHelper.getTuning().pageSize;
+				pageSizes.edit().putInt(dbOpenHelper.dbName, pageSize).apply();
+			}
+			if (pageSize > 0) {
+				database.execSQL("PRAGMA cipher_page_size = " + pageSize);
+			}
+			dbOpenHelper.cipherPageSize = pageSize;
 		}
 	};
 
@@ -44,17 +44,17 @@ public class IndexSpec {
     public final String path;
     public final Type type;
     public final String columnName;
+    public final String[] pathElements; // path split once (to avoid splitting it for every projection)
 
     public IndexSpec(String path, Type type) {
-        this.path = path;
-        this.type = type;
-        this.columnName = null; // undefined
+        this(path, type, null /* undefined */);
     }
 
     public IndexSpec(String path, Type type, String columnName) {
         this.path = path;
         this.type = type;
         this.columnName = columnName;
+        this.pathElements = SmartStore.splitPath(path);
     }
 
     @Override
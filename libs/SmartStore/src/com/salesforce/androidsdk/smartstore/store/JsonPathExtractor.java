@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.store;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Extracts the values of indexed paths from the raw JSON of a soup element in a single streaming pass,
+ * without building a JSONObject tree.
+ *
+ * Returns the same values as SmartStore.projectPathElements(): paths that end on a JSON object or go through a JSON array
+ * can't be resolved while streaming, only when they are present does the element get parsed into a tree.
+ */
+public class JsonPathExtractor {
+
+    // Marker for values that need the tree
+    private static final Object NEEDS_TREE = new Object();
+
+    /**
+     * @param rawSoupElt raw JSON of soup element
+     * @param indexSpecs
+     * @return values of the paths of the index specs (same order)
+     * @throws JSONException
+     */
+    public static Object[] extract(String rawSoupElt, IndexSpec[] indexSpecs) throws JSONException {
+        Object[] values = new Object[indexSpecs.length];
+        List<Integer> targets = new ArrayList<Integer>();
+        for (int i = 0; i < indexSpecs.length; i++) {
+            if (indexSpecs[i].pathElements.length == 0) {
+                values[i] = NEEDS_TREE; // whole element
+            } else {
+                targets.add(i);
+            }
+        }
+
+        JsonReader reader = new JsonReader(new StringReader(rawSoupElt));
+        try {
+            extractFromObject(reader, indexSpecs, targets, 0, values);
+        } catch (Exception e) {
+            // Not parseable by streaming parser - use the tree for everything
+            for (int i = 0; i < values.length; i++) {
+                values[i] = NEEDS_TREE;
+            }
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Ignore - reading from a string
+            }
+        }
+
+        // Resolving values that need the tree (parsing the element at most once)
+        JSONObject soupElt = null;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == NEEDS_TREE) {
+                if (soupElt == null) {
+                    soupElt = new JSONObject(rawSoupElt);
+                }
+                values[i] = SmartStore.projectPathElements(soupElt, indexSpecs[i].pathElements);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Walk JSON object at depth, recursing only into fields that are on the path of some target
+     */
+    private static void extractFromObject(JsonReader reader, IndexSpec[] indexSpecs, List<Integer> targets, int depth, Object[] values) throws IOException, JSONException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            List<Integer> matchingTargets = null;
+            for (Integer target : targets) {
+                if (indexSpecs[target].pathElements[depth].equals(name)) {
+                    if (matchingTargets == null) {
+                        matchingTargets = new ArrayList<Integer>();
+                    }
+                    matchingTargets.add(target);
+                }
+            }
+            if (matchingTargets == null) {
+                reader.skipValue();
+                continue;
+            }
+
+            List<Integer> deeperTargets = new ArrayList<Integer>();
+            for (Integer target : matchingTargets) {
+                if (indexSpecs[target].pathElements.length == depth + 1) {
+                    values[target] = null; // in case of duplicate field
+                } else {
+                    deeperTargets.add(target);
+                }
+            }
+
+            JsonToken token = reader.peek();
+            switch (token) {
+                case BEGIN_OBJECT:
+                    for (Integer target : matchingTargets) {
+                        if (indexSpecs[target].pathElements.length == depth + 1) {
+                            values[target] = NEEDS_TREE; // path ends on an object
+                        }
+                    }
+                    if (deeperTargets.isEmpty()) {
+                        reader.skipValue();
+                    } else {
+                        extractFromObject(reader, indexSpecs, deeperTargets, depth + 1, values);
+                    }
+                    break;
+                case BEGIN_ARRAY:
+                    for (Integer target : matchingTargets) {
+                        values[target] = NEEDS_TREE; // arrays are projected element by element
+                    }
+                    reader.skipValue();
+                    break;
+                default:
+                    Object value = readScalar(reader, token);
+                    for (Integer target : matchingTargets) {
+                        // Going deeper into a scalar yields nothing
+                        values[target] = indexSpecs[target].pathElements.length == depth + 1 ? value : null;
+                    }
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * @return scalar as org.json would have parsed it
+     */
+    private static Object readScalar(JsonReader reader, JsonToken token) throws IOException, JSONException {
+        switch (token) {
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                // Integer, Long or Double depending on literal
+                return new JSONTokener(reader.nextString()).nextValue();
+            default:
+                return reader.nextString();
+        }
+    }
+}
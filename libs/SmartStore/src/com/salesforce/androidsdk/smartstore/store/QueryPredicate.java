@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.store;
+
+import android.text.TextUtils;
+
+import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed predicate on indexed paths of a soup, used to build compound query specs (see QuerySpec.buildCompoundQuerySpec)
+ *
+ * Predicates are validated when built and turn into parameterized smart sql: values are never inlined, so the same
+ * query shape always produces the same sql (and the statement compiled by SQLite can be reused)
+ *
+ * e.g. and(eq("Status", "Open"), or(isNull("OwnerId"), in("Priority", "High", "Urgent")))
+ */
+public class QueryPredicate {
+
+    // Constants
+    public static final String OPERATOR = "operator";
+    public static final String PATH = "path";
+    public static final String VALUES = "values";
+    public static final String PREDICATES = "predicates";
+
+    /**
+     * Predicate operators
+     */
+    public enum Operator {
+        eq("="),
+        ne("<>"),
+        lt("<"),
+        le("<="),
+        gt(">"),
+        ge(">="),
+        like("LIKE"),
+        in("IN"),
+        isNull("IS NULL"),
+        isNotNull("IS NOT NULL"),
+        and("AND"),
+        or("OR");
+
+        public final String sql;
+
+        Operator(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    public final Operator operator;
+    public final String path;
+    private final String[] values;
+    private final QueryPredicate[] children;
+
+    private QueryPredicate(Operator operator, String path, String[] values, QueryPredicate[] children) {
+        this.operator = operator;
+        this.path = path;
+        this.values = values;
+        this.children = children;
+    }
+
+    /**
+     * @return values compared against (empty for isNull, isNotNull, and, or)
+     */
+    public List<String> getValues() {
+        return values == null ? Collections.<String>emptyList() : Collections.unmodifiableList(Arrays.asList(values));
+    }
+
+    /**
+     * @return predicates combined (empty unless and / or)
+     */
+    public List<QueryPredicate> getChildren() {
+        return children == null ? Collections.<QueryPredicate>emptyList() : Collections.unmodifiableList(Arrays.asList(children));
+    }
+
+    public static QueryPredicate eq(String path, String value) {
+        return comparison(Operator.eq, path, value);
+    }
+
+    public static QueryPredicate ne(String path, String value) {
+        return comparison(Operator.ne, path, value);
+    }
+
+    public static QueryPredicate lt(String path, String value) {
+        return comparison(Operator.lt, path, value);
+    }
+
+    public static QueryPredicate le(String path, String value) {
+        return comparison(Operator.le, path, value);
+    }
+
+    public static QueryPredicate gt(String path, String value) {
+        return comparison(Operator.gt, path, value);
+    }
+
+    public static QueryPredicate ge(String path, String value) {
+        return comparison(Operator.ge, path, value);
+    }
+
+    public static QueryPredicate like(String path, String value) {
+        return comparison(Operator.like, path, value);
+    }
+
+    /**
+     * @param path
+     * @param beginKey (inclusive)
+     * @param endKey (inclusive)
+     * @return predicate for values between beginKey and endKey
+     */
+    public static QueryPredicate between(String path, String beginKey, String endKey) {
+        return and(ge(path, beginKey), le(path, endKey));
+    }
+
+    /**
+     * NB: SQLite limits the number of parameters of a statement (999 by default)
+     *     to match large sets of values, use SmartStore.retrieve or SmartStore.deleteByPathValues instead
+     * @param path
+     * @param values
+     * @return predicate for values in the given list
+     */
+    public static QueryPredicate in(String path, String... values) {
+        checkPath(path);
+        if (values == null || values.length == 0) {
+            throw new SmartStoreException("No values for IN predicate on " + path);
+        }
+        for (String value : values) {
+            checkValue(path, value);
+        }
+        return new QueryPredicate(Operator.in, path, values.clone(), null);
+    }
+
+    public static QueryPredicate isNull(String path) {
+        checkPath(path);
+        return new QueryPredicate(Operator.isNull, path, null, null);
+    }
+
+    public static QueryPredicate isNotNull(String path) {
+        checkPath(path);
+        return new QueryPredicate(Operator.isNotNull, path, null, null);
+    }
+
+    public static QueryPredicate and(QueryPredicate... predicates) {
+        return combination(Operator.and, predicates);
+    }
+
+    /**
+     * NB: or of equality / IN predicates on the same path is turned into a single IN predicate
+     *     which SQLite can answer with one index lookup per value
+     * @param predicates
+     * @return
+     */
+    public static QueryPredicate or(QueryPredicate... predicates) {
+        QueryPredicate combined = combination(Operator.or, predicates);
+        List<String> inValues = new ArrayList<String>();
+        String inPath = null;
+        for (QueryPredicate predicate : combined.children) {
+            if ((predicate.operator != Operator.eq && predicate.operator != Operator.in)
+                    || (inPath != null && !inPath.equals(predicate.path))) {
+                return combined;
+            }
+            inPath = predicate.path;
+            inValues.addAll(Arrays.asList(predicate.values));
+        }
+        return in(inPath, inValues.toArray(new String[inValues.size()]));
+    }
+
+    /**
+     * @return json representation e.g. {"operator":"eq", "path":"Status", "values":["Open"]}
+     *         or {"operator":"and", "predicates":[...]}
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(OPERATOR, operator.name());
+        if (children != null) {
+            JSONArray predicatesJson = new JSONArray();
+            for (QueryPredicate child : children) {
+                predicatesJson.put(child.toJSON());
+            }
+            json.put(PREDICATES, predicatesJson);
+        }
+        else {
+            json.put(PATH, path);
+            if (values != null) {
+                json.put(VALUES, new JSONArray(Arrays.asList(values)));
+            }
+        }
+        return json;
+    }
+
+    /**
+     * @param json
+     * @return predicate from json representation (validated like predicates built in code)
+     * @throws JSONException
+     */
+    public static QueryPredicate fromJSON(JSONObject json) throws JSONException {
+        Operator operator = Operator.valueOf(json.getString(OPERATOR));
+        switch (operator) {
+            case and:
+            case or:
+                JSONArray predicatesJson = json.getJSONArray(PREDICATES);
+                QueryPredicate[] predicates = new QueryPredicate[predicatesJson.length()];
+                for (int i = 0; i < predicates.length; i++) {
+                    predicates[i] = fromJSON(predicatesJson.getJSONObject(i));
+                }
+                return operator == Operator.and ? and(predicates) : or(predicates);
+            case isNull:
+                return isNull(json.getString(PATH));
+            case isNotNull:
+                return isNotNull(json.getString(PATH));
+            case in:
+                JSONArray valuesJson = json.getJSONArray(VALUES);
+                String[] values = new String[valuesJson.length()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = valuesJson.getString(i);
+                }
+                return in(json.getString(PATH), values);
+            default:
+                return comparison(operator, json.getString(PATH), json.getJSONArray(VALUES).getString(0));
+        }
+    }
+
+    /**
+     * Append smart sql for this predicate to sb and its arguments to args
+     * @param soupName
+     * @param sb
+     * @param args
+     */
+    void appendSmartSql(String soupName, StringBuilder sb, List<String> args) {
+        switch (operator) {
+            case and:
+            case or:
+                for (int i = 0; i < children.length; i++) {
+                    if (i > 0) {
+                        sb.append(" ").append(operator.sql).append(" ");
+                    }
+                    sb.append("(");
+                    children[i].appendSmartSql(soupName, sb, args);
+                    sb.append(")");
+                }
+                break;
+            case isNull:
+            case isNotNull:
+                sb.append(fieldReference(soupName)).append(" ").append(operator.sql);
+                break;
+            case in:
+                String[] placeholders = new String[values.length];
+                Arrays.fill(placeholders, "?");
+                sb.append(fieldReference(soupName)).append(" IN (").append(TextUtils.join(", ", placeholders)).append(")");
+                args.addAll(Arrays.asList(values));
+                break;
+            default:
+                sb.append(fieldReference(soupName)).append(" ").append(operator.sql).append(" ?");
+                args.add(values[0]);
+                break;
+        }
+    }
+
+    private String fieldReference(String soupName) {
+        return "{" + soupName + ":" + path + "}";
+    }
+
+    private static QueryPredicate comparison(Operator operator, String path, String value) {
+        checkPath(path);
+        checkValue(path, value);
+        return new QueryPredicate(operator, path, new String[] {value}, null);
+    }
+
+    private static QueryPredicate combination(Operator operator, QueryPredicate... predicates) {
+        if (predicates == null || predicates.length == 0) {
+            throw new SmartStoreException("No predicates to combine with " + operator.sql);
+        }
+        for (QueryPredicate predicate : predicates) {
+            if (predicate == null) {
+                throw new SmartStoreException("Null predicate combined with " + operator.sql);
+            }
+        }
+        return new QueryPredicate(operator, null, null, predicates.clone());
+    }
+
+    private static void checkPath(String path) {
+        if (path == null || path.isEmpty() || path.contains("{") || path.contains("}") || path.contains(":")) {
+            throw new SmartStoreException("Invalid path in predicate: " + path);
+        }
+    }
+
+    private static void checkValue(String path, String value) {
+        if (value == null) {
+            throw new SmartStoreException("Null value in predicate on " + path + " - use isNull instead");
+        }
+    }
+}
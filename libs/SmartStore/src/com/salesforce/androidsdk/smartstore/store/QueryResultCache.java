@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.store;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+/**
+ * Cache of query results, bounded by (estimated) bytes and invalidated when soups referenced by the queries are written to
+ * Results are kept serialized so that callers always get their own copy
+ */
+public class QueryResultCache {
+
+    private long maxBytes;
+    private long sizeBytes;
+    private long hitCount;
+    private long missCount;
+
+    // Access ordered so that least recently used entries get evicted first
+    private LinkedHashMap<String, Entry> keyToEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * @param maxBytes maximum (estimated) bytes held by cached results - 0 disables the cache
+     */
+    public QueryResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param sql converted sql
+     * @param args
+     * @param pageIndex
+     * @param pageSize
+     * @return key for the given query
+     */
+    public static String computeKey(String sql, String[] args, int pageIndex, int pageSize) {
+        return sql + "|" + Arrays.toString(args) + "|" + pageIndex + "|" + pageSize;
+    }
+
+    /**
+     * @param smartSql
+     * @return names of soups referenced by smart sql
+     */
+    public static Set<String> getSoupNames(String smartSql) {
+        Set<String> soupNames = new HashSet<String>();
+        Matcher matcher = SmartSqlHelper.SOUP_PATH_PATTERN.matcher(smartSql);
+        while (matcher.find()) {
+            soupNames.add(matcher.group(1).split(":")[0]);
+        }
+        return soupNames;
+    }
+
+    /**
+     * @param key
+     * @return cached results for key or null
+     * @throws JSONException
+     */
+    public synchronized JSONArray get(String key) throws JSONException {
+        Entry entry = keyToEntries.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return new JSONArray(entry.results);
+    }
+
+    /**
+     * Cache results (unless they are larger than the cache)
+     * @param key
+     * @param soupNames soups referenced by the query
+     * @param results
+     */
+    public synchronized void put(String key, Set<String> soupNames, JSONArray results) {
+        String serializedResults = results.toString();
+        long bytes = 2L * (key.length() + serializedResults.length()); // chars are 2 bytes
+        if (bytes > maxBytes) {
+            return;
+        }
+        remove(key);
+        keyToEntries.put(key, new Entry(soupNames, serializedResults, bytes));
+        sizeBytes += bytes;
+
+        // Evict least recently used entries
+        Iterator<Map.Entry<String, Entry>> iterator = keyToEntries.entrySet().iterator();
+        while (sizeBytes > maxBytes && iterator.hasNext()) {
+            sizeBytes -= iterator.next().getValue().bytes;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drop cached results of queries referencing the given soup
+     * @param soupName
+     */
+    public synchronized void invalidate(String soupName) {
+        Iterator<Entry> iterator = keyToEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.soupNames.contains(soupName)) {
+                sizeBytes -= entry.bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all cached results
+     */
+    public synchronized void clear() {
+        keyToEntries.clear();
+        sizeBytes = 0;
+    }
+
+    /**
+     * @return true if results get cached
+     */
+    public synchronized boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Change the maximum (estimated) bytes held by cached results - 0 disables the cache
+     * @param maxBytes
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        if (maxBytes <= 0) {
+            clear();
+        } else {
+            Iterator<Entry> iterator = keyToEntries.values().iterator();
+            while (sizeBytes > maxBytes && iterator.hasNext()) {
+                sizeBytes -= iterator.next().bytes;
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return keyToEntries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Reset hit and miss counts
+     */
+    public synchronized void resetStats() {
+        hitCount = 0;
+        missCount = 0;
+    }
+
+    private void remove(String key) {
+        Entry entry = keyToEntries.remove(key);
+        if (entry != null) {
+            sizeBytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Cached results
+     */
+    private static class Entry {
+        final Set<String> soupNames;
+        final String results;
+        final long bytes;
+
+        Entry(Set<String> soupNames, String results, long bytes) {
+            this.soupNames = soupNames;
+            this.results = results;
+            this.bytes = bytes;
+        }
+    }
+}
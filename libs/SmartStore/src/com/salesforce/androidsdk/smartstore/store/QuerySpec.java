@@ -31,10 +31,12 @@ import android.text.TextUtils;
 import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
 import com.salesforce.androidsdk.util.JSONObjectHelper;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -48,6 +50,7 @@ public class QuerySpec {
 	private static final String FROM = "FROM ";
 	private static final String WHERE = "WHERE ";
 	private static final String ORDER_BY = "ORDER BY ";
+	private static final String GROUP_BY = "GROUP BY ";
 
     private static final String SELECT_COUNT = SELECT + "count(*) ";
     private static final String SELECT_COUNT_FROM = SELECT_COUNT + "FROM (%s)";
@@ -66,6 +69,12 @@ public class QuerySpec {
     public static final String PAGE_SIZE = "pageSize";
     public static final String QUERY_TYPE = "queryType";
     public static final String SELECT_PATHS = "selectPaths";
+    public static final String GROUP_BY_PATHS = "groupByPaths";
+    public static final String AGGREGATES = "aggregates";
+    public static final String FUNCTION = "function";
+    public static final String PATH = "path";
+    public static final String PREDICATE = "predicate";
+    public static final String ORDER_BYS = "orderBys";
 
     // Key members
 	public final QueryType queryType;
@@ -89,6 +98,15 @@ public class QuerySpec {
     // Like
     public final String likeKey;
 
+    // Aggregate
+    public final String[] groupByPaths;
+    public final Aggregate[] aggregates;
+
+    // Compound
+    public final QueryPredicate predicate;
+    public final OrderBy[] orderBys;
+    private final String[] compoundArgs;
+
     // Private constructor for soup query spec
     private QuerySpec(String soupName, String[] selectPaths, QueryType queryType, String matchKey, String beginKey, String endKey, String likeKey, String orderPath, Order order, int pageSize, String path) {
     	this.soupName = soupName;
@@ -102,6 +120,11 @@ public class QuerySpec {
         this.orderPath = orderPath;
         this.order = order;
         this.pageSize = pageSize;
+        this.groupByPaths = null;
+        this.aggregates = null;
+        this.predicate = null;
+        this.orderBys = null;
+        this.compoundArgs = null;
         this.smartSql = computeSmartSql();
         this.countSmartSql = computeCountSmartSql();
         this.idsSmartSql = computeIdsSmartSql();
@@ -125,6 +148,75 @@ public class QuerySpec {
         this.likeKey = null;
         this.orderPath = null;
         this.order = null;    	
+        this.groupByPaths = null;
+        this.aggregates = null;
+        this.predicate = null;
+        this.orderBys = null;
+        this.compoundArgs = null;
+    }
+
+    // Private constructor for aggregate query spec
+    private QuerySpec(String soupName, String[] groupByPaths, Aggregate[] aggregates, String path, String beginKey, String endKey, String orderPath, Order order, int pageSize) {
+        if (aggregates == null || aggregates.length == 0) {
+            throw new SmartStoreException("Aggregate query requires at least one aggregate");
+        }
+        this.soupName = soupName;
+        this.groupByPaths = groupByPaths;
+        this.aggregates = aggregates;
+        this.path = path;
+        this.beginKey = beginKey;
+        this.endKey = endKey;
+        this.orderPath = orderPath;
+        this.order = order;
+        this.pageSize = pageSize;
+        this.queryType = QueryType.aggregate;
+        this.smartSql = computeAggregateSmartSql();
+        this.countSmartSql = computeCountSmartSql(smartSql);
+        this.idsSmartSql = null; // rows of an aggregate query are not soup elements
+
+        // Not applicable
+        this.selectPaths = null;
+        this.matchKey = null;
+        this.likeKey = null;
+        this.predicate = null;
+        this.orderBys = null;
+        this.compoundArgs = null;
+    }
+
+    // Private constructor for compound query spec
+    private QuerySpec(String soupName, String[] selectPaths, QueryPredicate predicate, OrderBy[] orderBys, int pageSize) {
+        this.soupName = soupName;
+        this.selectPaths = selectPaths;
+        this.predicate = predicate;
+        this.orderBys = orderBys;
+        this.pageSize = pageSize;
+        this.queryType = QueryType.compound;
+
+        // Sql and args are computed once
+        List<String> args = new ArrayList<>();
+        String fromClause = computeFromClause();
+        String whereClause = "";
+        if (predicate != null) {
+            StringBuilder sb = new StringBuilder(WHERE);
+            predicate.appendSmartSql(soupName, sb, args);
+            whereClause = sb.append(" ").toString();
+        }
+        String orderClause = computeCompoundOrderClause();
+        this.compoundArgs = args.isEmpty() ? null : args.toArray(new String[args.size()]);
+        this.smartSql = computeSelectClause() + fromClause + whereClause + orderClause;
+        this.countSmartSql = SELECT_COUNT + fromClause + whereClause;
+        this.idsSmartSql = SELECT_ID + fromClause + whereClause + orderClause;
+
+        // Not applicable
+        this.path = null;
+        this.matchKey = null;
+        this.beginKey = null;
+        this.endKey = null;
+        this.likeKey = null;
+        this.orderPath = null;
+        this.order = null;
+        this.groupByPaths = null;
+        this.aggregates = null;
     }
 
     /**
@@ -270,6 +362,71 @@ public class QuerySpec {
         return new QuerySpec(soupName, selectPaths, QueryType.match, matchKey, null, null, null, orderPath, order, pageSize, path);
     }
 
+    /**
+     * Return a query spec for a match query (full-text search) returning the best matches first (fts5 only)
+     * NB: select paths of the form path:snippet or path:highlight return the matching fragment of a full_text path
+     * @param soupName
+     * @param selectPaths
+     * @param path
+     * @param matchKey
+     * @param pageSize
+     * @return
+     */
+    public static QuerySpec buildRankedMatchQuerySpec(String soupName, String[] selectPaths, String path, String matchKey, int pageSize) {
+        return buildMatchQuerySpec(soupName, selectPaths, path, matchKey, SmartStore.FTS_RANK, Order.ascending /* bm25 is lower for better matches */, pageSize);
+    }
+
+    /**
+     * Return a query spec for an aggregate query over a whole soup
+     * e.g. count of opportunities and sum of their amounts by stage:
+     *   buildAggregateQuerySpec("opportunities", new String[] {"StageName"}, new Aggregate[] {Aggregate.count(), new Aggregate(AggregateFunction.sum, "Amount")}, "StageName", Order.ascending, 100)
+     * Each result row has the group by values followed by the aggregate values
+     * @param soupName
+     * @param groupByPaths (can be null)
+     * @param aggregates
+     * @param orderPath (can be a group by path or an aggregate reference of the form path:function e.g. Amount:sum)
+     * @param order
+     * @param pageSize
+     * @return
+     */
+    public static QuerySpec buildAggregateQuerySpec(String soupName, String[] groupByPaths, Aggregate[] aggregates, String orderPath, Order order, int pageSize) {
+        return buildAggregateQuerySpec(soupName, groupByPaths, aggregates, null, null, null, orderPath, order, pageSize);
+    }
+
+    /**
+     * Return a query spec for an aggregate query over the soup elements whose value at path is between beginKey and endKey
+     * @param soupName
+     * @param groupByPaths (can be null)
+     * @param aggregates
+     * @param path
+     * @param beginKey (null for no lower bound)
+     * @param endKey (null for no upper bound)
+     * @param orderPath (can be a group by path or an aggregate reference of the form path:function e.g. Amount:sum)
+     * @param order
+     * @param pageSize
+     * @return
+     */
+    public static QuerySpec buildAggregateQuerySpec(String soupName, String[] groupByPaths, Aggregate[] aggregates, String path, String beginKey, String endKey, String orderPath, Order order, int pageSize) {
+        return new QuerySpec(soupName, groupByPaths, aggregates, path, beginKey, endKey, orderPath, order, pageSize);
+    }
+
+    /**
+     * Return a query spec for a compound query
+     * e.g. open cases with no owner or with a high priority, most recent first then by subject:
+     *   buildCompoundQuerySpec("cases", null,
+     *       and(eq("Status", "Open"), or(isNull("OwnerId"), in("Priority", "High", "Urgent"))),
+     *       new OrderBy[] {new OrderBy("CreatedDate", Order.descending), new OrderBy("Subject", Order.ascending)}, 50)
+     * @param soupName
+     * @param selectPaths (null to get whole soup elements)
+     * @param predicate (null to get all soup elements)
+     * @param orderBys (can be null)
+     * @param pageSize
+     * @return
+     */
+    public static QuerySpec buildCompoundQuerySpec(String soupName, String[] selectPaths, QueryPredicate predicate, OrderBy[] orderBys, int pageSize) {
+        return new QuerySpec(soupName, selectPaths, predicate, orderBys, pageSize);
+    }
+
     /**
      * Return a query spec for a smart query
      * @param smartSql
@@ -291,6 +448,27 @@ public class QuerySpec {
         return selectClause + fromClause + whereClause + orderClause;
     }
 
+    /**
+     * Compute smartSql for aggregate queries
+     * NB: aggregates are referenced as {soupName:path:function} which SmartSqlHelper turns into function(column)
+     */
+    private String computeAggregateSmartSql() {
+        List<String> fieldReferences = new ArrayList<>();
+        List<String> groupByReferences = new ArrayList<>();
+        if (groupByPaths != null) {
+            for (String groupByPath : groupByPaths) {
+                groupByReferences.add(computeFieldReference(groupByPath));
+            }
+            fieldReferences.addAll(groupByReferences);
+        }
+        for (Aggregate aggregate : aggregates) {
+            fieldReferences.add(computeFieldReference(aggregate.getReference()));
+        }
+        String selectClause = SELECT + TextUtils.join(", ", fieldReferences) + " ";
+        String groupByClause = groupByReferences.isEmpty() ? "" : GROUP_BY + TextUtils.join(", ", groupByReferences) + " ";
+        return selectClause + computeFromClause() + computeWhereClause() + groupByClause + computeOrderClause();
+    }
+
     /**
      * Compute countSmartSql for exact/like/range/match queries
      */
@@ -339,8 +517,26 @@ public class QuerySpec {
      * @return from clause for exact/like/range/match queries
      */
     private String computeFromClause() {
+        if (needsFtsJoin()) {
+            return FROM + computeSoupReference() + ", " + computeSoupFtsReference() + " ";
+        }
         return FROM + computeSoupReference() + " ";
     }
+
+    /**
+     * @return true for match queries that reference columns of the fts table (rank, snippet or highlight)
+     *         the fts table then has to be joined instead of being used in a sub-query
+     */
+    private boolean needsFtsJoin() {
+        if (queryType != QueryType.match) return false;
+        if (SmartStore.FTS_RANK.equals(orderPath)) return true;
+        if (selectPaths != null) {
+            for (String selectPath : selectPaths) {
+                if (selectPath.endsWith(":" + SmartSqlHelper.SNIPPET) || selectPath.endsWith(":" + SmartSqlHelper.HIGHLIGHT)) return true;
+            }
+        }
+        return false;
+    }
     
     /**
      * @return where clause for exact/like/range/match queries
@@ -363,6 +559,7 @@ public class QuerySpec {
                 pred = field + " LIKE ? ";
                 break;
             case range:
+            case aggregate:
                 if (beginKey == null && endKey == null) {
                     break;
                 }
@@ -379,6 +576,11 @@ public class QuerySpec {
                     break;
                 }
             case match:
+                if (needsFtsJoin()) {
+                    pred = computeSoupFtsReference() + "." + SmartStore.ROWID_COL + " = " + computeFieldReference(SmartStore.SOUP_ENTRY_ID) + " AND "
+                            + computeSoupFtsReference() + " MATCH '" + qualifyMatchKey(field, matchKey) + "' ";
+                    break;
+                }
                 pred = computeFieldReference(SmartStore.SOUP_ENTRY_ID) + " IN ("
                         + SELECT + SmartStore.ROWID_COL + " " + FROM + computeSoupFtsReference() + " " + WHERE
                         + computeSoupFtsReference() + " MATCH '" + qualifyMatchKey(field, matchKey) + "'"
@@ -434,7 +636,20 @@ public class QuerySpec {
 
     	return ORDER_BY + computeFieldReference(orderPath) + " " + order.sql + " ";
     }
-    
+
+    /**
+     * @return order clause for compound queries
+     */
+    private String computeCompoundOrderClause() {
+        if (orderBys == null || orderBys.length == 0) return "";
+
+        List<String> orderReferences = new ArrayList<>();
+        for (OrderBy orderBy : orderBys) {
+            orderReferences.add(computeFieldReference(orderBy.path) + " " + orderBy.order.sql);
+        }
+        return ORDER_BY + TextUtils.join(", ", orderReferences) + " ";
+    }
+
 	/**
 	 * @return soup reference for smart sql query
 	 */
@@ -467,6 +682,7 @@ public class QuerySpec {
         case like:
             return new String[] {likeKey};
         case range:
+        case aggregate:
             if (beginKey == null && endKey == null)
                 return null;
             else if (endKey == null)
@@ -477,6 +693,8 @@ public class QuerySpec {
                 return new String[] {beginKey, endKey};
         case match:
             return null; // baking matchKey into query
+        case compound:
+            return compoundArgs == null ? null : compoundArgs.clone();
         case smart:
         	return null;
         default:
@@ -484,6 +702,61 @@ public class QuerySpec {
         }
     }
 
+    /**
+     * @return json representation of this query spec (soup name excluded) that fromJSON turns back into an equivalent query spec
+     * @throws JSONException
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(QUERY_TYPE, queryType.name());
+        json.put(PAGE_SIZE, pageSize);
+        switch (queryType) {
+        case smart:
+            json.put(SMART_SQL, smartSql);
+            break;
+        case compound:
+            putStringArray(json, SELECT_PATHS, selectPaths);
+            if (predicate != null) {
+                json.put(PREDICATE, predicate.toJSON());
+            }
+            if (orderBys != null) {
+                JSONArray orderBysJson = new JSONArray();
+                for (OrderBy orderBy : orderBys) {
+                    orderBysJson.put(orderBy.toJSON());
+                }
+                json.put(ORDER_BYS, orderBysJson);
+            }
+            break;
+        case aggregate:
+            putStringArray(json, GROUP_BY_PATHS, groupByPaths);
+            JSONArray aggregatesJson = new JSONArray();
+            for (Aggregate aggregate : aggregates) {
+                aggregatesJson.put(aggregate.toJSON());
+            }
+            json.put(AGGREGATES, aggregatesJson);
+            // fall through for path, keys and order
+        default:
+            putStringArray(json, SELECT_PATHS, selectPaths);
+            json.putOpt(INDEX_PATH, path);
+            json.putOpt(MATCH_KEY, matchKey);
+            json.putOpt(BEGIN_KEY, beginKey);
+            json.putOpt(END_KEY, endKey);
+            json.putOpt(LIKE_KEY, likeKey);
+            json.putOpt(ORDER_PATH, orderPath);
+            if (order != null) {
+                json.put(ORDER, order.name());
+            }
+            break;
+        }
+        return json;
+    }
+
+    private static void putStringArray(JSONObject json, String key, String[] values) throws JSONException {
+        if (values != null) {
+            json.put(key, new JSONArray(Arrays.asList(values)));
+        }
+    }
+
     /**
 	 * @param soupName
 	 * @param querySpecJson
@@ -503,6 +776,28 @@ public class QuerySpec {
 		String orderPath = JSONObjectHelper.optString(querySpecJson, ORDER_PATH);
 		Order order = Order.valueOf(JSONObjectHelper.optString(querySpecJson, ORDER, "ascending"));
 		int pageSize = querySpecJson.getInt(PAGE_SIZE); 
+		String[] groupByPaths = JSONObjectHelper.optStringArray(querySpecJson, GROUP_BY_PATHS);
+		Aggregate[] aggregates = null;
+		JSONArray aggregatesJson = querySpecJson.optJSONArray(AGGREGATES);
+		if (aggregatesJson != null) {
+			aggregates = new Aggregate[aggregatesJson.length()];
+			for (int i = 0; i < aggregates.length; i++) {
+				aggregates[i] = Aggregate.fromJSON(aggregatesJson.getJSONObject(i));
+			}
+		}
+		QueryPredicate predicate = null;
+		JSONObject predicateJson = querySpecJson.optJSONObject(PREDICATE);
+		if (predicateJson != null) {
+			predicate = QueryPredicate.fromJSON(predicateJson);
+		}
+		OrderBy[] orderBys = null;
+		JSONArray orderBysJson = querySpecJson.optJSONArray(ORDER_BYS);
+		if (orderBysJson != null) {
+			orderBys = new OrderBy[orderBysJson.length()];
+			for (int i = 0; i < orderBys.length; i++) {
+				orderBys[i] = OrderBy.fromJSON(orderBysJson.getJSONObject(i));
+			}
+		}
 	
 		// Building query spec
 		QuerySpec querySpec = null;
@@ -512,6 +807,8 @@ public class QuerySpec {
 	    case like:    querySpec = buildLikeQuerySpec(soupName, selectPaths, path, likeKey, orderPath, order, pageSize); break;
         case match:   querySpec = buildMatchQuerySpec(soupName, selectPaths, path, matchKey, orderPath, order, pageSize); break;
 	    case smart:   querySpec = buildSmartQuerySpec(smartSql, pageSize); break;
+	    case aggregate: querySpec = buildAggregateQuerySpec(soupName, groupByPaths, aggregates, path, beginKey, endKey, orderPath, order, pageSize); break;
+	    case compound: querySpec = buildCompoundQuerySpec(soupName, selectPaths, predicate, orderBys, pageSize); break;
 	    default: throw new RuntimeException("Fell through switch: " + queryType);
 		}
 		return querySpec;
@@ -525,7 +822,113 @@ public class QuerySpec {
         range,
         like,
         match,
-        smart
+        smart,
+        aggregate,
+        compound
+    }
+
+    /**
+     * Simple class to represent one of the orderings of a compound query
+     */
+    public static class OrderBy {
+        public final String path;
+        public final Order order;
+
+        public OrderBy(String path, Order order) {
+            this.path = path;
+            this.order = order;
+        }
+
+        /**
+         * @return json representation
+         * @throws JSONException
+         */
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put(PATH, path);
+            json.put(ORDER, order.name());
+            return json;
+        }
+
+        /**
+         * @param json
+         * @return order by from json representation
+         * @throws JSONException
+         */
+        public static OrderBy fromJSON(JSONObject json) throws JSONException {
+            return new OrderBy(json.getString(PATH), Order.valueOf(json.optString(ORDER, Order.ascending.name())));
+        }
+    }
+
+    /**
+     * Aggregate functions
+     */
+    public enum AggregateFunction {
+        count, sum, min, max, avg;
+
+        /**
+         * @param name
+         * @return aggregate function with that name or null
+         */
+        public static AggregateFunction fromName(String name) {
+            for (AggregateFunction function : values()) {
+                if (function.name().equals(name)) {
+                    return function;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Simple class to represent an aggregate (function applied to an indexed path) of an aggregate query
+     */
+    public static class Aggregate {
+        public final AggregateFunction function;
+        public final String path;
+
+        /**
+         * @param function
+         * @param path indexed path, _soupEntryId, _soupCreatedDate or _soupLastModifiedDate
+         */
+        public Aggregate(AggregateFunction function, String path) {
+            this.function = function;
+            this.path = path;
+        }
+
+        /**
+         * @return aggregate counting soup elements
+         */
+        public static Aggregate count() {
+            return new Aggregate(AggregateFunction.count, SmartStore.SOUP_ENTRY_ID);
+        }
+
+        /**
+         * @return path:function as expected in {soupName:path:function}
+         */
+        public String getReference() {
+            return path + ":" + function.name();
+        }
+
+        /**
+         * @return json representation
+         * @throws JSONException
+         */
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put(FUNCTION, function.name());
+            json.put(PATH, path);
+            return json;
+        }
+
+        /**
+         * @param json
+         * @return aggregate from json representation
+         * @throws JSONException
+         */
+        public static Aggregate fromJSON(JSONObject json) throws JSONException {
+            return new Aggregate(AggregateFunction.valueOf(json.getString(FUNCTION)), json.optString(PATH, SmartStore.SOUP_ENTRY_ID));
+        }
     }
 
 
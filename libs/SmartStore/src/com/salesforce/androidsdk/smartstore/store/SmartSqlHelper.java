@@ -34,7 +34,10 @@ import java.util.regex.Pattern;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
+import com.salesforce.androidsdk.smartstore.store.QuerySpec.AggregateFunction;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.FtsExtension;
 import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
 
 /**
  * SmartSqlHelper "smart" sql Helper
@@ -64,7 +67,26 @@ public class SmartSqlHelper  {
 		return instance;
 	}
 
+	/**
+	 * Drops the instance associated with the database specified (e.g. when the database is closed).
+	 *
+	 * @param db Database.
+	 */
+	public static synchronized void removeInstance(SQLiteDatabase db) {
+		if (INSTANCES != null) {
+			INSTANCES.remove(db);
+		}
+	}
+
     public static final String SOUP = "_soup";
+
+	// Functions that can be applied to a full_text path e.g. {soupName:path:snippet}
+	public static final String SNIPPET = "snippet";
+	public static final String HIGHLIGHT = "highlight";
+	public static final String MATCH_START_MARKER = "<b>";
+	public static final String MATCH_END_MARKER = "</b>";
+	public static final String SNIPPET_ELLIPSIS = "...";
+	public static final int SNIPPET_MAX_TOKENS = 16;
 	
 	/**
 	 * Convert "smart" sql query to actual sql
@@ -73,6 +95,10 @@ public class SmartSqlHelper  {
 	 * NB: only select's are allowed
 	 *     only indexed path can be referenced (alternatively you can do {soupName:_soupEntryId} or {soupName:_soupLastModifiedDate}
 	 *     to get an entire soup element back, do {soupName:_soup}
+	 *     to order match queries by relevance, do {soupName:_rank} (fts5 only)
+	 *     to get the matching fragment of a full_text path, do {soupName:path:snippet} or {soupName:path:highlight}
+	 *     to aggregate an indexed path, do {soupName:path:count}, {soupName:path:sum}, {soupName:path:min}, {soupName:path:max} or {soupName:path:avg}
+	 *     to reference a soup of an attached store (see SmartStore.attachStore), do {alias:soupName}, {alias:soupName:path} or {alias:soupName:path:count} etc
 	 *
 	 * @param db
 	 * @param smartSql
@@ -94,6 +120,15 @@ public class SmartSqlHelper  {
 			String match = matcher.group(1);
 			int position = matcher.start();
 			String[] parts = match.split(":");
+
+			// {alias:soupName...}
+			SQLiteDatabase attachedDb = parts.length > 1 ? DBHelper.getInstance(db).getAttachedDatabase(parts[0]) : null;
+			if (attachedDb != null) {
+				String reference = getAttachedReferenceForSmartSql(attachedDb, parts, fullMatch, smartSql.charAt(position-1) == '.', position);
+				matcher.appendReplacement(sql, reference.replace("$", "\\$") /* treat any $ as litteral */);
+				continue;
+			}
+
 			String soupName = parts[0];
 			String soupTableName = getSoupTableNameForSmartSql(db, soupName, position);
 			boolean tableQualified = smartSql.charAt(position-1) == '.';
@@ -128,11 +163,36 @@ public class SmartSqlHelper  {
 				else if (path.equals(SmartStore.SOUP_LAST_MODIFIED_DATE)) {
 					matcher.appendReplacement(sql, tableQualifier + SmartStore.LAST_MODIFIED_COL);
 				}
+				// {soupName:_rank}
+				else if (path.equals(SmartStore.FTS_RANK)) {
+					if (getFtsExtensionForSmartSql(db, soupName, position) != FtsExtension.fts5) {
+						reportSmartSqlError("Ranking requires fts5 " + fullMatch, position);
+					}
+					matcher.appendReplacement(sql, soupTableName + SmartStore.FTS_SUFFIX + ".rank");
+				}
 				// {soupName:path}
 				else {
 					String columnName = getColumnNameForPathForSmartSql(db, soupName, path, position);
 					matcher.appendReplacement(sql, columnName.replace("$", "\\$") /* treat any $ as litteral */);
 				}
+			} else if (parts.length == 3 && (parts[2].equals(SNIPPET) || parts[2].equals(HIGHLIGHT))) {
+				// {soupName:path:snippet} or {soupName:path:highlight}
+				String ftsFunction = getFtsFunctionForSmartSql(db, soupName, soupTableName + SmartStore.FTS_SUFFIX, parts[1], parts[2], position);
+				matcher.appendReplacement(sql, ftsFunction);
+			} else if (parts.length == 3 && AggregateFunction.fromName(parts[2]) != null) {
+				// {soupName:path:count}, {soupName:path:sum} etc
+				String path = parts[1];
+				String columnName;
+				if (path.equals(SmartStore.SOUP_ENTRY_ID)) {
+					columnName = tableQualifier + SmartStore.ID_COL;
+				} else if (path.equals(SmartStore.SOUP_CREATED_DATE)) {
+					columnName = tableQualifier + SmartStore.CREATED_COL;
+				} else if (path.equals(SmartStore.SOUP_LAST_MODIFIED_DATE)) {
+					columnName = tableQualifier + SmartStore.LAST_MODIFIED_COL;
+				} else {
+					columnName = getColumnNameForPathForSmartSql(db, soupName, path, position);
+				}
+				matcher.appendReplacement(sql, (parts[2] + "(" + columnName + ")").replace("$", "\\$") /* treat any $ as litteral */);
 			} else if (parts.length > 2) {
 				reportSmartSqlError("Invalid soup/path reference " + fullMatch, position);
 			}
@@ -151,6 +211,54 @@ public class SmartSqlHelper  {
 		return sqlStr;
 	}
 	
+	private String getAttachedReferenceForSmartSql(SQLiteDatabase attachedDb, String[] parts, String fullMatch, boolean tableQualified, int position) {
+		String alias = parts[0];
+		String soupName = parts[1];
+		String soupTableName = alias + "." + getSoupTableNameForSmartSql(attachedDb, soupName, position);
+		if (DBHelper.getInstance(attachedDb).getFeatures(attachedDb, soupName).contains(SoupSpec.FEATURE_EXTERNAL_STORAGE)) {
+			reportSmartSqlError("Soups of attached stores using external storage are not supported " + fullMatch, position);
+		}
+
+		// {alias:soupName}
+		if (parts.length == 2) {
+			return soupTableName;
+		}
+
+		// Columns are always qualified: table names of different stores can be the same
+		String tableQualifier = tableQualified ? "" : soupTableName + ".";
+		String path = parts[2];
+		String columnName;
+		if (path.equals(SOUP)) {
+			columnName = tableQualifier + SmartStore.SOUP_COL;
+		} else if (path.equals(SmartStore.SOUP_ENTRY_ID)) {
+			columnName = tableQualifier + SmartStore.ID_COL;
+		} else if (path.equals(SmartStore.SOUP_CREATED_DATE)) {
+			columnName = tableQualifier + SmartStore.CREATED_COL;
+		} else if (path.equals(SmartStore.SOUP_LAST_MODIFIED_DATE)) {
+			columnName = tableQualifier + SmartStore.LAST_MODIFIED_COL;
+		} else {
+			columnName = getColumnNameForPathForSmartSql(attachedDb, soupName, path, position);
+			if (!tableQualified) {
+				columnName = columnName.startsWith("json_extract(soup")
+						? columnName.replace("json_extract(soup", "json_extract(" + tableQualifier + "soup")
+						: tableQualifier + columnName;
+			}
+		}
+
+		// {alias:soupName:path}
+		if (parts.length == 3 && !path.equals(SmartStore.FTS_RANK)) {
+			return columnName;
+		}
+
+		// {alias:soupName:path:count}, {alias:soupName:path:sum} etc
+		if (parts.length == 4 && !path.equals(SOUP) && AggregateFunction.fromName(parts[3]) != null) {
+			return parts[3] + "(" + columnName + ")";
+		}
+
+		reportSmartSqlError("Invalid reference to attached store " + fullMatch, position);
+		return null;
+	}
+
 	private String getColumnNameForPathForSmartSql(SQLiteDatabase db, String soupName, String path, int position) {
 		String columnName = null;
 		try {
@@ -161,6 +269,45 @@ public class SmartSqlHelper  {
 		return columnName;
 	}
 
+	private FtsExtension getFtsExtensionForSmartSql(SQLiteDatabase db, String soupName, int position) {
+		FtsExtension ftsExtension = DBHelper.getInstance(db).getFtsExtension(db, soupName);
+		if (ftsExtension == null) {
+			reportSmartSqlError("No full_text index for soup " + soupName, position);
+		}
+		return ftsExtension;
+	}
+
+	private String getFtsFunctionForSmartSql(SQLiteDatabase db, String soupName, String ftsTableName, String path, String function, int position) {
+		FtsExtension ftsExtension = getFtsExtensionForSmartSql(db, soupName, position);
+
+		// Column of the path in the fts table - the fts table has one column per full_text index spec in the order they were specified
+		int ftsColumn = 0;
+		boolean found = false;
+		for (IndexSpec indexSpec : DBHelper.getInstance(db).getIndexSpecs(db, soupName)) {
+			if (indexSpec.type == Type.full_text) {
+				if (indexSpec.path.equals(path)) {
+					found = true;
+					break;
+				}
+				ftsColumn++;
+			}
+		}
+		if (!found) {
+			reportSmartSqlError(String.format("%s does not have a full_text index on %s", soupName, path), position);
+		}
+
+		if (function.equals(SNIPPET)) {
+			return ftsExtension == FtsExtension.fts5
+					? String.format("snippet(%s, %d, '%s', '%s', '%s', %d)", ftsTableName, ftsColumn, MATCH_START_MARKER, MATCH_END_MARKER, SNIPPET_ELLIPSIS, SNIPPET_MAX_TOKENS)
+					: String.format("snippet(%s, '%s', '%s', '%s', %d, %d)", ftsTableName, MATCH_START_MARKER, MATCH_END_MARKER, SNIPPET_ELLIPSIS, ftsColumn, SNIPPET_MAX_TOKENS);
+		} else {
+			if (ftsExtension != FtsExtension.fts5) {
+				reportSmartSqlError("highlight requires fts5", position);
+			}
+			return String.format("highlight(%s, %d, '%s', '%s')", ftsTableName, ftsColumn, MATCH_START_MARKER, MATCH_END_MARKER);
+		}
+	}
+
 	private String getSoupTableNameForSmartSql(SQLiteDatabase db, String soupName, int position) {
 		String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
 		if (soupTableName == null) {
@@ -41,10 +41,24 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Smart store
@@ -89,6 +103,13 @@ public class SmartStore  {
     protected static final String CREATED_COL = "created";
     protected static final String LAST_MODIFIED_COL = "lastModified";
     protected static final String SOUP_COL = "soup";
+    protected static final String CONTENT_HASH_COL = "contentHash"; // only set by upserts skipping unchanged elements
+
+	// Alias of the global store when attached to a user store (see attachStore)
+	public static final String GLOBAL_STORE_ALIAS = "global";
+
+	// Prefix of staging soups (see beginBulkReplace)
+	public static final String STAGING_SOUP_PREFIX = "__staging__";
 
 	// Column of a fts soup table
 	protected static final String ROWID_COL = "rowid";
@@ -103,6 +124,15 @@ public class SmartStore  {
     public static final String SOUP_LAST_MODIFIED_DATE = "_soupLastModifiedDate";
 	public static final String SOUP_CREATED_DATE = "_soupCreatedDate";
 
+	// Pseudo path to order match queries by relevance (bm25) - fts5 only
+	public static final String FTS_RANK = "_rank";
+
+    // Beyond that many ids, ids are matched through a temporary table instead of an IN (...) list
+    protected static final int MAX_INLINED_IDS = 100;
+
+    // Number of entries per transaction (and between progress callbacks) when importing/exporting soups
+    protected static final int TRANSFER_BATCH_SIZE = 1000;
+
     // Predicates
     protected static final String SOUP_NAME_PREDICATE = SOUP_NAME_COL + " = ?";
 	protected static final String ID_PREDICATE = ID_COL + " = ?";
@@ -116,6 +146,9 @@ public class SmartStore  {
 	// FTS extension to use
 	protected FtsExtension ftsExtension = FtsExtension.fts5;
 
+	// Prefix lengths to build fts prefix indexes for
+	protected int[] ftsPrefixLengths = new int[0];
+
 	/**
      * Changes the encryption key on the smartstore.
      *
@@ -126,6 +159,8 @@ public class SmartStore  {
     public static synchronized void changeKey(SQLiteDatabase db, String oldKey, String newKey) {
     	synchronized(db) {
 	        if (newKey != null && !newKey.trim().equals("")) {
+	            // Attached databases would keep using the old key
+	            DBHelper.getInstance(db).detachAllDatabases(db);
 	            db.execSQL("PRAGMA rekey = '" + newKey + "'");
 	            DBOpenHelper.reEncryptAllFiles(db, oldKey, newKey);
 	        }
@@ -224,6 +259,45 @@ public class SmartStore  {
         }
     }
 
+	/**
+	 * Attach the database of another store (typically the global store to a user store) so that a single smart sql query
+	 * can reference soups of both: {alias:soupName} for a soup table of the other store and {alias:soupName:path} for its columns
+	 * e.g. SELECT {accounts:Name}, {global:industries:Label} FROM {accounts}, {global:industries} WHERE {accounts:Industry} = {global:industries:Code}
+	 * Joins are run by SQLite and use the indexes of both stores
+	 *
+	 * NB: soups of the other store are read only through this store and can't use external storage
+	 *     query results involving them are not cached (see setQueryCacheMaxBytes)
+	 *     attached stores are detached when keys change - attach them again after a passcode change
+	 *     cannot be called within a transaction
+	 *
+	 * @param alias name used in smart sql to reference the other store (letters, digits and underscores)
+	 * @param store
+	 */
+	public void attachStore(String alias, SmartStore store) {
+		if (alias == null || !alias.matches("[A-Za-z_][A-Za-z0-9_]*") || alias.equalsIgnoreCase("main") || alias.equalsIgnoreCase("temp")) {
+			throw new SmartStoreException("Invalid alias: " + alias);
+		}
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			if (db.inTransaction()) throw new SmartStoreException("Cannot attach store within a transaction");
+			if (hasSoup(alias)) throw new SmartStoreException("Alias conflicts with soup: " + alias);
+			final int pageSize = store.dbOpenHelper instanceof DBOpenHelper ? ((DBOpenHelper) store.dbOpenHelper).getCipherPageSize() : 0;
+			DBHelper.getInstance(db).attachDatabase(db, alias, store.getDatabase(), store.passcode, pageSize);
+		}
+	}
+
+	/**
+	 * Detach the database of another store attached with attachStore
+	 * @param alias
+	 */
+	public void detachStore(String alias) {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			if (db.inTransaction()) throw new SmartStoreException("Cannot detach store within a transaction");
+			DBHelper.getInstance(db).detachDatabase(db, alias);
+		}
+	}
+
 	/**
 	 * If turned on, explain query plan is run before executing a query and stored in lastExplainQueryPlan
 	 * and also get logged
@@ -251,7 +325,198 @@ public class SmartStore  {
     	}
     	return size;
     }
-    
+
+	/**
+	 * Update the statistics used by the query planner for the given soups (all soups if none are passed)
+	 *
+	 * @param soupNames
+	 * @return number of index statistics that changed
+	 */
+	public int analyze(String... soupNames) {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			List<String> soupNamesToAnalyze = (soupNames == null || soupNames.length == 0) ? getAllSoupNames() : Arrays.asList(soupNames);
+			List<String> soupTableNames = new ArrayList<String>();
+			for (String soupName : soupNamesToAnalyze) {
+				String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
+				if (soupTableName != null) {
+					soupTableNames.add(soupTableName);
+				}
+			}
+
+			Map<String, String> statsBefore = getPlannerStats(db, soupTableNames);
+			for (String soupTableName : soupTableNames) {
+				db.execSQL("ANALYZE " + soupTableName);
+			}
+			Map<String, String> statsAfter = getPlannerStats(db, soupTableNames);
+			DBHelper.getInstance(db).clearPendingWrites(soupNamesToAnalyze);
+
+			int changes = 0;
+			for (Map.Entry<String, String> entry : statsAfter.entrySet()) {
+				if (!entry.getValue().equals(statsBefore.get(entry.getKey()))) {
+					changes++;
+				}
+			}
+			return changes;
+		}
+	}
+
+	/**
+	 * @param db
+	 * @param soupTableNames
+	 * @return map of table.index to statistics stored in sqlite_stat1 for the given tables
+	 */
+	private Map<String, String> getPlannerStats(SQLiteDatabase db, List<String> soupTableNames) {
+		Map<String, String> stats = new HashMap<String, String>();
+		Cursor cursor = null;
+		try {
+			cursor = DBHelper.getInstance(db).query(db, "sqlite_master", new String[] {"name"}, null, null, "type = ? and name = ?", "table", "sqlite_stat1");
+			boolean analyzedBefore = cursor.getCount() > 0;
+			safeClose(cursor);
+			cursor = null;
+			if (!analyzedBefore) {
+				return stats;
+			}
+			for (String soupTableName : soupTableNames) {
+				cursor = DBHelper.getInstance(db).query(db, "sqlite_stat1", new String[] {"idx", "stat"}, null, null, "tbl = ?", soupTableName);
+				while (cursor.moveToNext()) {
+					stats.put(soupTableName + "." + cursor.getString(0), cursor.getString(1));
+				}
+				safeClose(cursor);
+				cursor = null;
+			}
+		} finally {
+			safeClose(cursor);
+		}
+		return stats;
+	}
+
+	/**
+	 * @return auto vacuum mode of the underlying database
+	 */
+	public AutoVacuumMode getAutoVacuumMode() {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			return AutoVacuumMode.values()[(int) getLongPragma(db, "auto_vacuum")];
+		}
+	}
+
+	/**
+	 * @return number of bytes held by free pages in the underlying database
+	 */
+	public long getFreeBytes() {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			return getLongPragma(db, "freelist_count") * getLongPragma(db, "page_size");
+		}
+	}
+
+	/**
+	 * Switch the underlying database to incremental auto vacuum
+	 * NB: databases created by earlier versions of the SDK have to be rebuilt (VACUUM) for the change to take effect, which is expensive
+	 *
+	 * @return number of bytes reclaimed by the rebuild
+	 */
+	public long enableIncrementalAutoVacuum() {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			if (getAutoVacuumMode() == AutoVacuumMode.incremental) {
+				return 0;
+			}
+			long sizeBefore = new File(db.getPath()).length();
+			db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+			db.execSQL("VACUUM");
+			return Math.max(0, sizeBefore - new File(db.getPath()).length());
+		}
+	}
+
+	/**
+	 * Return up to maxPages free pages to the file system
+	 * NB: only does something if the database uses incremental auto vacuum
+	 *
+	 * @param maxPages maximum number of pages to release or 0 to release all free pages
+	 * @return number of bytes reclaimed
+	 */
+	public long incrementalVacuum(int maxPages) {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			if (getAutoVacuumMode() != AutoVacuumMode.incremental) {
+				return 0;
+			}
+			long freePagesBefore = getLongPragma(db, "freelist_count");
+			if (freePagesBefore == 0) {
+				return 0;
+			}
+			Cursor cursor = null;
+			try {
+				// Stepping through a cursor since execSQL might only step the pragma once
+				cursor = db.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null);
+				while (cursor.moveToNext()) {
+					// Nothing to read
+				}
+			} finally {
+				safeClose(cursor);
+			}
+			long freePagesAfter = getLongPragma(db, "freelist_count");
+			return (freePagesBefore - freePagesAfter) * getLongPragma(db, "page_size");
+		}
+	}
+
+	/**
+	 * @param db
+	 * @param pragma
+	 * @return value of a pragma returning a single integer
+	 */
+	private long getLongPragma(SQLiteDatabase db, String pragma) {
+		Cursor cursor = null;
+		try {
+			cursor = db.rawQuery("PRAGMA " + pragma, null);
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			safeClose(cursor);
+		}
+	}
+
+	/**
+	 * Open the database and fill the caches used by store operations (soup meta data, compiled statements)
+	 * so that the first operations don't pay for them - typically called on a background thread at startup
+	 * NB: soups are warmed up one at a time, other threads using the store only wait for the soup in progress
+	 *
+	 * @param touchPages if true, also read the rows of each soup into the page cache
+	 * @return number of soups warmed up
+	 */
+	public int warmUp(boolean touchPages) {
+		final SQLiteDatabase db = getDatabase(); // key derivation and schema read happen here
+		int count = 0;
+		for (String soupName : getAllSoupNames()) {
+			synchronized (db) {
+				final DBHelper dbHelper = DBHelper.getInstance(db);
+				final String soupTableName = dbHelper.getSoupTableName(db, soupName);
+				if (soupTableName == null) {
+					continue; // dropped in the meantime
+				}
+				dbHelper.getIndexSpecs(db, soupName);
+				dbHelper.getFeatures(db, soupName);
+				dbHelper.getFtsExtension(db, soupName);
+				dbHelper.hasContentHashColumn(db, soupTableName);
+				dbHelper.getNextId(db, soupTableName);
+				dbHelper.getInsertHelper(db, soupTableName).prepareForInsert();
+				if (touchPages) {
+					// count(column) has to read every row of the soup table
+					Cursor cursor = null;
+					try {
+						cursor = db.rawQuery("SELECT count(" + LAST_MODIFIED_COL + ") FROM " + soupTableName, null);
+						cursor.moveToFirst();
+					} finally {
+						safeClose(cursor);
+					}
+				}
+			}
+			count++;
+		}
+		return count;
+	}
+
     /**
      * Start transaction
 	 * NB: to avoid deadlock, caller should have synchronized(store.getDatabase()) around the whole transaction
@@ -356,7 +621,6 @@ public class SmartStore  {
         // Prepare SQL for creating soup table and its indices
         StringBuilder createTableStmt = new StringBuilder();          // to create new soup table
 		StringBuilder createFtsStmt = new StringBuilder();            // to create fts table
-        List<String> createIndexStmts = new ArrayList<String>();      // to create indices on new soup table
         List<ContentValues> soupIndexMapInserts = new ArrayList<ContentValues>();  // to be inserted in soup index map table
         IndexSpec[] indexSpecsToCache = new IndexSpec[indexSpecs.length];
         List<String> columnsForFts = new ArrayList<String>();
@@ -372,13 +636,9 @@ public class SmartStore  {
         }
 
         createTableStmt.append(", ").append(CREATED_COL).append(" INTEGER")
-                        .append(", ").append(LAST_MODIFIED_COL).append(" INTEGER");
+                        .append(", ").append(LAST_MODIFIED_COL).append(" INTEGER")
+                        .append(", ").append(CONTENT_HASH_COL).append(" INTEGER");
 
-        final String createIndexFormat = "CREATE INDEX %s_%s_idx on %s ( %s )";
-
-        for (String col : new String[]{CREATED_COL, LAST_MODIFIED_COL}) {
-            createIndexStmts.add(String.format(createIndexFormat, soupTableName, col, soupTableName, col));
-        }
 
         int i = 0;
         for (IndexSpec indexSpec : indexSpecs) {
@@ -407,9 +667,6 @@ public class SmartStore  {
             values.put(COLUMN_TYPE_COL, indexSpec.type.toString());
             soupIndexMapInserts.add(values);
 
-            // for create index
-			createIndexStmts.add(String.format(createIndexFormat, soupTableName, "" + i, soupTableName, columnName));;
-
             // for the cache
             indexSpecsToCache[i] = new IndexSpec(indexSpec.path, indexSpec.type, columnName);
 
@@ -419,7 +676,7 @@ public class SmartStore  {
 
 		// fts
 		if (columnsForFts.size() > 0) {
-			createFtsStmt.append(String.format("CREATE VIRTUAL TABLE %s%s USING %s(%s)", soupTableName, FTS_SUFFIX, ftsExtension, TextUtils.join(",", columnsForFts)));
+			createFtsStmt.append(String.format("CREATE VIRTUAL TABLE %s%s USING %s(%s%s)", soupTableName, FTS_SUFFIX, ftsExtension, TextUtils.join(",", columnsForFts), computeFtsPrefixOption()));
 		}
 
         // Run SQL for creating soup table and its indices
@@ -430,8 +687,8 @@ public class SmartStore  {
 			db.execSQL(createFtsStmt.toString());
 		}
 
-        for (String createIndexStmt : createIndexStmts) {
-            db.execSQL(createIndexStmt.toString());
+        for (String createIndexStmt : computeCreateIndexStmts(soupTableName, indexSpecsToCache)) {
+            db.execSQL(createIndexStmt);
         }
 
         try {
@@ -456,6 +713,23 @@ public class SmartStore  {
         }
     }
     
+	/**
+	 * @param soupTableName
+	 * @param indexSpecs index specs with their column names
+	 * @return statements to create the indices of a soup table
+	 */
+	private static List<String> computeCreateIndexStmts(String soupTableName, IndexSpec[] indexSpecs) {
+		final String createIndexFormat = "CREATE INDEX %s_%s_idx on %s ( %s )";
+		List<String> createIndexStmts = new ArrayList<String>();
+		for (String col : new String[]{CREATED_COL, LAST_MODIFIED_COL}) {
+			createIndexStmts.add(String.format(createIndexFormat, soupTableName, col, soupTableName, col));
+		}
+		for (int i = 0; i < indexSpecs.length; i++) {
+			createIndexStmts.add(String.format(createIndexFormat, soupTableName, "" + i, soupTableName, indexSpecs[i].columnName));
+		}
+		return createIndexStmts;
+	}
+
 	/**
 	 * Finish long operations that were interrupted
 	 */
@@ -570,6 +844,7 @@ public class SmartStore  {
 			}
 
 			boolean hasFts = IndexSpec.hasFTS(indexSpecs);
+			DBHelper.getInstance(db).getQueryResultCache().invalidate(soupName);
 			
 			if (handleTx) {
 				db.beginTransaction();
@@ -588,22 +863,25 @@ public class SmartStore  {
 			        do {
 			        	String soupEntryId = cursor.getString(0);
 			        	try {
-			                JSONObject soupElt;
+			                // Working from the raw soup element - no need to build a tree to get the indexed values
+			                String soupRaw;
 			                if (usesExternalStorage(soupName) && dbOpenHelper instanceof DBOpenHelper) {
-			                	soupElt = ((DBOpenHelper) dbOpenHelper).loadSoupBlob(soupTableName, Long.parseLong(soupEntryId), passcode);
+			                	soupRaw = ((DBOpenHelper) dbOpenHelper).loadSoupBlobAsString(soupTableName, Long.parseLong(soupEntryId), passcode);
 			                } else {
-			                	String soupRaw = cursor.getString(1);
-			                	soupElt = new JSONObject(soupRaw);
+			                	soupRaw = cursor.getString(1);
+			                }
+			                if (soupRaw == null) {
+			                	continue;
 			                }
 			                ContentValues contentValues = new ContentValues();
-			                projectIndexedPaths(soupElt, contentValues, indexSpecs, TypeGroup.value_extracted_to_column);
+			                projectIndexedPaths(soupRaw, contentValues, indexSpecs, TypeGroup.value_extracted_to_column);
 			                DBHelper.getInstance(db).update(db, soupTableName, contentValues, ID_PREDICATE, soupEntryId + "");
 
 							// Fts
 							if (hasFts) {
 								String soupTableNameFts = soupTableName + FTS_SUFFIX;
 								ContentValues contentValuesFts = new ContentValues();
-								projectIndexedPaths(soupElt, contentValuesFts, indexSpecs, TypeGroup.value_extracted_to_fts_column);
+								projectIndexedPaths(soupRaw, contentValuesFts, indexSpecs, TypeGroup.value_extracted_to_fts_column);
 								DBHelper.getInstance(db).update(db, soupTableNameFts, contentValuesFts, ROWID_PREDICATE, soupEntryId + "");
 							}
 			        	}
@@ -651,7 +929,8 @@ public class SmartStore  {
 	        if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
 			db.beginTransaction();
 			try {
-				DBHelper.getInstance(db).delete(db, soupTableName, null);
+				int count = DBHelper.getInstance(db).delete(db, soupTableName, null);
+				DBHelper.getInstance(db).recordWrites(soupName, count);
 				if (hasFTS(soupName)) {
 					DBHelper.getInstance(db).delete(db, soupTableName + FTS_SUFFIX, null);
 				}
@@ -664,6 +943,312 @@ public class SmartStore  {
 			}
     	}
 	}
+
+	/**
+	 * Write all entries of a soup to the given stream as newline-delimited JSON (one soup element per line)
+	 * NB: the stream is not closed
+	 *
+	 * @param soupName
+	 * @param out
+	 * @param compress true to gzip the output
+	 * @param callback to be notified of progress (can be null)
+	 * @return number of entries exported
+	 * @throws IOException
+	 */
+	public long exportSoup(String soupName, OutputStream out, boolean compress, SoupTransferCallback callback) throws IOException {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
+			if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+			boolean useExternalStorage = usesExternalStorage(soupName) && dbOpenHelper instanceof DBOpenHelper;
+
+			GZIPOutputStream gzipOut = compress ? new GZIPOutputStream(out) : null;
+			Writer writer = new BufferedWriter(new OutputStreamWriter(compress ? gzipOut : out, "UTF-8"));
+			long count = 0;
+			Cursor cursor = null;
+			try {
+				cursor = DBHelper.getInstance(db).query(db, soupTableName, useExternalStorage ? new String[] {ID_COL} : new String[] {ID_COL, SOUP_COL}, ID_COL, null, null);
+				while (cursor.moveToNext()) {
+					if (useExternalStorage) {
+						JSONObject soupElt = ((DBOpenHelper) dbOpenHelper).loadSoupBlob(soupTableName, cursor.getLong(0), passcode);
+						if (soupElt == null) {
+							continue;
+						}
+						writer.write(soupElt.toString());
+					} else {
+						// Raw soup is already serialized - no need to parse it
+						writer.write(cursor.getString(1));
+					}
+					writer.write('\n');
+					count++;
+					if (callback != null && count % TRANSFER_BATCH_SIZE == 0) {
+						callback.onProgress(soupName, count);
+					}
+				}
+			} finally {
+				safeClose(cursor);
+			}
+			writer.flush();
+			if (gzipOut != null) {
+				gzipOut.finish();
+			}
+			if (callback != null && (count == 0 || count % TRANSFER_BATCH_SIZE != 0)) {
+				callback.onProgress(soupName, count);
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Create soup entries from the newline-delimited JSON read from the given stream (as written by exportSoup)
+	 * Entries are created in a single transaction in which the soup table indexes are dropped and only rebuilt at the end:
+	 * if the import fails (or the process dies) the soup is left as it was, indexes included
+	 * NB: entries are created not upserted, clear the soup first to replace its content. The stream is not closed.
+	 *
+	 * @param soupName
+	 * @param in
+	 * @param compressed true if the input is gzipped
+	 * @param callback to be notified of progress (can be null)
+	 * @return number of entries imported
+	 * @throws IOException
+	 * @throws JSONException
+	 */
+	public long importSoup(String soupName, InputStream in, boolean compressed, SoupTransferCallback callback) throws IOException, JSONException {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
+			if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(compressed ? new GZIPInputStream(in) : in, "UTF-8"));
+			long count = 0;
+			db.beginTransaction();
+			try {
+				List<String> createIndexStmts = dropIndexes(db, soupTableName);
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.trim().length() == 0) {
+						continue;
+					}
+					JSONObject soupElt = new JSONObject(line);
+					soupElt.remove(SOUP_ENTRY_ID);
+					if (create(soupName, soupElt, false) == null) {
+						throw new SmartStoreException("Failed to import entry " + (count + 1) + " into soup: " + soupName);
+					}
+					count++;
+					if (callback != null && count % TRANSFER_BATCH_SIZE == 0) {
+						callback.onProgress(soupName, count);
+					}
+				}
+				for (String createIndexStmt : createIndexStmts) {
+					db.execSQL(createIndexStmt);
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			if (callback != null && (count == 0 || count % TRANSFER_BATCH_SIZE != 0)) {
+				callback.onProgress(soupName, count);
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Drop indexes of a table
+	 * @param db
+	 * @param tableName
+	 * @return statements to re-create them
+	 */
+	private List<String> dropIndexes(SQLiteDatabase db, String tableName) {
+		Map<String, String> indexNameToCreateStmts = new HashMap<String, String>();
+		Cursor cursor = null;
+		try {
+			// sql is null for indexes created automatically (e.g. for primary keys)
+			cursor = DBHelper.getInstance(db).query(db, "sqlite_master", new String[] {"name", "sql"}, null, null, "type = ? and tbl_name = ? and sql is not null", "index", tableName);
+			while (cursor.moveToNext()) {
+				indexNameToCreateStmts.put(cursor.getString(0), cursor.getString(1));
+			}
+		} finally {
+			safeClose(cursor);
+		}
+		for (String indexName : indexNameToCreateStmts.keySet()) {
+			db.execSQL("DROP INDEX IF EXISTS " + indexName);
+		}
+		return new ArrayList<String>(indexNameToCreateStmts.values());
+	}
+
+	/**
+	 * @param soupName
+	 * @return name of the staging soup used to bulk replace the content of soupName
+	 */
+	public static String getStagingSoupName(String soupName) {
+		return STAGING_SOUP_PREFIX + soupName;
+	}
+
+	/**
+	 * Start replacing the whole content of a soup
+	 * A staging soup with the same soup spec and index specs is created without indexes (any previous staging soup is dropped)
+	 * Load it with bulkReplaceAdd then call commitBulkReplace (or abortBulkReplace)
+	 * Until commitBulkReplace, readers of the soup keep seeing its current content
+	 * NB: staging soups are regular soups (hidden from getAllSoupNames) that only live for the duration of the bulk replace
+	 *     if the process dies before commitBulkReplace or abortBulkReplace, the staging soup is dropped when the database is next opened
+	 *
+	 * @param soupName
+	 */
+	public void beginBulkReplace(String soupName) {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			SoupSpec soupSpec = getSoupSpec(soupName);
+			IndexSpec[] indexSpecs = getSoupIndexSpecs(soupName);
+			String stagingSoupName = getStagingSoupName(soupName);
+			dropSoup(stagingSoupName);
+			registerSoupWithSpec(new SoupSpec(stagingSoupName, soupSpec.getFeatures().toArray(new String[0])), indexSpecs);
+
+			// Indexes are built once the staging soup is loaded
+			dropIndexes(db, DBHelper.getInstance(db).getSoupTableName(db, stagingSoupName));
+		}
+	}
+
+	/**
+	 * Add soup elements to the staging soup of a bulk replace (in one transaction)
+	 * NB: soup elements get new soup entry ids
+	 *
+	 * @param soupName
+	 * @param soupElts
+	 * @return number of soup elements added
+	 * @throws JSONException
+	 */
+	public int bulkReplaceAdd(String soupName, JSONArray soupElts) throws JSONException {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			String stagingSoupName = getStagingSoupName(soupName);
+			if (!hasSoup(stagingSoupName)) throw new SmartStoreException("No bulk replace in progress for soup: " + soupName);
+			db.beginTransaction();
+			try {
+				for (int i = 0; i < soupElts.length(); i++) {
+					JSONObject soupElt = soupElts.getJSONObject(i);
+					soupElt.remove(SOUP_ENTRY_ID);
+					if (create(stagingSoupName, soupElt, false) == null) {
+						throw new SmartStoreException("Failed to add entry to staging soup of: " + soupName);
+					}
+				}
+				db.setTransactionSuccessful();
+				return soupElts.length();
+			} finally {
+				db.endTransaction();
+			}
+		}
+	}
+
+	/**
+	 * Finish replacing the whole content of a soup
+	 * Indexes of the staging soup are built, then (in one transaction) the soup table is dropped and the staging soup takes its place
+	 *
+	 * @param soupName
+	 */
+	public void commitBulkReplace(String soupName) {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			String stagingSoupName = getStagingSoupName(soupName);
+			String stagingTableName = DBHelper.getInstance(db).getSoupTableName(db, stagingSoupName);
+			if (stagingTableName == null) throw new SmartStoreException("No bulk replace in progress for soup: " + soupName);
+			String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
+			if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+			boolean hadFts = hasFTS(soupName);
+
+			// Build indexes after the load
+			for (String createIndexStmt : computeCreateIndexStmts(stagingTableName, DBHelper.getInstance(db).getIndexSpecs(db, stagingSoupName))) {
+				db.execSQL(createIndexStmt);
+			}
+
+			// Swap
+			db.beginTransaction();
+			try {
+				db.execSQL("DROP TABLE IF EXISTS " + soupTableName);
+				if (hadFts) {
+					db.execSQL("DROP TABLE IF EXISTS " + soupTableName + FTS_SUFFIX);
+				}
+				DBHelper.getInstance(db).delete(db, SOUP_ATTRS_TABLE, SOUP_NAME_PREDICATE, soupName);
+				DBHelper.getInstance(db).delete(db, SOUP_INDEX_MAP_TABLE, SOUP_NAME_PREDICATE, soupName);
+				ContentValues soupNameValues = new ContentValues();
+				soupNameValues.put(SOUP_NAME_COL, soupName);
+				DBHelper.getInstance(db).update(db, SOUP_ATTRS_TABLE, soupNameValues, SOUP_NAME_PREDICATE, stagingSoupName);
+				DBHelper.getInstance(db).update(db, SOUP_INDEX_MAP_TABLE, soupNameValues, SOUP_NAME_PREDICATE, stagingSoupName);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+				DBHelper.getInstance(db).removeFromCache(soupName);
+				DBHelper.getInstance(db).removeFromCache(stagingSoupName);
+			}
+			DBHelper.getInstance(db).recordWrites(soupName, DBHelper.getInstance(db).countRawQuery(db, "SELECT " + ID_COL + " FROM " + stagingTableName));
+
+			// External storage of the dropped table
+			if (dbOpenHelper instanceof DBOpenHelper) {
+				((DBOpenHelper) dbOpenHelper).removeExternalBlobsDirectory(soupTableName);
+			}
+		}
+	}
+
+	/**
+	 * Give up replacing the whole content of a soup (the staging soup is dropped)
+	 *
+	 * @param soupName
+	 */
+	public void abortBulkReplace(String soupName) {
+		dropSoup(getStagingSoupName(soupName));
+	}
+
+	/**
+	 * Drop the staging soups left behind by bulk replaces that never completed (e.g. the process died in the middle of one)
+	 * Called by DBOpenHelper the first time the database is opened by the process
+	 *
+	 * @return number of staging soups dropped
+	 */
+	public int dropStagingSoups() {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			int count = 0;
+			for (String soupName : getAllSoupNames(true)) {
+				if (soupName.startsWith(STAGING_SOUP_PREFIX)) {
+					dropSoup(soupName);
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Replace the whole content of a soup (see beginBulkReplace)
+	 *
+	 * @param soupName
+	 * @param soupElts
+	 * @throws JSONException
+	 */
+	public void replaceSoupContent(String soupName, JSONArray soupElts) throws JSONException {
+		final SQLiteDatabase db = getDatabase();
+		synchronized (db) {
+			beginBulkReplace(soupName);
+			boolean committed = false;
+			try {
+				JSONArray batch = new JSONArray();
+				for (int i = 0; i < soupElts.length(); i++) {
+					batch.put(soupElts.get(i));
+					if (batch.length() == TRANSFER_BATCH_SIZE) {
+						bulkReplaceAdd(soupName, batch);
+						batch = new JSONArray();
+					}
+				}
+				bulkReplaceAdd(soupName, batch);
+				commitBulkReplace(soupName);
+				committed = true;
+			} finally {
+				if (!committed) {
+					abortBulkReplace(soupName);
+				}
+			}
+		}
+	}
 	
     /**
      * Check if soup exists
@@ -719,7 +1304,7 @@ public class SmartStore  {
     public void dropAllSoups() {
     	final SQLiteDatabase db = getDatabase();
     	synchronized(db) {
-	    	List<String> soupNames = getAllSoupNames();
+	    	List<String> soupNames = getAllSoupNames(true);
 	        for(String soupName : soupNames) {
 	            dropSoup(soupName);
 	        }
@@ -727,9 +1312,17 @@ public class SmartStore  {
     }
 
     /**
-     * @return all soup names in the smartstore
+     * @return all soup names in the smartstore (staging soups of bulk replaces in progress excluded)
      */
     public List<String> getAllSoupNames() {
+    	return getAllSoupNames(false);
+    }
+
+    /**
+     * @param includeStaging true to also return the staging soups of bulk replaces
+     * @return soup names in the smartstore
+     */
+    private List<String> getAllSoupNames(boolean includeStaging) {
     	final SQLiteDatabase db = getDatabase();
     	synchronized(db) {
 	    	List<String> soupNames = new ArrayList<String>();
@@ -738,7 +1331,10 @@ public class SmartStore  {
 				cursor = DBHelper.getInstance(db).query(db, SOUP_ATTRS_TABLE, new String[]{SOUP_NAME_COL}, SOUP_NAME_COL, null, null);
 	            if (cursor.moveToFirst()) {
 	                do {
-	                    soupNames.add(cursor.getString(0));
+	                    String soupName = cursor.getString(0);
+	                    if (includeStaging || !soupName.startsWith(STAGING_SOUP_PREFIX)) {
+	                        soupNames.add(soupName);
+	                    }
 	                }
 	                while (cursor.moveToNext());
 	            }
@@ -772,6 +1368,19 @@ public class SmartStore  {
     	synchronized(db) {
 			QueryType qt = querySpec.queryType;
 	    	String sql = convertSmartSql(querySpec.smartSql);
+
+			// Cached results
+			// NB: not using the cache within transactions since changes might get rolled back
+			//     or for queries on soups of attached stores since their writes go through other databases
+			QueryResultCache queryResultCache = DBHelper.getInstance(db).getQueryResultCache();
+			String cacheKey = null;
+			if (queryResultCache.isEnabled() && !db.inTransaction() && !DBHelper.getInstance(db).referencesAttachedDatabase(querySpec.smartSql)) {
+				cacheKey = QueryResultCache.computeKey(sql, querySpec.getArgs(), pageIndex, querySpec.pageSize);
+				JSONArray cachedResults = queryResultCache.get(cacheKey);
+				if (cachedResults != null) {
+					return cachedResults;
+				}
+			}
 	
 	        // Page
 	        int offsetRows = querySpec.pageSize * pageIndex;
@@ -784,7 +1393,7 @@ public class SmartStore  {
 	            if (cursor.moveToFirst()) {
 	                do {
 	                	// Smart queries
-	                	if (qt == QueryType.smart || querySpec.selectPaths != null) {
+	                	if (qt == QueryType.smart || qt == QueryType.aggregate || querySpec.selectPaths != null) {
 	                		results.put(getDataFromRow(cursor));	
 	                	}
 	            		// Exact/like/range queries
@@ -800,6 +1409,9 @@ public class SmartStore  {
 	                	}
 	                } while (cursor.moveToNext());
 	            }
+				if (cacheKey != null) {
+					queryResultCache.put(cacheKey, QueryResultCache.getSoupNames(querySpec.smartSql), results);
+				}
 	            return results;
 	    	} finally {
 	    		safeClose(cursor);
@@ -807,6 +1419,69 @@ public class SmartStore  {
     	}
 	}
 
+	/**
+	 * Enable caching of query results (keyed by sql, args and page) up to the given (estimated) number of bytes
+	 * Cached results are dropped whenever a soup they were read from is written to through this API
+	 * NB: the cache is shared by all SmartStore instances on the same database, pass 0 to disable it (the default)
+	 * @param maxBytes
+	 */
+	public void setQueryCacheMaxBytes(long maxBytes) {
+		DBHelper.getInstance(getDatabase()).getQueryResultCache().setMaxBytes(maxBytes);
+	}
+
+	/**
+	 * @return cache of query results - to get hit/miss statistics
+	 */
+	public QueryResultCache getQueryResultCache() {
+		return DBHelper.getInstance(getDatabase()).getQueryResultCache();
+	}
+
+
+	/**
+	 * Run a query given by its query Spec, only returned results from selected page, mapping each row with the given mapper
+	 * NB: rows are read straight from the cursor - use select paths (or smart sql) returning the columns the mapper expects
+	 * @param querySpec
+	 * @param pageIndex
+	 * @param rowMapper
+	 * @return list of objects returned by rowMapper
+	 */
+	public <T> List<T> query(QuerySpec querySpec, int pageIndex, RowMapper<T> rowMapper) {
+		final SQLiteDatabase db = getDatabase();
+		synchronized(db) {
+			String sql = convertSmartSql(querySpec.smartSql);
+
+			// Page
+			int offsetRows = querySpec.pageSize * pageIndex;
+			int numberRows = querySpec.pageSize;
+			String limit = offsetRows + "," + numberRows;
+			Cursor cursor = null;
+			try {
+				cursor = DBHelper.getInstance(db).limitRawQuery(db, sql, limit, querySpec.getArgs());
+				List<T> results = new ArrayList<T>(cursor.getCount());
+				while (cursor.moveToNext()) {
+					results.add(rowMapper.mapRow(cursor));
+				}
+				return results;
+			} finally {
+				safeClose(cursor);
+			}
+		}
+	}
+
+	/**
+	 * Run an aggregate query given by its query spec (see QuerySpec.buildAggregateQuerySpec), only returned results from selected page
+	 * NB: the aggregation is done by SQLite - only the resulting rows are read
+	 * @param querySpec
+	 * @param pageIndex
+	 * @return one result per group
+	 */
+	public List<AggregateResult> aggregate(QuerySpec querySpec, int pageIndex) {
+		if (querySpec.queryType != QueryType.aggregate) {
+			throw new SmartStoreException("Not an aggregate query spec: " + querySpec.queryType);
+		}
+		int groupByCount = querySpec.groupByPaths == null ? 0 : querySpec.groupByPaths.length;
+		return query(querySpec, pageIndex, AggregateResult.getRowMapper(groupByCount));
+	}
 
 	/**
 	 * Return JSONArray for one row of data from cursor
@@ -867,7 +1542,18 @@ public class SmartStore  {
 	public String convertSmartSql(String smartSql) {
 		final SQLiteDatabase db = getDatabase();
     	synchronized (db) {
-			return SmartSqlHelper.getInstance(db).convertSmartSql(db, smartSql);
+			// Converted sql only depends on the soups referenced, so it is cached until one of them is altered or dropped
+			// NB: not caching sql referencing soups of attached stores since they are altered / dropped through other databases
+			DBHelper dbHelper = DBHelper.getInstance(db);
+			if (dbHelper.referencesAttachedDatabase(smartSql)) {
+				return SmartSqlHelper.getInstance(db).convertSmartSql(db, smartSql);
+			}
+			String sql = dbHelper.getConvertedSmartSql(smartSql);
+			if (sql == null) {
+				sql = SmartSqlHelper.getInstance(db).convertSmartSql(db, smartSql);
+				dbHelper.putConvertedSmartSql(smartSql, sql);
+			}
+			return sql;
     	}
 	}
 
@@ -896,6 +1582,19 @@ public class SmartStore  {
      * @throws JSONException
      */
     public JSONObject create(String soupName, JSONObject soupElt, boolean handleTx) throws JSONException {
+    	return create(soupName, soupElt, handleTx, null);
+    }
+
+    /**
+     * Create
+     * @param soupName
+     * @param soupElt
+     * @param handleTx
+     * @param contentHash hash of soupElt content (see computeContentHash) or null
+     * @return
+     * @throws JSONException
+     */
+    private JSONObject create(String soupName, JSONObject soupElt, boolean handleTx, Long contentHash) throws JSONException {
     	final SQLiteDatabase db = getDatabase();
     	synchronized(db) {
 	        String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
@@ -916,6 +1615,9 @@ public class SmartStore  {
 	            contentValues.put(ID_COL, soupEntryId);
 	            contentValues.put(CREATED_COL, now);
 	            contentValues.put(LAST_MODIFIED_COL, now);
+	            if (contentHash != null) {
+	                contentValues.put(CONTENT_HASH_COL, contentHash);
+	            }
 	            if (!usesExternalStorage(soupName)) {
 	                contentValues.put(SOUP_COL, soupElt.toString());
 	            }
@@ -923,6 +1625,9 @@ public class SmartStore  {
 
 	            // Inserting into database
 	            boolean success = DBHelper.getInstance(db).insert(db, soupTableName, contentValues) == soupEntryId;
+	            if (success) {
+	                DBHelper.getInstance(db).recordWrites(soupName, 1);
+	            }
 
 				// Fts
 				if (success && hasFTS(soupName)) {
@@ -989,7 +1694,37 @@ public class SmartStore  {
      * @param indexSpec
      */
     private void projectIndexedPath(JSONObject soupElt, ContentValues contentValues, IndexSpec indexSpec) {
-        Object value = project(soupElt, indexSpec.path);
+        putIndexedValue(contentValues, indexSpec, projectPathElements(soupElt, indexSpec.pathElements));
+    }
+
+	/**
+	 * Same as projectIndexedPaths but working from the raw soup element (no JSONObject tree is built unless needed)
+	 * @param rawSoupElt
+	 * @param contentValues
+	 * @param indexSpecs
+	 * @param typeGroup
+	 * @throws JSONException
+	 */
+	private void projectIndexedPaths(String rawSoupElt, ContentValues contentValues, IndexSpec[] indexSpecs, TypeGroup typeGroup) throws JSONException {
+		List<IndexSpec> indexSpecsInGroup = new ArrayList<IndexSpec>();
+		for (IndexSpec indexSpec : indexSpecs) {
+			if (typeGroup.isMember(indexSpec.type)) {
+				indexSpecsInGroup.add(indexSpec);
+			}
+		}
+		IndexSpec[] indexSpecsToProject = indexSpecsInGroup.toArray(new IndexSpec[0]);
+		Object[] values = JsonPathExtractor.extract(rawSoupElt, indexSpecsToProject);
+		for (int i=0; i<indexSpecsToProject.length; i++) {
+			putIndexedValue(contentValues, indexSpecsToProject[i], values[i]);
+		}
+	}
+
+    /**
+     * @param contentValues
+     * @param indexSpec
+     * @param value
+     */
+    private void putIndexedValue(ContentValues contentValues, IndexSpec indexSpec, Object value) {
         switch (indexSpec.type) {
         case integer:
             Long longValToUse = null;
@@ -1042,7 +1777,8 @@ public class SmartStore  {
 	        } else {
 		        Cursor cursor = null;
 		        try {
-			        cursor = DBHelper.getInstance(db).query(db, soupTableName, new String[] { SOUP_COL }, null, null, getSoupEntryIdsPredicate(soupEntryIds), (String[]) null);
+			        loadIdSet(db, soupEntryIds);
+			        cursor = DBHelper.getInstance(db).query(db, soupTableName, new String[] { SOUP_COL }, null, null, getIdsPredicate(db, ID_COL, soupEntryIds), (String[]) null);
 			        if (!cursor.moveToFirst()) {
 				        return result;
 			        }
@@ -1053,6 +1789,7 @@ public class SmartStore  {
 			        while (cursor.moveToNext());
 		        } finally {
 			        safeClose(cursor);
+			        clearIdSet(db, soupEntryIds);
 		        }
 	        }
 	        return result;
@@ -1086,6 +1823,20 @@ public class SmartStore  {
      * @throws JSONException
      */
     public JSONObject update(String soupName, JSONObject soupElt, long soupEntryId, boolean handleTx) throws JSONException {
+    	return update(soupName, soupElt, soupEntryId, handleTx, null);
+    }
+
+    /**
+     * Update
+     * @param soupName
+     * @param soupElt
+     * @param soupEntryId
+     * @param handleTx
+     * @param contentHash hash of soupElt content (see computeContentHash) or null
+     * @return
+     * @throws JSONException
+     */
+    private JSONObject update(String soupName, JSONObject soupElt, long soupEntryId, boolean handleTx, Long contentHash) throws JSONException {
     	final SQLiteDatabase db = getDatabase();
     	synchronized(db) {
 			try {
@@ -1107,6 +1858,10 @@ public class SmartStore  {
 				// Preparing data for row
 				ContentValues contentValues = new ContentValues();
 				contentValues.put(LAST_MODIFIED_COL, now);
+				if (DBHelper.getInstance(db).hasContentHashColumn(db, soupTableName)) {
+					// Content changed through a regular update has no known hash
+					contentValues.put(CONTENT_HASH_COL, contentHash);
+				}
 				projectIndexedPaths(soupElt, contentValues, indexSpecs, TypeGroup.value_extracted_to_column);
 				if (!usesExternalStorage(soupName)) {
 					contentValues.put(SOUP_COL, soupElt.toString());
@@ -1114,6 +1869,9 @@ public class SmartStore  {
 
 				// Updating database
 				boolean success = DBHelper.getInstance(db).update(db, soupTableName, contentValues, ID_PREDICATE, soupEntryId + "") == 1;
+				if (success) {
+					DBHelper.getInstance(db).recordWrites(soupName, 1);
+				}
 
 				// Fts
 				if (success && hasFTS(soupName)) {
@@ -1183,6 +1941,38 @@ public class SmartStore  {
      * @throws JSONException
      */
     public JSONObject upsert(String soupName, JSONObject soupElt, String externalIdPath, boolean handleTx) throws JSONException {
+    	return upsert(soupName, soupElt, externalIdPath, handleTx, false);
+    }
+
+    /**
+     * Upsert
+     * When skipIfUnchanged is true, a hash of the content of soupElt is stored with it, and an existing soup element
+     * whose stored hash matches is left untouched (no write to the soup, index or fts columns, _soupLastModifiedDate is not bumped)
+     * NB: soup elements written by create / update have no stored hash, so the first upsert skipping unchanged elements always writes
+     * @param soupName
+     * @param soupElt
+     * @param externalIdPath
+     * @param handleTx
+     * @param skipIfUnchanged
+     * @return soupElt (with the _soupEntryId and _soupLastModifiedDate of the existing soup element if it was left untouched) or null if upsert failed
+     * @throws JSONException
+     */
+    public JSONObject upsert(String soupName, JSONObject soupElt, String externalIdPath, boolean handleTx, boolean skipIfUnchanged) throws JSONException {
+    	return upsert(soupName, soupElt, externalIdPath, handleTx, skipIfUnchanged, null);
+    }
+
+    /**
+     * Upsert
+     * @param soupName
+     * @param soupElt
+     * @param externalIdPath
+     * @param handleTx
+     * @param skipIfUnchanged
+     * @param unchanged if not null, unchanged[0] is set to true when the existing soup element was left untouched
+     * @return
+     * @throws JSONException
+     */
+    private JSONObject upsert(String soupName, JSONObject soupElt, String externalIdPath, boolean handleTx, boolean skipIfUnchanged, boolean[] unchanged) throws JSONException {
     	final SQLiteDatabase db = getDatabase();
     	synchronized(db) {
 	        long entryId = -1;
@@ -1197,15 +1987,121 @@ public class SmartStore  {
 	            }
 	        }
 	
+	        Long contentHash = null;
+	        if (skipIfUnchanged) {
+	            String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
+	            if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+	            DBHelper.getInstance(db).ensureContentHashColumn(db, soupTableName);
+	            contentHash = computeContentHash(soupElt);
+	            if (entryId != -1) {
+	                long lastModified = getLastModifiedIfContentHashIs(soupTableName, entryId, contentHash);
+	                if (lastModified != -1) {
+	                    soupElt.put(SOUP_ENTRY_ID, entryId);
+	                    soupElt.put(SOUP_LAST_MODIFIED_DATE, lastModified);
+	                    if (unchanged != null) {
+	                        unchanged[0] = true;
+	                    }
+	                    return soupElt;
+	                }
+	            }
+	        }
+
 	        // If we have an entryId, let's do an update, otherwise let's do a create
 	        if (entryId != -1) {
-	            return update(soupName, soupElt, entryId, handleTx);
+	            return update(soupName, soupElt, entryId, handleTx, contentHash);
 	        } else {
-	            return create(soupName, soupElt, handleTx);
+	            return create(soupName, soupElt, handleTx, contentHash);
 	        }
     	}
     }
 
+    /**
+     * Upsert all soup elements in one transaction, leaving untouched the existing soup elements whose content did not change
+     * (see upsert with skipIfUnchanged)
+     * @param soupName
+     * @param soupElts
+     * @param externalIdPath
+     * @param handleTx
+     * @return number of soup elements actually written
+     * @throws JSONException
+     */
+    public int upsertAllIfChanged(String soupName, JSONArray soupElts, String externalIdPath, boolean handleTx) throws JSONException {
+    	final SQLiteDatabase db = getDatabase();
+    	synchronized(db) {
+    		if (handleTx) {
+    			db.beginTransaction();
+    		}
+    		try {
+    			int written = 0;
+    			boolean[] unchanged = new boolean[1];
+    			for (int i = 0; i < soupElts.length(); i++) {
+    				unchanged[0] = false;
+    				if (upsert(soupName, soupElts.getJSONObject(i), externalIdPath, false, true, unchanged) == null) {
+    					throw new SmartStoreException("Upsert failed in soup: " + soupName);
+    				}
+    				if (!unchanged[0]) {
+    					written++;
+    				}
+    			}
+    			if (handleTx) {
+    				db.setTransactionSuccessful();
+    			}
+    			return written;
+    		} finally {
+    			if (handleTx) {
+    				db.endTransaction();
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * @param soupTableName
+     * @param soupEntryId
+     * @param contentHash
+     * @return last modified date of soup element if its stored content hash is contentHash, -1 otherwise
+     */
+    private long getLastModifiedIfContentHashIs(String soupTableName, long soupEntryId, long contentHash) {
+    	final SQLiteDatabase db = getDatabase();
+    	Cursor cursor = null;
+    	try {
+    		cursor = db.query(soupTableName, new String[] {LAST_MODIFIED_COL}, ID_PREDICATE + " AND " + CONTENT_HASH_COL + " = ?",
+    				new String[] {soupEntryId + "", contentHash + ""}, null, null, null);
+    		return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+    	} finally {
+    		safeClose(cursor);
+    	}
+    }
+
+    /**
+     * Compact hash of the content of a soup element (first 64 bits of its SHA-1), ignoring _soupEntryId and _soupLastModifiedDate
+     * NB: soupElt is serialized as is - the same content with keys in a different order has a different hash
+     * @param soupElt
+     * @return
+     * @throws JSONException
+     */
+    public static long computeContentHash(JSONObject soupElt) throws JSONException {
+    	Object soupEntryId = soupElt.remove(SOUP_ENTRY_ID);
+    	Object lastModified = soupElt.remove(SOUP_LAST_MODIFIED_DATE);
+    	try {
+    		byte[] digest = MessageDigest.getInstance("SHA-1").digest(soupElt.toString().getBytes("UTF-8"));
+    		long hash = 0;
+    		for (int i = 0; i < 8; i++) {
+    			hash = (hash << 8) | (digest[i] & 0xff);
+    		}
+    		return hash;
+    	} catch (Exception e) {
+    		throw new SmartStoreException("Failed to compute content hash: " + e.getMessage());
+    	} finally {
+    		if (soupEntryId != null) {
+    			soupElt.put(SOUP_ENTRY_ID, soupEntryId);
+    		}
+    		if (lastModified != null) {
+    			soupElt.put(SOUP_LAST_MODIFIED_DATE, lastModified);
+    		}
+    	}
+    }
+
     /**
      * Look for a soup element where fieldPath's value is fieldValue
      * Return its soupEntryId
@@ -1268,10 +2164,12 @@ public class SmartStore  {
 	            db.beginTransaction();
 	        }
 	        try {
-	            db.delete(soupTableName, getSoupEntryIdsPredicate(soupEntryIds), (String []) null);
+	            loadIdSet(db, soupEntryIds);
+	            int count = db.delete(soupTableName, getIdsPredicate(db, ID_COL, soupEntryIds), (String []) null);
+	            DBHelper.getInstance(db).recordWrites(soupName, count);
 
 				if (hasFTS(soupName)) {
-					db.delete(soupTableName + FTS_SUFFIX, getRowIdsPredicate(soupEntryIds), (String[]) null);
+					db.delete(soupTableName + FTS_SUFFIX, getIdsPredicate(db, ROWID_COL, soupEntryIds), (String[]) null);
 				}
 
 				if (usesExternalStorage(soupName) && dbOpenHelper instanceof DBOpenHelper) {
@@ -1282,6 +2180,7 @@ public class SmartStore  {
 	                db.setTransactionSuccessful();
 	            }
 	        } finally {
+	            clearIdSet(db, soupEntryIds);
 	            if (handleTx) {
 	                db.endTransaction();
 	            }
@@ -1312,13 +2211,85 @@ public class SmartStore  {
 		synchronized(db) {
 			String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
 			if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+			if (querySpec.idsSmartSql == null) throw new SmartStoreException("Cannot delete by " + querySpec.queryType + " query");
 			if (handleTx) {
 				db.beginTransaction();
 			}
 			try {
                 String subQuerySql = String.format("SELECT %s FROM (%s) LIMIT %d", ID_COL, convertSmartSql(querySpec.idsSmartSql), querySpec.pageSize);
-                String[] args = querySpec.getArgs();
+                deleteBySubQuery(soupName, soupTableName, subQuerySql, querySpec.getArgs());
+
+				if (handleTx) {
+					db.setTransactionSuccessful();
+				}
+			} finally {
+				if (handleTx) {
+					db.endTransaction();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete soup elements whose value at the given (indexed) path is one of the given values (and commits)
+	 * NB: the values are matched through a temporary table, so there is no limit on their number
+	 * @param soupName
+	 * @param path
+	 * @param values
+	 */
+	public void deleteByPathValues(String soupName, String path, Collection<String> values) {
+		final SQLiteDatabase db = getDatabase();
+		synchronized(db) {
+			deleteByPathValues(soupName, path, values, true);
+		}
+	}
 
+	/**
+	 * Delete soup elements whose value at the given (indexed) path is one of the given values
+	 * @param soupName
+	 * @param path
+	 * @param values
+	 * @param handleTx
+	 */
+	public void deleteByPathValues(String soupName, String path, Collection<String> values, boolean handleTx) {
+		final SQLiteDatabase db = getDatabase();
+		synchronized(db) {
+			String soupTableName = DBHelper.getInstance(db).getSoupTableName(db, soupName);
+			if (soupTableName == null) throw new SmartStoreException("Soup: " + soupName + " does not exist");
+			if (values.isEmpty()) {
+				return;
+			}
+			String columnName = DBHelper.getInstance(db).getColumnNameForPath(db, soupName, path);
+			if (handleTx) {
+				db.beginTransaction();
+			}
+			try {
+				DBHelper.getInstance(db).loadIdSet(db, values);
+				String subQuerySql = String.format("SELECT %s FROM %s WHERE %s", ID_COL, soupTableName,
+						DBHelper.getInstance(db).getIdSetPredicate(columnName));
+				deleteBySubQuery(soupName, soupTableName, subQuerySql, null);
+
+				if (handleTx) {
+					db.setTransactionSuccessful();
+				}
+			} finally {
+				DBHelper.getInstance(db).clearIdSet(db);
+				if (handleTx) {
+					db.endTransaction();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Delete soup elements whose ids are returned by the given sub query
+	 * @param soupName
+	 * @param soupTableName
+	 * @param subQuerySql
+	 * @param args
+	 */
+	private void deleteBySubQuery(String soupName, String soupTableName, String subQuerySql, String[] args) {
+		final SQLiteDatabase db = getDatabase();
                 if (usesExternalStorage(soupName) && dbOpenHelper instanceof DBOpenHelper) {
 					// Query list of ids and remove them from external storage
 					Cursor c = null;
@@ -1339,37 +2310,49 @@ public class SmartStore  {
 					}
                 }
 
-                db.delete(soupTableName, buildInStatement(ID_COL, subQuerySql), args);
-
+				// Fts first since sub query could select from the soup table
 				if (hasFTS(soupName)) {
                     db.delete(soupTableName + FTS_SUFFIX, buildInStatement(ROWID_COL, subQuerySql), args);
 				}
 
-				if (handleTx) {
-					db.setTransactionSuccessful();
-				}
-			} finally {
-				if (handleTx) {
-					db.endTransaction();
-				}
-			}
-		}
+                int count = db.delete(soupTableName, buildInStatement(ID_COL, subQuerySql), args);
+                DBHelper.getInstance(db).recordWrites(soupName, count);
 	}
 
     /**
-     * @return predicate to match soup entries by id
+     * Load ids into temporary table if there are too many of them for an IN (...) list
+     * @param db
+     * @param ids
      */
-    private String getSoupEntryIdsPredicate(Long[] soupEntryIds) {
-        return buildInStatement(ID_COL, TextUtils.join(",", soupEntryIds));
+    private void loadIdSet(SQLiteDatabase db, Long[] ids) {
+        if (ids.length > MAX_INLINED_IDS) {
+            DBHelper.getInstance(db).loadIdSet(db, Arrays.asList(ids));
+        }
     }
 
+    /**
+     * @param db
+     * @param col id or rowid column
+     * @param ids
+     * @return predicate to match entries by id - large sets of ids are matched through the temporary table loaded by loadIdSet
+     */
+    private String getIdsPredicate(SQLiteDatabase db, String col, Long[] ids) {
+        if (ids.length > MAX_INLINED_IDS) {
+            return DBHelper.getInstance(db).getIdSetPredicate(col);
+        }
+        return buildInStatement(col, TextUtils.join(",", ids));
+    }
 
-	/**
-	 * @return predicate to match entries by rowid
-	 */
-	private String getRowIdsPredicate(Long[] rowids) {
-        return buildInStatement(ROWID_COL, TextUtils.join(",", rowids));
-	}
+    /**
+     * Empty temporary table loaded by getIdsPredicate (if it was used)
+     * @param db
+     * @param ids
+     */
+    private void clearIdSet(SQLiteDatabase db, Long[] ids) {
+        if (ids.length > MAX_INLINED_IDS) {
+            DBHelper.getInstance(db).clearIdSet(db);
+        }
+    }
 
     /**
      * @param col
@@ -1396,6 +2379,40 @@ public class SmartStore  {
 		this.ftsExtension = ftsExtension;
 	}
 
+	/**
+	 * @return prefix lengths for which prefix indexes are built when creating the virtual table to support full_text queries
+	 */
+	public int[] getFtsPrefixLengths() {
+		return ftsPrefixLengths.clone();
+	}
+
+	/**
+	 * Sets the prefix lengths for which prefix indexes are built when creating the virtual table to support full_text queries
+	 * Prefix queries (e.g. abc*) whose prefix length has an index don't have to scan the term index (e.g. 2 and 3 for type-ahead search)
+	 * NB: only applies to soups registered afterwards
+	 * @param ftsPrefixLengths
+	 */
+	public void setFtsPrefixLengths(int... ftsPrefixLengths) {
+		this.ftsPrefixLengths = ftsPrefixLengths == null ? new int[0] : ftsPrefixLengths.clone();
+	}
+
+	/**
+	 * @return prefix option to add to the virtual table creation statement (empty string if no prefix indexes are wanted)
+	 */
+	private String computeFtsPrefixOption() {
+		if (ftsPrefixLengths.length == 0) {
+			return "";
+		}
+		List<String> lengths = new ArrayList<String>();
+		for (int length : ftsPrefixLengths) {
+			lengths.add("" + length);
+		}
+		// fts4 expects a comma separated list, fts5 a space separated list
+		return ftsExtension == FtsExtension.fts5
+				? ", prefix='" + TextUtils.join(" ", lengths) + "'"
+				: ", prefix=\"" + TextUtils.join(",", lengths) + "\"";
+	}
+
     /**
      * @param soupId
      * @return
@@ -1432,13 +2449,36 @@ public class SmartStore  {
         if (soup == null) {
             return null;
         }
-        if (path == null || path.equals("")) {
+        return projectPathElements(soup, splitPath(path));
+    }
+
+    /**
+     * Same as project(soup, path) with path already split (e.g. IndexSpec.pathElements)
+     * @param soup
+     * @param pathElements
+     * @return
+     */
+    static Object projectPathElements(JSONObject soup, String[] pathElements) {
+        if (soup == null) {
+            return null;
+        }
+        if (pathElements.length == 0) {
             return soup;
         }
-        String[] pathElements = path.split("[.]");
 		return project(soup, pathElements, 0);
     }
 
+    /**
+     * @param path
+     * @return path elements (empty for null or empty path)
+     */
+    public static String[] splitPath(String path) {
+        if (path == null || path.equals("")) {
+            return new String[0];
+        }
+        return path.split("[.]");
+    }
+
 	private static Object project(Object jsonObj, String[] pathElements, int index) {
 		Object result = null;
 		if (index == pathElements.length) {
@@ -1519,6 +2559,22 @@ public class SmartStore  {
         public abstract boolean isMember(Type type);
     }
 
+	/**
+	 * Callback to follow the progress of soup import/export
+	 */
+	public interface SoupTransferCallback {
+		void onProgress(String soupName, long entriesTransferred);
+	}
+
+	/**
+	 * Enum for auto vacuum modes (in the order of the values returned by PRAGMA auto_vacuum)
+	 */
+	public enum AutoVacuumMode {
+		none,
+		full,
+		incremental
+	}
+
 	/**
 	 * Enum for fts extensions
 	 */
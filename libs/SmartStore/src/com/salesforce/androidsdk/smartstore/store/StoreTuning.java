@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartstore.store;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+
+/**
+ * Simple class to represent the memory / IO settings of a store's connection
+ * (see DBOpenHelper.setTuning and SmartStoreSDKManager.setStoreTuning)
+ */
+public class StoreTuning {
+
+    // Defaults
+    public static final int DEFAULT_CACHE_SIZE_KB = 8192;
+    public static final int LOW_RAM_CACHE_SIZE_KB = 2048;
+    public static final int MIN_CACHE_SIZE_KB = 256;
+    public static final int LARGE_STORE_PAGE_SIZE = 4096;
+    public static final long LARGE_STORE_MMAP_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Enum for temp_store values (where temporary tables and indexes used for sorting / grouping are kept)
+     */
+    public enum TempStore {
+        DEFAULT,
+        FILE,
+        MEMORY
+    }
+
+    /**
+     * Enum for memory pressure levels (in increasing order of severity)
+     */
+    public enum MemoryPressure {
+        none,
+        moderate,
+        high,
+        critical;
+
+        /**
+         * @param level level passed to ComponentCallbacks2.onTrimMemory
+         * @return corresponding memory pressure
+         */
+        public static MemoryPressure fromTrimLevel(int level) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                return critical;
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                return high;
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+                return moderate;
+            }
+            return none;
+        }
+    }
+
+    public final int cacheSizeKb;   // page cache of the connection
+    public final int pageSize;      // cipher_page_size - only used when the database is created (0 for the SQLCipher default)
+    public final long mmapSize;     // mmap_size - NB: SQLite doesn't memory map encrypted databases
+    public final TempStore tempStore;
+
+    public StoreTuning(int cacheSizeKb, int pageSize, long mmapSize, TempStore tempStore) {
+        this.cacheSizeKb = cacheSizeKb;
+        this.pageSize = pageSize;
+        this.mmapSize = mmapSize;
+        this.tempStore = tempStore;
+    }
+
+    /**
+     * Default settings: page size and mmap left to SQLCipher (so existing databases can still be attached to one another),
+     * bigger page cache and sorts in memory
+     */
+    public static final StoreTuning DEFAULT = new StoreTuning(DEFAULT_CACHE_SIZE_KB, 0, 0, TempStore.MEMORY);
+
+    /**
+     * @param context
+     * @return default settings with a smaller page cache on low RAM devices
+     */
+    public static StoreTuning getDefault(Context context) {
+        final ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager != null && activityManager.isLowRamDevice()) {
+            return new StoreTuning(LOW_RAM_CACHE_SIZE_KB, 0, 0, TempStore.DEFAULT);
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * @return settings for stores with a lot of data: bigger pages (for newly created databases only) and mmap (for unencrypted databases only)
+     */
+    public static StoreTuning forLargeStore() {
+        return new StoreTuning(DEFAULT_CACHE_SIZE_KB * 2, LARGE_STORE_PAGE_SIZE, LARGE_STORE_MMAP_SIZE, TempStore.MEMORY);
+    }
+
+    /**
+     * @param memoryPressure
+     * @return settings to use under the given memory pressure (page size is unchanged)
+     */
+    public StoreTuning underPressure(MemoryPressure memoryPressure) {
+        switch (memoryPressure) {
+            case moderate:
+                return new StoreTuning(Math.max(MIN_CACHE_SIZE_KB, cacheSizeKb / 2), pageSize, mmapSize, tempStore);
+            case high:
+                return new StoreTuning(Math.max(MIN_CACHE_SIZE_KB, cacheSizeKb / 4), pageSize, 0, tempStore);
+            case critical:
+                return new StoreTuning(Math.min(MIN_CACHE_SIZE_KB, cacheSizeKb), pageSize, 0, TempStore.FILE);
+            default:
+                return this;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "cacheSizeKb:" + cacheSizeKb + " pageSize:" + pageSize + " mmapSize:" + mmapSize + " tempStore:" + tempStore;
+    }
+}
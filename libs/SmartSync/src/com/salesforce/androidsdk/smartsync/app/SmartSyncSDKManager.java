@@ -38,8 +38,6 @@ import com.salesforce.androidsdk.smartsync.manager.CacheManager;
 import com.salesforce.androidsdk.smartsync.manager.MetadataManager;
 import com.salesforce.androidsdk.smartsync.manager.SyncManager;
 import com.salesforce.androidsdk.ui.LoginActivity;
-import com.salesforce.androidsdk.util.EventsObservable;
-import com.salesforce.androidsdk.util.EventsObservable.EventType;
 
 /**
  * SDK Manager for all native applications that use SmartSync
@@ -76,7 +74,8 @@ public class SmartSyncSDKManager extends SmartStoreSDKManager {
 
         // Upgrade to the latest version.
         SmartSyncUpgradeManager.getInstance().upgrade();
-        EventsObservable.get().notifyEvent(EventType.AppCreateComplete);
+
+        completeInit();
 	}
 
 	/**
@@ -26,7 +26,6 @@
  */
 package com.salesforce.androidsdk.smartsync.manager;
 
-import android.text.TextUtils;
 import android.util.Log;
 
 import com.salesforce.androidsdk.accounts.UserAccount;
@@ -37,10 +36,12 @@ import com.salesforce.androidsdk.rest.RestClient;
 import com.salesforce.androidsdk.rest.RestRequest;
 import com.salesforce.androidsdk.rest.RestResponse;
 import com.salesforce.androidsdk.smartstore.app.SmartStoreSDKManager;
+import com.salesforce.androidsdk.smartstore.store.QueryPredicate;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
 import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
 import com.salesforce.androidsdk.smartsync.app.SmartSyncSDKManager;
+import com.salesforce.androidsdk.smartsync.util.BatchSyncUpTarget;
 import com.salesforce.androidsdk.smartsync.util.Constants;
 import com.salesforce.androidsdk.smartsync.util.SyncDownTarget;
 import com.salesforce.androidsdk.smartsync.util.SyncOptions;
@@ -55,6 +56,8 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -62,8 +65,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -76,8 +83,19 @@ public class SyncManager {
 
     // Constants
     public static final int PAGE_SIZE = 2000;
+    public static final int SYNC_UP_BATCH_SIZE = 200;
     private static final int UNCHANGED = -1;
 
+    // Pipelined sync down: maximum number of fetched pages waiting to be saved
+    public static final int PIPELINE_DEPTH = 2;
+
+    // Ghosts cleanup: number of records deleted per transaction
+    public static final int GHOSTS_DELETE_BATCH_SIZE = 500;
+
+    // Streaming sync down: number of records saved per transaction
+    public static final int STREAMING_BATCH_SIZE = 200;
+    private static final JSONArray END_OF_PAGES = new JSONArray();
+
     // For user agent
     private static final String SMART_SYNC = "SmartSync";
 
@@ -91,9 +109,13 @@ public class SyncManager {
     private static Map<String, SyncManager> INSTANCES = new HashMap<String, SyncManager>();
 
     // Members
-    private Set<Long> runningSyncIds = new HashSet<Long>();
+    private Set<Long> runningSyncIds = Collections.synchronizedSet(new HashSet<Long>());
+    private final Map<Long, Thread> syncThreads = new HashMap<Long, Thread>(); // threads running sync downs - also guards stopRequests
+    private final Map<Long, Boolean> stopRequests = new HashMap<Long, Boolean>(); // syncs asked to stop - true to keep their checkpoint
+    private final Map<Long, QueuedSync> queuedSyncs = new HashMap<Long, QueuedSync>(); // syncs waiting in the scheduler - guarded by syncThreads
     public final String apiVersion;
-    private final ExecutorService threadPool = Executors.newFixedThreadPool(1);
+    private final SyncScheduler scheduler = new SyncScheduler();
+    private final ExecutorService fetchThreadPool = Executors.newCachedThreadPool();
 	private SmartStore smartStore;
 	private RestClient restClient;
 
@@ -223,11 +245,23 @@ public class SyncManager {
 
     /**
      * Re-run sync but only fetch new/modified records
+     * NB: re-syncs are usually small so they run with high priority
      * @param syncId
      * @param callback
      * @throws JSONException
      */
     public SyncState reSync(long syncId, SyncUpdateCallback callback) throws JSONException {
+        return reSync(syncId, SyncScheduler.Priority.HIGH, callback);
+    }
+
+    /**
+     * Re-run sync but only fetch new/modified records
+     * @param syncId
+     * @param priority
+     * @param callback
+     * @throws JSONException
+     */
+    public SyncState reSync(long syncId, SyncScheduler.Priority priority, SyncUpdateCallback callback) throws JSONException {
         if (runningSyncIds.contains(syncId)) {
             throw new SmartSyncException("Cannot run reSync:" + syncId + ": still running");
         }
@@ -239,7 +273,7 @@ public class SyncManager {
             throw new SmartSyncException("Cannot run reSync:" + syncId + ": wrong type:" + sync.getType());
         }
         sync.setTotalSize(-1);
-        runSync(sync, callback);
+        runSync(sync, priority, callback);
         return sync;
     }
 
@@ -249,11 +283,30 @@ public class SyncManager {
 	 * @param callback 
 	 */
 	public void runSync(final SyncState sync, final SyncUpdateCallback callback) {
+		runSync(sync, SyncScheduler.Priority.NORMAL, callback);
+	}
+
+	/**
+	 * Run a sync
+	 * Syncs run concurrently but never two on the same soup at once (see SyncScheduler)
+	 * @param sync
+	 * @param priority use LOW for bulk loads so that other syncs don't wait behind them
+	 * @param callback
+	 */
+	public void runSync(final SyncState sync, SyncScheduler.Priority priority, final SyncUpdateCallback callback) {
 		updateSync(sync, SyncState.Status.RUNNING, 0, callback);
-		threadPool.execute(new Runnable() {
+		final Runnable runnable = new Runnable() {
             @Override
             public void run() {
+                synchronized (syncThreads) {
+                    queuedSyncs.remove(sync.getId());
+                    // Only sync downs get interrupted: an interrupted sync up request could already be committed on the server
+                    if (sync.getType() == SyncState.Type.syncDown) {
+                        syncThreads.put(sync.getId(), Thread.currentThread());
+                    }
+                }
                 try {
+                    checkIfStopRequested(sync);
                     switch (sync.getType()) {
                         case syncDown:
                             syncDown(sync, callback);
@@ -264,14 +317,148 @@ public class SyncManager {
                     }
                     updateSync(sync, SyncState.Status.DONE, 100, callback);
                 } catch (Exception e) {
-                    Log.e("SmartSyncMgr:runSync", "Error during sync: " + sync.getId(), e);
-                    // Update status to failed
-                    updateSync(sync, SyncState.Status.FAILED, UNCHANGED, callback);
+                    final Boolean keepCheckpoint;
+                    synchronized (syncThreads) {
+                        keepCheckpoint = stopRequests.get(sync.getId());
+                    }
+                    if (keepCheckpoint != null) {
+                        Log.i("SmartSyncMgr:runSync", "Sync stopped: " + sync.getId());
+                        if (!keepCheckpoint) {
+                            dropCheckpoint(sync);
+                            if (sync.getType() == SyncState.Type.syncDown) {
+                                Thread.interrupted(); // the stop request must not interrupt the clean up requests
+                                ((SyncDownTarget) sync.getTarget()).cancelFetch(SyncManager.this);
+                            }
+                        }
+                        // Update status to stopped
+                        updateSync(sync, SyncState.Status.STOPPED, UNCHANGED, callback);
+                    } else {
+                        Log.e("SmartSyncMgr:runSync", "Error during sync: " + sync.getId(), e);
+                        // Update status to failed
+                        updateSync(sync, SyncState.Status.FAILED, UNCHANGED, callback);
+                    }
+                } finally {
+                    synchronized (syncThreads) {
+                        syncThreads.remove(sync.getId());
+                        stopRequests.remove(sync.getId());
+                        Thread.interrupted(); // a stop request must not leak into the next task of this thread
+                    }
                 }
             }
-        });
+        };
+        synchronized (syncThreads) {
+            queuedSyncs.put(sync.getId(), new QueuedSync(sync, callback, runnable));
+        }
+        scheduler.submit(sync.getSoupName(), priority, runnable);
 	}
 
+    /**
+     * Stop a running (or waiting) sync, dropping its checkpoint
+     * A waiting sync is taken out of the queue and gets status STOPPED right away
+     * A running sync down stops at the next page boundary with status STOPPED: a request in progress is interrupted
+     * and server side resources are released (see SyncDownTarget.cancelFetch)
+     * A running sync up stops at the next record (or batch) boundary with status STOPPED, once the request in progress is done
+     * resumeSync() then runs it again from the last sync time stamp
+     * @param syncId
+     * @return true if the sync was running
+     */
+    public boolean cancelSync(long syncId) {
+        return requestStop(syncId, false);
+    }
+
+    /**
+     * Stop a running (or waiting) sync, keeping its checkpoint
+     * e.g. to let a foreground operation have the network and the database, and carry on with resumeSync() afterwards
+     * A waiting sync is taken out of the queue and gets status STOPPED right away
+     * A running sync down stops at the next page boundary with status STOPPED: a request in progress is interrupted
+     * A running sync up stops at the next record (or batch) boundary with status STOPPED, once the request in progress is done
+     * @param syncId
+     * @return true if the sync was running
+     */
+    public boolean pauseSync(long syncId) {
+        return requestStop(syncId, true);
+    }
+
+    /**
+     * Run a stopped sync again: a paused sync down picks up from its checkpoint (see reSync),
+     * a sync up goes through the records still to sync up
+     * @param syncId
+     * @param callback
+     * @throws JSONException
+     */
+    public SyncState resumeSync(long syncId, SyncUpdateCallback callback) throws JSONException {
+        SyncState sync = SyncState.byId(smartStore, syncId);
+        if (sync == null) {
+            throw new SmartSyncException("Cannot run resumeSync:" + syncId + ": no sync found");
+        }
+        if (!sync.isStopped()) {
+            throw new SmartSyncException("Cannot run resumeSync:" + syncId + ": not stopped:" + sync.getStatus());
+        }
+        if (sync.getType() == SyncState.Type.syncDown) {
+            return reSync(syncId, callback);
+        }
+        runSync(sync, callback);
+        return sync;
+    }
+
+    private boolean requestStop(long syncId, boolean keepCheckpoint) {
+        QueuedSync removedSync = null;
+        synchronized (syncThreads) {
+            if (!runningSyncIds.contains(syncId)) {
+                return false;
+            }
+
+            // Not started yet: takes it out of the queue
+            final QueuedSync queuedSync = queuedSyncs.get(syncId);
+            if (queuedSync != null && scheduler.remove(queuedSync.runnable)) {
+                queuedSyncs.remove(syncId);
+                removedSync = queuedSync;
+            } else {
+                stopRequests.put(syncId, keepCheckpoint);
+
+                // Interrupts network requests and waits of a sync down (e.g. bulk query job polling)
+                final Thread thread = syncThreads.get(syncId);
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+        }
+        if (removedSync != null) {
+            Log.i("SmartSyncMgr:requestStop", "Sync stopped before it started: " + syncId);
+            if (!keepCheckpoint) {
+                dropCheckpoint(removedSync.sync);
+            }
+            updateSync(removedSync.sync, SyncState.Status.STOPPED, UNCHANGED, removedSync.callback);
+        }
+        return true;
+    }
+
+    private void dropCheckpoint(SyncState sync) {
+        try {
+            sync.setCheckpoint(null, 0, -1);
+        } catch (JSONException e) {
+            Log.e("SmartSyncMgr:dropCheckpoint", "Unexpected json error for sync: " + sync.getId(), e);
+        }
+    }
+
+    /**
+     * Throw if the sync was asked to stop (called at page / record boundaries)
+     */
+    private void checkIfStopRequested(SyncState sync) {
+        synchronized (syncThreads) {
+            if (stopRequests.containsKey(sync.getId())) {
+                throw new SmartSyncException("Sync stopped: " + sync.getId());
+            }
+        }
+    }
+
+    /**
+     * @return scheduler running the syncs (e.g. to change its parallelism)
+     */
+    public SyncScheduler getScheduler() {
+        return scheduler;
+    }
+
     /**
      * Create and run a sync up
      * @param target
@@ -306,6 +493,19 @@ public class SyncManager {
         }
         final String soupName = sync.getSoupName();
         final String idFieldName = sync.getTarget().getIdFieldName();
+        final SyncDownTarget target = (SyncDownTarget) sync.getTarget();
+
+        // Targets that can return their ids sorted are merged with the local ids a page at a time
+        try {
+            final List<String> remoteIds = target.startFetchSortedIds(this);
+            if (remoteIds != null) {
+                cleanResyncGhostsBySortedMerge(soupName, idFieldName, target, remoteIds);
+                return;
+            }
+        } catch (IOException e) {
+            Log.e("SmartSyncMgr:cleanResyncGhosts", "Failed to fetch remote ids for sync: " + syncId, e);
+            return;
+        }
 
         /*
          * Fetches list of IDs present in local soup that have not been modified locally.
@@ -335,13 +535,74 @@ public class SyncManager {
         }
 
         // Deletes extra IDs from SmartStore.
-        int localIdSize = localIds.size();
-        if (localIdSize > 0) {
-            String smartSql = String.format("SELECT {%s:%s} FROM {%s} WHERE {%s:%s} IN (%s)",
-                    soupName, SmartStore.SOUP_ENTRY_ID, soupName, soupName, idFieldName,
-                    "'" + TextUtils.join("', '", localIds) + "'");
-            querySpec = QuerySpec.buildSmartQuerySpec(smartSql, localIdSize);
-            smartStore.deleteByQuery(soupName, querySpec);
+        if (localIds.size() > 0) {
+            smartStore.deleteByPathValues(soupName, idFieldName, localIds);
+        }
+    }
+
+    /**
+     * Walks the local ids (not modified locally) and the remote ids, both in ascending order, and deletes
+     * the local records whose id is not on the server anymore
+     * Only a page of local ids, a page of remote ids and a batch of ids to delete are held in memory at any time
+     * If fetching remote ids fails midway, the ghosts found so far are deleted and the rest are left alone
+     */
+    private void cleanResyncGhostsBySortedMerge(String soupName, String idFieldName, SyncDownTarget target, List<String> firstRemoteIds) throws JSONException {
+        final List<String> idsToDelete = new ArrayList<String>();
+        List<String> remoteIds = firstRemoteIds;
+        int remoteIndex = 0;
+        String previousRemoteId = null;
+        String lastLocalId = null;
+        try {
+            while (true) {
+
+                // Next page of local ids (keyset paging: deleted records don't shift later pages)
+                final QueryPredicate notLocal = QueryPredicate.eq(LOCAL, "false");
+                final QuerySpec querySpec = QuerySpec.buildCompoundQuerySpec(soupName, new String[] { idFieldName },
+                        lastLocalId == null ? notLocal : QueryPredicate.and(notLocal, QueryPredicate.gt(idFieldName, lastLocalId)),
+                        new QuerySpec.OrderBy[] { new QuerySpec.OrderBy(idFieldName, QuerySpec.Order.ascending) }, PAGE_SIZE);
+                final JSONArray localIdRows = smartStore.query(querySpec, 0);
+                if (localIdRows.length() == 0) {
+                    break;
+                }
+                for (int i = 0; i < localIdRows.length(); i++) {
+                    final String localId = localIdRows.getJSONArray(i).optString(0);
+                    lastLocalId = localId;
+
+                    // Skips remote ids smaller than local id
+                    while (remoteIds != null) {
+                        if (remoteIndex == remoteIds.size()) {
+                            remoteIds = target.continueFetchSortedIds(this);
+                            remoteIndex = 0;
+                            continue;
+                        }
+                        final String remoteId = remoteIds.get(remoteIndex);
+                        if (previousRemoteId != null && remoteId.compareTo(previousRemoteId) < 0) {
+                            idsToDelete.clear(); // can't trust the ones found in this batch
+                            throw new SmartSyncException("Remote ids not sorted: " + remoteId + " after " + previousRemoteId);
+                        }
+                        if (remoteId.compareTo(localId) >= 0) {
+                            break;
+                        }
+                        previousRemoteId = remoteId;
+                        remoteIndex++;
+                    }
+
+                    // Local id not on server
+                    if (remoteIds == null || !remoteIds.get(remoteIndex).equals(localId)) {
+                        idsToDelete.add(localId);
+                        if (idsToDelete.size() >= GHOSTS_DELETE_BATCH_SIZE) {
+                            smartStore.deleteByPathValues(soupName, idFieldName, idsToDelete);
+                            idsToDelete.clear();
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e("SmartSyncMgr:cleanResyncGhostsBySortedMerge", "Failed to fetch remote ids, stopping after " + lastLocalId, e);
+        } finally {
+            if (!idsToDelete.isEmpty()) {
+                smartStore.deleteByPathValues(soupName, idFieldName, idsToDelete);
+            }
         }
     }
 
@@ -366,6 +627,7 @@ public class SyncManager {
                     break;
                 case DONE:
                 case FAILED:
+                case STOPPED:
                     runningSyncIds.remove(sync.getId());
                     break;
             }
@@ -390,38 +652,110 @@ public class SyncManager {
 		int totalSize = dirtyRecordIds.size();
         sync.setTotalSize(totalSize);
         updateSync(sync, SyncState.Status.RUNNING, 0, callback);
+
+        // Batching target: several records per request
+        if (target instanceof BatchSyncUpTarget) {
+            syncUpInBatches(sync, (BatchSyncUpTarget) target, dirtyRecordIds, callback);
+            return;
+        }
+
+        // In LEAVE_IF_CHANGED mode, records are read in batches to fetch their server modification dates with few requests
+        // otherwise they are retrieved one at a time right before being pushed
+        final List<Long> batchIds = new ArrayList<Long>();
         int i = 0;
         for (final String id : dirtyRecordIds) {
-            JSONObject record = smartStore.retrieve(soupName, Long.valueOf(id)).getJSONObject(0);
-            syncUpOneRecord(target, soupName, fieldlist, record, mergeMode);
-
-            // Updating status
-            int progress = (i + 1) * 100 / totalSize;
-            if (progress < 100) {
-                updateSync(sync, SyncState.Status.RUNNING, progress, callback);
+            batchIds.add(Long.valueOf(id));
+            i++;
+            if (batchIds.size() < SYNC_UP_BATCH_SIZE && i < totalSize) {
+                continue;
+            }
+            Map<Long, JSONObject> batchRecords = null;
+            Map<String, String> serverLastModDates = null;
+            if (mergeMode == MergeMode.LEAVE_IF_CHANGED) {
+                final JSONArray records = smartStore.retrieve(soupName, batchIds.toArray(new Long[0]));
+                batchRecords = new HashMap<Long, JSONObject>();
+                for (int j = 0; j < records.length(); j++) {
+                    batchRecords.put(records.getJSONObject(j).getLong(SmartStore.SOUP_ENTRY_ID), records.getJSONObject(j));
+                }
+                serverLastModDates = prefetchLastModifiedDates(target, records, mergeMode);
             }
+            for (int j = 0; j < batchIds.size(); j++) {
+                checkIfStopRequested(sync);
+                final JSONObject record;
+                if (batchRecords != null) {
+                    record = batchRecords.get(batchIds.get(j));
+                } else {
+                    final JSONArray records = smartStore.retrieve(soupName, batchIds.get(j));
+                    record = records.length() > 0 ? records.getJSONObject(0) : null;
+                }
+                if (record != null) {
+                    syncUpOneRecord(target, soupName, fieldlist, record, mergeMode, serverLastModDates);
+                }
 
-            // Incrementing i
-            i++;
+                // Updating status
+                int progress = (i - batchIds.size() + j + 1) * 100 / totalSize;
+                if (progress < 100) {
+                    updateSync(sync, SyncState.Status.RUNNING, progress, callback);
+                }
+            }
+            batchIds.clear();
         }
 	}
 
-    private boolean isNewerThanServer(SyncUpTarget target, String objectType, String objectId, String lastModStr) throws JSONException, IOException {
+    /**
+     * Fetch server modification dates of the records that merge mode LEAVE_IF_CHANGED needs to check
+     * with one query per object type (instead of one per record)
+     * @return map of id to server last modified date or null if merge mode is not LEAVE_IF_CHANGED
+     */
+    private Map<String, String> prefetchLastModifiedDates(SyncUpTarget target, JSONArray records, MergeMode mergeMode) throws JSONException {
+        if (mergeMode != MergeMode.LEAVE_IF_CHANGED) {
+            return null;
+        }
+
+        // Grouping ids by object type
+        final Map<String, List<String>> objectTypeToIds = new HashMap<String, List<String>>();
+        for (int i = 0; i < records.length(); i++) {
+            final JSONObject record = records.getJSONObject(i);
+            final String lastModStr = record.optString(target.getModificationDateFieldName(), null);
+            if (getSyncUpAction(record) == null || record.getBoolean(LOCALLY_CREATED) || lastModStr == null) {
+                continue;
+            }
+            final String objectType = (String) SmartStore.project(record, Constants.SOBJECT_TYPE);
+            List<String> ids = objectTypeToIds.get(objectType);
+            if (ids == null) {
+                ids = new ArrayList<String>();
+                objectTypeToIds.put(objectType, ids);
+            }
+            ids.add(record.getString(target.getIdFieldName()));
+        }
+
+        final Map<String, String> serverLastModDates = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> entry : objectTypeToIds.entrySet()) {
+            serverLastModDates.putAll(target.fetchLastModifiedDates(this, entry.getKey(), entry.getValue()));
+        }
+        return serverLastModDates;
+    }
+
+    private boolean isNewerThanServer(SyncUpTarget target, String objectType, String objectId, String lastModStr,
+                                      Map<String, String> serverLastModDates) throws JSONException, IOException {
         if (lastModStr == null) {
             // We didn't capture the last modified date so we can't really enforce merge mode, returning true so that we will behave like an "overwrite" merge mode
             return true;
         }
 
         try {
-            String serverLastModStr = target.fetchLastModifiedDate(this, objectType, objectId);
+            // Using prefetched date if available
+            String serverLastModStr = serverLastModDates != null && serverLastModDates.containsKey(objectId)
+                    ? serverLastModDates.get(objectId)
+                    : target.fetchLastModifiedDate(this, objectType, objectId);
 
             if (serverLastModStr == null) {
                 // We were unable to get the last modified date from the server
                 return true;
             }
 
-            long lastModifiedDate = Constants.TIMESTAMP_FORMAT.parse(lastModStr).getTime();
-            long serverLastModifiedDate = Constants.TIMESTAMP_FORMAT.parse(serverLastModStr).getTime();
+            long lastModifiedDate = Constants.getTimestampFormat().parse(lastModStr).getTime();
+            long serverLastModifiedDate = Constants.getTimestampFormat().parse(serverLastModStr).getTime();
 
             return (serverLastModifiedDate <= lastModifiedDate);
         } catch (Exception e) {
@@ -431,20 +765,11 @@ public class SyncManager {
     }
 
     private void syncUpOneRecord(SyncUpTarget target, String soupName, List<String> fieldlist,
-                                    JSONObject record, MergeMode mergeMode) throws JSONException, IOException {
+                                    JSONObject record, MergeMode mergeMode, Map<String, String> serverLastModDates) throws JSONException, IOException {
 
         // Do we need to do a create, update or delete
-        boolean locallyDeleted = record.getBoolean(LOCALLY_DELETED);
         boolean locallyCreated = record.getBoolean(LOCALLY_CREATED);
-        boolean locallyUpdated = record.getBoolean(LOCALLY_UPDATED);
-
-        Action action = null;
-        if (locallyDeleted)
-            action = Action.delete;
-        else if (locallyCreated)
-            action = Action.create;
-        else if (locallyUpdated)
-            action = Action.update;
+        Action action = getSyncUpAction(record);
 
         if (action == null) {
 
@@ -465,7 +790,7 @@ public class SyncManager {
          */
         if (mergeMode == MergeMode.LEAVE_IF_CHANGED &&
         		!locallyCreated &&
-        		!isNewerThanServer(target, objectType, objectId, lastModStr)) {
+        		!isNewerThanServer(target, objectType, objectId, lastModStr, serverLastModDates)) {
 
         	// Nothing to do for this record
     		Log.i("SmartSyncManager:syncUpOneRecord",
@@ -476,11 +801,7 @@ public class SyncManager {
         // Fields to save (in the case of create or update)
         Map<String, Object> fields = new HashMap<String, Object>();
         if (action == Action.create || action == Action.update) {
-            for (String fieldName : fieldlist) {
-                if (!fieldName.equals(target.getIdFieldName()) && !fieldName.equals(SyncUpTarget.MODIFICATION_DATE_FIELD_NAME)) {
-                    fields.put(fieldName, SmartStore.project(record, fieldName));
-                }
-            }
+            fields = getFieldsToSyncUp(target, fieldlist, record);
         }
 
         // Create/update/delete record on server and update smartstore
@@ -524,6 +845,154 @@ public class SyncManager {
         }
     }
 
+    private Action getSyncUpAction(JSONObject record) throws JSONException {
+        if (record.getBoolean(LOCALLY_DELETED))
+            return Action.delete;
+        else if (record.getBoolean(LOCALLY_CREATED))
+            return Action.create;
+        else if (record.getBoolean(LOCALLY_UPDATED))
+            return Action.update;
+        return null;
+    }
+
+    private Map<String, Object> getFieldsToSyncUp(SyncUpTarget target, List<String> fieldlist, JSONObject record) {
+        Map<String, Object> fields = new HashMap<String, Object>();
+        for (String fieldName : fieldlist) {
+            if (!fieldName.equals(target.getIdFieldName()) && !fieldName.equals(SyncUpTarget.MODIFICATION_DATE_FIELD_NAME)) {
+                fields.put(fieldName, SmartStore.project(record, fieldName));
+            }
+        }
+        return fields;
+    }
+
+    private void syncUpInBatches(SyncState sync, BatchSyncUpTarget target, Set<String> dirtyRecordIds, SyncUpdateCallback callback) throws JSONException, IOException {
+        final String soupName = sync.getSoupName();
+        final SyncOptions options = sync.getOptions();
+        final int totalSize = dirtyRecordIds.size();
+        final List<Long> batchIds = new ArrayList<Long>();
+        int processed = 0;
+        for (final String id : dirtyRecordIds) {
+            batchIds.add(Long.valueOf(id));
+            if (batchIds.size() == target.getMaxBatchSize() || processed + batchIds.size() == totalSize) {
+                checkIfStopRequested(sync);
+                final JSONArray records = smartStore.retrieve(soupName, batchIds.toArray(new Long[0]));
+                syncUpBatch(target, soupName, options.getFieldlist(), records, options.getMergeMode());
+                processed += batchIds.size();
+                batchIds.clear();
+
+                // Updating status
+                int progress = processed * 100 / totalSize;
+                if (progress < 100) {
+                    updateSync(sync, SyncState.Status.RUNNING, progress, callback);
+                }
+            }
+        }
+    }
+
+    private void syncUpBatch(BatchSyncUpTarget target, String soupName, List<String> fieldlist,
+                             JSONArray records, MergeMode mergeMode) throws JSONException, IOException {
+        final List<JSONObject> created = new ArrayList<JSONObject>();
+        final List<String> createdTypes = new ArrayList<String>();
+        final List<Map<String, Object>> createdFields = new ArrayList<Map<String, Object>>();
+        final List<JSONObject> updated = new ArrayList<JSONObject>();
+        final List<String> updatedTypes = new ArrayList<String>();
+        final List<String> updatedIds = new ArrayList<String>();
+        final List<Map<String, Object>> updatedFields = new ArrayList<Map<String, Object>>();
+        final List<JSONObject> deleted = new ArrayList<JSONObject>();
+        final List<String> deletedIds = new ArrayList<String>();
+        final Map<String, String> serverLastModDates = prefetchLastModifiedDates(target, records, mergeMode);
+
+        // Sorting records by action
+        for (int i = 0; i < records.length(); i++) {
+            final JSONObject record = records.getJSONObject(i);
+            final boolean locallyCreated = record.getBoolean(LOCALLY_CREATED);
+            final Action action = getSyncUpAction(record);
+            if (action == null) {
+
+                // Nothing to do for this record
+                continue;
+            }
+            if (action == Action.delete && locallyCreated) {
+
+                // If locally created it can't exist on the server
+                smartStore.delete(soupName, record.getLong(SmartStore.SOUP_ENTRY_ID));
+                continue;
+            }
+
+            final String objectType = (String) SmartStore.project(record, Constants.SOBJECT_TYPE);
+            final String objectId = record.getString(target.getIdFieldName());
+            final String lastModStr = record.optString(target.getModificationDateFieldName());
+            if (mergeMode == MergeMode.LEAVE_IF_CHANGED &&
+                    !locallyCreated &&
+                    !isNewerThanServer(target, objectType, objectId, lastModStr, serverLastModDates)) {
+
+                // Nothing to do for this record
+                Log.i("SmartSyncManager:syncUpBatch",
+                        "Record not synced since client does not have the latest from server");
+                continue;
+            }
+
+            switch (action) {
+                case create:
+                    created.add(record);
+                    createdTypes.add(objectType);
+                    createdFields.add(getFieldsToSyncUp(target, fieldlist, record));
+                    break;
+                case update:
+                    updated.add(record);
+                    updatedTypes.add(objectType);
+                    updatedIds.add(objectId);
+                    updatedFields.add(getFieldsToSyncUp(target, fieldlist, record));
+                    break;
+                case delete:
+                    deleted.add(record);
+                    deletedIds.add(objectId);
+                    break;
+            }
+        }
+
+        // Deletes
+        if (!deleted.isEmpty()) {
+            final List<Integer> statusCodes = target.deleteOnServer(this, deletedIds);
+            for (int i = 0; i < deleted.size(); i++) {
+                final int statusCode = statusCodes.get(i);
+                if (RestResponse.isSuccess(statusCode) || statusCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                    smartStore.delete(soupName, deleted.get(i).getLong(SmartStore.SOUP_ENTRY_ID));
+                }
+            }
+        }
+
+        // Updates
+        if (!updated.isEmpty()) {
+            final List<Integer> statusCodes = target.updateOnServer(this, updatedTypes, updatedIds, updatedFields);
+            for (int i = 0; i < updated.size(); i++) {
+                final int statusCode = statusCodes.get(i);
+                if (RestResponse.isSuccess(statusCode)) {
+                    cleanAndSaveRecord(soupName, updated.get(i));
+                }
+                // Handling remotely deleted records: re-created with the locally created ones
+                else if (statusCode == HttpURLConnection.HTTP_NOT_FOUND && mergeMode == MergeMode.OVERWRITE) {
+                    created.add(updated.get(i));
+                    createdTypes.add(updatedTypes.get(i));
+                    createdFields.add(updatedFields.get(i));
+                }
+            }
+        }
+
+        // Creates
+        if (!created.isEmpty()) {
+            final List<String> serverIds = target.createOnServer(this, createdTypes, createdFields);
+            for (int i = 0; i < created.size(); i++) {
+                final String recordServerId = serverIds.get(i);
+                if (recordServerId != null) {
+                    final JSONObject record = created.get(i);
+                    record.put(target.getIdFieldName(), recordServerId);
+                    cleanAndSaveRecord(soupName, record);
+                }
+            }
+        }
+    }
+
     private void cleanAndSaveRecord(String soupName, JSONObject record) throws JSONException {
         record.put(LOCAL, false);
         record.put(LOCALLY_CREATED, false);
@@ -533,33 +1002,324 @@ public class SyncManager {
     }
 
     private void syncDown(SyncState sync, SyncUpdateCallback callback) throws Exception {
+        if (sync.getOptions() != null && sync.getOptions().isStreaming()) {
+            syncDownStreaming(sync, callback);
+            return;
+        }
+
         String soupName = sync.getSoupName();
         SyncDownTarget target = (SyncDownTarget) sync.getTarget();
         MergeMode mergeMode = sync.getMergeMode();
         long maxTimeStamp = sync.getMaxTimeStamp();
-        JSONArray records = target.startFetch(this, maxTimeStamp);
         int countSaved = 0;
-        int totalSize = target.getTotalSize();
+        int totalSize;
+
+        // Pick up where an interrupted run left off, or start from the last sync time stamp
+        JSONArray records = resumeFetch(sync, target);
+        if (records != null) {
+            final JSONObject checkpoint = sync.getCheckpoint();
+            countSaved = checkpoint.getInt(SyncState.CHECKPOINT_COUNT_SAVED);
+            maxTimeStamp = Math.max(maxTimeStamp, checkpoint.getLong(SyncState.CHECKPOINT_MAX_TIME_STAMP));
+            totalSize = checkpoint.getInt(SyncState.CHECKPOINT_TOTAL_SIZE);
+        } else {
+            records = target.startFetch(this, maxTimeStamp);
+            totalSize = target.getTotalSize();
+        }
+        JSONObject resumePoint = target.getResumePoint();
         sync.setTotalSize(totalSize);
-        updateSync(sync, SyncState.Status.RUNNING, 0, callback);
+        updateSync(sync, SyncState.Status.RUNNING, totalSize > 0 ? countSaved*100 / totalSize : 0, callback);
         final String idField = sync.getTarget().getIdFieldName();
-        while (records != null) {
 
-            // Save to smartstore.
-            saveRecordsToSmartStore(soupName, records, mergeMode, idField);
-            countSaved += records.length();
-            maxTimeStamp = Math.max(maxTimeStamp, target.getLatestModificationTimeStamp(records));
+        // In pipelined mode, next pages are fetched on another thread while the current one is saved
+        final PipelinedFetch pipelinedFetch = (records != null && sync.getOptions() != null && sync.getOptions().isPipelined())
+                ? new PipelinedFetch(target) : null;
+        try {
+            while (records != null) {
+
+                // Save to smartstore.
+                saveRecordsToSmartStore(soupName, records, mergeMode, idField);
+                countSaved += records.length();
+                maxTimeStamp = Math.max(maxTimeStamp, target.getLatestModificationTimeStamp(records));
+                saveCheckpoint(sync, resumePoint, countSaved, maxTimeStamp);
+
+                // Update sync status.
+                if (countSaved < totalSize) {
+                    updateSync(sync, SyncState.Status.RUNNING, countSaved*100 / totalSize, callback);
+                }
+
+                // Fetch next records, if any.
+                checkIfStopRequested(sync);
+                if (pipelinedFetch != null) {
+                    records = pipelinedFetch.next();
+                    resumePoint = pipelinedFetch.getResumePoint();
+                } else {
+                    records = target.continueFetch(this);
+                    resumePoint = target.getResumePoint();
+                }
+            }
+        } finally {
+            if (pipelinedFetch != null) {
+                pipelinedFetch.stop();
+            }
+        }
+        deleteRecordsDeletedOnServer(soupName, target, sync.getMaxTimeStamp());
+        target.onSyncDone();
+        sync.setCheckpoint(null, countSaved, maxTimeStamp);
+        sync.setMaxTimeStamp(maxTimeStamp);
+	}
+
+    private void syncDownStreaming(SyncState sync, SyncUpdateCallback callback) throws Exception {
+        SyncDownTarget target = (SyncDownTarget) sync.getTarget();
+        long maxTimeStamp = sync.getMaxTimeStamp();
+        int countSaved = 0;
+        int totalSize;
+
+        // Pick up where an interrupted run left off, or start from the last sync time stamp
+        StreamingSoupWriter writer = new StreamingSoupWriter(sync.getSoupName(), target, sync.getMergeMode());
+        int count = resumeFetchStreaming(sync, target, writer);
+        if (count >= 0) {
+            final JSONObject checkpoint = sync.getCheckpoint();
+            countSaved = checkpoint.getInt(SyncState.CHECKPOINT_COUNT_SAVED);
+            maxTimeStamp = Math.max(maxTimeStamp, checkpoint.getLong(SyncState.CHECKPOINT_MAX_TIME_STAMP));
+            totalSize = checkpoint.getInt(SyncState.CHECKPOINT_TOTAL_SIZE);
+        } else {
+            writer = new StreamingSoupWriter(sync.getSoupName(), target, sync.getMergeMode());
+            count = target.startFetchStreaming(this, maxTimeStamp, writer);
+            totalSize = target.getTotalSize();
+        }
+        writer.flush();
+        sync.setTotalSize(totalSize);
+        updateSync(sync, SyncState.Status.RUNNING, totalSize > 0 ? countSaved*100 / totalSize : 0, callback);
+        while (count >= 0) {
+            countSaved += count;
+            saveCheckpoint(sync, target.getResumePoint(), countSaved, Math.max(maxTimeStamp, writer.getMaxTimeStamp()));
 
             // Update sync status.
             if (countSaved < totalSize) {
                 updateSync(sync, SyncState.Status.RUNNING, countSaved*100 / totalSize, callback);
             }
 
-            // Fetch next records, if any.
-            records = target.continueFetch(this);
+            // Fetch (and save) next records, if any.
+            checkIfStopRequested(sync);
+            writer.startPage();
+            count = target.continueFetchStreaming(this, writer);
+            writer.flush();
         }
-        sync.setMaxTimeStamp(maxTimeStamp);
-	}
+        deleteRecordsDeletedOnServer(sync.getSoupName(), target, sync.getMaxTimeStamp());
+        target.onSyncDone();
+        sync.setCheckpoint(null, countSaved, maxTimeStamp);
+        sync.setMaxTimeStamp(Math.max(maxTimeStamp, writer.getMaxTimeStamp()));
+    }
+
+    /**
+     * Resume an interrupted sync down from its last checkpoint
+     * @return first page fetched from the checkpoint or null if there is no checkpoint or the fetch could not be resumed
+     */
+    private JSONArray resumeFetch(SyncState sync, SyncDownTarget target) {
+        final JSONObject checkpoint = sync.getCheckpoint();
+        try {
+            if (checkpoint != null && target.restoreResumePoint(checkpoint.getJSONObject(SyncState.CHECKPOINT_RESUME_POINT))) {
+                return target.continueFetch(this);
+            }
+        } catch (Exception e) {
+            Log.w("SmartSyncMgr:resumeFetch", "Could not resume sync: " + sync.getId() + " - restarting it", e);
+        }
+        return null;
+    }
+
+    /**
+     * Resume an interrupted streaming sync down from its last checkpoint
+     * @return number of records handed to sink or -1 if there is no checkpoint or the fetch could not be resumed
+     */
+    private int resumeFetchStreaming(SyncState sync, SyncDownTarget target, SyncDownTarget.RecordSink sink) {
+        final JSONObject checkpoint = sync.getCheckpoint();
+        try {
+            if (checkpoint != null && target.restoreResumePoint(checkpoint.getJSONObject(SyncState.CHECKPOINT_RESUME_POINT))) {
+                return target.continueFetchStreaming(this, sink);
+            }
+        } catch (Exception e) {
+            Log.w("SmartSyncMgr:resumeFetchStreaming", "Could not resume sync: " + sync.getId() + " - restarting it", e);
+        }
+        return -1;
+    }
+
+    /**
+     * Save how far a sync down got with the sync (once the records of a page are saved)
+     * A run interrupted after that point (e.g. by the process being killed) resumes from there on reSync
+     * Records saved after the checkpoint get fetched again, which is harmless
+     */
+    private void saveCheckpoint(SyncState sync, JSONObject resumePoint, int countSaved, long maxTimeStamp) throws JSONException {
+        sync.setCheckpoint(resumePoint, countSaved, maxTimeStamp);
+        sync.save(smartStore);
+    }
+
+    /**
+     * Delete the local records that the target reports as deleted on the server since the last sync
+     * Records with local changes are left alone (like sync down leaves them alone in LEAVE_IF_CHANGED mode)
+     */
+    private void deleteRecordsDeletedOnServer(String soupName, SyncDownTarget target, long maxTimeStamp) throws IOException, JSONException {
+        if (maxTimeStamp <= 0) {
+            return;
+        }
+        final List<String> deletedIds = target.fetchDeletedIds(this, maxTimeStamp);
+        if (deletedIds == null || deletedIds.isEmpty()) {
+            return;
+        }
+        final Set<String> idsToDelete = new HashSet<String>(deletedIds);
+        idsToDelete.removeAll(getDirtyRecordIds(soupName, target.getIdFieldName()));
+        smartStore.deleteByPathValues(soupName, target.getIdFieldName(), idsToDelete);
+    }
+
+    /**
+     * Sync submitted to the scheduler that has not started yet
+     */
+    private static class QueuedSync {
+        final SyncState sync;
+        final SyncUpdateCallback callback;
+        final Runnable runnable;
+
+        QueuedSync(SyncState sync, SyncUpdateCallback callback, Runnable runnable) {
+            this.sync = sync;
+            this.callback = callback;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * Saves the records of a streaming sync down as they are parsed, STREAMING_BATCH_SIZE records at a time
+     */
+    private class StreamingSoupWriter implements SyncDownTarget.RecordSink {
+        private final String soupName;
+        private final SyncDownTarget target;
+        private final MergeMode mergeMode;
+        private JSONArray batch = new JSONArray();
+        private Set<String> idsToSkip;
+        private long maxTimeStamp = -1;
+
+        StreamingSoupWriter(String soupName, SyncDownTarget target, MergeMode mergeMode) throws JSONException {
+            this.soupName = soupName;
+            this.target = target;
+            this.mergeMode = mergeMode;
+            startPage();
+        }
+
+        /**
+         * Gather ids of dirty records (once per page like non streaming sync down does)
+         */
+        void startPage() throws JSONException {
+            idsToSkip = (mergeMode == MergeMode.LEAVE_IF_CHANGED ? getDirtyRecordIds(soupName, target.getIdFieldName()) : null);
+        }
+
+        @Override
+        public void onRecord(JSONObject record) throws JSONException {
+            batch.put(record);
+            if (batch.length() >= STREAMING_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() throws JSONException {
+            if (batch.length() > 0) {
+                maxTimeStamp = Math.max(maxTimeStamp, target.getLatestModificationTimeStamp(batch));
+                saveRecordsToSmartStore(soupName, batch, idsToSkip, target.getIdFieldName());
+                batch = new JSONArray();
+            }
+        }
+
+        long getMaxTimeStamp() {
+            return maxTimeStamp;
+        }
+    }
+
+    /**
+     * Fetches (and parses) the remaining pages of a sync down on a separate thread
+     * At most PIPELINE_DEPTH pages wait to be saved: fetching pauses when saving falls behind
+     */
+    private class PipelinedFetch implements Runnable {
+        private final SyncDownTarget target;
+        private final BlockingQueue<FetchedPage> pages = new ArrayBlockingQueue<FetchedPage>(PIPELINE_DEPTH);
+        private volatile boolean stopped;
+        private volatile Exception error;
+        private JSONObject resumePoint;
+        private final Future<?> future;
+
+        PipelinedFetch(SyncDownTarget target) {
+            this.target = target;
+            future = fetchThreadPool.submit(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                JSONArray records = target.continueFetch(SyncManager.this);
+                while (records != null && enqueue(new FetchedPage(records, target.getResumePoint()))) {
+                    records = target.continueFetch(SyncManager.this);
+                }
+            } catch (Exception e) {
+                error = e;
+            }
+            enqueue(new FetchedPage(END_OF_PAGES, null));
+        }
+
+        /**
+         * @return next page or null when there are no more pages
+         * @throws Exception if fetching failed
+         */
+        JSONArray next() throws Exception {
+            final FetchedPage page = pages.take();
+            resumePoint = page.resumePoint;
+            if (page.records == END_OF_PAGES) {
+                if (error != null) {
+                    throw error;
+                }
+                return null;
+            }
+            return page.records;
+        }
+
+        /**
+         * @return resume point of the target right after it fetched the page last returned by next()
+         * (the target itself is already further along)
+         */
+        JSONObject getResumePoint() {
+            return resumePoint;
+        }
+
+        /**
+         * Stop fetching (e.g. when saving failed)
+         */
+        void stop() {
+            stopped = true;
+            future.cancel(true); // interrupts a request in progress
+            pages.clear();
+        }
+
+        private boolean enqueue(FetchedPage page) {
+            try {
+                while (!stopped) {
+                    if (pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Page fetched by PipelinedFetch along with the resume point of the target right after fetching it
+     */
+    private static class FetchedPage {
+        final JSONArray records;
+        final JSONObject resumePoint;
+
+        FetchedPage(JSONArray records, JSONObject resumePoint) {
+            this.records = records;
+            this.resumePoint = resumePoint;
+        }
+    }
 
     private SortedSet<String> toSortedSet(JSONArray jsonArray) throws JSONException {
         SortedSet<String> set = new TreeSet<String>();
@@ -576,28 +1336,35 @@ public class SyncManager {
         if (mergeMode == MergeMode.LEAVE_IF_CHANGED) {
             idsToSkip = getDirtyRecordIds(soupName, idField);
         }
+        saveRecordsToSmartStore(soupName, records, idsToSkip, idField);
+    }
+
+    private void saveRecordsToSmartStore(String soupName, JSONArray records, Set<String> idsToSkip, String idField)
+            throws JSONException {
+        JSONArray recordsToSave = new JSONArray();
+        for (int i = 0; i < records.length(); i++) {
+            JSONObject record = records.getJSONObject(i);
+
+            // Skip?
+            if (idsToSkip != null) {
+                String id = JSONObjectHelper.optString(record, idField);
+                if (id != null && idsToSkip.contains(id)) {
+                    continue; // don't write over dirty record
+                }
+            }
+
+            record.put(LOCAL, false);
+            record.put(LOCALLY_CREATED, false);
+            record.put(LOCALLY_UPDATED, false);
+            record.put(LOCALLY_DELETED, false);
+            recordsToSave.put(record);
+        }
 
+        // Save (records that didn't change since last sync down are not re-written)
         synchronized(smartStore.getDatabase()) {
             try {
                 smartStore.beginTransaction();
-                for (int i = 0; i < records.length(); i++) {
-                    JSONObject record = records.getJSONObject(i);
-
-                    // Skip?
-                    if (mergeMode == MergeMode.LEAVE_IF_CHANGED) {
-                        String id = JSONObjectHelper.optString(record, idField);
-                        if (id != null && idsToSkip.contains(id)) {
-                            continue; // don't write over dirty record
-                        }
-                    }
-
-                    // Save
-                    record.put(LOCAL, false);
-                    record.put(LOCALLY_CREATED, false);
-                    record.put(LOCALLY_UPDATED, false);
-                    record.put(LOCALLY_DELETED, false);
-                    smartStore.upsert(soupName, records.getJSONObject(i), idField, false);
-                }
+                smartStore.upsertAllIfChanged(soupName, recordsToSave, idField, false);
                 smartStore.setTransactionSuccessful();
             }
             finally {
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartsync.manager;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs syncs concurrently:
+ * - at most parallelism syncs at once
+ * - never two syncs on the same soup at once
+ * - higher priority syncs first, in the order they were submitted within a priority
+ * - low priority syncs (bulk loads) never take all the slots (when parallelism > 1), so other syncs don't wait behind them
+ * - waiting syncs move up one priority level every AGING_MILLIS, so low priority syncs eventually run
+ */
+public class SyncScheduler {
+
+    public static final int DEFAULT_PARALLELISM = 2;
+    public static final long AGING_MILLIS = 30000;
+
+    /**
+     * Enum for priorities (highest first)
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    /**
+     * Sync waiting to run
+     */
+    private static class Task {
+        final String soupName;
+        final Priority priority;
+        final Runnable runnable;
+        final long submitTime;
+        final long sequence;
+
+        Task(String soupName, Priority priority, Runnable runnable, long submitTime, long sequence) {
+            this.soupName = soupName;
+            this.priority = priority;
+            this.runnable = runnable;
+            this.submitTime = submitTime;
+            this.sequence = sequence;
+        }
+
+        int getEffectiveRank(long now) {
+            return (int) Math.max(0, priority.ordinal() - (now - submitTime) / AGING_MILLIS);
+        }
+    }
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Task> waitingTasks = new ArrayList<Task>();
+    private final Set<String> busySoups = new HashSet<String>();
+    private int parallelism = DEFAULT_PARALLELISM;
+    private int runningCount;
+    private int runningLowCount;
+    private long nextSequence;
+
+    /**
+     * Change the maximum number of syncs running at once
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        synchronized (this) {
+            this.parallelism = Math.max(1, parallelism);
+        }
+        schedule();
+    }
+
+    /**
+     * @return maximum number of syncs running at once
+     */
+    public synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return number of syncs running
+     */
+    public synchronized int getRunningCount() {
+        return runningCount;
+    }
+
+    /**
+     * @return number of syncs waiting to run
+     */
+    public synchronized int getWaitingCount() {
+        return waitingTasks.size();
+    }
+
+    /**
+     * Queue sync
+     * @param soupName soup the sync reads / writes
+     * @param priority
+     * @param runnable
+     */
+    public void submit(String soupName, Priority priority, Runnable runnable) {
+        synchronized (this) {
+            waitingTasks.add(new Task(soupName, priority, runnable, System.currentTimeMillis(), nextSequence++));
+        }
+        schedule();
+    }
+
+    /**
+     * Remove sync from the queue if it has not started yet
+     * @param runnable as passed to submit
+     * @return true if the sync was waiting (it will not run), false if it already started (or was never submitted)
+     */
+    public boolean remove(Runnable runnable) {
+        synchronized (this) {
+            for (Task task : waitingTasks) {
+                if (task.runnable == runnable) {
+                    waitingTasks.remove(task);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void schedule() {
+        final List<Task> tasksToStart = new ArrayList<Task>();
+        synchronized (this) {
+            Task task;
+            while (runningCount < parallelism && (task = pickNextTask()) != null) {
+                waitingTasks.remove(task);
+                busySoups.add(task.soupName);
+                runningCount++;
+                if (task.priority == Priority.LOW) {
+                    runningLowCount++;
+                }
+                tasksToStart.add(task);
+            }
+        }
+        for (final Task task : tasksToStart) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.runnable.run();
+                    } finally {
+                        onTaskDone(task);
+                    }
+                }
+            });
+        }
+    }
+
+    private Task pickNextTask() {
+        final long now = System.currentTimeMillis();
+        final boolean lowAllowed = runningLowCount < Math.max(1, parallelism - 1);
+        Task bestTask = null;
+        for (Task task : waitingTasks) {
+            if (busySoups.contains(task.soupName) || (task.priority == Priority.LOW && !lowAllowed)) {
+                continue;
+            }
+            if (bestTask == null
+                    || task.getEffectiveRank(now) < bestTask.getEffectiveRank(now)
+                    || (task.getEffectiveRank(now) == bestTask.getEffectiveRank(now) && task.sequence < bestTask.sequence)) {
+                bestTask = task;
+            }
+        }
+        return bestTask;
+    }
+
+    private void onTaskDone(Task task) {
+        synchronized (this) {
+            busySoups.remove(task.soupName);
+            runningCount--;
+            if (task.priority == Priority.LOW) {
+                runningLowCount--;
+            }
+        }
+        schedule();
+    }
+}
@@ -28,6 +28,7 @@ package com.salesforce.androidsdk.smartsync.model;
 
 import java.util.Locale;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.salesforce.androidsdk.smartsync.util.Constants;
@@ -69,6 +70,29 @@ public class SalesforceObject {
         rawData = object;
     }
 
+    /**
+     * Parameterized constructor (raw data only contains the given fields).
+     *
+     * @param objectType Object type.
+     * @param objectId Object ID.
+     * @param name Name.
+     */
+    public SalesforceObject(String objectType, String objectId, String name) {
+        this.objectType = objectType;
+        this.objectId = objectId;
+        this.name = name;
+        rawData = new JSONObject();
+        try {
+            rawData.put(Constants.ID, objectId);
+            rawData.put(Constants.NAME, name);
+            final JSONObject attributes = new JSONObject();
+            attributes.put(Constants.TYPE.toLowerCase(Locale.US), objectType);
+            rawData.put(Constants.ATTRIBUTES, attributes);
+        } catch (JSONException e) {
+            // Only happens with non-finite numbers
+        }
+    }
+
     /**
      * Returns the object type.
      *
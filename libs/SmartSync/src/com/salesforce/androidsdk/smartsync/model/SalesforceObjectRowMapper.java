@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartsync.model;
+
+import android.database.Cursor;
+
+import com.salesforce.androidsdk.smartstore.store.RowMapper;
+import com.salesforce.androidsdk.smartsync.util.Constants;
+
+/**
+ * Maps query rows to SalesforceObject's without going through JSON.
+ * Rows are expected to have the columns of SELECT_PATHS (e.g. QuerySpec.buildAllQuerySpec(soupName, SELECT_PATHS, ...)),
+ * which therefore need to be indexed in the soup.
+ */
+public class SalesforceObjectRowMapper implements RowMapper<SalesforceObject> {
+
+    public static final String[] SELECT_PATHS = {Constants.ID, Constants.NAME};
+
+    private final String objectType;
+
+    /**
+     * Parameterized constructor.
+     *
+     * @param objectType Object type of the records in the soup.
+     */
+    public SalesforceObjectRowMapper(String objectType) {
+        this.objectType = objectType;
+    }
+
+    @Override
+    public SalesforceObject mapRow(Cursor cursor) {
+        return new SalesforceObject(objectType, cursor.getString(0), cursor.getString(1));
+    }
+}
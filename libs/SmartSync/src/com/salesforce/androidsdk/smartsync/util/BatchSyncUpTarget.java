@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartsync.util;
+
+import android.util.Log;
+
+import com.salesforce.androidsdk.rest.RestRequest;
+import com.salesforce.androidsdk.rest.RestResponse;
+import com.salesforce.androidsdk.smartsync.manager.SyncManager;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import okhttp3.RequestBody;
+
+/**
+ * Sync up target that uploads records in batches using the sObject collections resource:
+ * - up to 200 records are created, updated or deleted by a single request
+ * - each record succeeds or fails on its own (allOrNone is false)
+ * - records are grouped by object type, since the server rejects requests with more than 10 chunks of a same type
+ */
+public class BatchSyncUpTarget extends SyncUpTarget {
+
+    public static final String MAX_BATCH_SIZE = "maxBatchSize";
+
+    // Limit of the sObject collections resource
+    public static final int MAX_RECORDS_PER_REQUEST = 200;
+
+    // Limit of the sObject collections resource on the number of chunks (contiguous records of a same type) per request
+    public static final int MAX_TYPES_PER_REQUEST = 10;
+
+    // The sObject collections resource is only available starting with that version
+    public static final String MIN_API_VERSION = "v42.0";
+
+    private static final String COLLECTIONS_PATH = "/services/data/%s/composite/sobjects";
+    private static final String ALL_OR_NONE = "allOrNone";
+    private static final String TYPE = "type";
+    private static final String SUCCESS = "success";
+    private static final String ERRORS = "errors";
+    private static final String STATUS_CODE = "statusCode";
+    private static final String ENTITY_IS_DELETED = "ENTITY_IS_DELETED";
+    private static final String TAG = "BatchSyncUpTarget";
+
+    private int maxBatchSize;
+
+    /**
+     * Construct BatchSyncUpTarget
+     */
+    public BatchSyncUpTarget() {
+        this(MAX_RECORDS_PER_REQUEST);
+    }
+
+    /**
+     * Construct BatchSyncUpTarget
+     * @param maxBatchSize maximum number of records per request (capped at 200)
+     */
+    public BatchSyncUpTarget(int maxBatchSize) {
+        super();
+        this.maxBatchSize = capBatchSize(maxBatchSize);
+    }
+
+    /**
+     * Construct BatchSyncUpTarget from json
+     * @param target
+     * @throws JSONException
+     */
+    public BatchSyncUpTarget(JSONObject target) throws JSONException {
+        super(target);
+        this.maxBatchSize = capBatchSize(target != null ? target.optInt(MAX_BATCH_SIZE, MAX_RECORDS_PER_REQUEST) : MAX_RECORDS_PER_REQUEST);
+    }
+
+    /**
+     * @return json representation of target
+     * @throws JSONException
+     */
+    @Override
+    public JSONObject asJSON() throws JSONException {
+        JSONObject target = super.asJSON();
+        target.put(MAX_BATCH_SIZE, maxBatchSize);
+        return target;
+    }
+
+    /**
+     * @return maximum number of records sent to the server in one request
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Save locally created records back to server
+     * @param syncManager
+     * @param objectTypes type of each record
+     * @param fieldsList fields of each record
+     * @return server id of each record (null for records whose creation failed)
+     * @throws JSONException
+     * @throws IOException
+     */
+    public List<String> createOnServer(SyncManager syncManager, List<String> objectTypes, List<Map<String, Object>> fieldsList) throws JSONException, IOException {
+        final String[] serverIds = new String[fieldsList.size()];
+        for (final List<Integer> request : splitByType(objectTypes)) {
+            final JSONArray results = sendCollectionRequest(syncManager, RestRequest.RestMethod.POST, "",
+                    buildCollectionBody(request, objectTypes, null, fieldsList));
+            for (int i = 0; i < request.size(); i++) {
+                final JSONObject result = results == null ? null : results.optJSONObject(i);
+                serverIds[request.get(i)] = result != null && result.optBoolean(SUCCESS) ? result.getString(Constants.LID) : null;
+            }
+        }
+        return Arrays.asList(serverIds);
+    }
+
+    /**
+     * Save locally updated records back to server
+     * @param syncManager
+     * @param objectTypes type of each record
+     * @param objectIds server id of each record
+     * @param fieldsList fields of each record
+     * @return status code of each record (404 for records deleted on the server)
+     * @throws JSONException
+     * @throws IOException
+     */
+    public List<Integer> updateOnServer(SyncManager syncManager, List<String> objectTypes, List<String> objectIds, List<Map<String, Object>> fieldsList) throws JSONException, IOException {
+        final Integer[] statusCodes = new Integer[objectIds.size()];
+        for (final List<Integer> request : splitByType(objectTypes)) {
+            final JSONArray results = sendCollectionRequest(syncManager, RestRequest.RestMethod.PATCH, "",
+                    buildCollectionBody(request, objectTypes, objectIds, fieldsList));
+            final List<Integer> requestStatusCodes = getStatusCodes(results, request.size());
+            for (int i = 0; i < request.size(); i++) {
+                statusCodes[request.get(i)] = requestStatusCodes.get(i);
+            }
+        }
+        return Arrays.asList(statusCodes);
+    }
+
+    /**
+     * Delete locally deleted records from server
+     * @param syncManager
+     * @param objectIds server id of each record
+     * @return status code of each record (404 for records already deleted on the server)
+     * @throws JSONException
+     * @throws IOException
+     */
+    public List<Integer> deleteOnServer(SyncManager syncManager, List<String> objectIds) throws JSONException, IOException {
+        final List<Integer> statusCodes = new ArrayList<Integer>();
+        for (int start = 0; start < objectIds.size(); start += maxBatchSize) {
+            final int end = Math.min(start + maxBatchSize, objectIds.size());
+            final StringBuilder ids = new StringBuilder();
+            for (String objectId : objectIds.subList(start, end)) {
+                ids.append(ids.length() > 0 ? "," : "").append(objectId);
+            }
+            final JSONArray results = sendCollectionRequest(syncManager, RestRequest.RestMethod.DELETE,
+                    "?ids=" + ids + "&" + ALL_OR_NONE + "=false", null);
+            statusCodes.addAll(getStatusCodes(results, end - start));
+        }
+        return statusCodes;
+    }
+
+    /**
+     * Send request to the sObject collections resource
+     * @param syncManager
+     * @param method
+     * @param query query string appended to the collections resource path (e.g. "?ids=...")
+     * @param body
+     * @return per record results (in request order) or null if the request as a whole failed
+     * @throws JSONException
+     * @throws IOException
+     */
+    protected JSONArray sendCollectionRequest(SyncManager syncManager, RestRequest.RestMethod method, String query, JSONObject body) throws JSONException, IOException {
+        final String path = String.format(COLLECTIONS_PATH, getApiVersionAtLeast(syncManager.apiVersion, MIN_API_VERSION)) + query;
+        final RequestBody requestBody = body == null ? null : RequestBody.create(RestRequest.MEDIA_TYPE_JSON, body.toString());
+        final RestResponse response = syncManager.sendSyncWithSmartSyncUserAgent(new RestRequest(method, path, requestBody));
+        if (!response.isSuccess()) {
+            Log.e(TAG, "Collection request " + method + " " + path + " failed with status " + response.getStatusCode() + ": " + response.asString());
+            return null;
+        }
+        return response.asJSONArray();
+    }
+
+    /**
+     * Split records into requests: records are sorted by object type (keeping their order within a type) and each request
+     * holds at most maxBatchSize records and MAX_TYPES_PER_REQUEST types
+     * @param objectTypes type of each record
+     * @return indices of the records of each request
+     */
+    private List<List<Integer>> splitByType(final List<String> objectTypes) {
+        final List<Integer> sortedIndices = new ArrayList<Integer>();
+        for (int i = 0; i < objectTypes.size(); i++) {
+            sortedIndices.add(i);
+        }
+        Collections.sort(sortedIndices, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                final String type1 = String.valueOf(objectTypes.get(i1));
+                final String type2 = String.valueOf(objectTypes.get(i2));
+                return type1.compareTo(type2);
+            }
+        });
+        final List<List<Integer>> requests = new ArrayList<List<Integer>>();
+        List<Integer> request = new ArrayList<Integer>();
+        int typesCount = 0;
+        String lastType = null;
+        for (final Integer index : sortedIndices) {
+            final String type = String.valueOf(objectTypes.get(index));
+            final boolean newType = !type.equals(lastType);
+            if (request.size() == maxBatchSize || (newType && typesCount == MAX_TYPES_PER_REQUEST)) {
+                requests.add(request);
+                request = new ArrayList<Integer>();
+                typesCount = 0;
+            }
+            if (newType || request.isEmpty()) {
+                typesCount++;
+            }
+            request.add(index);
+            lastType = type;
+        }
+        if (!request.isEmpty()) {
+            requests.add(request);
+        }
+        return requests;
+    }
+
+    private JSONObject buildCollectionBody(List<Integer> indices, List<String> objectTypes, List<String> objectIds, List<Map<String, Object>> fieldsList) throws JSONException {
+        final JSONArray records = new JSONArray();
+        for (final Integer i : indices) {
+            final JSONObject record = new JSONObject(fieldsList.get(i));
+            record.put(Constants.ATTRIBUTES, new JSONObject().put(TYPE, objectTypes.get(i)));
+            if (objectIds != null) {
+                record.put(Constants.ID, objectIds.get(i));
+            }
+            records.put(record);
+        }
+        final JSONObject body = new JSONObject();
+        body.put(ALL_OR_NONE, false);
+        body.put(Constants.RECORDS, records);
+        return body;
+    }
+
+    /**
+     * Map per record results to status codes the way single record requests would report them
+     */
+    private List<Integer> getStatusCodes(JSONArray results, int count) {
+        if (results == null) {
+            return Collections.nCopies(count, HttpURLConnection.HTTP_BAD_REQUEST);
+        }
+        final List<Integer> statusCodes = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            final JSONObject result = results.optJSONObject(i);
+            if (result != null && result.optBoolean(SUCCESS)) {
+                statusCodes.add(HttpURLConnection.HTTP_OK);
+            } else if (result != null && isEntityDeleted(result.optJSONArray(ERRORS))) {
+                statusCodes.add(HttpURLConnection.HTTP_NOT_FOUND);
+            } else {
+                statusCodes.add(HttpURLConnection.HTTP_BAD_REQUEST);
+            }
+        }
+        return statusCodes;
+    }
+
+    private boolean isEntityDeleted(JSONArray errors) {
+        if (errors != null) {
+            for (int i = 0; i < errors.length(); i++) {
+                final JSONObject error = errors.optJSONObject(i);
+                if (error != null && ENTITY_IS_DELETED.equals(error.optString(STATUS_CODE))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int capBatchSize(int maxBatchSize) {
+        return Math.max(1, Math.min(maxBatchSize, MAX_RECORDS_PER_REQUEST));
+    }
+}
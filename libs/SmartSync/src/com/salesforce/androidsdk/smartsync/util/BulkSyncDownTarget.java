@@ -0,0 +1,465 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartsync.util;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.salesforce.androidsdk.rest.RestRequest;
+import com.salesforce.androidsdk.rest.RestResponse;
+import com.salesforce.androidsdk.smartsync.manager.SyncManager;
+import com.salesforce.androidsdk.util.JSONObjectHelper;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.RequestBody;
+
+/**
+ * Target for sync defined by a SOQL query run as a Bulk API 2.0 query job:
+ * - the job is created and polled until the server has run the query
+ * - results are downloaded as CSV, one page of at most maxRecordsPerPage records at a time
+ * - each page is parsed as it is read from the network (and with startFetchStreaming, each row is handed over as soon as it is parsed)
+ *
+ * Meant for objects with a lot of records: it takes a few calls to run the job but each page
+ * holds many more records than a page of the REST query API.
+ * Values are returned as strings (CSV has no types) and empty values as null.
+ */
+public class BulkSyncDownTarget extends SoqlSyncDownTarget {
+
+    public static final String MAX_RECORDS_PER_PAGE = "maxRecordsPerPage";
+    public static final int DEFAULT_MAX_RECORDS_PER_PAGE = 10000;
+
+    // Bulk API 2.0 query jobs are only available starting with that version
+    public static final String MIN_API_VERSION = "v47.0";
+
+    // Polling
+    public static final long POLL_INTERVAL_MILLIS = 1000;
+    public static final long MAX_POLL_INTERVAL_MILLIS = 10000;
+    public static final long MAX_WAIT_MILLIS = 30 * 60 * 1000;
+
+    // Job states
+    public static final String JOB_COMPLETE = "JobComplete";
+    public static final String FAILED = "Failed";
+    public static final String ABORTED = "Aborted";
+
+    private static final String TAG = "BulkSyncDownTarget";
+    private static final String JOBS_PATH = "/services/data/%s/jobs/query";
+    private static final String LOCATOR_HEADER = "Sforce-Locator";
+    private static final String NO_MORE_RESULTS = "null";
+    private static final String ID = "id";
+    private static final String OPERATION = "operation";
+    private static final String STATE = "state";
+    private static final String ERROR_MESSAGE = "errorMessage";
+    private static final String NUMBER_RECORDS_PROCESSED = "numberRecordsProcessed";
+    private static final String TYPE = "type";
+    private static final String JOB_ID = "jobId";
+    private static final String LOCATOR = "locator";
+    private static final String SOBJECT_TYPE = "sobjectType";
+    private static final Pattern FROM_PATTERN = Pattern.compile("\\s[fF][rR][oO][mM]\\s+([^\\s]+)");
+
+    private int maxRecordsPerPage;
+    private String jobId;
+    private String locator;
+    private String objectType;
+    private boolean jobComplete;
+
+    /**
+     * Results page returned by the server
+     */
+    public static class ResultsPage {
+        public final Reader reader;
+        public final String nextLocator;
+
+        /**
+         * @param reader CSV content
+         * @param nextLocator locator of next page or null if it is the last page
+         */
+        public ResultsPage(Reader reader, String nextLocator) {
+            this.reader = reader;
+            this.nextLocator = nextLocator;
+        }
+    }
+
+    /**
+     * Construct BulkSyncDownTarget from json
+     * @param target
+     * @throws JSONException
+     */
+    public BulkSyncDownTarget(JSONObject target) throws JSONException {
+        super(target);
+        this.maxRecordsPerPage = target.optInt(MAX_RECORDS_PER_PAGE, DEFAULT_MAX_RECORDS_PER_PAGE);
+    }
+
+    /**
+     * Construct BulkSyncDownTarget from soql query
+     * @param query
+     */
+    public BulkSyncDownTarget(String query) {
+        this(query, DEFAULT_MAX_RECORDS_PER_PAGE);
+    }
+
+    /**
+     * Construct BulkSyncDownTarget from soql query
+     * @param query
+     * @param maxRecordsPerPage
+     */
+    public BulkSyncDownTarget(String query, int maxRecordsPerPage) {
+        super(query);
+        this.queryType = QueryType.custom;
+        this.maxRecordsPerPage = maxRecordsPerPage;
+    }
+
+    /**
+     * @return json representation of target
+     * @throws JSONException
+     */
+    @Override
+    public JSONObject asJSON() throws JSONException {
+        JSONObject target = super.asJSON();
+        target.put(MAX_RECORDS_PER_PAGE, maxRecordsPerPage);
+        return target;
+    }
+
+    @Override
+    public JSONArray startFetch(SyncManager syncManager, long maxTimeStamp, String queryRun) throws IOException, JSONException {
+        runJob(syncManager, maxTimeStamp, queryRun);
+        return fetchPage(syncManager);
+    }
+
+    @Override
+    public JSONArray continueFetch(SyncManager syncManager) throws IOException, JSONException {
+        if (jobId == null) {
+            return null;
+        }
+        return fetchPage(syncManager);
+    }
+
+    @Override
+    public int startFetchStreaming(SyncManager syncManager, long maxTimeStamp, RecordSink sink) throws IOException, JSONException {
+        runJob(syncManager, maxTimeStamp, getQuery());
+        return fetchPage(syncManager, sink);
+    }
+
+    @Override
+    public int continueFetchStreaming(SyncManager syncManager, RecordSink sink) throws IOException, JSONException {
+        if (jobId == null) {
+            return -1;
+        }
+        return fetchPage(syncManager, sink);
+    }
+
+    @Override
+    public JSONObject getResumePoint() throws JSONException {
+        if (jobId == null) {
+            return null;
+        }
+        JSONObject resumePoint = new JSONObject();
+        resumePoint.put(JOB_ID, jobId);
+        resumePoint.put(LOCATOR, locator);
+        resumePoint.put(SOBJECT_TYPE, objectType);
+        return resumePoint;
+    }
+
+    @Override
+    public boolean restoreResumePoint(JSONObject resumePoint) throws JSONException {
+        // Results of completed jobs are kept by the server for a while: fetching them fails once they are gone
+        jobId = JSONObjectHelper.optString(resumePoint, JOB_ID);
+        locator = JSONObjectHelper.optString(resumePoint, LOCATOR);
+        objectType = JSONObjectHelper.optString(resumePoint, SOBJECT_TYPE);
+        jobComplete = true; // checkpoints are only saved once results are being fetched
+        return jobId != null;
+    }
+
+    private void runJob(SyncManager syncManager, long maxTimeStamp, String queryRun) throws IOException, JSONException {
+        String queryToRun = maxTimeStamp > 0 ? SoqlSyncDownTarget.addFilterForReSync(queryRun, maxTimeStamp) : queryRun;
+        Matcher matcher = FROM_PATTERN.matcher(queryToRun);
+        objectType = matcher.find() ? matcher.group(1) : null;
+
+        // Creates job and waits for the server to run the query
+        JSONObject jobRequest = new JSONObject();
+        jobRequest.put(OPERATION, "query");
+        jobRequest.put(QUERY, queryToRun);
+        jobId = sendJobRequest(syncManager, RestRequest.RestMethod.POST, "", jobRequest).getString(ID);
+        locator = null;
+        jobComplete = false;
+        JSONObject job = waitForJob(syncManager);
+        jobComplete = true;
+
+        // Records total size.
+        totalSize = job.optInt(NUMBER_RECORDS_PROCESSED);
+    }
+
+    /**
+     * Aborts the query job if the server is still running it and deletes it
+     * @param syncManager
+     */
+    @Override
+    public void cancelFetch(SyncManager syncManager) {
+        if (jobId == null) {
+            return;
+        }
+        try {
+            if (!jobComplete) {
+                JSONObject abortRequest = new JSONObject();
+                abortRequest.put(STATE, ABORTED);
+                sendJobRequest(syncManager, RestRequest.RestMethod.PATCH, "/" + jobId, abortRequest);
+            }
+            sendJobRequest(syncManager, RestRequest.RestMethod.DELETE, "/" + jobId, null);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not delete query job " + jobId, e);
+        }
+        jobId = null;
+        locator = null;
+    }
+
+    /**
+     * @return maximum number of records per page
+     */
+    public int getMaxRecordsPerPage() {
+        return maxRecordsPerPage;
+    }
+
+    /**
+     * Send request about a query job to the server
+     * @param syncManager
+     * @param method
+     * @param jobPath path relative to the query jobs resource (e.g. "/" + jobId)
+     * @param body
+     * @return job info (null if the response is empty)
+     * @throws IOException
+     * @throws JSONException
+     */
+    protected JSONObject sendJobRequest(SyncManager syncManager, RestRequest.RestMethod method, String jobPath, JSONObject body) throws IOException, JSONException {
+        final String path = String.format(JOBS_PATH, getApiVersionAtLeast(syncManager.apiVersion, MIN_API_VERSION)) + jobPath;
+        final RequestBody requestBody = body == null ? null : RequestBody.create(RestRequest.MEDIA_TYPE_JSON, body.toString());
+        final RestResponse response = syncManager.sendSyncWithSmartSyncUserAgent(new RestRequest(method, path, requestBody));
+        final String content = response.asString();
+        if (!response.isSuccess()) {
+            throw new IOException("Query job request failed with status " + response.getStatusCode() + ": " + content);
+        }
+        return TextUtils.isEmpty(content) ? null : new JSONObject(content);
+    }
+
+    /**
+     * Fetch a page of results of a completed query job
+     * @param syncManager
+     * @param jobId
+     * @param locator locator returned with the previous page or null for the first page
+     * @param maxRecords
+     * @return results page - its reader must be closed by the caller
+     * @throws IOException
+     */
+    protected ResultsPage fetchResultsPage(SyncManager syncManager, String jobId, String locator, int maxRecords) throws IOException {
+        final String path = String.format(JOBS_PATH, getApiVersionAtLeast(syncManager.apiVersion, MIN_API_VERSION))
+                + "/" + jobId + "/results?maxRecords=" + maxRecords
+                + (locator == null ? "" : "&locator=" + URLEncoder.encode(locator, "UTF-8"));
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "text/csv");
+        final RestResponse response = syncManager.sendSyncWithSmartSyncUserAgent(new RestRequest(RestRequest.RestMethod.GET, path, null, headers));
+        if (!response.isSuccess()) {
+            throw new IOException("Query job results request failed with status " + response.getStatusCode() + ": " + response.asString());
+        }
+        String nextLocator = null;
+        for (Map.Entry<String, List<String>> header : response.getAllHeaders().entrySet()) {
+            if (LOCATOR_HEADER.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+                nextLocator = header.getValue().get(0);
+            }
+        }
+        return new ResultsPage(new InputStreamReader(response.asInputStream(), "UTF-8"), nextLocator);
+    }
+
+    private JSONObject waitForJob(SyncManager syncManager) throws IOException, JSONException {
+        final long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+        long pollInterval = POLL_INTERVAL_MILLIS;
+        while (true) {
+            final JSONObject job = sendJobRequest(syncManager, RestRequest.RestMethod.GET, "/" + jobId, null);
+            final String state = job.getString(STATE);
+            if (JOB_COMPLETE.equals(state)) {
+                return job;
+            }
+            if (FAILED.equals(state) || ABORTED.equals(state)) {
+                throw new IOException("Query job " + jobId + " " + state + ": " + job.optString(ERROR_MESSAGE));
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Query job " + jobId + " did not complete in " + MAX_WAIT_MILLIS + "ms");
+            }
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for query job " + jobId);
+            }
+            pollInterval = Math.min(pollInterval * 2, MAX_POLL_INTERVAL_MILLIS);
+        }
+    }
+
+    private JSONArray fetchPage(SyncManager syncManager) throws IOException, JSONException {
+        final JSONArray records = new JSONArray();
+        fetchPage(syncManager, new RecordSink() {
+            @Override
+            public void onRecord(JSONObject record) {
+                records.put(record);
+            }
+        });
+        return records;
+    }
+
+    private int fetchPage(SyncManager syncManager, RecordSink sink) throws IOException, JSONException {
+        final ResultsPage page = fetchResultsPage(syncManager, jobId, locator, maxRecordsPerPage);
+        final int count;
+        try {
+            count = parseRecords(page.reader, sink);
+        } finally {
+            page.reader.close();
+        }
+
+        // Last page: the job is no longer needed
+        if (page.nextLocator == null || NO_MORE_RESULTS.equals(page.nextLocator)) {
+            try {
+                sendJobRequest(syncManager, RestRequest.RestMethod.DELETE, "/" + jobId, null);
+            } catch (Exception e) {
+                Log.w(TAG, "Could not delete query job " + jobId, e);
+            }
+            jobId = null;
+            locator = null;
+        } else {
+            locator = page.nextLocator;
+        }
+        return count;
+    }
+
+    /**
+     * Parse CSV records (first row holds the field names)
+     * @param reader
+     * @param sink receives records as they are parsed
+     * @return number of records
+     * @throws IOException
+     * @throws JSONException
+     */
+    private int parseRecords(Reader reader, RecordSink sink) throws IOException, JSONException {
+        final BufferedReader bufferedReader = new BufferedReader(reader);
+        int count = 0;
+        final List<String> fieldNames = readRow(bufferedReader);
+        if (fieldNames == null) {
+            return count;
+        }
+        List<String> values;
+        while ((values = readRow(bufferedReader)) != null) {
+            final JSONObject record = new JSONObject();
+            if (objectType != null) {
+                record.put(Constants.ATTRIBUTES, new JSONObject().put(TYPE, objectType));
+            }
+            for (int i = 0; i < fieldNames.size() && i < values.size(); i++) {
+                final String fieldName = fieldNames.get(i);
+                String value = values.get(i);
+
+                // Dates are in UTC with a 'Z' suffix, the REST API uses +0000
+                if (fieldName.equals(getModificationDateFieldName()) && value.endsWith("Z")) {
+                    value = value.substring(0, value.length() - 1) + "+0000";
+                }
+                putValue(record, fieldName, value.isEmpty() ? JSONObject.NULL : value);
+            }
+            sink.onRecord(record);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Put value in record - relationship fields (e.g. Owner.Name) go in nested objects
+     */
+    private void putValue(JSONObject record, String fieldName, Object value) throws JSONException {
+        final String[] pathElements = fieldName.split("\\.");
+        JSONObject parent = record;
+        for (int i = 0; i < pathElements.length - 1; i++) {
+            JSONObject child = parent.optJSONObject(pathElements[i]);
+            if (child == null) {
+                child = new JSONObject();
+                parent.put(pathElements[i], child);
+            }
+            parent = child;
+        }
+        parent.put(pathElements[pathElements.length - 1], value);
+    }
+
+    /**
+     * Read one CSV row (RFC 4180: quoted values can contain commas, line breaks and doubled quotes)
+     * @return values or null at end of stream
+     */
+    private static List<String> readRow(BufferedReader reader) throws IOException {
+        final List<String> values = new ArrayList<String>();
+        final StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        boolean empty = true;
+        int c;
+        while ((c = reader.read()) != -1) {
+            empty = false;
+            if (quoted) {
+                if (c == '"') {
+                    reader.mark(1);
+                    if (reader.read() == '"') {
+                        value.append('"');
+                    } else {
+                        quoted = false;
+                        reader.reset();
+                    }
+                } else {
+                    value.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else if (c == '\n') {
+                values.add(value.toString());
+                return values;
+            } else if (c != '\r') {
+                value.append((char) c);
+            }
+        }
+        if (empty) {
+            return null;
+        }
+        values.add(value.toString());
+        return values;
+    }
+}
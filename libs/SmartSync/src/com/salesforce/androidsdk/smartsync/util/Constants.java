@@ -95,7 +95,22 @@ public class Constants {
 
     /**
      * Salesforce timestamp format
+     * NB: SimpleDateFormat is not thread safe - code that can run in concurrent syncs should use getTimestampFormat()
      */
     public static final DateFormat TIMESTAMP_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
 
+    private static final ThreadLocal<DateFormat> THREAD_TIMESTAMP_FORMAT = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        }
+    };
+
+    /**
+     * @return Salesforce timestamp format for the calling thread
+     */
+    public static DateFormat getTimestampFormat() {
+        return THREAD_TIMESTAMP_FORMAT.get();
+    }
+
 }
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartsync.util;
+
+import android.text.TextUtils;
+
+import com.salesforce.androidsdk.rest.RestRequest;
+import com.salesforce.androidsdk.rest.RestResponse;
+import com.salesforce.androidsdk.smartsync.manager.SyncManager;
+import com.salesforce.androidsdk.util.JSONObjectHelper;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Target for sync that downloads the records of an object type changed since the last sync:
+ * - the first sync downloads all the records (matching the optional filter) with a SOQL query
+ * - a resync gets the ids of the records updated since the last sync from the sObject "updated" resource
+ *   and only downloads those records
+ * - fetchDeletedIds() gets the ids of the records deleted since the last sync from the sObject "deleted" resource
+ *   so that they can be removed locally without downloading the ids of all the records on the server
+ *
+ * Changes are asked for since the time of the last sync that completed, which is saved with the target: the latest date
+ * covered reported by the server (or the time the query started for a sync that ran a SOQL query), not the device clock.
+ * The server only keeps track of deleted records for a limited time: when the last sync is older than
+ * MAX_WINDOW_MILLIS, a resync falls back on a SOQL query filtered by LastModifiedDate (and ghosts have to
+ * be cleaned with cleanResyncGhosts).
+ */
+public class DeltaSyncDownTarget extends SyncDownTarget {
+
+    public static final String FIELDLIST = "fieldlist";
+    public static final String SOBJECT_TYPE = "sobjectType";
+    public static final String FILTER = "filter";
+    public static final String LAST_SYNC_TIME = "lastSyncTime";
+
+    // Updated / deleted resources only go back 30 days - keep a margin for syncs that take a while to start
+    public static final long MAX_WINDOW_MILLIS = 29L * 24 * 60 * 60 * 1000;
+
+    // Updated / deleted resources have a granularity of one minute - start windows at least that much in the past
+    public static final long MIN_WINDOW_MILLIS = 60 * 1000;
+
+    // Number of updated records fetched per query (keeps the query well under the maximum url length)
+    public static final int MAX_IDS_PER_QUERY = 200;
+
+    private static final String UPDATED_PATH = "/services/data/%s/sobjects/%s/updated/";
+    private static final String DELETED_PATH = "/services/data/%s/sobjects/%s/deleted/";
+    private static final String IDS = "ids";
+    private static final String DELETED_RECORDS = "deletedRecords";
+    private static final String LATEST_DATE_COVERED = "latestDateCovered";
+    private static final String ID = "id";
+
+    private List<String> fieldlist;
+    private String objectType;
+    private String filter;
+    private long lastSyncTime; // time the last sync that completed covered changes until
+
+    // Set by startFetch
+    private SoqlSyncDownTarget queryTarget;
+    private List<String> updatedIds;
+    private int nextIdIndex;
+    private long windowEnd;
+    private long nextSyncTime; // becomes lastSyncTime once this sync completes
+
+    /**
+     * Construct DeltaSyncDownTarget from json
+     * @param target
+     * @throws JSONException
+     */
+    public DeltaSyncDownTarget(JSONObject target) throws JSONException {
+        super(target);
+        this.fieldlist = toList(target.getJSONArray(FIELDLIST));
+        this.objectType = target.getString(SOBJECT_TYPE);
+        this.filter = JSONObjectHelper.optString(target, FILTER);
+        this.lastSyncTime = target.optLong(LAST_SYNC_TIME, -1);
+    }
+
+    /**
+     * Constructor
+     * @param fieldlist
+     * @param objectType
+     */
+    public DeltaSyncDownTarget(List<String> fieldlist, String objectType) {
+        this(fieldlist, objectType, null);
+    }
+
+    /**
+     * Constructor
+     * @param fieldlist
+     * @param objectType
+     * @param filter SOQL condition restricting the records synced (e.g. "Industry = 'Banking'") or null
+     */
+    public DeltaSyncDownTarget(List<String> fieldlist, String objectType, String filter) {
+        super();
+        this.queryType = QueryType.custom;
+        this.fieldlist = fieldlist;
+        this.objectType = objectType;
+        this.filter = filter;
+        this.lastSyncTime = -1;
+    }
+
+    /**
+     * @return json representation of target
+     * @throws JSONException
+     */
+    @Override
+    public JSONObject asJSON() throws JSONException {
+        JSONObject target = super.asJSON();
+        target.put(FIELDLIST, new JSONArray(fieldlist));
+        target.put(SOBJECT_TYPE, objectType);
+        target.put(FILTER, filter);
+        if (lastSyncTime > 0) target.put(LAST_SYNC_TIME, lastSyncTime);
+        return target;
+    }
+
+    @Override
+    public JSONArray startFetch(SyncManager syncManager, long maxTimeStamp) throws IOException, JSONException {
+        windowEnd = System.currentTimeMillis();
+        nextSyncTime = -1;
+
+        // First sync or last sync too old: query all the records modified since the last sync
+        if (!isWithinWindow(lastSyncTime, windowEnd)) {
+            updatedIds = null;
+            nextSyncTime = windowEnd;
+            return startFetch(syncManager, maxTimeStamp, buildQuery(null));
+        }
+
+        // Resync: only get the records reported as updated
+        queryTarget = null;
+        updatedIds = fetchUpdatedIds(syncManager, getWindowStart(lastSyncTime, windowEnd), windowEnd);
+        nextIdIndex = 0;
+        totalSize = updatedIds.size();
+        final JSONArray records = fetchNextUpdatedRecords(syncManager);
+        return records == null ? new JSONArray() : records;
+    }
+
+    @Override
+    public JSONArray startFetch(SyncManager syncManager, long maxTimeStamp, String queryRun) throws IOException, JSONException {
+        queryTarget = new SoqlSyncDownTarget(queryRun);
+        final JSONArray records = queryTarget.startFetch(syncManager, maxTimeStamp);
+        totalSize = queryTarget.getTotalSize();
+        return records;
+    }
+
+    @Override
+    public JSONArray continueFetch(SyncManager syncManager) throws IOException, JSONException {
+        if (queryTarget != null) {
+            return queryTarget.continueFetch(syncManager);
+        }
+        return fetchNextUpdatedRecords(syncManager);
+    }
+
+    /**
+     * Gets the ids of the records deleted on the server since the last sync from the sObject "deleted" resource
+     * @param syncManager
+     * @param maxTimeStamp (not used: the window starts at the time of the last sync)
+     * @return ids of deleted records or null if the last sync is too old for the server to know
+     * @throws IOException
+     * @throws JSONException
+     */
+    @Override
+    public List<String> fetchDeletedIds(SyncManager syncManager, long maxTimeStamp) throws IOException, JSONException {
+        final long end = windowEnd > 0 ? windowEnd : System.currentTimeMillis();
+        if (!isWithinWindow(lastSyncTime, end)) {
+            return null;
+        }
+        return fetchDeletedIds(syncManager, getWindowStart(lastSyncTime, end), end);
+    }
+
+    /**
+     * Remembers how far this sync covered changes as the time of the last sync
+     * (unchanged if the server did not report it: the next sync then asks for the same changes again)
+     */
+    @Override
+    public void onSyncDone() {
+        if (nextSyncTime > 0) {
+            lastSyncTime = nextSyncTime;
+        }
+    }
+
+    @Override
+    public Set<String> getListOfRemoteIds(SyncManager syncManager, Set<String> localIds) {
+        return new SoqlSyncDownTarget(buildQuery(null)).getListOfRemoteIds(syncManager, localIds);
+    }
+
+    @Override
+    public List<String> startFetchSortedIds(SyncManager syncManager) throws IOException, JSONException {
+        queryTarget = new SoqlSyncDownTarget(buildQuery(null));
+        return queryTarget.startFetchSortedIds(syncManager);
+    }
+
+    @Override
+    public List<String> continueFetchSortedIds(SyncManager syncManager) throws IOException, JSONException {
+        return queryTarget == null ? null : queryTarget.continueFetchSortedIds(syncManager);
+    }
+
+    /**
+     * Get ids of the records updated in the given window from the sObject "updated" resource
+     * Implementations should pass the latest date covered by the server to setLatestDateCovered()
+     * @param syncManager
+     * @param start
+     * @param end
+     * @return ids of updated records
+     * @throws IOException
+     * @throws JSONException
+     */
+    protected List<String> fetchUpdatedIds(SyncManager syncManager, long start, long end) throws IOException, JSONException {
+        final JSONObject responseJson = sendWindowRequest(syncManager, UPDATED_PATH, start, end);
+        setLatestDateCovered(responseJson);
+        final List<String> ids = toList(responseJson.getJSONArray(IDS));
+        return ids == null ? new ArrayList<String>() : ids;
+    }
+
+    /**
+     * Get ids of the records deleted in the given window from the sObject "deleted" resource
+     * Implementations should pass the latest date covered by the server to setLatestDateCovered()
+     * @param syncManager
+     * @param start
+     * @param end
+     * @return ids of deleted records
+     * @throws IOException
+     * @throws JSONException
+     */
+    protected List<String> fetchDeletedIds(SyncManager syncManager, long start, long end) throws IOException, JSONException {
+        final JSONObject responseJson = sendWindowRequest(syncManager, DELETED_PATH, start, end);
+        setLatestDateCovered(responseJson);
+        final JSONArray deletedRecords = responseJson.getJSONArray(DELETED_RECORDS);
+        final List<String> ids = new ArrayList<String>();
+        for (int i = 0; i < deletedRecords.length(); i++) {
+            ids.add(deletedRecords.getJSONObject(i).getString(ID));
+        }
+        return ids;
+    }
+
+    /**
+     * Record the latest date covered by an updated / deleted request: the next sync starts its window there
+     * (the earliest of them if both resources were asked)
+     * @param latestDateCovered
+     */
+    protected void setLatestDateCovered(long latestDateCovered) {
+        nextSyncTime = nextSyncTime > 0 ? Math.min(nextSyncTime, latestDateCovered) : latestDateCovered;
+    }
+
+    /**
+     * @return field list for this target
+     */
+    public List<String> getFieldlist() {
+        return fieldlist;
+    }
+
+    /**
+     * @return object type for this target
+     */
+    public String getObjectType() {
+        return objectType;
+    }
+
+    /**
+     * @return SOQL condition restricting the records synced or null
+     */
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return end of the window of the last sync that completed or -1 if the target was never synced
+     */
+    public long getLastSyncTime() {
+        return lastSyncTime;
+    }
+
+    private JSONArray fetchNextUpdatedRecords(SyncManager syncManager) throws IOException, JSONException {
+        if (updatedIds == null || nextIdIndex >= updatedIds.size()) {
+            return null;
+        }
+        final List<String> ids = updatedIds.subList(nextIdIndex, Math.min(nextIdIndex + MAX_IDS_PER_QUERY, updatedIds.size()));
+        nextIdIndex += ids.size();
+        final String idCondition = getIdFieldName() + " IN ('" + TextUtils.join("', '", ids) + "')";
+        final RestRequest request = RestRequest.getRequestForQuery(syncManager.apiVersion, buildQuery(idCondition));
+        final RestResponse response = syncManager.sendSyncWithSmartSyncUserAgent(request);
+        if (!response.isSuccess()) {
+            throw new IOException("Query for updated records failed with status " + response.getStatusCode() + ": " + response.asString());
+        }
+        return response.asJSONObject().getJSONArray(Constants.RECORDS);
+    }
+
+    private void setLatestDateCovered(JSONObject responseJson) throws JSONException {
+        final String latestDateCovered = JSONObjectHelper.optString(responseJson, LATEST_DATE_COVERED);
+        if (latestDateCovered == null) {
+            return;
+        }
+        try {
+            setLatestDateCovered(Constants.getTimestampFormat().parse(latestDateCovered).getTime());
+        } catch (ParseException e) {
+            throw new JSONException("Could not parse " + LATEST_DATE_COVERED + ": " + latestDateCovered);
+        }
+    }
+
+    private JSONObject sendWindowRequest(SyncManager syncManager, String pathFormat, long start, long end) throws IOException, JSONException {
+        final DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'+00:00'", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final String path = String.format(pathFormat, syncManager.apiVersion, objectType)
+                + "?start=" + URLEncoder.encode(dateFormat.format(new Date(start)), "UTF-8")
+                + "&end=" + URLEncoder.encode(dateFormat.format(new Date(end)), "UTF-8");
+        final RestResponse response = syncManager.sendSyncWithSmartSyncUserAgent(new RestRequest(RestRequest.RestMethod.GET, path, null));
+        if (!response.isSuccess()) {
+            throw new IOException("Request for " + path + " failed with status " + response.getStatusCode() + ": " + response.asString());
+        }
+        return response.asJSONObject();
+    }
+
+    private String buildQuery(String extraCondition) {
+        final List<String> fields = new ArrayList<String>(fieldlist);
+        if (!fields.contains(getIdFieldName())) {
+            fields.add(0, getIdFieldName());
+        }
+        if (!fields.contains(getModificationDateFieldName())) {
+            fields.add(getModificationDateFieldName());
+        }
+        final SOQLBuilder builder = SOQLBuilder.getInstanceWithFields(fields).from(objectType);
+        if (!TextUtils.isEmpty(filter) && extraCondition != null) {
+            builder.where("(" + filter + ") AND " + extraCondition);
+        } else if (!TextUtils.isEmpty(filter)) {
+            builder.where(filter);
+        } else if (extraCondition != null) {
+            builder.where(extraCondition);
+        }
+        return builder.build();
+    }
+
+    private static boolean isWithinWindow(long lastSyncTime, long end) {
+        return lastSyncTime > 0 && end - lastSyncTime < MAX_WINDOW_MILLIS;
+    }
+
+    private static long getWindowStart(long lastSyncTime, long end) {
+        return Math.min(lastSyncTime, end - MIN_WINDOW_MILLIS);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> toList(JSONArray jsonArray) throws JSONException {
+        if (jsonArray == null) {
+            return null;
+        }
+        List<T> arr = new ArrayList<T>();
+        for (int i=0; i<jsonArray.length(); i++) {
+            arr.add((T) jsonArray.get(i));
+        }
+        return arr;
+    }
+}
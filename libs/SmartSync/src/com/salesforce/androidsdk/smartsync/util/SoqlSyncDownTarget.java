@@ -27,6 +27,8 @@
 package com.salesforce.androidsdk.smartsync.util;
 
 import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import com.salesforce.androidsdk.rest.RestRequest;
@@ -39,9 +41,14 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Target for sync defined by a SOQL query
@@ -50,8 +57,12 @@ public class SoqlSyncDownTarget extends SyncDownTarget {
 
 	public static final String QUERY = "query";
     private static final String TAG = "SoqlSyncDownTarget";
+    private static final Pattern FROM_PATTERN = Pattern.compile("\\s[fF][rR][oO][mM]\\s");
+    private static final Pattern ORDER_BY_PATTERN = Pattern.compile("(?is)\\s+order\\s+by\\s.*$");
+    private static final Pattern LIMIT_OR_OFFSET_PATTERN = Pattern.compile("(?i)\\s(limit|offset)\\s");
 	private String query;
     private String nextRecordsUrl;
+    private String nextIdsUrl;
 
     /**
      * Construct SoqlSyncDownTarget from json
@@ -138,6 +149,134 @@ public class SoqlSyncDownTarget extends SyncDownTarget {
         return records;
     }
 
+    @Override
+    public JSONObject getResumePoint() throws JSONException {
+        if (nextRecordsUrl == null) {
+            return null;
+        }
+        JSONObject resumePoint = new JSONObject();
+        resumePoint.put(Constants.NEXT_RECORDS_URL, nextRecordsUrl);
+        return resumePoint;
+    }
+
+    @Override
+    public boolean restoreResumePoint(JSONObject resumePoint) throws JSONException {
+        nextRecordsUrl = JSONObjectHelper.optString(resumePoint, Constants.NEXT_RECORDS_URL);
+        return nextRecordsUrl != null;
+    }
+
+    @Override
+    public int startFetchStreaming(SyncManager syncManager, long maxTimeStamp, RecordSink sink) throws IOException, JSONException {
+        String queryToRun = maxTimeStamp > 0 ? SoqlSyncDownTarget.addFilterForReSync(query, maxTimeStamp) : query;
+        RestRequest request = RestRequest.getRequestForQuery(syncManager.apiVersion, queryToRun);
+        QueryPage page = streamRecords(syncManager, request, sink);
+
+        // Records total size.
+        totalSize = page.totalSize;
+
+        // Captures next records URL.
+        nextRecordsUrl = page.nextRecordsUrl;
+        return page.count;
+    }
+
+    @Override
+    public int continueFetchStreaming(SyncManager syncManager, RecordSink sink) throws IOException, JSONException {
+        if (nextRecordsUrl == null) {
+            return -1;
+        }
+        RestRequest request = new RestRequest(RestRequest.RestMethod.GET, nextRecordsUrl, null);
+        QueryPage page = streamRecords(syncManager, request, sink);
+
+        // Captures next records URL.
+        nextRecordsUrl = page.nextRecordsUrl;
+        return page.count;
+    }
+
+    /**
+     * Outcome of a streamed query page
+     */
+    private static class QueryPage {
+        int count;
+        int totalSize;
+        String nextRecordsUrl;
+    }
+
+    /**
+     * Parse query response as it is read from the network: records are handed to sink one at a time,
+     * total size and next records url are captured along the way
+     */
+    private QueryPage streamRecords(SyncManager syncManager, RestRequest request, RecordSink sink) throws IOException, JSONException {
+        RestResponse response = syncManager.sendSyncWithSmartSyncUserAgent(request);
+        if (!response.isSuccess()) {
+            throw new IOException("Query failed with status " + response.getStatusCode() + ": " + response.asString());
+        }
+        QueryPage page = new QueryPage();
+        JsonReader reader = new JsonReader(new InputStreamReader(response.asInputStream(), "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (Constants.RECORDS.equals(name)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        sink.onRecord(readJSONObject(reader));
+                        page.count++;
+                    }
+                    reader.endArray();
+                } else if (Constants.TOTAL_SIZE.equals(name)) {
+                    page.totalSize = reader.nextInt();
+                } else if (Constants.NEXT_RECORDS_URL.equals(name) && reader.peek() == JsonToken.STRING) {
+                    page.nextRecordsUrl = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+        return page;
+    }
+
+    @Override
+    public List<String> startFetchSortedIds(SyncManager syncManager) throws IOException, JSONException {
+        final Matcher fromMatcher = FROM_PATTERN.matcher(query);
+        if (!fromMatcher.find()) {
+            return null;
+        }
+        String fromClause = query.substring(fromMatcher.end());
+
+        // Sorting by id would change which records a limited query returns
+        if (LIMIT_OR_OFFSET_PATTERN.matcher(fromClause).find()) {
+            return null;
+        }
+        fromClause = ORDER_BY_PATTERN.matcher(fromClause).replaceFirst("");
+        final String idFieldName = getIdFieldName();
+        final String soql = "SELECT " + idFieldName + " FROM " + fromClause + " ORDER BY " + idFieldName + " ASC";
+        return fetchIds(syncManager, RestRequest.getRequestForQuery(syncManager.apiVersion, soql));
+    }
+
+    @Override
+    public List<String> continueFetchSortedIds(SyncManager syncManager) throws IOException, JSONException {
+        if (nextIdsUrl == null) {
+            return null;
+        }
+        return fetchIds(syncManager, new RestRequest(RestRequest.RestMethod.GET, nextIdsUrl, null));
+    }
+
+    private List<String> fetchIds(SyncManager syncManager, RestRequest request) throws IOException, JSONException {
+        final String idFieldName = getIdFieldName();
+        final List<String> ids = new ArrayList<String>();
+        QueryPage page = streamRecords(syncManager, request, new RecordSink() {
+            @Override
+            public void onRecord(JSONObject record) {
+                ids.add(record.optString(idFieldName));
+            }
+        });
+        nextIdsUrl = page.nextRecordsUrl;
+        return ids;
+    }
+
     @Override
     public Set<String> getListOfRemoteIds(SyncManager syncManager, Set<String> localIds) {
         if (localIds == null) {
@@ -173,7 +312,7 @@ public class SoqlSyncDownTarget extends SyncDownTarget {
 
     public static String addFilterForReSync(String query, long maxTimeStamp) {
         if (maxTimeStamp > 0) {
-            String extraPredicate = Constants.LAST_MODIFIED_DATE + " > " + Constants.TIMESTAMP_FORMAT.format(new Date(maxTimeStamp));
+            String extraPredicate = Constants.LAST_MODIFIED_DATE + " > " + Constants.getTimestampFormat().format(new Date(maxTimeStamp));
             query = query.toLowerCase().contains(" where ")
                     ? query.replaceFirst("( [wW][hH][eE][rR][eE] )", "$1" + extraPredicate + " and ")
                     : query.replaceFirst("( [fF][rR][oO][mM][ ]+[^ ]*)", "$1 where " + extraPredicate);
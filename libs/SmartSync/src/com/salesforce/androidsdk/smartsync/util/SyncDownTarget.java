@@ -26,6 +26,8 @@
  */
 package com.salesforce.androidsdk.smartsync.util;
 
+import android.util.JsonReader;
+import android.util.JsonToken;
 import android.util.Log;
 
 import com.salesforce.androidsdk.smartsync.manager.SyncManager;
@@ -34,10 +36,12 @@ import com.salesforce.androidsdk.util.JSONObjectHelper;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -137,6 +141,91 @@ public abstract class SyncDownTarget extends SyncTarget {
      */
     public abstract JSONArray continueFetch(SyncManager syncManager) throws IOException, JSONException;
 
+    /**
+     * Receives the records of a streaming fetch one at a time
+     */
+    public interface RecordSink {
+        void onRecord(JSONObject record) throws JSONException;
+    }
+
+    /**
+     * Start fetching records conforming to target, handing them to sink one at a time instead of returning them as a page
+     * Targets that can parse responses incrementally should override this method (the default implementation fetches a page with startFetch)
+     * @param syncManager
+     * @param maxTimeStamp
+     * @param sink
+     * @return number of records handed to sink
+     * @throws IOException, JSONException
+     */
+    public int startFetchStreaming(SyncManager syncManager, long maxTimeStamp, RecordSink sink) throws IOException, JSONException {
+        return emitRecords(startFetch(syncManager, maxTimeStamp), sink);
+    }
+
+    /**
+     * Continue fetching records conforming to target if any, handing them to sink one at a time
+     * Targets that can parse responses incrementally should override this method (the default implementation fetches a page with continueFetch)
+     * @param syncManager
+     * @param sink
+     * @return number of records handed to sink or -1 if there are no more records to fetch
+     * @throws IOException, JSONException
+     */
+    public int continueFetchStreaming(SyncManager syncManager, RecordSink sink) throws IOException, JSONException {
+        return emitRecords(continueFetch(syncManager), sink);
+    }
+
+    private int emitRecords(JSONArray records, RecordSink sink) throws JSONException {
+        if (records == null) {
+            return -1;
+        }
+        for (int i = 0; i < records.length(); i++) {
+            sink.onRecord(records.getJSONObject(i));
+        }
+        return records.length();
+    }
+
+    /**
+     * Read the next json object of a stream
+     * @param reader positioned on an object
+     * @return object with values typed the way org.json would have parsed them
+     * @throws IOException
+     * @throws JSONException
+     */
+    protected static JSONObject readJSONObject(JsonReader reader) throws IOException, JSONException {
+        final JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            object.put(reader.nextName(), readJSONValue(reader));
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static Object readJSONValue(JsonReader reader) throws IOException, JSONException {
+        final JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readJSONObject(reader);
+            case BEGIN_ARRAY:
+                final JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readJSONValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                // Integer, Long or Double depending on literal
+                return new JSONTokener(reader.nextString()).nextValue();
+            default:
+                return reader.nextString();
+        }
+    }
+
     /**
      * Fetches list of IDs still present on the server from the list of local IDs.
      *
@@ -146,6 +235,75 @@ public abstract class SyncDownTarget extends SyncTarget {
      */
     public abstract Set<String> getListOfRemoteIds(SyncManager syncManager, Set<String> localIds);
 
+    /**
+     * Start fetching ids of the records conforming to target in ascending order (as SmartStore sorts strings),
+     * so that they can be merged with the sorted local ids without holding all of them in memory
+     * @param syncManager
+     * @return first page of ids or null if the target cannot return sorted ids (callers then use getListOfRemoteIds)
+     * @throws IOException, JSONException
+     */
+    public List<String> startFetchSortedIds(SyncManager syncManager) throws IOException, JSONException {
+        return null;
+    }
+
+    /**
+     * Continue fetching ids of the records conforming to target in ascending order
+     * @param syncManager
+     * @return next page of ids or null if there are no more ids to fetch
+     * @throws IOException, JSONException
+     */
+    public List<String> continueFetchSortedIds(SyncManager syncManager) throws IOException, JSONException {
+        return null;
+    }
+
+    /**
+     * @return where continueFetch() / continueFetchStreaming() will pick up, as json that can be saved with the sync,
+     * or null if there are no more records to fetch or the target cannot resume a fetch (the default)
+     * @throws JSONException
+     */
+    public JSONObject getResumePoint() throws JSONException {
+        return null;
+    }
+
+    /**
+     * Restore a resume point returned by getResumePoint() (e.g. after the process was killed in the middle of a sync)
+     * so that continueFetch() / continueFetchStreaming() pick up from there
+     * The server may no longer honor it (e.g. expired query locator): continueFetch() then fails
+     * @param resumePoint
+     * @return true if the target can resume from that point
+     * @throws JSONException
+     */
+    public boolean restoreResumePoint(JSONObject resumePoint) throws JSONException {
+        return false;
+    }
+
+    /**
+     * Called when a sync down is cancelled (not when it is paused) to release what the fetch in progress holds on the server (e.g. a query job)
+     * Runs on the sync thread once the sync has stopped fetching; failures should be logged, not thrown (the default does nothing)
+     * @param syncManager
+     */
+    public void cancelFetch(SyncManager syncManager) {
+    }
+
+    /**
+     * Fetch ids of the records deleted on the server since maxTimeStamp
+     * Called at the end of a resync so that those records can be removed locally without a full cleanResyncGhosts
+     * @param syncManager
+     * @param maxTimeStamp
+     * @return ids of deleted records or null if the target cannot tell (the default)
+     * @throws IOException, JSONException
+     */
+    public List<String> fetchDeletedIds(SyncManager syncManager, long maxTimeStamp) throws IOException, JSONException {
+        return null;
+    }
+
+    /**
+     * Called at the end of a sync down, once all the records have been fetched and saved, right before the sync is saved as done
+     * Targets that keep track of their last sync (in the json returned by asJSON()) should update it here (the default does nothing)
+     */
+    public void onSyncDone() {
+    }
+
     /**
      * @return number of records expected to be fetched - is set when startFetch() is called
      */
@@ -175,7 +333,7 @@ public abstract class SyncDownTarget extends SyncTarget {
                 break; // field not present
             }
             try {
-                long timeStamp = Constants.TIMESTAMP_FORMAT.parse(timeStampStr).getTime();
+                long timeStamp = Constants.getTimestampFormat().parse(timeStampStr).getTime();
                 maxTimeStamp = Math.max(timeStamp, maxTimeStamp);
             } catch (Exception e) {
                 Log.w("SyncDownTarget.getLatestModificationTimeStamp", "Could not parse modification date field " + getModificationDateFieldName(), e);
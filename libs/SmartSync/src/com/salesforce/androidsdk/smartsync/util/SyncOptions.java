@@ -43,9 +43,13 @@ public class SyncOptions {
 
     public static final String MERGEMODE = "mergeMode";
 	public static final String FIELDLIST = "fieldlist";
+	public static final String PIPELINED = "pipelined";
+	public static final String STREAMING = "streaming";
 
     private MergeMode mergeMode;
 	private List<String> fieldlist;
+	private boolean pipelined;
+	private boolean streaming;
 	
 	/**
 	 * Build SyncOptions from json
@@ -60,7 +64,9 @@ public class SyncOptions {
         String mergeModeStr = JSONObjectHelper.optString(options, MERGEMODE);
         MergeMode mergeMode = mergeModeStr == null ? null : MergeMode.valueOf(mergeModeStr);
 		List<String> fieldlist = toList(options.optJSONArray(FIELDLIST));
-		return new SyncOptions(fieldlist, mergeMode);
+		boolean pipelined = options.optBoolean(PIPELINED, false);
+		boolean streaming = options.optBoolean(STREAMING, false);
+		return new SyncOptions(fieldlist, mergeMode, pipelined, streaming);
 	}
 
 	/**
@@ -88,14 +94,46 @@ public class SyncOptions {
         return new SyncOptions(null, mergeMode);
     }
 
+    /**
+     * @param mergeMode
+     * @param pipelined if true, the next page of records is fetched while the current one is saved
+     * @return
+     */
+    public static SyncOptions optionsForSyncDown(MergeMode mergeMode, boolean pipelined) {
+        return new SyncOptions(null, mergeMode, pipelined, false);
+    }
+
+    /**
+     * Options for a sync down that parses responses as they are read from the network and saves records in small batches
+     * instead of holding whole pages in memory
+     * @param mergeMode
+     * @return
+     */
+    public static SyncOptions optionsForStreamingSyncDown(MergeMode mergeMode) {
+        return new SyncOptions(null, mergeMode, false, true);
+    }
+
 	/**
 	 * Private constructor
 	 * @param fieldlist
      * @param mergeMode
 	 */
 	private SyncOptions(List<String> fieldlist, MergeMode mergeMode) {
+		this(fieldlist, mergeMode, false, false);
+	}
+
+	/**
+	 * Private constructor
+	 * @param fieldlist
+	 * @param mergeMode
+	 * @param pipelined
+	 * @param streaming
+	 */
+	private SyncOptions(List<String> fieldlist, MergeMode mergeMode, boolean pipelined, boolean streaming) {
 		this.fieldlist = fieldlist;
         this.mergeMode = mergeMode;
+		this.pipelined = pipelined;
+		this.streaming = streaming;
 	}
 	
 	/**
@@ -106,6 +144,8 @@ public class SyncOptions {
 		JSONObject options = new JSONObject();
         if (mergeMode != null) options.put(MERGEMODE, mergeMode.name());
 		if (fieldlist != null) options.put(FIELDLIST, new JSONArray(fieldlist));
+		if (pipelined) options.put(PIPELINED, true);
+		if (streaming) options.put(STREAMING, true);
 		return options;
 	}
 
@@ -116,6 +156,14 @@ public class SyncOptions {
     public MergeMode getMergeMode() {
         return mergeMode;
     }
+
+	public boolean isPipelined() {
+		return pipelined;
+	}
+
+	public boolean isStreaming() {
+		return streaming;
+	}
 	
 	@SuppressWarnings("unchecked")
 	private static <T> List<T> toList(JSONArray jsonArray) throws JSONException {
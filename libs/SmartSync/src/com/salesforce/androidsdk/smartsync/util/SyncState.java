@@ -49,6 +49,13 @@ public class SyncState {
 	public static final String SYNC_PROGRESS = "progress";
 	public static final String SYNC_TOTAL_SIZE = "totalSize";
     public static final String SYNC_MAX_TIME_STAMP = "maxTimeStamp";
+    public static final String SYNC_CHECKPOINT = "checkpoint";
+
+    // Checkpoint of a sync down (saved after each page so that an interrupted sync can be resumed)
+    public static final String CHECKPOINT_RESUME_POINT = "resumePoint";
+    public static final String CHECKPOINT_COUNT_SAVED = "countSaved";
+    public static final String CHECKPOINT_MAX_TIME_STAMP = "maxTimeStamp";
+    public static final String CHECKPOINT_TOTAL_SIZE = "totalSize";
 
 	private long id;
 	private Type type;
@@ -59,6 +66,7 @@ public class SyncState {
 	private int progress;
 	private int totalSize;
     private long maxTimeStamp;
+    private JSONObject checkpoint;
 	
 	
 	/**
@@ -134,6 +142,7 @@ public class SyncState {
 		state.progress = sync.getInt(SYNC_PROGRESS);
 		state.totalSize = sync.getInt(SYNC_TOTAL_SIZE);
         state.maxTimeStamp = sync.optLong(SYNC_MAX_TIME_STAMP, -1);
+        state.checkpoint = sync.optJSONObject(SYNC_CHECKPOINT);
 		return state;
 	}
 	
@@ -168,6 +177,7 @@ public class SyncState {
 		sync.put(SYNC_PROGRESS, progress);
 		sync.put(SYNC_TOTAL_SIZE, totalSize);
         sync.put(SYNC_MAX_TIME_STAMP, maxTimeStamp);
+        if (checkpoint != null) sync.put(SYNC_CHECKPOINT, checkpoint);
 		return sync;
 	}
 	
@@ -224,6 +234,32 @@ public class SyncState {
         this.maxTimeStamp = maxTimeStamp;
     }
 
+    /**
+     * @return last checkpoint of an interrupted sync down or null
+     */
+    public JSONObject getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Record how far a sync down got
+     * @param resumePoint where the target will pick up (see SyncDownTarget.getResumePoint) or null to clear the checkpoint
+     * @param countSaved number of records saved so far
+     * @param maxTimeStamp latest modification time stamp of the records saved so far
+     * @throws JSONException
+     */
+    public void setCheckpoint(JSONObject resumePoint, int countSaved, long maxTimeStamp) throws JSONException {
+        if (resumePoint == null) {
+            checkpoint = null;
+            return;
+        }
+        checkpoint = new JSONObject();
+        checkpoint.put(CHECKPOINT_RESUME_POINT, resumePoint);
+        checkpoint.put(CHECKPOINT_COUNT_SAVED, countSaved);
+        checkpoint.put(CHECKPOINT_MAX_TIME_STAMP, maxTimeStamp);
+        checkpoint.put(CHECKPOINT_TOTAL_SIZE, totalSize);
+    }
+
     public void setProgress(int progress) {
 		this.progress = progress;
 	}
@@ -247,6 +283,10 @@ public class SyncState {
 	public boolean isRunning() {
 		return this.status == Status.RUNNING;
 	}
+
+	public boolean isStopped() {
+		return this.status == Status.STOPPED;
+	}
 	
 	public SyncState copy() throws JSONException {
 		return SyncState.fromJSON(asJSON());
@@ -268,7 +308,8 @@ public class SyncState {
     	NEW,
     	RUNNING,
     	DONE,
-    	FAILED
+    	FAILED,
+    	STOPPED
     }
 
 
@@ -63,6 +63,23 @@ public abstract class SyncTarget {
         return target;
     }
 
+    /**
+     * Return api version to use for a resource only available starting with minApiVersion
+     * @param apiVersion api version of the sync manager (e.g. v36.0)
+     * @param minApiVersion
+     * @return apiVersion if it is at least minApiVersion, minApiVersion otherwise
+     */
+    protected static String getApiVersionAtLeast(String apiVersion, String minApiVersion) {
+        try {
+            if (apiVersion != null && Double.parseDouble(apiVersion.substring(1)) >= Double.parseDouble(minApiVersion.substring(1))) {
+                return apiVersion;
+            }
+        } catch (NumberFormatException e) {
+            // Unexpected format - fall back on minimum version
+        }
+        return minApiVersion;
+    }
+
     /**
      * @return The field name of the ID field of the record.  Defaults to "Id".
      */
@@ -26,6 +26,8 @@
  */
 package com.salesforce.androidsdk.smartsync.util;
 
+import android.util.Log;
+
 import com.salesforce.androidsdk.rest.RestRequest;
 import com.salesforce.androidsdk.rest.RestResponse;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
@@ -37,6 +39,9 @@ import org.json.JSONObject;
 
 import java.io.IOException;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -47,6 +52,10 @@ import java.util.Set;
  */
 public class SyncUpTarget extends SyncTarget {
 
+    // Keeps last modified date queries well under url length limits
+    public static final int MAX_IN_CLAUSE_LENGTH = 4000;
+    private static final String TAG = "SyncUpTarget";
+
     /**
      * Build SyncUpTarget from json
      *
@@ -162,6 +171,61 @@ public class SyncUpTarget extends SyncTarget {
         }
     }
 
+    /**
+     * Fetch last modified dates for a batch of records of a given type
+     * Ids are sent in as few queries as possible, each query keeping its IN clause under MAX_IN_CLAUSE_LENGTH characters
+     * @param syncManager
+     * @param objectType
+     * @param objectIds
+     * @return map of id to last modified date - ids whose query failed are left out, ids not found on the server are mapped to null
+     */
+    public Map<String, String> fetchLastModifiedDates(SyncManager syncManager, String objectType, List<String> objectIds) {
+        final Map<String, String> lastModifiedDates = new HashMap<String, String>();
+        final List<String> chunk = new ArrayList<String>();
+        int chunkLength = 0;
+        for (String objectId : objectIds) {
+            final int idLength = objectId.length() + 3; // quotes and comma
+            if (!chunk.isEmpty() && chunkLength + idLength > MAX_IN_CLAUSE_LENGTH) {
+                fetchLastModifiedDates(syncManager, objectType, chunk, lastModifiedDates);
+                chunk.clear();
+                chunkLength = 0;
+            }
+            chunk.add(objectId);
+            chunkLength += idLength;
+        }
+        if (!chunk.isEmpty()) {
+            fetchLastModifiedDates(syncManager, objectType, chunk, lastModifiedDates);
+        }
+        return lastModifiedDates;
+    }
+
+    private void fetchLastModifiedDates(SyncManager syncManager, String objectType, List<String> objectIds, Map<String, String> lastModifiedDates) {
+        try {
+            final StringBuilder inClause = new StringBuilder();
+            for (String objectId : objectIds) {
+                inClause.append(inClause.length() > 0 ? "," : "").append("'").append(objectId).append("'");
+            }
+            final String query = SOQLBuilder.getInstanceWithFields(getIdFieldName(), getModificationDateFieldName())
+                    .from(objectType)
+                    .where(getIdFieldName() + " IN (" + inClause + ")")
+                    .build();
+
+            RestResponse lastModResponse = syncManager.sendSyncWithSmartSyncUserAgent(RestRequest.getRequestForQuery(syncManager.apiVersion, query));
+            JSONArray records = lastModResponse.asJSONObject().getJSONArray(Constants.RECORDS);
+            for (String objectId : objectIds) {
+                lastModifiedDates.put(objectId, null);
+            }
+            for (int i = 0; i < records.length(); i++) {
+                JSONObject record = records.getJSONObject(i);
+                lastModifiedDates.put(record.getString(getIdFieldName()), record.optString(getModificationDateFieldName()));
+            }
+        }
+        catch (Exception e) {
+            // Caller falls back on fetchLastModifiedDate for ids left out
+            Log.e(TAG, "Exception thrown while fetching last modified dates of " + objectIds.size() + " " + objectType + " record(s)", e);
+        }
+    }
+
     /**
      * Return ids of records to sync up
      * @param syncManager
@@ -30,16 +30,24 @@ import java.io.File;
 import java.util.Map;
 import java.util.Set;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.salesforce.androidsdk.accounts.UserAccount;
 import com.salesforce.androidsdk.security.Encryptor;
+import com.salesforce.androidsdk.smartstore.store.DBHelper;
 import com.salesforce.androidsdk.smartstore.store.DBOpenHelper;
+import com.salesforce.androidsdk.smartstore.store.IndexSpec;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec;
+import com.salesforce.androidsdk.smartstore.store.SmartStore;
+import com.salesforce.androidsdk.smartstore.store.StoreTuning;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.test.InstrumentationTestCase;
 
@@ -187,6 +195,156 @@ public class DBOpenHelperTest extends InstrumentationTestCase {
 		assertNotSame("Helpers should be different instances.", helper, helperPostDelete);
 	}
 
+	/**
+	 * Ensures tuning is applied to the open database and page size is used when the database is created.
+	 */
+	public void testTuning() {
+		DBOpenHelper.deleteDatabase(targetContext, "tuneddb", null, null);
+		DBOpenHelper helper = DBOpenHelper.getOpenHelper(targetContext, "tuneddb", null, null);
+		helper.setTuning(new StoreTuning(4096, 4096, 0, StoreTuning.TempStore.MEMORY));
+		SQLiteDatabase db = helper.getWritableDatabase(PASSCODE);
+		assertEquals("Wrong cache size", -4096, getLongPragma(db, "cache_size"));
+		assertEquals("Wrong temp store", StoreTuning.TempStore.MEMORY.ordinal(), getLongPragma(db, "temp_store"));
+		assertEquals("Wrong page size", 4096, helper.getCipherPageSize());
+		assertEquals("Wrong page size", 4096, getLongPragma(db, "page_size"));
+
+		// Changes are applied right away
+		helper.setTuning(new StoreTuning(1024, 4096, 0, StoreTuning.TempStore.FILE));
+		assertEquals("Wrong cache size", -1024, getLongPragma(db, "cache_size"));
+		assertEquals("Wrong temp store", StoreTuning.TempStore.FILE.ordinal(), getLongPragma(db, "temp_store"));
+
+		// Page size is remembered when the database is opened again
+		helper.close();
+		db = helper.getWritableDatabase(PASSCODE);
+		assertEquals("Wrong page size", 4096, getLongPragma(db, "page_size"));
+		DBOpenHelper.deleteDatabase(targetContext, "tuneddb", null, null);
+	}
+
+	/**
+	 * Ensures caches shrink under memory pressure and grow back afterwards.
+	 */
+	public void testTrimMemory() {
+		DBOpenHelper helper = DBOpenHelper.getOpenHelper(targetContext, "somedb", null, null);
+		helper.setTuning(new StoreTuning(8192, 0, 0, StoreTuning.TempStore.MEMORY));
+		try {
+			DBOpenHelper.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+			assertEquals("Wrong memory pressure", StoreTuning.MemoryPressure.high, DBOpenHelper.getMemoryPressure());
+			assertEquals("Wrong cache size", 2048, helper.getEffectiveTuning().cacheSizeKb);
+
+			// Only escalates until relieved
+			DBOpenHelper.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+			assertEquals("Wrong memory pressure", StoreTuning.MemoryPressure.high, DBOpenHelper.getMemoryPressure());
+			DBOpenHelper.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+			assertEquals("Wrong cache size", StoreTuning.MIN_CACHE_SIZE_KB, helper.getEffectiveTuning().cacheSizeKb);
+			assertEquals("Wrong temp store", StoreTuning.TempStore.FILE, helper.getEffectiveTuning().tempStore);
+
+			assertFalse("Pressure was just reported", DBOpenHelper.relieveMemoryPressure(60000));
+		} finally {
+			assertTrue("Pressure should have been relieved", DBOpenHelper.relieveMemoryPressure(0));
+		}
+		assertSame("Wrong tuning", helper.getTuning(), helper.getEffectiveTuning());
+	}
+
+	/**
+	 * Ensures idle databases get closed and are re-opened transparently.
+	 */
+	public void testCloseIdleDatabases() throws JSONException {
+		DBOpenHelper helper1 = DBOpenHelper.getOpenHelper(targetContext, "idledb1", null, null);
+		DBOpenHelper helper2 = DBOpenHelper.getOpenHelper(targetContext, "idledb2", null, null);
+		try {
+			SmartStore store = new SmartStore(helper1, PASSCODE);
+			store.registerSoup(TEST_SOUP, new IndexSpec[] {new IndexSpec("key", SmartStore.Type.string)});
+			JSONObject elt = store.create(TEST_SOUP, new JSONObject("{'key':'value'}"));
+			assertTrue("Database should be open", helper1.isDatabaseOpen());
+
+			// Not closed right after being handed out
+			assertFalse("Database just used should not be closed", helper1.closeIfIdle());
+
+			// Not closed within a transaction
+			SQLiteDatabase db = helper1.getWritableDatabase(PASSCODE);
+			db.beginTransaction();
+			try {
+				helper1.setLastAccessTime(0);
+				assertFalse("Database in transaction should not be closed", helper1.closeIfIdle());
+			} finally {
+				db.endTransaction();
+			}
+
+			// Closed then re-opened on next access
+			helper1.setLastAccessTime(0);
+			assertTrue("Database should have been closed", helper1.closeIfIdle());
+			assertFalse("Database should be closed", helper1.isDatabaseOpen());
+			assertEquals("Element should still be there", 1, store.retrieve(TEST_SOUP, elt.getLong(SmartStore.SOUP_ENTRY_ID)).length());
+			assertTrue("Database should be open", helper1.isDatabaseOpen());
+
+			// Least recently used closed first
+			helper2.getWritableDatabase(PASSCODE);
+			helper1.setLastAccessTime(0);
+			helper2.setLastAccessTime(0);
+			DBOpenHelper.setIdlePolicy(-1, 0);
+			DBOpenHelper.closeIdleDatabases();
+			assertFalse("Database should be closed", helper1.isDatabaseOpen());
+			assertFalse("Database should be closed", helper2.isDatabaseOpen());
+		} finally {
+			DBOpenHelper.setIdlePolicy(DBOpenHelper.DEFAULT_IDLE_CLOSE_MILLIS, DBOpenHelper.DEFAULT_MAX_OPEN_DATABASES);
+			DBOpenHelper.deleteDatabase(targetContext, "idledb1", null, null);
+			DBOpenHelper.deleteDatabase(targetContext, "idledb2", null, null);
+		}
+	}
+
+	/**
+	 * Ensures databases are not closed unless an idle policy is set.
+	 */
+	public void testNoIdleCloseByDefault() {
+		DBOpenHelper helper = DBOpenHelper.getOpenHelper(targetContext, "idledb1", null, null);
+		try {
+			helper.getWritableDatabase(PASSCODE);
+			helper.setLastAccessTime(0);
+			assertEquals("No database should have been closed", 0, DBOpenHelper.closeIdleDatabases());
+			assertTrue("Database should be open", helper.isDatabaseOpen());
+		} finally {
+			DBOpenHelper.deleteDatabase(targetContext, "idledb1", null, null);
+		}
+	}
+
+	/**
+	 * Ensures attached databases, query cache limit and writes pending analysis survive an idle close.
+	 */
+	public void testIdleCloseKeepsSettings() throws JSONException {
+		DBOpenHelper helper1 = DBOpenHelper.getOpenHelper(targetContext, "idledb1", null, null);
+		DBOpenHelper helper2 = DBOpenHelper.getOpenHelper(targetContext, "idledb2", null, null);
+		try {
+			SmartStore store = new SmartStore(helper1, PASSCODE);
+			store.registerSoup(TEST_SOUP, new IndexSpec[] {new IndexSpec("key", SmartStore.Type.string)});
+			store.create(TEST_SOUP, new JSONObject("{'key':'value'}"));
+			SmartStore otherStore = new SmartStore(helper2, PASSCODE);
+			otherStore.registerSoup(TEST_SOUP, new IndexSpec[] {new IndexSpec("key", SmartStore.Type.string)});
+			otherStore.create(TEST_SOUP, new JSONObject("{'key':'other'}"));
+			store.attachStore("other", otherStore);
+			store.setQueryCacheMaxBytes(4096);
+
+			helper1.setLastAccessTime(0);
+			assertTrue("Database should have been closed", helper1.closeIfIdle());
+			assertFalse("Database should be closed", helper1.isDatabaseOpen());
+
+			SQLiteDatabase db = helper1.getWritableDatabase(PASSCODE);
+			assertEquals("Query cache limit should have been kept", 4096, store.getQueryResultCache().getMaxBytes());
+			assertEquals("Pending writes should have been kept", Integer.valueOf(1), DBHelper.getInstance(db).getPendingWrites().get(TEST_SOUP));
+			assertNotNull("Other store should be attached again", DBHelper.getInstance(db).getAttachedDatabase("other"));
+			JSONArray result = store.query(QuerySpec.buildSmartQuerySpec("SELECT {other:" + TEST_SOUP + ":key} FROM {other:" + TEST_SOUP + "}", 1), 0);
+			assertEquals("Wrong result", "other", result.getJSONArray(0).getString(0));
+			store.detachStore("other");
+
+			// Explicit close forgets them
+			helper1.close();
+			db = helper1.getWritableDatabase(PASSCODE);
+			assertNull("Other store should not be attached", DBHelper.getInstance(db).getAttachedDatabase("other"));
+		} finally {
+			DBOpenHelper.deleteDatabase(targetContext, "idledb1", null, null);
+			DBOpenHelper.deleteDatabase(targetContext, "idledb2", null, null);
+		}
+	}
+
 	/**
 	 * Ensure that only the single community-specific database is deleted.
 	 */
@@ -527,4 +685,16 @@ public class DBOpenHelperTest extends InstrumentationTestCase {
 		final String[] pathParts = db.getPath().split("/");
 		return pathParts[pathParts.length - 1];
 	}
+
+	private long getLongPragma(SQLiteDatabase db, String pragma) {
+		Cursor cursor = null;
+		try {
+			cursor = db.rawQuery("PRAGMA " + pragma, null);
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+	}
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.store;
+
+import android.test.InstrumentationTestCase;
+
+import com.salesforce.androidsdk.smartstore.store.IndexSpec;
+import com.salesforce.androidsdk.smartstore.store.JsonPathExtractor;
+import com.salesforce.androidsdk.smartstore.store.SmartStore;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Test class for JsonPathExtractor
+ *
+ */
+public class JsonPathExtractorTest extends InstrumentationTestCase {
+
+	private static final String RAW_SOUP_ELT = "{'a':'va', 'b':{'c':5, 'd':{'e':1.5, 'f':null}, 'g':true}, 'h':[{'i':'vi1'}, {'i':'vi2'}], 'j':12345678901, 'k':{'l':'vl'}}";
+
+	/**
+	 * TEST extracting scalars at various depths
+	 */
+	public void testExtractScalars() throws JSONException {
+		checkSameAsProject("a", "b.c", "b.d.e", "b.d.f", "b.g", "j");
+	}
+
+	/**
+	 * TEST extracting missing paths and paths going through scalars
+	 */
+	public void testExtractMissing() throws JSONException {
+		checkSameAsProject("x", "b.x", "a.x", "b.c.x", "b.d.f.x");
+	}
+
+	/**
+	 * TEST extracting paths ending on objects or going through arrays (resolved with tree)
+	 */
+	public void testExtractObjectsAndArrays() throws JSONException {
+		checkSameAsProject("b.d", "h", "h.i", "k", "", "k.l");
+	}
+
+	/**
+	 * TEST extracting values from invalid json
+	 */
+	public void testExtractFromInvalidJson() {
+		try {
+			JsonPathExtractor.extract("{'a':", new IndexSpec[] {new IndexSpec("a", Type.string)});
+			fail("Exception expected");
+		} catch (JSONException e) {
+			// Expected
+		}
+	}
+
+	private void checkSameAsProject(String... paths) throws JSONException {
+		String rawSoupElt = new JSONObject(RAW_SOUP_ELT).toString();
+		IndexSpec[] indexSpecs = new IndexSpec[paths.length];
+		for (int i=0; i<paths.length; i++) {
+			indexSpecs[i] = new IndexSpec(paths[i], Type.string);
+		}
+		Object[] values = JsonPathExtractor.extract(rawSoupElt, indexSpecs);
+		JSONObject soupElt = new JSONObject(rawSoupElt);
+		for (int i=0; i<paths.length; i++) {
+			Object expected = SmartStore.project(soupElt, paths[i]);
+			assertEquals("Wrong value for " + paths[i], expected == null ? null : expected.toString(), values[i] == null ? null : values[i].toString());
+			if (expected instanceof Number) {
+				assertEquals("Wrong type for " + paths[i], expected.getClass(), values[i].getClass());
+			}
+		}
+	}
+}
@@ -28,7 +28,13 @@ package com.salesforce.androidsdk.store;
 
 import android.test.InstrumentationTestCase;
 
+import com.salesforce.androidsdk.smartstore.store.QueryPredicate;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec;
+import com.salesforce.androidsdk.smartstore.store.SmartStore.SmartStoreException;
+
+import org.json.JSONException;
+
+import java.util.Arrays;
 
 /**
  * Test class for QuerySpecTest
@@ -116,6 +122,12 @@ public class QuerySpecTest extends InstrumentationTestCase {
         assertEquals("Wrong ids smart sql for match query spec", "SELECT id FROM {employees} WHERE {employees:_soupEntryId} IN (SELECT rowid FROM {employees}_fts WHERE {employees}_fts MATCH '{employees:lastName}:Bond') ORDER BY {employees:firstName} ASC ", querySpec.idsSmartSql);
     }
 
+    public void testRankedMatchQuerySmartSql() {
+        QuerySpec querySpec = QuerySpec.buildRankedMatchQuerySpec("employees", new String[]{"firstName", "lastName:snippet"}, "lastName", "Bond", 1);
+        assertEquals("Wrong smart sql for ranked match query spec", "SELECT {employees:firstName}, {employees:lastName:snippet} FROM {employees}, {employees}_fts WHERE {employees}_fts.rowid = {employees:_soupEntryId} AND {employees}_fts MATCH '{employees:lastName}:Bond' ORDER BY {employees:_rank} ASC ", querySpec.smartSql);
+        assertEquals("Wrong count smart sql for ranked match query spec", "SELECT count(*) FROM {employees}, {employees}_fts WHERE {employees}_fts.rowid = {employees:_soupEntryId} AND {employees}_fts MATCH '{employees:lastName}:Bond' ", querySpec.countSmartSql);
+    }
+
     public void testLikeQuerySmartSql() {
         QuerySpec querySpec = QuerySpec.buildLikeQuerySpec("employees", "lastName", "Bon%" , "lastName", QuerySpec.Order.ascending, 1);
         assertEquals("Wrong smart sql for like query spec", "SELECT {employees:_soup} FROM {employees} WHERE {employees:lastName} LIKE ? ORDER BY {employees:lastName} ASC ", querySpec.smartSql);
@@ -131,6 +143,88 @@ public class QuerySpecTest extends InstrumentationTestCase {
         assertEquals("Wrong ids smart sql for like query spec", "SELECT id FROM {employees} WHERE {employees:lastName} LIKE ? ORDER BY {employees:lastName} ASC ", querySpec.idsSmartSql);
     }
 
+    public void testAggregateQuerySmartSql() {
+        QuerySpec querySpec = QuerySpec.buildAggregateQuerySpec("employees", new String[] {"deptCode"},
+                new QuerySpec.Aggregate[] {QuerySpec.Aggregate.count(), new QuerySpec.Aggregate(QuerySpec.AggregateFunction.avg, "salary")},
+                "salary:avg", QuerySpec.Order.descending, 10);
+        assertEquals("Wrong smart sql for aggregate query spec", "SELECT {employees:deptCode}, {employees:_soupEntryId:count}, {employees:salary:avg} FROM {employees} GROUP BY {employees:deptCode} ORDER BY {employees:salary:avg} DESC ", querySpec.smartSql);
+    }
+
+    public void testAggregateQuerySmartSqlWithRange() {
+        QuerySpec querySpec = QuerySpec.buildAggregateQuerySpec("employees", null,
+                new QuerySpec.Aggregate[] {new QuerySpec.Aggregate(QuerySpec.AggregateFunction.sum, "salary")},
+                "lastName", "Bond", "Smith", null, null, 1);
+        assertEquals("Wrong smart sql for aggregate query spec", "SELECT {employees:salary:sum} FROM {employees} WHERE {employees:lastName} >= ? AND {employees:lastName} <= ? ", querySpec.smartSql);
+        assertEquals("Wrong count smart sql for aggregate query spec", "SELECT count(*) FROM (" + querySpec.smartSql + ")", querySpec.countSmartSql);
+        assertNull("Aggregate query spec should not have ids smart sql", querySpec.idsSmartSql);
+    }
+
+    public void testCompoundQuerySmartSql() {
+        QuerySpec querySpec = QuerySpec.buildCompoundQuerySpec("employees", new String[] {"firstName"},
+                QueryPredicate.and(QueryPredicate.eq("deptCode", "xyz"), QueryPredicate.or(QueryPredicate.isNull("managerId"), QueryPredicate.ge("salary", "100"))),
+                new QuerySpec.OrderBy[] {new QuerySpec.OrderBy("lastName", QuerySpec.Order.ascending), new QuerySpec.OrderBy("firstName", QuerySpec.Order.descending)}, 1);
+        assertEquals("Wrong smart sql for compound query spec", "SELECT {employees:firstName} FROM {employees} WHERE ({employees:deptCode} = ?) AND (({employees:managerId} IS NULL) OR ({employees:salary} >= ?)) ORDER BY {employees:lastName} ASC, {employees:firstName} DESC ", querySpec.smartSql);
+        assertEquals("Wrong count smart sql for compound query spec", "SELECT count(*) FROM {employees} WHERE ({employees:deptCode} = ?) AND (({employees:managerId} IS NULL) OR ({employees:salary} >= ?)) ", querySpec.countSmartSql);
+        assertEquals("Wrong ids smart sql for compound query spec", "SELECT id FROM {employees} WHERE ({employees:deptCode} = ?) AND (({employees:managerId} IS NULL) OR ({employees:salary} >= ?)) ORDER BY {employees:lastName} ASC, {employees:firstName} DESC ", querySpec.idsSmartSql);
+        assertEquals("Wrong args for compound query spec", Arrays.asList("xyz", "100"), Arrays.asList(querySpec.getArgs()));
+    }
+
+    public void testCompoundQueryOrOfEqualitiesBecomesIn() {
+        QuerySpec querySpec = QuerySpec.buildCompoundQuerySpec("employees", null,
+                QueryPredicate.or(QueryPredicate.eq("deptCode", "a"), QueryPredicate.in("deptCode", "b", "c")), null, 1);
+        assertEquals("Wrong smart sql for compound query spec", "SELECT {employees:_soup} FROM {employees} WHERE {employees:deptCode} IN (?, ?, ?) ", querySpec.smartSql);
+        assertEquals("Wrong args for compound query spec", Arrays.asList("a", "b", "c"), Arrays.asList(querySpec.getArgs()));
+    }
+
+    public void testCompoundQueryJSONRoundTrip() throws JSONException {
+        QuerySpec querySpec = QuerySpec.buildCompoundQuerySpec("employees", new String[] {"firstName"},
+                QueryPredicate.and(QueryPredicate.like("lastName", "B%"), QueryPredicate.or(QueryPredicate.isNotNull("managerId"), QueryPredicate.in("deptCode", "a", "b"))),
+                new QuerySpec.OrderBy[] {new QuerySpec.OrderBy("lastName", QuerySpec.Order.descending)}, 5);
+        QuerySpec roundTripped = QuerySpec.fromJSON("employees", querySpec.toJSON());
+        assertEquals("Wrong query type after round trip", QuerySpec.QueryType.compound, roundTripped.queryType);
+        assertEquals("Wrong page size after round trip", 5, roundTripped.pageSize);
+        assertEquals("Wrong smart sql after round trip", querySpec.smartSql, roundTripped.smartSql);
+        assertEquals("Wrong count smart sql after round trip", querySpec.countSmartSql, roundTripped.countSmartSql);
+        assertEquals("Wrong args after round trip", Arrays.asList(querySpec.getArgs()), Arrays.asList(roundTripped.getArgs()));
+    }
+
+    public void testQueryJSONRoundTrip() throws JSONException {
+        QuerySpec[] querySpecs = new QuerySpec[] {
+                QuerySpec.buildAllQuerySpec("employees", new String[] {"firstName", "lastName"}, "lastName", QuerySpec.Order.descending, 1),
+                QuerySpec.buildRangeQuerySpec("employees", "lastName", "Bond", "Smith", "lastName", QuerySpec.Order.ascending, 2),
+                QuerySpec.buildAggregateQuerySpec("employees", new String[] {"deptCode"},
+                        new QuerySpec.Aggregate[] {QuerySpec.Aggregate.count()}, null, null, null, "deptCode", QuerySpec.Order.ascending, 3),
+                QuerySpec.buildCompoundQuerySpec("employees", null, null, null, 4),
+                QuerySpec.buildSmartQuerySpec("select {employees:salary} from {employees}", 5)
+        };
+        for (QuerySpec querySpec : querySpecs) {
+            QuerySpec roundTripped = QuerySpec.fromJSON("employees", querySpec.toJSON());
+            assertEquals("Wrong query type after round trip", querySpec.queryType, roundTripped.queryType);
+            assertEquals("Wrong smart sql after round trip for " + querySpec.queryType, querySpec.smartSql, roundTripped.smartSql);
+        }
+    }
+
+    public void testInvalidPredicates() {
+        try {
+            QueryPredicate.eq("deptCode", null);
+            fail("Null value should have been rejected");
+        } catch (SmartStoreException e) {
+            // expected
+        }
+        try {
+            QueryPredicate.in("deptCode");
+            fail("Empty IN should have been rejected");
+        } catch (SmartStoreException e) {
+            // expected
+        }
+        try {
+            QueryPredicate.and();
+            fail("Empty AND should have been rejected");
+        } catch (SmartStoreException e) {
+            // expected
+        }
+    }
+
     public void testSmartQueryCountSmartSql() {
         QuerySpec querySpec = QuerySpec.buildSmartQuerySpec("select {employees:salary} from {employees} where {employees:lastName} = 'Haas'", 1);
         assertEquals("Wrong count smart sql", "SELECT count(*) FROM (select {employees:salary} from {employees} where {employees:lastName} = 'Haas')", querySpec.countSmartSql);
@@ -31,6 +31,7 @@ import android.database.Cursor;
 import com.salesforce.androidsdk.smartstore.store.DBHelper;
 import com.salesforce.androidsdk.smartstore.store.IndexSpec;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec;
+import com.salesforce.androidsdk.smartstore.store.SmartSqlHelper;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
 import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
 import com.salesforce.androidsdk.smartstore.store.SoupSpec;
@@ -669,6 +670,101 @@ public class SmartStoreFullTextSearchTest extends SmartStoreTestCase {
         trySearch(new long[]{eileenEvaId, christineHaasId}, null, "{employees:lastName}:Eva OR Haas NOT Ali", LAST_NAME);
     }
 
+    /**
+     * Test creating fts tables with prefix indexes with fts4
+     */
+    public void testPrefixIndexesWithFts4() throws JSONException {
+        tryPrefixIndexes(SmartStore.FtsExtension.fts4, "prefix=\"2,3\"");
+    }
+
+    /**
+     * Test creating fts tables with prefix indexes with fts5
+     */
+    public void testPrefixIndexesWithFts5() throws JSONException {
+        tryPrefixIndexes(SmartStore.FtsExtension.fts5, "prefix='2 3'");
+    }
+
+    private void tryPrefixIndexes(SmartStore.FtsExtension ftsExtension, String expectedPrefixOption) throws JSONException {
+        store.setFtsPrefixLengths(2, 3);
+        loadData(ftsExtension);
+        checkCreateTableStatement(TABLE_NAME + SmartStore.FTS_SUFFIX, expectedPrefixOption);
+
+        // Prefix searches should behave the same
+        trySearch(new long[]{christineHaasId, aliHaasId}, LAST_NAME, "Ha*", EMPLOYEE_ID);
+        trySearch(new long[]{evaPulaskiId, eileenEvaId}, FIRST_NAME, "E*", EMPLOYEE_ID);
+    }
+
+    /**
+     * Test ranked search with fts5
+     */
+    public void testRankedSearchWithFts5() throws JSONException {
+        loadData(SmartStore.FtsExtension.fts5);
+        long haasHaasId = createEmployee("Haas", "Haas", "00080");
+
+        JSONArray results = store.query(QuerySpec.buildRankedMatchQuerySpec(EMPLOYEES_SOUP, new String[]{SmartStore.SOUP_ENTRY_ID}, null, "Haas", 25), 0);
+        assertEquals("Wrong number of results", 3, results.length());
+        assertEquals("Best match should be first", haasHaasId, results.getJSONArray(0).getLong(0));
+        assertEquals("Wrong count", 3, store.countQuery(QuerySpec.buildRankedMatchQuerySpec(EMPLOYEES_SOUP, null, null, "Haas", 25)));
+    }
+
+    /**
+     * Test ranked search with fts4
+     */
+    public void testRankedSearchWithFts4() throws JSONException {
+        loadData(SmartStore.FtsExtension.fts4);
+        try {
+            store.query(QuerySpec.buildRankedMatchQuerySpec(EMPLOYEES_SOUP, null, null, "Haas", 25), 0);
+            fail("Ranked search should fail with fts4");
+        } catch (SmartSqlHelper.SmartSqlException e) {
+            assertTrue("Wrong exception", e.getMessage().contains("Ranking requires fts5"));
+        }
+    }
+
+    /**
+     * Test snippet and highlight with fts5
+     */
+    public void testSnippetAndHighlightWithFts5() throws JSONException {
+        loadData(SmartStore.FtsExtension.fts5);
+        JSONArray results = store.query(QuerySpec.buildRankedMatchQuerySpec(EMPLOYEES_SOUP,
+                new String[]{SmartStore.SOUP_ENTRY_ID, LAST_NAME + ":" + SmartSqlHelper.SNIPPET, FIRST_NAME + ":" + SmartSqlHelper.HIGHLIGHT}, LAST_NAME, "Stern", 25), 0);
+        assertEquals("Wrong number of results", 1, results.length());
+        assertEquals("Wrong result", irvingSternId, results.getJSONArray(0).getLong(0));
+        assertEquals("Wrong snippet", "<b>Stern</b>", results.getJSONArray(0).getString(1));
+        assertEquals("Wrong highlight", "Irving", results.getJSONArray(0).getString(2));
+    }
+
+    /**
+     * Test bulk replace of soup with full-text search indices
+     */
+    public void testBulkReplaceWithFts5() throws JSONException {
+        loadData(SmartStore.FtsExtension.fts5);
+        JSONArray employees = new JSONArray();
+        employees.put(new JSONObject().put(FIRST_NAME, "Ada").put(LAST_NAME, "Lovelace").put(EMPLOYEE_ID, "00100"));
+        employees.put(new JSONObject().put(FIRST_NAME, "Alan").put(LAST_NAME, "Turing").put(EMPLOYEE_ID, "00101"));
+        store.replaceSoupContent(EMPLOYEES_SOUP, employees);
+
+        String soupTableName = getSoupTableName(EMPLOYEES_SOUP);
+        assertFalse("Table should have changed", TABLE_NAME.equals(soupTableName));
+        assertFalse("Old FTS table should be gone", hasTable(TABLE_NAME + SmartStore.FTS_SUFFIX));
+        assertTrue("FTS table should exist", hasTable(soupTableName + SmartStore.FTS_SUFFIX));
+        assertEquals("Old content should be gone", 0, store.countQuery(QuerySpec.buildMatchQuerySpec(EMPLOYEES_SOUP, LAST_NAME, "Haas", null, null, 25)));
+        JSONArray results = store.query(QuerySpec.buildMatchQuerySpec(EMPLOYEES_SOUP, LAST_NAME, "Turing", null, null, 25), 0);
+        assertEquals("Wrong number of results", 1, results.length());
+        assertEquals("Wrong result", "Alan", results.getJSONObject(0).getString(FIRST_NAME));
+    }
+
+    /**
+     * Test snippet with fts4
+     */
+    public void testSnippetWithFts4() throws JSONException {
+        loadData(SmartStore.FtsExtension.fts4);
+        JSONArray results = store.query(QuerySpec.buildMatchQuerySpec(EMPLOYEES_SOUP,
+                new String[]{SmartStore.SOUP_ENTRY_ID, LAST_NAME + ":" + SmartSqlHelper.SNIPPET}, LAST_NAME, "Stern", null, null, 25), 0);
+        assertEquals("Wrong number of results", 1, results.length());
+        assertEquals("Wrong result", irvingSternId, results.getJSONArray(0).getLong(0));
+        assertEquals("Wrong snippet", "<b>Stern</b>", results.getJSONArray(0).getString(1));
+    }
+
     private void trySearch(long[] expectedIds, String path, String matchKey, String orderPath) throws JSONException {
         // Returning soup elements
         JSONArray results = store.query(QuerySpec.buildMatchQuerySpec(EMPLOYEES_SOUP, path, matchKey, orderPath, QuerySpec.Order.ascending, 25), 0);
@@ -29,10 +29,19 @@ package com.salesforce.androidsdk.store;
 import android.database.Cursor;
 import android.os.SystemClock;
 
+import com.salesforce.androidsdk.smartstore.store.AggregateResult;
 import com.salesforce.androidsdk.smartstore.store.DBHelper;
+import com.salesforce.androidsdk.smartstore.store.DBOpenHelper;
 import com.salesforce.androidsdk.smartstore.store.IndexSpec;
+import com.salesforce.androidsdk.smartstore.store.QueryPredicate;
+import com.salesforce.androidsdk.smartstore.store.QueryResultCache;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec.Aggregate;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec.AggregateFunction;
+import com.salesforce.androidsdk.smartstore.store.QuerySpec.OrderBy;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec.Order;
+import com.salesforce.androidsdk.smartstore.store.RowMapper;
+import com.salesforce.androidsdk.smartstore.store.SmartSqlHelper;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
 import com.salesforce.androidsdk.smartstore.store.SmartStore.Type;
 import com.salesforce.androidsdk.smartstore.store.SoupSpec;
@@ -44,6 +53,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -589,6 +600,475 @@ public class SmartStoreTest extends SmartStoreTestCase {
 		}
 	}
 
+	/**
+	 * Testing query with row mapper: check rows are mapped from cursor in order
+	 * @throws JSONException
+	 */
+	public void testQueryWithRowMapper() throws JSONException {
+		JSONObject soupElt1Created = store.create(TEST_SOUP, new JSONObject("{'key':'ka1', 'value':'va1'}"));
+		JSONObject soupElt2Created = store.create(TEST_SOUP, new JSONObject("{'key':'ka2', 'value':'va2'}"));
+		store.create(TEST_SOUP, new JSONObject("{'key':'kb3', 'value':'va3'}"));
+
+		RowMapper<String> rowMapper = new RowMapper<String>() {
+			@Override
+			public String mapRow(Cursor cursor) {
+				return cursor.getLong(0) + ":" + cursor.getString(1);
+			}
+		};
+		QuerySpec querySpec = QuerySpec.buildLikeQuerySpec(TEST_SOUP, new String[] {SmartStore.SOUP_ENTRY_ID, "key"}, "key", "ka%", "key", Order.descending, 10);
+		List<String> results = store.query(querySpec, 0, rowMapper);
+		assertEquals("Wrong results", Arrays.asList(idOf(soupElt2Created) + ":ka2", idOf(soupElt1Created) + ":ka1"), results);
+
+		// Paging
+		querySpec = QuerySpec.buildLikeQuerySpec(TEST_SOUP, new String[] {SmartStore.SOUP_ENTRY_ID, "key"}, "key", "ka%", "key", Order.descending, 1);
+		assertEquals("Wrong results for page 1", Arrays.asList(idOf(soupElt1Created) + ":ka1"), store.query(querySpec, 1, rowMapper));
+		assertEquals("Wrong results for page 2", 0, store.query(querySpec, 2, rowMapper).size());
+	}
+
+	/**
+	 * Testing aggregate query: count, sum, min, max and avg computed by SQLite with group by
+	 * @throws JSONException
+	 */
+	public void testAggregateQuery() throws JSONException {
+		store.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("dept", Type.string), new IndexSpec("salary", Type.integer)});
+		store.create(OTHER_TEST_SOUP, new JSONObject("{'dept':'a', 'salary':100}"));
+		store.create(OTHER_TEST_SOUP, new JSONObject("{'dept':'a', 'salary':200}"));
+		store.create(OTHER_TEST_SOUP, new JSONObject("{'dept':'b', 'salary':50}"));
+
+		QuerySpec querySpec = QuerySpec.buildAggregateQuerySpec(OTHER_TEST_SOUP, new String[] {"dept"},
+				new Aggregate[] {Aggregate.count(), new Aggregate(AggregateFunction.sum, "salary"), new Aggregate(AggregateFunction.min, "salary"),
+						new Aggregate(AggregateFunction.max, "salary"), new Aggregate(AggregateFunction.avg, "salary")},
+				"dept", Order.ascending, 10);
+		List<AggregateResult> results = store.aggregate(querySpec, 0);
+		assertEquals("Wrong number of groups", 2, results.size());
+		assertEquals("Wrong group", "a", results.get(0).getGroupByString(0));
+		assertEquals("Wrong count", 2, results.get(0).getLong(0));
+		assertEquals("Wrong sum", 300, results.get(0).getLong(1));
+		assertEquals("Wrong min", 100, results.get(0).getLong(2));
+		assertEquals("Wrong max", 200, results.get(0).getLong(3));
+		assertEquals("Wrong avg", 150.0, results.get(0).getDouble(4));
+		assertEquals("Wrong group", "b", results.get(1).getGroupByString(0));
+		assertEquals("Wrong count", 1, results.get(1).getLong(0));
+		assertEquals("Wrong count of groups", 2, store.countQuery(querySpec));
+
+		// With range and no group by
+		querySpec = QuerySpec.buildAggregateQuerySpec(OTHER_TEST_SOUP, null, new Aggregate[] {new Aggregate(AggregateFunction.sum, "salary")},
+				"salary", "100", null, null, null, 1);
+		results = store.aggregate(querySpec, 0);
+		assertEquals("Wrong number of rows", 1, results.size());
+		assertEquals("Wrong sum", 300, results.get(0).getLong(0));
+
+		// Through query
+		JSONArray rows = store.query(querySpec, 0);
+		assertEquals("Wrong sum", 300, rows.getJSONArray(0).getLong(0));
+	}
+
+	/**
+	 * Testing compound query: and/or/in/is null predicates with multi-column ordering
+	 * @throws JSONException
+	 */
+	public void testCompoundQuery() throws JSONException {
+		store.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("dept", Type.string), new IndexSpec("name", Type.string), new IndexSpec("manager", Type.string)});
+		JSONObject e1 = store.create(OTHER_TEST_SOUP, new JSONObject("{'dept':'a', 'name':'n1'}"));
+		JSONObject e2 = store.create(OTHER_TEST_SOUP, new JSONObject("{'dept':'a', 'name':'n2', 'manager':'m1'}"));
+		JSONObject e3 = store.create(OTHER_TEST_SOUP, new JSONObject("{'dept':'b', 'name':'n3'}"));
+		store.create(OTHER_TEST_SOUP, new JSONObject("{'dept':'c', 'name':'n4', 'manager':'m1'}"));
+
+		// (dept in (a, b)) and (manager is null) ordered by dept desc, name asc
+		QuerySpec querySpec = QuerySpec.buildCompoundQuerySpec(OTHER_TEST_SOUP, null,
+				QueryPredicate.and(QueryPredicate.in("dept", "a", "b"), QueryPredicate.isNull("manager")),
+				new OrderBy[] {new OrderBy("dept", Order.descending), new OrderBy("name", Order.ascending)}, 10);
+		JSONArray results = store.query(querySpec, 0);
+		assertEquals("Wrong number of results", 2, results.length());
+		JSONTestHelper.assertSameJSON("Wrong first result", e3, results.getJSONObject(0));
+		JSONTestHelper.assertSameJSON("Wrong second result", e1, results.getJSONObject(1));
+		assertEquals("Wrong count", 2, store.countQuery(querySpec));
+
+		// (dept = a and manager = m1) or name like n1
+		querySpec = QuerySpec.buildCompoundQuerySpec(OTHER_TEST_SOUP, new String[] {"name"},
+				QueryPredicate.or(QueryPredicate.and(QueryPredicate.eq("dept", "a"), QueryPredicate.eq("manager", "m1")), QueryPredicate.like("name", "n1%")),
+				new OrderBy[] {new OrderBy("name", Order.ascending)}, 10);
+		JSONTestHelper.assertSameJSON("Wrong results", new JSONArray("[['n1'], ['n2']]"), store.query(querySpec, 0));
+
+		// Delete by compound query
+		store.deleteByQuery(OTHER_TEST_SOUP, querySpec);
+		assertEquals("Wrong count after delete", 2, store.countQuery(QuerySpec.buildAllQuerySpec(OTHER_TEST_SOUP, null, null, 10)));
+		assertEquals("Entry should have been deleted", 0, store.retrieve(OTHER_TEST_SOUP, idOf(e2)).length());
+	}
+
+	/**
+	 * Testing warm up: soup meta data should be cached afterwards
+	 * @throws JSONException
+	 */
+	public void testWarmUp() throws JSONException {
+		store.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.string)});
+		store.create(OTHER_TEST_SOUP, new JSONObject("{'key':'value'}"));
+		final SQLiteDatabase db = dbOpenHelper.getWritableDatabase(getPasscode());
+		final DBHelper dbHelper = DBHelper.getInstance(db);
+		dbHelper.clearMemoryCache();
+		assertNull("Table name should not be cached", dbHelper.getCachedTableName(OTHER_TEST_SOUP));
+
+		assertEquals("Wrong number of soups warmed up", store.getAllSoupNames().size(), store.warmUp(true));
+		assertNotNull("Table name should be cached", dbHelper.getCachedTableName(OTHER_TEST_SOUP));
+		assertNotNull("Index specs should be cached", dbHelper.getCachedIndexSpecs(OTHER_TEST_SOUP));
+		assertNotNull("Features should be cached", dbHelper.getCachedFeatures(OTHER_TEST_SOUP));
+		assertEquals("Wrong count", 1, store.countQuery(QuerySpec.buildAllQuerySpec(OTHER_TEST_SOUP, null, null, 10)));
+	}
+
+	/**
+	 * Testing smart sql query joining soups of two stores (encrypted with different keys) after attachStore
+	 * @throws JSONException
+	 */
+	public void testAttachStore() throws JSONException {
+		final String otherDbName = "attachtest";
+		final SmartStore otherStore = new SmartStore(DBOpenHelper.getOpenHelper(targetContext, otherDbName, null, null), "otherPasscode");
+		try {
+			otherStore.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("code", Type.string), new IndexSpec("label", Type.json1)});
+			otherStore.create(OTHER_TEST_SOUP, new JSONObject("{'code':'a', 'label':'Label A'}"));
+			otherStore.create(OTHER_TEST_SOUP, new JSONObject("{'code':'b', 'label':'Label B'}"));
+			store.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("name", Type.string), new IndexSpec("code", Type.string)});
+			store.create(OTHER_TEST_SOUP, new JSONObject("{'name':'n1', 'code':'b'}"));
+			store.create(OTHER_TEST_SOUP, new JSONObject("{'name':'n2', 'code':'a'}"));
+
+			store.attachStore(SmartStore.GLOBAL_STORE_ALIAS, otherStore);
+			QuerySpec querySpec = QuerySpec.buildSmartQuerySpec("SELECT {" + OTHER_TEST_SOUP + ":name}, {global:" + OTHER_TEST_SOUP + ":label}"
+					+ " FROM {" + OTHER_TEST_SOUP + "}, {global:" + OTHER_TEST_SOUP + "}"
+					+ " WHERE {" + OTHER_TEST_SOUP + ":code} = {global:" + OTHER_TEST_SOUP + ":code}"
+					+ " ORDER BY {" + OTHER_TEST_SOUP + ":name}", 10);
+			JSONTestHelper.assertSameJSON("Wrong results", new JSONArray("[['n1', 'Label B'], ['n2', 'Label A']]"), store.query(querySpec, 0));
+
+			// Writes to the attached store are visible right away
+			otherStore.create(OTHER_TEST_SOUP, new JSONObject("{'code':'c', 'label':'Label C'}"));
+			querySpec = QuerySpec.buildSmartQuerySpec("SELECT {global:" + OTHER_TEST_SOUP + ":code:count} FROM {global:" + OTHER_TEST_SOUP + "}", 1);
+			JSONTestHelper.assertSameJSON("Wrong count", new JSONArray("[[3]]"), store.query(querySpec, 0));
+
+			// Unknown soup in attached store
+			try {
+				store.query(QuerySpec.buildSmartQuerySpec("SELECT {global:unknownSoup:_soup} FROM {global:unknownSoup}", 1), 0);
+				fail("Query should have failed");
+			} catch (SmartSqlHelper.SmartSqlException e) {
+				// expected
+			}
+
+			// After detach, global is no longer a valid reference
+			store.detachStore(SmartStore.GLOBAL_STORE_ALIAS);
+			try {
+				store.query(querySpec, 0);
+				fail("Query should have failed");
+			} catch (SmartStore.SmartStoreException e) {
+				// expected
+			}
+		} finally {
+			store.detachStore(SmartStore.GLOBAL_STORE_ALIAS);
+			DBOpenHelper.deleteDatabase(targetContext, otherDbName, null, null);
+		}
+	}
+
+	/**
+	 * Testing upsert skipping unchanged soup elements
+	 * @throws JSONException
+	 */
+	public void testUpsertSkipIfUnchanged() throws JSONException {
+		JSONObject soupElt = new JSONObject("{'key':'ka', 'value':'va'}");
+		JSONObject created = store.upsert(TEST_SOUP, soupElt, "key", true, true);
+		long lastModified = created.getLong(SmartStore.SOUP_LAST_MODIFIED_DATE);
+		SystemClock.sleep(10); // to get a different last modified date
+
+		// Same content: not written
+		JSONObject upserted = store.upsert(TEST_SOUP, new JSONObject("{'key':'ka', 'value':'va'}"), "key", true, true);
+		assertEquals("Wrong soup entry id", idOf(created), idOf(upserted));
+		assertEquals("Last modified date should not have changed", lastModified, upserted.getLong(SmartStore.SOUP_LAST_MODIFIED_DATE));
+		assertEquals("Last modified date should not have changed", lastModified, store.retrieve(TEST_SOUP, idOf(created)).getJSONObject(0).getLong(SmartStore.SOUP_LAST_MODIFIED_DATE));
+
+		// Different content: written
+		upserted = store.upsert(TEST_SOUP, new JSONObject("{'key':'ka', 'value':'va2'}"), "key", true, true);
+		assertTrue("Last modified date should have changed", upserted.getLong(SmartStore.SOUP_LAST_MODIFIED_DATE) > lastModified);
+		assertEquals("Wrong value", "va2", store.retrieve(TEST_SOUP, idOf(created)).getJSONObject(0).getString("value"));
+
+		// Regular update forgets the hash: same content written again afterwards
+		store.update(TEST_SOUP, new JSONObject("{'key':'ka', 'value':'va3'}"), idOf(created));
+		JSONArray batch = new JSONArray();
+		batch.put(new JSONObject("{'key':'ka', 'value':'va3'}"));
+		batch.put(new JSONObject("{'key':'kb', 'value':'vb'}"));
+		assertEquals("Wrong number of elements written", 2, store.upsertAllIfChanged(TEST_SOUP, batch, "key", true));
+
+		// Batch with same content: nothing written
+		batch = new JSONArray();
+		batch.put(new JSONObject("{'key':'ka', 'value':'va3'}"));
+		batch.put(new JSONObject("{'key':'kb', 'value':'vb'}"));
+		assertEquals("No element should have been written", 0, store.upsertAllIfChanged(TEST_SOUP, batch, "key", true));
+		assertEquals("Wrong number of soup elements", 2, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, null, null, 10)));
+	}
+
+	/**
+	 * Testing upsert skipping unchanged soup elements on a soup table without content hash column (created by an earlier version of the SDK)
+	 * when the transaction that added the column is rolled back
+	 * @throws JSONException
+	 */
+	public void testUpsertSkipIfUnchangedAfterRolledBackColumnAdd() throws JSONException {
+		final SQLiteDatabase db = dbOpenHelper.getWritableDatabase(getPasscode());
+		String soupTableName = getSoupTableName(TEST_SOUP);
+		db.execSQL("DROP TABLE " + soupTableName);
+		db.execSQL("CREATE TABLE " + soupTableName + " (id INTEGER PRIMARY KEY AUTOINCREMENT, soup TEXT, created INTEGER, lastModified INTEGER, " + soupTableName + "_0 TEXT)");
+		DBHelper.getInstance(db).clearMemoryCache();
+		checkColumns(soupTableName, Arrays.asList(new String[] {"id", "soup", "created", "lastModified", soupTableName + "_0"}));
+
+		// Column added inside a transaction that is rolled back
+		db.beginTransaction();
+		try {
+			store.upsert(TEST_SOUP, new JSONObject("{'key':'ka', 'value':'va'}"), "key", false, true);
+		} finally {
+			db.endTransaction();
+		}
+		checkColumns(soupTableName, Arrays.asList(new String[] {"id", "soup", "created", "lastModified", soupTableName + "_0"}));
+		assertEquals("Rolled back element should not be in soup", 0, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, null, null, 10)));
+
+		// Store should not believe the column is still there
+		store.create(TEST_SOUP, new JSONObject("{'key':'kb', 'value':'vb'}"));
+		JSONObject upserted = store.upsert(TEST_SOUP, new JSONObject("{'key':'ka', 'value':'va'}"), "key", true, true);
+		checkColumns(soupTableName, Arrays.asList(new String[] {"id", "soup", "created", "lastModified", soupTableName + "_0", "contentHash"}));
+		assertEquals("Wrong value", "va", store.retrieve(TEST_SOUP, idOf(upserted)).getJSONObject(0).getString("value"));
+		assertEquals("Wrong number of soup elements", 2, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, null, null, 10)));
+	}
+
+	/**
+	 * Testing bulk replace: readers see old content until commit, then only the new content
+	 * @throws JSONException
+	 */
+	public void testBulkReplace() throws JSONException {
+		store.create(TEST_SOUP, new JSONObject("{'key':'old1'}"));
+		store.create(TEST_SOUP, new JSONObject("{'key':'old2'}"));
+		String oldTableName = getSoupTableName(TEST_SOUP);
+
+		store.beginBulkReplace(TEST_SOUP);
+		JSONArray soupElts = new JSONArray();
+		for (int i = 0; i < 5; i++) {
+			soupElts.put(new JSONObject("{'key':'new" + i + "'}"));
+		}
+		assertEquals("Wrong number of elements added", 5, store.bulkReplaceAdd(TEST_SOUP, soupElts));
+		assertEquals("Old content should still be visible", 2, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, null, null, 10)));
+
+		store.commitBulkReplace(TEST_SOUP);
+		assertFalse("Staging soup should be gone", store.hasSoup(SmartStore.getStagingSoupName(TEST_SOUP)));
+		assertFalse("Old table should be gone", hasTable(oldTableName));
+		assertEquals("Wrong count after replace", 5, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, null, null, 10)));
+		JSONArray results = store.query(QuerySpec.buildExactQuerySpec(TEST_SOUP, "key", "new3", null, null, 10), 0);
+		checkExplainQueryPlan(TEST_SOUP, 0, false, "SEARCH"); // index was built
+		assertEquals("Wrong results", 1, results.length());
+		assertEquals("Wrong result", "new3", results.getJSONObject(0).getString("key"));
+
+		// Replace with nothing / abort
+		store.replaceSoupContent(TEST_SOUP, new JSONArray());
+		assertEquals("Soup should be empty", 0, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, null, null, 10)));
+		store.beginBulkReplace(TEST_SOUP);
+		store.abortBulkReplace(TEST_SOUP);
+		assertFalse("Staging soup should be gone", store.hasSoup(SmartStore.getStagingSoupName(TEST_SOUP)));
+		assertTrue("Soup should still exist", store.hasSoup(TEST_SOUP));
+	}
+
+	/**
+	 * Testing that staging soups don't show up in soup listings and that leftover ones get dropped
+	 * @throws JSONException
+	 */
+	public void testStagingSoupsHiddenAndDropped() throws JSONException {
+		store.create(TEST_SOUP, new JSONObject("{'key':'old1'}"));
+		store.beginBulkReplace(TEST_SOUP);
+		JSONArray soupElts = new JSONArray();
+		soupElts.put(new JSONObject("{'key':'new1'}"));
+		store.bulkReplaceAdd(TEST_SOUP, soupElts);
+		assertTrue("Staging soup should exist", store.hasSoup(SmartStore.getStagingSoupName(TEST_SOUP)));
+		assertEquals("Staging soup should not be listed", Arrays.asList(new String[] {TEST_SOUP}), store.getAllSoupNames());
+
+		// Bulk replace that never completed (e.g. process died)
+		assertEquals("Wrong number of staging soups dropped", 1, store.dropStagingSoups());
+		assertFalse("Staging soup should be gone", store.hasSoup(SmartStore.getStagingSoupName(TEST_SOUP)));
+		assertEquals("Soup content should not have changed", 1, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, null, null, 10)));
+		assertEquals("Wrong number of staging soups dropped", 0, store.dropStagingSoups());
+	}
+
+	/**
+	 * Testing exportSoup/importSoup without compression
+	 */
+	public void testExportImportSoup() throws Exception {
+		tryExportImportSoup(false);
+	}
+
+	/**
+	 * Testing exportSoup/importSoup with compression
+	 */
+	public void testExportImportSoupCompressed() throws Exception {
+		tryExportImportSoup(true);
+	}
+
+	private void tryExportImportSoup(boolean compress) throws Exception {
+		for (int i=0; i<2500; i++) {
+			store.create(TEST_SOUP, new JSONObject("{'key':'k" + i + "', 'value':'v" + i + "'}"));
+		}
+		final List<Long> progress = new ArrayList<Long>();
+		SmartStore.SoupTransferCallback callback = new SmartStore.SoupTransferCallback() {
+			@Override
+			public void onProgress(String soupName, long entriesTransferred) {
+				progress.add(entriesTransferred);
+			}
+		};
+
+		// Export
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals("Wrong number of entries exported", 2500, store.exportSoup(TEST_SOUP, out, compress, callback));
+		assertEquals("Wrong progress", Arrays.asList(1000L, 2000L, 2500L), progress);
+
+		// Import into other soup
+		progress.clear();
+		store.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.string)});
+		assertEquals("Wrong number of entries imported", 2500, store.importSoup(OTHER_TEST_SOUP, new ByteArrayInputStream(out.toByteArray()), compress, callback));
+		assertEquals("Wrong progress", Arrays.asList(1000L, 2000L, 2500L), progress);
+
+		// Check entries and indexes
+		assertEquals("Wrong number of entries", 2500, store.countQuery(QuerySpec.buildAllQuerySpec(OTHER_TEST_SOUP, null, null, 10)));
+		JSONArray result = store.query(QuerySpec.buildExactQuerySpec(OTHER_TEST_SOUP, "key", "k1234", null, null, 10), 0);
+		assertEquals("Wrong number of results", 1, result.length());
+		assertEquals("Wrong value", "v1234", result.getJSONObject(0).getString("value"));
+		Cursor c = null;
+		try {
+			c = store.getDatabase().rawQuery("SELECT count(*) FROM sqlite_master WHERE type = 'index' AND tbl_name = ?", new String[] {getSoupTableName(OTHER_TEST_SOUP)});
+			c.moveToFirst();
+			assertEquals("Indexes should have been re-created", 3, c.getInt(0));
+		} finally {
+			safeClose(c);
+		}
+	}
+
+	/**
+	 * Testing exportSoup of a multiple of the batch size (progress reported once per batch)
+	 * and importSoup of a bad stream (soup left as it was, indexes included)
+	 */
+	public void testExportImportSoupFailure() throws Exception {
+		for (int i=0; i<2000; i++) {
+			store.create(TEST_SOUP, new JSONObject("{'key':'k" + i + "', 'value':'v" + i + "'}"));
+		}
+		final List<Long> progress = new ArrayList<Long>();
+		SmartStore.SoupTransferCallback callback = new SmartStore.SoupTransferCallback() {
+			@Override
+			public void onProgress(String soupName, long entriesTransferred) {
+				progress.add(entriesTransferred);
+			}
+		};
+
+		// Export
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals("Wrong number of entries exported", 2000, store.exportSoup(TEST_SOUP, out, false, callback));
+		assertEquals("Wrong progress", Arrays.asList(1000L, 2000L), progress);
+
+		// Import into other soup with a bad line after the first batch
+		out.write("not json\n".getBytes("UTF-8"));
+		store.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.string)});
+		try {
+			store.importSoup(OTHER_TEST_SOUP, new ByteArrayInputStream(out.toByteArray()), false, null);
+			fail("Import should have failed");
+		} catch (JSONException e) {
+			// expected
+		}
+
+		// Check nothing was imported and indexes are still there
+		assertEquals("No entries should have been imported", 0, store.countQuery(QuerySpec.buildAllQuerySpec(OTHER_TEST_SOUP, null, null, 10)));
+		Cursor c = null;
+		try {
+			c = store.getDatabase().rawQuery("SELECT count(*) FROM sqlite_master WHERE type = 'index' AND tbl_name = ?", new String[] {getSoupTableName(OTHER_TEST_SOUP)});
+			c.moveToFirst();
+			assertEquals("Indexes should still be there", 3, c.getInt(0));
+		} finally {
+			safeClose(c);
+		}
+	}
+
+	/**
+	 * Testing query result cache: check hits/misses and invalidation on writes
+	 * @throws JSONException
+	 */
+	public void testQueryResultCache() throws JSONException {
+		store.setQueryCacheMaxBytes(1024 * 1024);
+		try {
+			QueryResultCache cache = store.getQueryResultCache();
+			JSONObject soupElt1Created = store.create(TEST_SOUP, new JSONObject("{'key':'ka1', 'value':'va1'}"));
+			QuerySpec querySpec = QuerySpec.buildExactQuerySpec(TEST_SOUP, "key", "ka1", null, null, 10);
+
+			JSONArray result = store.query(querySpec, 0);
+			assertEquals("Wrong miss count", 1, cache.getMissCount());
+			JSONArray cachedResult = store.query(querySpec, 0);
+			assertEquals("Wrong hit count", 1, cache.getHitCount());
+			JSONTestHelper.assertSameJSONArray("Cached result mismatch", result, cachedResult);
+			assertNotSame("Cached result should be a copy", result, cachedResult);
+
+			// Different page is a different entry
+			store.query(querySpec, 1);
+			assertEquals("Wrong miss count", 2, cache.getMissCount());
+			assertEquals("Wrong entry count", 2, cache.getEntryCount());
+
+			// Write to soup invalidates entries
+			soupElt1Created.put("value", "va1Updated");
+			store.update(TEST_SOUP, soupElt1Created, idOf(soupElt1Created));
+			assertEquals("Entries should have been invalidated", 0, cache.getEntryCount());
+			assertEquals("Stale result returned", "va1Updated", store.query(querySpec, 0).getJSONObject(0).getString("value"));
+
+			// Write to other soup does not
+			store.registerSoup(OTHER_TEST_SOUP, new IndexSpec[] {new IndexSpec("key", Type.string)});
+			store.create(OTHER_TEST_SOUP, new JSONObject("{'key':'ka1'}"));
+			assertEquals("Entry should not have been invalidated", 1, cache.getEntryCount());
+			store.clearSoup(TEST_SOUP);
+			assertEquals("Stale result returned", 0, store.query(querySpec, 0).length());
+
+			// Bounded by bytes
+			store.setQueryCacheMaxBytes(1);
+			assertEquals("Entries should have been evicted", 0, cache.getEntryCount());
+			store.query(querySpec, 0);
+			assertEquals("Result larger than cache should not be cached", 0, cache.getEntryCount());
+		} finally {
+			store.setQueryCacheMaxBytes(0);
+		}
+	}
+
+	/**
+	 * Testing retrieve and delete with more ids than can be inlined in the sql
+	 * @throws JSONException
+	 */
+	public void testRetrieveAndDeleteManyIds() throws JSONException {
+		List<Long> evenIds = new ArrayList<Long>();
+		for (int i=0; i<1000; i++) {
+			JSONObject soupElt = store.create(TEST_SOUP, new JSONObject("{'key':'k" + i + "'}"));
+			if (i % 2 == 0) {
+				evenIds.add(idOf(soupElt));
+			}
+		}
+		Long[] evenIdsArray = evenIds.toArray(new Long[0]);
+		assertEquals("Wrong number of entries retrieved", 500, store.retrieve(TEST_SOUP, evenIdsArray).length());
+
+		store.delete(TEST_SOUP, evenIdsArray);
+		assertEquals("Wrong number of entries retrieved after delete", 0, store.retrieve(TEST_SOUP, evenIdsArray).length());
+		assertEquals("Wrong number of entries left", 500, store.countQuery(QuerySpec.buildAllQuerySpec(TEST_SOUP, null, null, 10)));
+	}
+
+	/**
+	 * Testing deleteByPathValues: create soup elements, delete by values of indexed path and check remaining entries
+	 * @throws JSONException
+	 */
+	public void testDeleteByPathValues() throws JSONException {
+		List<String> keysToDelete = new ArrayList<String>();
+		for (int i=0; i<1000; i++) {
+			store.create(TEST_SOUP, new JSONObject("{'key':'k" + i + "'}"));
+			if (i % 10 != 0) {
+				keysToDelete.add("k" + i);
+			}
+		}
+		keysToDelete.add("not-in-soup");
+		keysToDelete.add(null);
+		store.deleteByPathValues(TEST_SOUP, "key", keysToDelete);
+		JSONArray result = store.query(QuerySpec.buildAllQuerySpec(TEST_SOUP, "key", Order.ascending, 1000), 0);
+		assertEquals("Wrong number of entries left", 100, result.length());
+		for (int i=0; i<result.length(); i++) {
+			assertFalse("Entry should have been deleted", keysToDelete.contains(result.getJSONObject(i).getString("key")));
+		}
+	}
+
 	/**
 	 * Testing delete: create soup elements, delete by query and check database directly that deleted entries are in fact gone
 	 * @throws JSONException
@@ -1170,6 +1650,45 @@ public class SmartStoreTest extends SmartStoreTestCase {
 		assertTrue("Database should be larger now", store.getDatabaseSize() > initialSize);
 	}
 
+	/**
+	 * Test analyze: check planner statistics are created and pending writes are cleared
+	 */
+	public void testAnalyze() throws JSONException {
+		for (int i=0; i<100; i++) {
+			JSONObject soupElt = new JSONObject("{'key':'abcd" + i + "', 'value':'va" + i + "'}");
+			store.create(TEST_SOUP, soupElt);
+		}
+		assertEquals("Wrong pending writes", 100, DBHelper.getInstance(store.getDatabase()).getPendingWrites().get(TEST_SOUP).intValue());
+		assertTrue("Planner statistics should have changed", store.analyze(TEST_SOUP) > 0);
+		assertNull("Pending writes should have been cleared", DBHelper.getInstance(store.getDatabase()).getPendingWrites().get(TEST_SOUP));
+		Cursor c = null;
+		try {
+			c = store.getDatabase().rawQuery("SELECT count(*) FROM sqlite_stat1 WHERE tbl = ?", new String[] {getSoupTableName(TEST_SOUP)});
+			c.moveToFirst();
+			assertTrue("Planner statistics missing", c.getInt(0) > 0);
+		} finally {
+			safeClose(c);
+		}
+		assertEquals("Planner statistics should not have changed", 0, store.analyze(TEST_SOUP));
+	}
+
+	/**
+	 * Test incrementalVacuum: check free pages are returned to the file system
+	 */
+	public void testIncrementalVacuum() throws JSONException {
+		assertEquals("Wrong auto vacuum mode", SmartStore.AutoVacuumMode.incremental, store.getAutoVacuumMode());
+		for (int i=0; i<1000; i++) {
+			JSONObject soupElt = new JSONObject("{'key':'abcd" + i + "', 'value':'va" + i + "', 'otherValue':'ova" + i + "'}");
+			store.create(TEST_SOUP, soupElt);
+		}
+		int sizeBeforeClear = store.getDatabaseSize();
+		store.clearSoup(TEST_SOUP);
+		assertTrue("Database should have free pages", store.getFreeBytes() > 0);
+		assertTrue("Bytes should have been reclaimed", store.incrementalVacuum(0) > 0);
+		assertEquals("Database should have no free pages", 0, store.getFreeBytes());
+		assertTrue("Database should be smaller now", store.getDatabaseSize() < sizeBeforeClear);
+	}
+
 	/**
 	 * Test registerSoup with json1 indexes
      * Register soup with multiple json1 indexes and a string index, check the underlying table and indexes in the database
@@ -35,7 +35,11 @@ import com.salesforce.androidsdk.rest.RestResponse;
 import com.salesforce.androidsdk.smartstore.store.IndexSpec;
 import com.salesforce.androidsdk.smartstore.store.QuerySpec;
 import com.salesforce.androidsdk.smartstore.store.SmartStore;
+import com.salesforce.androidsdk.smartsync.model.SalesforceObject;
+import com.salesforce.androidsdk.smartsync.model.SalesforceObjectRowMapper;
+import com.salesforce.androidsdk.smartsync.util.BatchSyncUpTarget;
 import com.salesforce.androidsdk.smartsync.util.Constants;
+import com.salesforce.androidsdk.smartsync.util.DeltaSyncDownTarget;
 import com.salesforce.androidsdk.smartsync.util.MruSyncDownTarget;
 import com.salesforce.androidsdk.smartsync.util.SOQLBuilder;
 import com.salesforce.androidsdk.smartsync.util.SOSLBuilder;
@@ -122,6 +126,73 @@ public class SyncManagerTest extends ManagerTestCase {
         checkDb(idToNames);
 	}
 
+    /**
+     * Sync down in pipelined mode 25 records served in pages of 5 by a stand-in server that drops the connection on the fourth page,
+     * check that only saved pages are checkpointed, then reSync and check smart store
+     */
+    public void testSyncDownPipelined() throws Exception {
+        List<String> rows = buildStandInRows(25);
+        TestBulkSyncDownTarget.StandInServer server = new TestBulkSyncDownTarget.StandInServer("Id,Name,LastModifiedDate", rows, 0);
+        server.failOnceAt("15");
+        TestBulkSyncDownTarget.setServer(server);
+
+        // Sync down fails once the pages fetched before the failing one are saved
+        TestBulkSyncDownTarget target = new TestBulkSyncDownTarget("SELECT Id, Name, LastModifiedDate FROM Account", 5);
+        SyncOptions options = SyncOptions.optionsForSyncDown(MergeMode.OVERWRITE, true);
+        SyncState sync = SyncState.createSyncDown(smartStore, target, options, ACCOUNTS_SOUP);
+        long syncId = sync.getId();
+        SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue();
+        syncManager.runSync(sync, queue);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 20, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 40, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 60, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.FAILED, 60, 25);
+
+        // Check checkpoint and requests: create job, poll, 3 pages and the failed fourth one
+        JSONObject checkpoint = syncManager.getSyncStatus(syncId).getCheckpoint();
+        assertNotNull("Checkpoint should have been saved", checkpoint);
+        assertEquals("Wrong count saved", 15, checkpoint.getInt(SyncState.CHECKPOINT_COUNT_SAVED));
+        assertEquals("Wrong requests " + server.requests, 6, server.requests.size());
+        assertTrue("Fourth page should have been requested last " + server.requests, server.requests.get(5).endsWith("?locator=15"));
+        assertEquals("Wrong number of records saved", 15, smartStore.countQuery(QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, null, null, 25)));
+        server.requests.clear();
+
+        // Call reSync: picks up at the failed page
+        queue = new SyncUpdateCallbackQueue();
+        syncManager.reSync(syncId, queue);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 60, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 80, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.DONE, 100, 25);
+        assertEquals("Wrong requests " + server.requests, 3, server.requests.size());
+        assertTrue("Should have resumed at fourth page " + server.requests, server.requests.get(0).endsWith("?locator=15"));
+        assertEquals("Job should have been deleted", 0, server.getOpenJobsCount());
+
+        // Check smartstore
+        QuerySpec smartStoreQuery = QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, Constants.ID, QuerySpec.Order.ascending, 25);
+        JSONArray accountsFromDb = smartStore.query(smartStoreQuery, 0);
+        assertEquals("Wrong number of records", 25, accountsFromDb.length());
+        for (int i = 0; i < accountsFromDb.length(); i++) {
+            assertEquals("Wrong name", "Account " + i, accountsFromDb.getJSONObject(i).getString(Constants.NAME));
+        }
+    }
+
+    /**
+     * Sync down the test accounts in streaming mode, check smart store
+     */
+    public void testSyncDownStreaming() throws Exception {
+        final SyncDownTarget target = new SoqlSyncDownTarget("SELECT Id, Name, LastModifiedDate FROM Account WHERE Id IN " + makeInClause(idToNames.keySet()));
+        final long syncId = trySyncDown(SyncOptions.optionsForStreamingSyncDown(MergeMode.OVERWRITE), target, idToNames, ACCOUNTS_SOUP);
+
+        // Check that db was correctly populated
+        checkDb(idToNames);
+
+        // Check that max time stamp was captured
+        assertTrue("Max time stamp should have been set", syncManager.getSyncStatus(syncId).getMaxTimeStamp() > 0);
+    }
+
     /**
      * Sync down the test accounts, make some local changes, sync down again with merge mode LEAVE_IF_CHANGED then sync down with merge mode OVERWRITE
      */
@@ -188,6 +259,422 @@ public class SyncManagerTest extends ManagerTestCase {
         assertTrue("Wrong time stamp", syncManager.getSyncStatus(syncId).getMaxTimeStamp() > maxTimeStamp);
     }
 
+    /**
+     * Resync with a delta target: only records reported as updated are fetched and records reported as deleted are removed locally
+     */
+    public void testDeltaReSync() throws Exception {
+        // first sync down
+        final SyncDownTarget target = new TestDeltaSyncDownTarget(Arrays.asList(Constants.ID, Constants.NAME, Constants.LAST_MODIFIED_DATE),
+                Constants.ACCOUNT, Constants.ID + " IN " + makeInClause(idToNames.keySet()));
+        final SyncOptions options = SyncOptions.optionsForSyncDown(MergeMode.OVERWRITE);
+        SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue();
+        long beforeFirstSync = System.currentTimeMillis();
+        long syncId = syncManager.syncDown(target, options, ACCOUNTS_SOUP, queue).getId();
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, idToNames.size());
+        SyncState sync = queue.getNextSyncUpdate();
+        assertEquals("Wrong status", SyncState.Status.DONE, sync.getStatus());
+        checkDb(idToNames);
+
+        // Check sync time stamp and time of last sync (saved with the target: time the query started)
+        sync = syncManager.getSyncStatus(syncId);
+        long maxTimeStamp = sync.getMaxTimeStamp();
+        assertTrue("Wrong time stamp", maxTimeStamp > 0);
+        final DeltaSyncDownTarget syncedTarget = (DeltaSyncDownTarget) sync.getTarget();
+        long lastSyncTime = syncedTarget.getLastSyncTime();
+        assertTrue("Wrong last sync time", lastSyncTime >= beforeFirstSync && lastSyncTime <= System.currentTimeMillis());
+
+        // Make some remote changes
+        Thread.sleep(1000); // time stamp precision is in seconds
+        Map<String, String> idToNamesUpdated = new HashMap<String, String>();
+        String[] allIds = idToNames.keySet().toArray(new String[0]);
+        String[] ids = new String[]{allIds[0], allIds[2]};
+        for (int i = 0; i < ids.length; i++) {
+            String id = ids[i];
+            idToNamesUpdated.put(id, idToNames.get(id) + "_updated");
+        }
+        updateAccountsOnServer(idToNamesUpdated);
+        String idRemotelyDeleted = allIds[1];
+        deleteRecordsOnServer(new HashSet<String>(Arrays.asList(idRemotelyDeleted)), Constants.ACCOUNT);
+        // Server reports covering changes up to a time before the device clock
+        long latestDateCovered = lastSyncTime + 500;
+        TestDeltaSyncDownTarget.setChanges(new ArrayList<String>(idToNamesUpdated.keySet()), Arrays.asList(idRemotelyDeleted), latestDateCovered);
+
+        // Call reSync
+        queue = new SyncUpdateCallbackQueue();
+        syncManager.reSync(syncId, queue);
+
+        // Check status updates
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, syncedTarget, options, SyncState.Status.RUNNING, 0, -1);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, syncedTarget, options, SyncState.Status.RUNNING, 0, idToNamesUpdated.size());
+        sync = queue.getNextSyncUpdate();
+        assertEquals("Wrong status", SyncState.Status.DONE, sync.getStatus());
+        assertEquals("Wrong total size", idToNamesUpdated.size(), sync.getTotalSize());
+
+        // Check changes were asked for since last sync (windows start at least a minute before they end)
+        long windowEnd = TestDeltaSyncDownTarget.getLastWindowEnd();
+        assertEquals("Wrong window start", Math.min(lastSyncTime, windowEnd - DeltaSyncDownTarget.MIN_WINDOW_MILLIS), TestDeltaSyncDownTarget.getLastWindowStart());
+        assertTrue("Window should end at the device time", windowEnd > latestDateCovered);
+        assertEquals("Last sync time should be the latest date covered by the server", latestDateCovered,
+                ((DeltaSyncDownTarget) syncManager.getSyncStatus(syncId).getTarget()).getLastSyncTime());
+
+        // Check db
+        Map<String, String> idToNamesExpected = new HashMap<String, String>(idToNames);
+        idToNamesExpected.putAll(idToNamesUpdated);
+        idToNamesExpected.remove(idRemotelyDeleted);
+        checkDb(idToNamesExpected);
+        checkDbDeleted(new String[]{idRemotelyDeleted});
+
+        // Check sync time stamp
+        assertTrue("Wrong time stamp", syncManager.getSyncStatus(syncId).getMaxTimeStamp() > maxTimeStamp);
+    }
+
+    /**
+     * Query soup with SalesforceObjectRowMapper: objects are built from the cursor without parsing the soup json
+     */
+    public void testQueryWithSalesforceObjectRowMapper() throws Exception {
+        String[] names = new String[]{createRecordName(Constants.ACCOUNT), createRecordName(Constants.ACCOUNT), createRecordName(Constants.ACCOUNT)};
+        createAccountsLocally(names);
+        Map<String, String> idToNamesLocal = getIdsForNames(names);
+
+        QuerySpec querySpec = QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, SalesforceObjectRowMapper.SELECT_PATHS, Constants.NAME, QuerySpec.Order.ascending, 10);
+        List<SalesforceObject> objects = smartStore.query(querySpec, 0, new SalesforceObjectRowMapper(Constants.ACCOUNT));
+        assertEquals("Wrong number of objects", idToNamesLocal.size(), objects.size());
+        for (SalesforceObject object : objects) {
+            assertEquals("Wrong name", idToNamesLocal.get(object.getObjectId()), object.getName());
+            assertEquals("Wrong object type", Constants.ACCOUNT, object.getObjectType());
+            JSONObject rawData = object.getRawData();
+            assertEquals("Wrong id in raw data", object.getObjectId(), rawData.getString(Constants.ID));
+            assertEquals("Wrong name in raw data", object.getName(), rawData.getString(Constants.NAME));
+            assertEquals("Wrong type in raw data", Constants.ACCOUNT, rawData.getJSONObject(Constants.ATTRIBUTES).getString(TYPE));
+            assertEquals("Object built from cursor should equal object built from json", new SalesforceObject(rawData), object);
+        }
+    }
+
+    /**
+     * Sync down records served as CSV pages by a stand-in bulk query server, check smartstore and server requests
+     */
+    public void testBulkSyncDown() throws Exception {
+        tryBulkSyncDown(SyncOptions.optionsForSyncDown(MergeMode.OVERWRITE));
+    }
+
+    /**
+     * Sync down records served as CSV pages by a stand-in bulk query server in streaming mode, check smartstore and server requests
+     */
+    public void testBulkSyncDownStreaming() throws Exception {
+        tryBulkSyncDown(SyncOptions.optionsForStreamingSyncDown(MergeMode.OVERWRITE));
+    }
+
+    /**
+     * Sync down interrupted after two pages then resumed by reSync from its checkpoint: only the remaining page is fetched
+     */
+    public void testResumeInterruptedSyncDown() throws Exception {
+        tryResumeInterruptedSyncDown(false);
+    }
+
+    /**
+     * Sync down interrupted after two pages whose query job expired before reSync: the sync restarts from scratch
+     */
+    public void testResumeInterruptedSyncDownAfterExpiry() throws Exception {
+        tryResumeInterruptedSyncDown(true);
+    }
+
+    private void tryResumeInterruptedSyncDown(boolean expireJobs) throws Exception {
+        // Stand-in server with 25 records (served in pages of 10) that drops the connection when the third page is requested
+        List<String> rows = buildStandInRows(25);
+        TestBulkSyncDownTarget.StandInServer server = new TestBulkSyncDownTarget.StandInServer("Id,Name,LastModifiedDate", rows, 0);
+        server.failOnceAt("20");
+        TestBulkSyncDownTarget.setServer(server);
+
+        // Sync down fails after saving two pages
+        TestBulkSyncDownTarget target = new TestBulkSyncDownTarget("SELECT Id, Name, LastModifiedDate FROM Account", 10);
+        SyncOptions options = SyncOptions.optionsForSyncDown(MergeMode.OVERWRITE);
+        SyncState sync = SyncState.createSyncDown(smartStore, target, options, ACCOUNTS_SOUP);
+        long syncId = sync.getId();
+        SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue();
+        syncManager.runSync(sync, queue);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 40, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 80, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.FAILED, 80, 25);
+
+        // Check checkpoint saved with the sync
+        JSONObject checkpoint = syncManager.getSyncStatus(syncId).getCheckpoint();
+        assertNotNull("Checkpoint should have been saved", checkpoint);
+        assertEquals("Wrong count saved", 20, checkpoint.getInt(SyncState.CHECKPOINT_COUNT_SAVED));
+        assertEquals("Wrong total size", 25, checkpoint.getInt(SyncState.CHECKPOINT_TOTAL_SIZE));
+        if (expireJobs) {
+            server.expireJobs();
+        }
+        server.requests.clear();
+
+        // Call reSync
+        queue = new SyncUpdateCallbackQueue();
+        syncManager.reSync(syncId, queue);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        if (expireJobs) {
+            checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, 25);
+            checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 40, 25);
+            checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 80, 25);
+        } else {
+            checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 80, 25);
+        }
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.DONE, 100, 25);
+
+        // Check smartstore
+        QuerySpec smartStoreQuery = QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, Constants.ID, QuerySpec.Order.ascending, 25);
+        JSONArray accountsFromDb = smartStore.query(smartStoreQuery, 0);
+        assertEquals("Wrong number of records", 25, accountsFromDb.length());
+        for (int i = 0; i < accountsFromDb.length(); i++) {
+            assertEquals("Wrong name", "Account " + i, accountsFromDb.getJSONObject(i).getString(Constants.NAME));
+        }
+
+        // Check requests: resumed at third page (or, once expired, failed resume then create job, poll, 3 pages, delete job)
+        if (expireJobs) {
+            assertEquals("Wrong requests " + server.requests, 7, server.requests.size());
+            assertTrue("Job should have been created " + server.requests, server.requests.get(1).startsWith("POST"));
+        } else {
+            assertEquals("Wrong requests " + server.requests, 2, server.requests.size());
+            assertTrue("Should have resumed at third page " + server.requests, server.requests.get(0).endsWith("?locator=20"));
+        }
+        assertEquals("Job should have been deleted", 0, server.getOpenJobsCount());
+        assertNull("Checkpoint should have been cleared", syncManager.getSyncStatus(syncId).getCheckpoint());
+    }
+
+    /**
+     * Sync down paused after its first page then resumed: it picks up at the second page
+     */
+    public void testPauseAndResumeSyncDown() throws Exception {
+        tryStopAndResumeSyncDown(false);
+    }
+
+    /**
+     * Sync down cancelled after its first page then resumed: it starts over
+     */
+    public void testCancelAndResumeSyncDown() throws Exception {
+        tryStopAndResumeSyncDown(true);
+    }
+
+    private void tryStopAndResumeSyncDown(final boolean cancel) throws Exception {
+        // Stand-in server with 25 records (served in pages of 10)
+        List<String> rows = buildStandInRows(25);
+        TestBulkSyncDownTarget.StandInServer server = new TestBulkSyncDownTarget.StandInServer("Id,Name,LastModifiedDate", rows, 0);
+        TestBulkSyncDownTarget.setServer(server);
+
+        // Sync down gets stopped once the first page is saved
+        TestBulkSyncDownTarget target = new TestBulkSyncDownTarget("SELECT Id, Name, LastModifiedDate FROM Account", 10);
+        SyncOptions options = SyncOptions.optionsForSyncDown(MergeMode.OVERWRITE);
+        SyncState sync = SyncState.createSyncDown(smartStore, target, options, ACCOUNTS_SOUP);
+        long syncId = sync.getId();
+        SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue() {
+            @Override
+            public void onUpdate(SyncState sync) {
+                super.onUpdate(sync);
+                if (sync.isRunning() && sync.getProgress() == 40) {
+                    if (cancel) {
+                        syncManager.cancelSync(sync.getId());
+                    } else {
+                        syncManager.pauseSync(sync.getId());
+                    }
+                }
+            }
+        };
+        syncManager.runSync(sync, queue);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 40, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.STOPPED, 40, 25);
+
+        // Check stopped sync
+        assertFalse("Stopped sync should not be running", syncManager.pauseSync(syncId));
+        SyncState stoppedSync = syncManager.getSyncStatus(syncId);
+        assertTrue("Sync should be stopped", stoppedSync.isStopped());
+        if (cancel) {
+            assertNull("Checkpoint should have been dropped", stoppedSync.getCheckpoint());
+            assertEquals("Page after the stop should not have been fetched " + server.requests, 4, server.requests.size());
+            assertEquals("Job should have been deleted on cancel " + server.requests, "DELETE /750STANDIN0", server.requests.get(3));
+            assertEquals("Job should have been deleted", 0, server.getOpenJobsCount());
+        } else {
+            assertEquals("Wrong count saved", 10, stoppedSync.getCheckpoint().getInt(SyncState.CHECKPOINT_COUNT_SAVED));
+            assertEquals("Page after the stop should not have been fetched " + server.requests, 3, server.requests.size());
+            assertEquals("Job should have been kept for resume", 1, server.getOpenJobsCount());
+        }
+        server.requests.clear();
+
+        // Resume sync
+        queue = new SyncUpdateCallbackQueue();
+        syncManager.resumeSync(syncId, queue);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        if (cancel) {
+            checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, 25);
+            checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 40, 25);
+        } else {
+            checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 40, 25);
+        }
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 80, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.DONE, 100, 25);
+
+        // Check smartstore
+        QuerySpec smartStoreQuery = QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, Constants.ID, QuerySpec.Order.ascending, 25);
+        assertEquals("Wrong number of records", 25, smartStore.query(smartStoreQuery, 0).length());
+
+        // Check requests: two remaining pages and delete job (or, once cancelled, create job, poll, 3 pages, delete job)
+        if (cancel) {
+            assertEquals("Wrong requests " + server.requests, 6, server.requests.size());
+        } else {
+            assertEquals("Wrong requests " + server.requests, 3, server.requests.size());
+            assertTrue("Should have resumed at second page " + server.requests, server.requests.get(0).endsWith("?locator=10"));
+        }
+    }
+
+    /**
+     * Sync down cancelled while its query job runs on the server: the job is aborted and deleted
+     */
+    public void testCancelSyncDownWhileJobRuns() throws Exception {
+        TestBulkSyncDownTarget.StandInServer server = startNeverEndingBulkSyncDown();
+        TestBulkSyncDownTarget target = new TestBulkSyncDownTarget("SELECT Id, Name, LastModifiedDate FROM Account", 10);
+        SyncOptions options = SyncOptions.optionsForSyncDown(MergeMode.OVERWRITE);
+        SyncState sync = SyncState.createSyncDown(smartStore, target, options, ACCOUNTS_SOUP);
+        long syncId = sync.getId();
+        SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue();
+        syncManager.runSync(sync, queue);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        waitForJobPoll(server);
+
+        // Cancel sync
+        assertTrue("Sync should be running", syncManager.cancelSync(syncId));
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.STOPPED, 0, -1);
+
+        // Check requests: create job, poll(s), abort job, delete job
+        List<String> requests = server.getRequests();
+        assertEquals("Wrong last requests " + requests, Arrays.asList("PATCH /750STANDIN0", "DELETE /750STANDIN0"),
+                requests.subList(requests.size() - 2, requests.size()));
+        assertEquals("Job should have been deleted", 0, server.getOpenJobsCount());
+    }
+
+    /**
+     * Sync waiting behind another sync on the same soup cancelled: it is taken out of the queue and stopped right away
+     */
+    public void testCancelQueuedSync() throws Exception {
+        // Sync down that keeps the soup busy
+        TestBulkSyncDownTarget.StandInServer server = startNeverEndingBulkSyncDown();
+        SyncOptions options = SyncOptions.optionsForSyncDown(MergeMode.OVERWRITE);
+        SyncUpdateCallbackQueue runningQueue = new SyncUpdateCallbackQueue();
+        long runningSyncId = syncManager.syncDown(new TestBulkSyncDownTarget("SELECT Id, Name, LastModifiedDate FROM Account", 10),
+                options, ACCOUNTS_SOUP, runningQueue).getId();
+        assertTrue("Wrong status", runningQueue.getNextSyncUpdate().isRunning());
+        waitForJobPoll(server);
+
+        try {
+            // Sync queued behind it
+            SyncDownTarget target = new SoqlSyncDownTarget("SELECT Id, Name, LastModifiedDate FROM Account WHERE Id IN " + makeInClause(idToNames.keySet()));
+            SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue();
+            long syncId = syncManager.syncDown(target, options, ACCOUNTS_SOUP, queue).getId();
+            checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+            assertEquals("Sync should be waiting", 1, syncManager.getScheduler().getWaitingCount());
+
+            // Cancel it
+            assertTrue("Sync should be running", syncManager.cancelSync(syncId));
+            checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.STOPPED, 0, -1);
+            assertEquals("Sync should no longer be waiting", 0, syncManager.getScheduler().getWaitingCount());
+            assertFalse("Sync should no longer be running", syncManager.cancelSync(syncId));
+            assertTrue("Sync should be stopped", syncManager.getSyncStatus(syncId).isStopped());
+        } finally {
+            syncManager.cancelSync(runningSyncId);
+            assertTrue("Wrong status", runningQueue.getNextSyncUpdate().isStopped());
+        }
+
+        // Check that the sync did not run
+        QuerySpec smartStoreQuery = QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, Constants.ID, QuerySpec.Order.ascending, 10);
+        assertEquals("Queued sync should not have run", 0, smartStore.query(smartStoreQuery, 0).length());
+    }
+
+    /**
+     * @return stand-in bulk query server whose jobs never complete
+     */
+    private TestBulkSyncDownTarget.StandInServer startNeverEndingBulkSyncDown() {
+        TestBulkSyncDownTarget.StandInServer server = new TestBulkSyncDownTarget.StandInServer("Id,Name,LastModifiedDate", buildStandInRows(1), Integer.MAX_VALUE);
+        TestBulkSyncDownTarget.setServer(server);
+        return server;
+    }
+
+    /**
+     * Wait for the query job to be created and polled once
+     */
+    private void waitForJobPoll(TestBulkSyncDownTarget.StandInServer server) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (server.getRequests().size() < 2) {
+            assertTrue("Query job should have been polled " + server.getRequests(), System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * @param count
+     * @return csv rows (Id,Name,LastModifiedDate) for a stand-in bulk query server, named "Account <i>"
+     */
+    private static List<String> buildStandInRows(int count) {
+        List<String> rows = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            rows.add(getStandInId(i) + ",Account " + i + ",2017-01-0" + (1 + i % 9) + "T10:00:00.000Z");
+        }
+        return rows;
+    }
+
+    private static String getStandInId(int i) {
+        return String.format(Locale.US, "001STANDIN%08d", i);
+    }
+
+    private void tryBulkSyncDown(SyncOptions options) throws Exception {
+        // Stand-in server with 25 records (served in pages of 10), values exercising csv quoting
+        List<String> rows = new ArrayList<String>();
+        Map<String, String> idToDescriptions = new HashMap<String, String>();
+        for (int i = 0; i < 25; i++) {
+            String id = getStandInId(i);
+            String description = "line " + i + ", with \"quotes\"\nand a line break";
+            idToDescriptions.put(id, description);
+            rows.add(id + ",Account " + i + ",\"" + description.replace("\"", "\"\"") + "\",2017-01-0" + (1 + i % 9) + "T10:00:00.000Z," + (i % 2 == 0 ? "Owner " + i : ""));
+        }
+        TestBulkSyncDownTarget.StandInServer server = new TestBulkSyncDownTarget.StandInServer("Id,Name,Description,LastModifiedDate,Owner.Name", rows, 2);
+        TestBulkSyncDownTarget.setServer(server);
+
+        // Sync down
+        TestBulkSyncDownTarget target = new TestBulkSyncDownTarget("SELECT Id, Name, Description, LastModifiedDate, Owner.Name FROM Account", 10);
+        SyncState sync = SyncState.createSyncDown(smartStore, target, options, ACCOUNTS_SOUP);
+        long syncId = sync.getId();
+        SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue();
+        syncManager.runSync(sync, queue);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 0, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 40, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.RUNNING, 80, 25);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncDown, syncId, target, options, SyncState.Status.DONE, 100, 25);
+
+        // Check smartstore
+        QuerySpec smartStoreQuery = QuerySpec.buildAllQuerySpec(ACCOUNTS_SOUP, Constants.ID, QuerySpec.Order.ascending, 25);
+        JSONArray accountsFromDb = smartStore.query(smartStoreQuery, 0);
+        assertEquals("Wrong number of records", 25, accountsFromDb.length());
+        for (int i = 0; i < accountsFromDb.length(); i++) {
+            JSONObject account = accountsFromDb.getJSONObject(i);
+            String id = account.getString(Constants.ID);
+            assertEquals("Wrong name", "Account " + i, account.getString(Constants.NAME));
+            assertEquals("Wrong description", idToDescriptions.get(id), account.getString("Description"));
+            assertEquals("Wrong type", Constants.ACCOUNT, SmartStore.project(account, Constants.SOBJECT_TYPE));
+            assertEquals("Wrong modification date", "2017-01-0" + (1 + i % 9) + "T10:00:00.000+0000", account.getString(Constants.LAST_MODIFIED_DATE));
+            Constants.TIMESTAMP_FORMAT.parse(account.getString(Constants.LAST_MODIFIED_DATE));
+            if (i % 2 == 0) {
+                assertEquals("Wrong owner name", "Owner " + i, SmartStore.project(account, "Owner.Name"));
+            } else {
+                assertTrue("Owner name should be null", account.getJSONObject("Owner").isNull(Constants.NAME));
+            }
+        }
+
+        // Check requests: create job, 3 polls, 3 pages, delete job
+        assertEquals("Wrong requests " + server.requests, 8, server.requests.size());
+        assertEquals("Job should have been deleted", 0, server.getOpenJobsCount());
+    }
+
     /**
 	 * Sync down the test accounts, modify a few, sync up, check smartstore and server afterwards
 	 */
@@ -409,6 +896,128 @@ public class SyncManagerTest extends ManagerTestCase {
         }
     }
 
+    /**
+     * Create more accounts locally than fit in one sync up batch, sync up using TestSyncUpTarget along with the id of a record
+     * that no longer exists, check that the last partial batch was synced up
+     */
+    public void testCustomSyncUpWithMissingRecords() throws Exception {
+        tryCustomSyncUpWithMissingRecords(MergeMode.OVERWRITE);
+    }
+
+    /**
+     * Same as testCustomSyncUpWithMissingRecords in LEAVE_IF_CHANGED mode (records are read a batch at a time)
+     */
+    public void testCustomSyncUpWithMissingRecordsLeaveIfChanged() throws Exception {
+        tryCustomSyncUpWithMissingRecords(MergeMode.LEAVE_IF_CHANGED);
+    }
+
+    private void tryCustomSyncUpWithMissingRecords(MergeMode mergeMode) throws Exception {
+        // Create a few entries locally
+        String[] names = new String[SyncManager.SYNC_UP_BATCH_SIZE + 5];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = createRecordName(Constants.ACCOUNT);
+        }
+        createAccountsLocally(names);
+
+        // Sync up (missing soup entry id 0 sorts first so it is part of the first batch)
+        TestSyncUpTarget.ActionCollector collector = new TestSyncUpTarget.ActionCollector();
+        TestSyncUpTarget target = new TestSyncUpTarget(TestSyncUpTarget.SyncBehavior.NO_FAIL);
+        TestSyncUpTarget.setActionCollector(collector);
+        TestSyncUpTarget.setMissingRecordIds(new HashSet<String>(Arrays.asList("0")));
+        try {
+            trySyncUp(target, names.length + 1, mergeMode);
+        } finally {
+            TestSyncUpTarget.setMissingRecordIds(null);
+        }
+
+        // Check that all the records got synched up
+        assertEquals("Wrong number of records created by target", names.length, collector.createdRecordIds.size());
+        Map<String, String> idToNamesCreated = getIdsForNames(names);
+        assertEquals("Wrong number of records", names.length, idToNamesCreated.size());
+        checkDbStateFlags(idToNamesCreated.keySet(), false, false, false);
+    }
+
+    /**
+     * Sync up paused after its first record then resumed: it carries on with the other records
+     */
+    public void testPauseAndResumeSyncUp() throws Exception {
+        tryStopAndResumeSyncUp(false);
+    }
+
+    /**
+     * Sync up cancelled after its first record then resumed: records already synched up are not sent again
+     */
+    public void testCancelAndResumeSyncUp() throws Exception {
+        tryStopAndResumeSyncUp(true);
+    }
+
+    private void tryStopAndResumeSyncUp(final boolean cancel) throws Exception {
+        // Create a few entries locally
+        String[] names = new String[] { createRecordName(Constants.ACCOUNT), createRecordName(Constants.ACCOUNT),
+                createRecordName(Constants.ACCOUNT), createRecordName(Constants.ACCOUNT) };
+        createAccountsLocally(names);
+
+        // Sync up gets stopped once the first record is synched up
+        TestSyncUpTarget.ActionCollector collector = new TestSyncUpTarget.ActionCollector();
+        TestSyncUpTarget.setActionCollector(collector);
+        TestSyncUpTarget target = new TestSyncUpTarget(TestSyncUpTarget.SyncBehavior.NO_FAIL);
+        SyncOptions options = SyncOptions.optionsForSyncUp(Arrays.asList(new String[] { Constants.NAME }), MergeMode.OVERWRITE);
+        SyncState sync = SyncState.createSyncUp(smartStore, target, options, ACCOUNTS_SOUP);
+        long syncId = sync.getId();
+        final boolean[] interrupted = new boolean[1];
+        SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue() {
+            @Override
+            public void onUpdate(SyncState sync) {
+                super.onUpdate(sync);
+                if (sync.isRunning() && sync.getProgress() == 25) {
+                    if (cancel) {
+                        syncManager.cancelSync(sync.getId());
+                    } else {
+                        syncManager.pauseSync(sync.getId());
+                    }
+                    // Sync up requests are never interrupted (they could have been committed on the server)
+                    interrupted[0] = Thread.currentThread().isInterrupted();
+                }
+            }
+        };
+        syncManager.runSync(sync, queue);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.RUNNING, 0, 4);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.RUNNING, 25, 4);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.STOPPED, 25, 4);
+        assertFalse("Sync up thread should not have been interrupted", interrupted[0]);
+
+        // Check that only the first record got synched up
+        assertTrue("Stopped sync should be stopped", syncManager.getSyncStatus(syncId).isStopped());
+        assertEquals("Wrong number of records created by target", 1, collector.createdRecordIds.size());
+        Map<String, String> idToNamesAfterStop = getIdsForNames(names);
+        List<String> idsStillLocal = new ArrayList<String>();
+        for (String id : idToNamesAfterStop.keySet()) {
+            if (id.startsWith(LOCAL_ID_PREFIX)) {
+                idsStillLocal.add(id);
+            }
+        }
+        assertEquals("Wrong number of records left to sync up", 3, idsStillLocal.size());
+        checkDbStateFlags(collector.createdRecordIds, false, false, false);
+        checkDbStateFlags(idsStillLocal, true, false, false);
+
+        // Resume sync
+        queue = new SyncUpdateCallbackQueue();
+        syncManager.resumeSync(syncId, queue);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.RUNNING, 0, 3);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.RUNNING, 33, 3);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.RUNNING, 66, 3);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.DONE, 100, 3);
+
+        // Check that every record got created exactly once
+        assertEquals("Wrong number of records created by target", 4, collector.createdRecordIds.size());
+        assertEquals("Records should not be created twice", 4, new HashSet<String>(collector.createdRecordIds).size());
+        Map<String, String> idToNamesCreated = getIdsForNames(names);
+        assertEquals("Wrong number of records", 4, idToNamesCreated.size());
+        checkDbStateFlags(idToNamesCreated.keySet(), false, false, false);
+    }
+
     /**
      * Sync down the test accounts, delete a few, sync up using TestSyncUpTarget, check smartstore
      */
@@ -592,6 +1201,154 @@ public class SyncManagerTest extends ManagerTestCase {
         assertEquals("Wrong number of records created by target", 0, idsDeletedByTarget.size());
     }
 
+    /**
+     * Fetch last modified dates of the test accounts with one call, check that deleted records are mapped to null
+     */
+    public void testFetchLastModifiedDates() throws Exception {
+        // Delete one account on server
+        List<String> ids = new ArrayList<String>(idToNames.keySet());
+        String idRemotelyDeleted = ids.get(0);
+        deleteRecordsOnServer(new HashSet<String>(Arrays.asList(idRemotelyDeleted)), Constants.ACCOUNT);
+        idToNames.remove(idRemotelyDeleted);
+
+        // Fetch last modified dates
+        Map<String, String> lastModifiedDates = new SyncUpTarget().fetchLastModifiedDates(syncManager, Constants.ACCOUNT, ids);
+        assertEquals("Wrong number of dates", COUNT_TEST_ACCOUNTS, lastModifiedDates.size());
+        assertTrue("Deleted record should be mapped to null", lastModifiedDates.containsKey(idRemotelyDeleted));
+        assertNull("Deleted record should be mapped to null", lastModifiedDates.get(idRemotelyDeleted));
+        for (String id : idToNames.keySet()) {
+            String lastModifiedDate = lastModifiedDates.get(id);
+            assertNotNull("Missing date for " + id, lastModifiedDate);
+            Constants.TIMESTAMP_FORMAT.parse(lastModifiedDate);
+        }
+    }
+
+    /**
+     * Sync down the test accounts, update, delete and create a few locally, sync up in batches of 2 using BatchSyncUpTarget, check smartstore and server afterwards
+     */
+    public void testBatchSyncUpWithLocalChanges() throws Exception {
+        // First sync down
+        trySyncDown(MergeMode.OVERWRITE);
+
+        // Update a few entries locally
+        Map<String, String> idToNamesLocallyUpdated = makeSomeLocalChanges();
+
+        // Delete another one locally
+        String[] allIds = idToNames.keySet().toArray(new String[0]);
+        String[] idsLocallyDeleted = new String[] { allIds[3] };
+        deleteAccountsLocally(idsLocallyDeleted);
+
+        // Create a few entries locally
+        String[] names = new String[] { createRecordName(Constants.ACCOUNT), createRecordName(Constants.ACCOUNT) };
+        createAccountsLocally(names);
+
+        // Sync up
+        trySyncUpInBatches(new BatchSyncUpTarget(2), 6, MergeMode.OVERWRITE);
+
+        // Check that db doesn't show entries as locally modified anymore
+        checkDbStateFlags(idToNamesLocallyUpdated.keySet(), false, false, false);
+        Map<String, String> idToNamesCreated = getIdsForNames(names);
+        checkDbStateFlags(idToNamesCreated.keySet(), false, false, false);
+        checkDbDeleted(idsLocallyDeleted);
+
+        // Check server
+        checkServer(idToNamesLocallyUpdated);
+        checkServer(idToNamesCreated);
+        checkServerDeleted(idsLocallyDeleted);
+
+        // Adding to idToNames so that they get deleted in tearDown
+        idToNames.putAll(idToNamesCreated);
+    }
+
+    /**
+     * Create records of interleaved types with BatchSyncUpTarget: requests group records by type (at most 10 types per request)
+     * and server ids come back in the order of the records
+     */
+    public void testBatchSyncUpGroupsRecordsByType() throws Exception {
+        final List<JSONObject> requestBodies = new ArrayList<JSONObject>();
+        BatchSyncUpTarget target = new BatchSyncUpTarget() {
+            @Override
+            protected JSONArray sendCollectionRequest(SyncManager syncManager, RestRequest.RestMethod method, String query, JSONObject body) throws JSONException {
+                requestBodies.add(body);
+                JSONArray records = body.getJSONArray(Constants.RECORDS);
+                JSONArray results = new JSONArray();
+                for (int i = 0; i < records.length(); i++) {
+                    results.put(new JSONObject().put(Constants.LID, "id_" + records.getJSONObject(i).getString(Constants.NAME)).put("success", true));
+                }
+                return results;
+            }
+        };
+
+        // 24 records of 12 types, interleaved
+        List<String> objectTypes = new ArrayList<String>();
+        List<Map<String, Object>> fieldsList = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 24; i++) {
+            objectTypes.add("Type" + (char) ('A' + i % 12));
+            Map<String, Object> fields = new HashMap<String, Object>();
+            fields.put(Constants.NAME, "name" + i);
+            fieldsList.add(fields);
+        }
+        List<String> serverIds = target.createOnServer(syncManager, objectTypes, fieldsList);
+
+        // Check server ids
+        assertEquals("Wrong number of server ids", 24, serverIds.size());
+        for (int i = 0; i < 24; i++) {
+            assertEquals("Wrong server id", "id_name" + i, serverIds.get(i));
+        }
+
+        // Check requests: first ten types then last two, each type in one chunk
+        assertEquals("Wrong number of requests", 2, requestBodies.size());
+        int[] expectedSizes = {20, 4};
+        for (int r = 0; r < requestBodies.size(); r++) {
+            JSONArray records = requestBodies.get(r).getJSONArray(Constants.RECORDS);
+            assertEquals("Wrong number of records in request", expectedSizes[r], records.length());
+            Set<String> typesSeen = new HashSet<String>();
+            String lastType = null;
+            for (int i = 0; i < records.length(); i++) {
+                String type = records.getJSONObject(i).getJSONObject(Constants.ATTRIBUTES).getString("type");
+                if (!type.equals(lastType)) {
+                    assertTrue("Records of type " + type + " should be contiguous", typesSeen.add(type));
+                }
+                lastType = type;
+            }
+            assertTrue("Too many types in request", typesSeen.size() <= BatchSyncUpTarget.MAX_TYPES_PER_REQUEST);
+        }
+    }
+
+    /**
+     * Sync down the test accounts, update a few locally and delete them on server, sync up using BatchSyncUpTarget, check smartstore and server afterwards
+     */
+    public void testBatchSyncUpWithLocallyUpdatedRemotelyDeletedRecords() throws Exception {
+        // First sync down
+        trySyncDown(MergeMode.OVERWRITE);
+
+        // Update a few entries locally
+        Map<String, String> idToNamesLocallyUpdated = makeSomeLocalChanges();
+
+        // Delete one of them on server
+        String idRemotelyDeleted = idToNamesLocallyUpdated.keySet().iterator().next();
+        deleteRecordsOnServer(new HashSet<String>(Arrays.asList(idRemotelyDeleted)), Constants.ACCOUNT);
+
+        // Sync up
+        trySyncUpInBatches(new BatchSyncUpTarget(), 3, MergeMode.OVERWRITE);
+
+        // Check that the remotely deleted record was re-created with a new id
+        String name = idToNamesLocallyUpdated.remove(idRemotelyDeleted);
+        Map<String, String> idToNamesRecreated = getIdsForNames(new String[] { name });
+        assertEquals("Record should have been re-created", 1, idToNamesRecreated.size());
+        assertFalse("Record should have a new id", idToNamesRecreated.containsKey(idRemotelyDeleted));
+        checkDbStateFlags(idToNamesRecreated.keySet(), false, false, false);
+        checkServer(idToNamesRecreated);
+
+        // Check the other records
+        checkDbStateFlags(idToNamesLocallyUpdated.keySet(), false, false, false);
+        checkServer(idToNamesLocallyUpdated);
+
+        // Adding to idToNames so that they get deleted in tearDown
+        idToNames.remove(idRemotelyDeleted);
+        idToNames.putAll(idToNamesRecreated);
+    }
+
     /**
      * Sync down the test accounts, delete record on server and locally, sync up, check smartstore and server afterwards
      */
@@ -810,6 +1567,146 @@ public class SyncManagerTest extends ManagerTestCase {
         deleteSyncs();
     }
 
+    /**
+     * Tests that ghost records are cleaned locally for a SOQL target with an ORDER BY clause, leaving locally modified records alone.
+     */
+    public void testCleanResyncGhostsForSOQLTargetWithLocalChanges() throws Exception {
+        final String soupName = "Accounts";
+        createAccountsSoup(soupName);
+
+        // Builds SOQL sync down target (ordered by name) and performs initial sync of the test accounts.
+        final String[] accountIds = idToNames.keySet().toArray(new String[0]);
+        final String soql = "SELECT Id, Name, LastModifiedDate FROM Account WHERE Id IN " + makeInClause(idToNames.keySet()) + " ORDER BY Name";
+        long syncId = trySyncDown(MergeMode.LEAVE_IF_CHANGED, new SoqlSyncDownTarget(soql), idToNames, soupName);
+
+        // Deletes 3 accounts on the server, one of them being modified locally.
+        final Set<String> idsRemotelyDeleted = new HashSet<String>(Arrays.asList(accountIds[0], accountIds[1], accountIds[2]));
+        deleteRecordsOnServer(idsRemotelyDeleted, Constants.ACCOUNT);
+        JSONObject account = smartStore.retrieve(soupName, smartStore.lookupSoupEntryId(soupName, Constants.ID, accountIds[2])).getJSONObject(0);
+        account.put(SyncManager.LOCAL, true);
+        account.put(SyncManager.LOCALLY_UPDATED, true);
+        smartStore.upsert(soupName, account);
+        for (String id : idsRemotelyDeleted) {
+            idToNames.remove(id);
+        }
+
+        // Cleans ghosts and verifies only the unmodified ghost records were removed.
+        syncManager.cleanResyncGhosts(syncId);
+        int numRecords = smartStore.countQuery(QuerySpec.buildAllQuerySpec(soupName, "Id", QuerySpec.Order.ascending, 10));
+        assertEquals("Wrong number of accounts in the soup", COUNT_TEST_ACCOUNTS - 2, numRecords);
+        assertTrue("Locally modified account should still be in the soup", smartStore.lookupSoupEntryId(soupName, Constants.ID, accountIds[2]) > 0);
+        assertEquals("Ghost account should have been removed", -1, smartStore.lookupSoupEntryId(soupName, Constants.ID, accountIds[0]));
+        assertEquals("Ghost account should have been removed", -1, smartStore.lookupSoupEntryId(soupName, Constants.ID, accountIds[1]));
+        dropAccountsSoup(soupName);
+    }
+
+    /**
+     * Tests ghost cleaning by sorted merge across pages: more local ids than fit in one page,
+     * remote ids served in small pages (one of them empty) with ids that are not in the soup
+     */
+    public void testCleanResyncGhostsBySortedMergeAcrossPages() throws Exception {
+        final String soupName = "Accounts";
+        createAccountsSoup(soupName);
+        try {
+            // Local records, a few of them ghosts (including the last ones of the first local page and the last one overall)
+            final int count = SyncManager.PAGE_SIZE + 10;
+            final Set<Integer> ghosts = new HashSet<Integer>(Arrays.asList(0, 5, 6, SyncManager.PAGE_SIZE - 1, SyncManager.PAGE_SIZE, count - 1));
+            createSyncedRecordsLocally(soupName, count);
+
+            // Remote ids in pages of 7 with an empty page and ids only on the server
+            final List<String> remoteIds = new ArrayList<String>();
+            for (int i = 0; i < count; i++) {
+                if (!ghosts.contains(i)) {
+                    remoteIds.add(getGhostTestId(i));
+                }
+                if (i % 100 == 50) {
+                    remoteIds.add(getGhostTestId(i) + "_remote");
+                }
+            }
+            final List<List<String>> pages = new ArrayList<List<String>>();
+            for (int start = 0; start < remoteIds.size(); start += 7) {
+                pages.add(remoteIds.subList(start, Math.min(start + 7, remoteIds.size())));
+                if (pages.size() == 3) {
+                    pages.add(new ArrayList<String>());
+                }
+            }
+            TestSortedIdsSyncDownTarget.setRemoteIdPages(pages);
+
+            // Cleans ghosts
+            final TestSortedIdsSyncDownTarget target = new TestSortedIdsSyncDownTarget("SELECT Id, Name, LastModifiedDate FROM Account");
+            final long syncId = SyncState.createSyncDown(smartStore, target, SyncOptions.optionsForSyncDown(MergeMode.OVERWRITE), soupName).getId();
+            syncManager.cleanResyncGhosts(syncId);
+
+            // Checks that only ghosts were removed and that all the remote ids were read
+            assertEquals("Wrong number of pages served", pages.size(), TestSortedIdsSyncDownTarget.getPagesServed());
+            assertEquals("Wrong number of records in the soup", count - ghosts.size(),
+                    smartStore.countQuery(QuerySpec.buildAllQuerySpec(soupName, Constants.ID, QuerySpec.Order.ascending, 10)));
+            for (int i = 0; i < count; i++) {
+                final boolean inSoup = smartStore.lookupSoupEntryId(soupName, Constants.ID, getGhostTestId(i)) > 0;
+                assertEquals("Wrong presence in soup for record " + i, !ghosts.contains(i), inSoup);
+            }
+        } finally {
+            TestSortedIdsSyncDownTarget.setRemoteIdPages(new ArrayList<List<String>>());
+            dropAccountsSoup(soupName);
+        }
+    }
+
+    /**
+     * Tests that ghost cleaning by sorted merge stops without deleting anything when remote ids are not sorted
+     */
+    public void testCleanResyncGhostsBySortedMergeWithUnsortedRemoteIds() throws Exception {
+        final String soupName = "Accounts";
+        createAccountsSoup(soupName);
+        try {
+            // Local records 0 to 19, remote ids with 5 missing then out of order in the second page
+            createSyncedRecordsLocally(soupName, 20);
+            final List<List<String>> pages = new ArrayList<List<String>>();
+            pages.add(Arrays.asList(getGhostTestId(0), getGhostTestId(1), getGhostTestId(2), getGhostTestId(3), getGhostTestId(4)));
+            pages.add(Arrays.asList(getGhostTestId(7), getGhostTestId(6), getGhostTestId(8)));
+            TestSortedIdsSyncDownTarget.setRemoteIdPages(pages);
+
+            // Cleans ghosts
+            final TestSortedIdsSyncDownTarget target = new TestSortedIdsSyncDownTarget("SELECT Id, Name, LastModifiedDate FROM Account");
+            final long syncId = SyncState.createSyncDown(smartStore, target, SyncOptions.optionsForSyncDown(MergeMode.OVERWRITE), soupName).getId();
+            try {
+                syncManager.cleanResyncGhosts(syncId);
+                fail("Unsorted remote ids should have been detected");
+            } catch (SyncManager.SmartSyncException e) {
+                assertTrue("Wrong exception " + e.getMessage(), e.getMessage().contains("not sorted"));
+            }
+
+            // Checks that nothing was removed
+            assertEquals("No record should have been removed", 20,
+                    smartStore.countQuery(QuerySpec.buildAllQuerySpec(soupName, Constants.ID, QuerySpec.Order.ascending, 10)));
+        } finally {
+            TestSortedIdsSyncDownTarget.setRemoteIdPages(new ArrayList<List<String>>());
+            dropAccountsSoup(soupName);
+        }
+    }
+
+    /**
+     * Create records that look synced down (ids from getGhostTestId)
+     */
+    private void createSyncedRecordsLocally(String soupName, int count) throws JSONException {
+        final JSONObject attributes = new JSONObject();
+        attributes.put(TYPE, Constants.ACCOUNT);
+        for (int i = 0; i < count; i++) {
+            final JSONObject account = new JSONObject();
+            account.put(Constants.ID, getGhostTestId(i));
+            account.put(Constants.NAME, "Account " + i);
+            account.put(Constants.ATTRIBUTES, attributes);
+            account.put(SyncManager.LOCAL, false);
+            account.put(SyncManager.LOCALLY_CREATED, false);
+            account.put(SyncManager.LOCALLY_DELETED, false);
+            account.put(SyncManager.LOCALLY_UPDATED, false);
+            smartStore.create(soupName, account);
+        }
+    }
+
+    private static String getGhostTestId(int i) {
+        return String.format(Locale.US, "001GHOST%08d", i);
+    }
+
     /**
      * Tests if ghost records are cleaned locally for a MRU target.
      */
@@ -904,7 +1801,19 @@ public class SyncManagerTest extends ManagerTestCase {
      * @return Sync ID.
      */
     private long trySyncDown(MergeMode mergeMode, SyncDownTarget target, Map<String, String> idNamesMap, String soupName) throws JSONException {
-        final SyncOptions options = SyncOptions.optionsForSyncDown(mergeMode);
+        return trySyncDown(SyncOptions.optionsForSyncDown(mergeMode), target, idNamesMap, soupName);
+    }
+
+    /**
+     * Sync down helper.
+     *
+     * @param options Sync options.
+     * @param target Sync down target.
+     * @param idNamesMap ID to names map.
+     * @param soupName Soup name.
+     * @return Sync ID.
+     */
+    private long trySyncDown(SyncOptions options, SyncDownTarget target, Map<String, String> idNamesMap, String soupName) throws JSONException {
         final SyncState sync = SyncState.createSyncDown(smartStore, target, options, soupName);
         long syncId = sync.getId();
         checkStatus(sync, SyncState.Type.syncDown, syncId, target, options, SyncState.Status.NEW, 0, -1);
@@ -979,6 +1888,33 @@ public class SyncManagerTest extends ManagerTestCase {
         }
 	}
 
+    /**
+     * Sync up helper for BatchSyncUpTarget (one status update per batch)
+     * @param target
+     * @param numberChanges
+     * @param mergeMode
+     * @throws JSONException
+     */
+    private void trySyncUpInBatches(BatchSyncUpTarget target, int numberChanges, MergeMode mergeMode) throws JSONException {
+        // Create sync
+        SyncOptions options = SyncOptions.optionsForSyncUp(Arrays.asList(new String[] { Constants.NAME }), mergeMode);
+        SyncState sync = SyncState.createSyncUp(smartStore, target, options, ACCOUNTS_SOUP);
+        long syncId = sync.getId();
+        checkStatus(sync, SyncState.Type.syncUp, syncId, target, options, SyncState.Status.NEW, 0, -1);
+
+        // Run sync
+        SyncUpdateCallbackQueue queue = new SyncUpdateCallbackQueue();
+        syncManager.runSync(sync, queue);
+
+        // Check status updates
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.RUNNING, 0, -1);
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.RUNNING, 0, numberChanges);
+        for (int processed = target.getMaxBatchSize(); processed < numberChanges; processed += target.getMaxBatchSize()) {
+            checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.RUNNING, processed * 100 / numberChanges, numberChanges);
+        }
+        checkStatus(queue.getNextSyncUpdate(), SyncState.Type.syncUp, syncId, target, options, SyncState.Status.DONE, 100, numberChanges);
+    }
+
 	/**
 	 * Helper method to check sync state
 	 * @param sync
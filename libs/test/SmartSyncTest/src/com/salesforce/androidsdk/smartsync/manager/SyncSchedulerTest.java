@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartsync.manager;
+
+import android.test.InstrumentationTestCase;
+
+import com.salesforce.androidsdk.smartsync.manager.SyncScheduler.Priority;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test class for SyncScheduler.
+ */
+public class SyncSchedulerTest extends InstrumentationTestCase {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /**
+     * Syncs on the same soup should not run at once
+     */
+    public void testSameSoupSerialized() throws Exception {
+        final SyncScheduler scheduler = new SyncScheduler();
+        scheduler.setParallelism(4);
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        final CountDownLatch secondDone = new CountDownLatch(1);
+        scheduler.submit("soup", Priority.NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                firstStarted.countDown();
+                await(releaseFirst);
+            }
+        });
+        scheduler.submit("soup", Priority.HIGH, countDown(secondDone));
+        assertTrue("First sync should have started", firstStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse("Second sync should wait for first one", secondDone.await(200, TimeUnit.MILLISECONDS));
+        assertEquals("Wrong waiting count", 1, scheduler.getWaitingCount());
+        releaseFirst.countDown();
+        assertTrue("Second sync should have run", secondDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Syncs on other soups should run while a bulk load is running
+     */
+    public void testOtherSoupsDontWaitBehindBulkLoad() throws Exception {
+        final SyncScheduler scheduler = new SyncScheduler();
+        scheduler.setParallelism(2);
+        final CountDownLatch releaseBulk = new CountDownLatch(1);
+        final CountDownLatch otherBulkDone = new CountDownLatch(1);
+        final CountDownLatch resyncDone = new CountDownLatch(1);
+        try {
+            scheduler.submit("bulkSoup", Priority.LOW, new Runnable() {
+                @Override
+                public void run() {
+                    await(releaseBulk);
+                }
+            });
+
+            // Second bulk load can't take the last slot
+            scheduler.submit("otherBulkSoup", Priority.LOW, countDown(otherBulkDone));
+            scheduler.submit("smallSoup", Priority.NORMAL, countDown(resyncDone));
+            assertTrue("Small sync should have run", resyncDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertFalse("Second bulk load should wait", otherBulkDone.await(200, TimeUnit.MILLISECONDS));
+        } finally {
+            releaseBulk.countDown();
+        }
+        assertTrue("Second bulk load should have run", otherBulkDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Waiting syncs should run by priority then in order of submission
+     */
+    public void testPriorityOrder() throws Exception {
+        final SyncScheduler scheduler = new SyncScheduler();
+        scheduler.setParallelism(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        final CountDownLatch allDone = new CountDownLatch(3);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        scheduler.submit("soup0", Priority.NORMAL, new Runnable() {
+            @Override
+            public void run() {
+                await(releaseFirst);
+            }
+        });
+        scheduler.submit("soup1", Priority.LOW, record(order, "low", allDone));
+        scheduler.submit("soup2", Priority.NORMAL, record(order, "normal", allDone));
+        scheduler.submit("soup3", Priority.HIGH, record(order, "high", allDone));
+        releaseFirst.countDown();
+        assertTrue("All syncs should have run", allDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("Wrong order", "[high, normal, low]", order.toString());
+    }
+
+    /**
+     * Removed syncs should not run, syncs that already started can't be removed
+     */
+    public void testRemove() throws Exception {
+        final SyncScheduler scheduler = new SyncScheduler();
+        scheduler.setParallelism(1);
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        final CountDownLatch removedDone = new CountDownLatch(1);
+        final CountDownLatch lastDone = new CountDownLatch(1);
+        final Runnable first = new Runnable() {
+            @Override
+            public void run() {
+                firstStarted.countDown();
+                await(releaseFirst);
+            }
+        };
+        final Runnable removed = countDown(removedDone);
+        scheduler.submit("soup0", Priority.NORMAL, first);
+        scheduler.submit("soup1", Priority.HIGH, removed);
+        scheduler.submit("soup2", Priority.NORMAL, countDown(lastDone));
+        assertTrue("First sync should have started", firstStarted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse("Running sync should not be removed", scheduler.remove(first));
+        assertTrue("Waiting sync should be removed", scheduler.remove(removed));
+        assertFalse("Removed sync should not be removed twice", scheduler.remove(removed));
+        assertEquals("Wrong waiting count", 1, scheduler.getWaitingCount());
+        releaseFirst.countDown();
+        assertTrue("Last sync should have run", lastDone.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse("Removed sync should not have run", removedDone.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private static Runnable record(final List<String> order, final String name, final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+                latch.countDown();
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartsync.manager;
+
+import com.salesforce.androidsdk.rest.RestRequest;
+import com.salesforce.androidsdk.smartsync.util.BulkSyncDownTarget;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk sync down target for tests: query jobs are run by an in-memory stand-in server
+ */
+public class TestBulkSyncDownTarget extends BulkSyncDownTarget {
+
+    private static StandInServer server;
+
+    public TestBulkSyncDownTarget(JSONObject target) throws JSONException {
+        super(target);
+    }
+
+    public TestBulkSyncDownTarget(String query, int maxRecordsPerPage) {
+        super(query, maxRecordsPerPage);
+    }
+
+    @Override
+    protected JSONObject sendJobRequest(SyncManager syncManager, RestRequest.RestMethod method, String jobPath, JSONObject body) throws IOException, JSONException {
+        return server.handleJobRequest(method, jobPath, body);
+    }
+
+    @Override
+    protected ResultsPage fetchResultsPage(SyncManager syncManager, String jobId, String locator, int maxRecords) throws IOException {
+        return server.getResults(jobId, locator, maxRecords);
+    }
+
+    //
+    // Test support
+    //
+
+    public static void setServer(StandInServer standInServer) {
+        server = standInServer;
+    }
+
+    /**
+     * Stand-in for the Bulk API 2.0 query job resources
+     * Records are served as CSV, jobs complete after a given number of polls
+     */
+    public static class StandInServer {
+        private final String csvHeader;
+        private final List<String> csvRows;
+        private final int pollsBeforeComplete;
+        private final Map<String, Integer> jobToPolls = new HashMap<String, Integer>();
+        private final Set<String> abortedJobs = new HashSet<String>();
+        private int jobSeq = 0;
+        private String failingLocator;
+        public final List<String> requests = new ArrayList<String>();
+
+        /**
+         * @param csvHeader field names row
+         * @param csvRows record rows
+         * @param pollsBeforeComplete number of status requests that find the job in progress
+         */
+        public StandInServer(String csvHeader, List<String> csvRows, int pollsBeforeComplete) {
+            this.csvHeader = csvHeader;
+            this.csvRows = csvRows;
+            this.pollsBeforeComplete = pollsBeforeComplete;
+        }
+
+        public synchronized JSONObject handleJobRequest(RestRequest.RestMethod method, String jobPath, JSONObject body) throws IOException, JSONException {
+            requests.add(method + " " + jobPath);
+            switch (method) {
+                case POST:
+                    String jobId = "750STANDIN" + (jobSeq++);
+                    jobToPolls.put(jobId, 0);
+                    return new JSONObject().put("id", jobId).put("state", "UploadComplete").put("query", body.getString("query"));
+                case GET:
+                    jobId = jobPath.substring(1);
+                    int polls = getPolls(jobId);
+                    jobToPolls.put(jobId, polls + 1);
+                    return polls < pollsBeforeComplete
+                            ? new JSONObject().put("id", jobId).put("state", "InProgress")
+                            : new JSONObject().put("id", jobId).put("state", JOB_COMPLETE).put("numberRecordsProcessed", csvRows.size());
+                case PATCH:
+                    jobId = jobPath.substring(1);
+                    getPolls(jobId);
+                    abortedJobs.add(jobId);
+                    return new JSONObject().put("id", jobId).put("state", body.getString("state"));
+                case DELETE:
+                    // Like the server, only deletes jobs that are no longer running
+                    jobId = jobPath.substring(1);
+                    if (getPolls(jobId) <= pollsBeforeComplete && !abortedJobs.contains(jobId)) {
+                        throw new IOException("Job " + jobId + " in progress");
+                    }
+                    jobToPolls.remove(jobId);
+                    abortedJobs.remove(jobId);
+                    return null;
+                default:
+                    throw new IOException("Unexpected method " + method);
+            }
+        }
+
+        public synchronized ResultsPage getResults(String jobId, String locator, int maxRecords) throws IOException {
+            requests.add("GET /" + jobId + "/results" + (locator == null ? "" : "?locator=" + locator));
+            if (locator != null && locator.equals(failingLocator)) {
+                failingLocator = null;
+                throw new IOException("Connection lost");
+            }
+            if (getPolls(jobId) <= pollsBeforeComplete) {
+                throw new IOException("Job " + jobId + " not complete");
+            }
+            int start = locator == null ? 0 : Integer.parseInt(locator);
+            int end = Math.min(start + maxRecords, csvRows.size());
+            StringBuilder csv = new StringBuilder(csvHeader).append("\n");
+            for (String row : csvRows.subList(start, end)) {
+                csv.append(row).append("\n");
+            }
+            return new ResultsPage(new StringReader(csv.toString()), end < csvRows.size() ? Integer.toString(end) : "null");
+        }
+
+        /**
+         * Make the next request for the page at the given locator fail (e.g. to interrupt a sync)
+         * @param locator
+         */
+        public synchronized void failOnceAt(String locator) {
+            failingLocator = locator;
+        }
+
+        /**
+         * Forget all jobs (like the server does once their results expire)
+         */
+        public synchronized void expireJobs() {
+            jobToPolls.clear();
+            abortedJobs.clear();
+        }
+
+        public synchronized int getOpenJobsCount() {
+            return jobToPolls.size();
+        }
+
+        public synchronized List<String> getRequests() {
+            return new ArrayList<String>(requests);
+        }
+
+        private int getPolls(String jobId) throws IOException {
+            Integer polls = jobToPolls.get(jobId);
+            if (polls == null) {
+                throw new IOException("Unknown job " + jobId);
+            }
+            return polls;
+        }
+    }
+}
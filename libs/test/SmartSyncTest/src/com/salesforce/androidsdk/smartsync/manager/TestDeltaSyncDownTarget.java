@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartsync.manager;
+
+import com.salesforce.androidsdk.smartsync.util.DeltaSyncDownTarget;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Delta sync down target for tests: ids of updated / deleted records are provided by the test
+ * (the server only reports changes with a granularity of one minute)
+ */
+public class TestDeltaSyncDownTarget extends DeltaSyncDownTarget {
+
+    private static List<String> updatedIds = new ArrayList<String>();
+    private static List<String> deletedIds = new ArrayList<String>();
+    private static long lastWindowStart = -1;
+    private static long lastWindowEnd = -1;
+    private static long serverLatestDateCovered = -1;
+
+    public TestDeltaSyncDownTarget(JSONObject target) throws JSONException {
+        super(target);
+    }
+
+    public TestDeltaSyncDownTarget(List<String> fieldlist, String objectType, String filter) {
+        super(fieldlist, objectType, filter);
+    }
+
+    @Override
+    protected List<String> fetchUpdatedIds(SyncManager syncManager, long start, long end) {
+        lastWindowStart = start;
+        lastWindowEnd = end;
+        setLatestDateCovered(serverLatestDateCovered > 0 ? serverLatestDateCovered : end);
+        return new ArrayList<String>(updatedIds);
+    }
+
+    @Override
+    protected List<String> fetchDeletedIds(SyncManager syncManager, long start, long end) {
+        lastWindowStart = start;
+        lastWindowEnd = end;
+        setLatestDateCovered(serverLatestDateCovered > 0 ? serverLatestDateCovered : end);
+        return new ArrayList<String>(deletedIds);
+    }
+
+    //
+    // Test support
+    //
+
+    /**
+     * @param updated ids reported as updated
+     * @param deleted ids reported as deleted
+     * @param latestDateCovered latest date covered reported by the server (-1 to report the end of the window asked for)
+     */
+    public static void setChanges(List<String> updated, List<String> deleted, long latestDateCovered) {
+        updatedIds = updated;
+        deletedIds = deleted;
+        serverLatestDateCovered = latestDateCovered;
+        lastWindowStart = -1;
+        lastWindowEnd = -1;
+    }
+
+    public static long getLastWindowStart() {
+        return lastWindowStart;
+    }
+
+    public static long getLastWindowEnd() {
+        return lastWindowEnd;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016, salesforce.com, inc.
+ * All rights reserved.
+ * Redistribution and use of this software in source and binary forms, with or
+ * without modification, are permitted provided that the following conditions
+ * are met:
+ * - Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ * - Neither the name of salesforce.com, inc. nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission of salesforce.com, inc.
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.salesforce.androidsdk.smartsync.manager;
+
+import com.salesforce.androidsdk.smartsync.util.SoqlSyncDownTarget;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Soql sync down target for tests: the sorted remote ids used by cleanResyncGhosts are served by the test, a page at a time
+ */
+public class TestSortedIdsSyncDownTarget extends SoqlSyncDownTarget {
+
+    private static List<List<String>> remoteIdPages = new ArrayList<List<String>>();
+    private static int nextPageIndex;
+
+    public TestSortedIdsSyncDownTarget(JSONObject target) throws JSONException {
+        super(target);
+    }
+
+    public TestSortedIdsSyncDownTarget(String query) {
+        super(query);
+        this.queryType = QueryType.custom;
+    }
+
+    @Override
+    public List<String> startFetchSortedIds(SyncManager syncManager) {
+        synchronized (TestSortedIdsSyncDownTarget.class) {
+            nextPageIndex = 0;
+        }
+        return getNextPage();
+    }
+
+    @Override
+    public List<String> continueFetchSortedIds(SyncManager syncManager) {
+        return getNextPage();
+    }
+
+    private static synchronized List<String> getNextPage() {
+        if (nextPageIndex >= remoteIdPages.size()) {
+            return null;
+        }
+        return new ArrayList<String>(remoteIdPages.get(nextPageIndex++));
+    }
+
+    //
+    // Test support
+    //
+
+    public static synchronized void setRemoteIdPages(List<List<String>> pages) {
+        remoteIdPages = pages;
+        nextPageIndex = 0;
+    }
+
+    /**
+     * @return number of pages of remote ids served so far
+     */
+    public static synchronized int getPagesServed() {
+        return nextPageIndex;
+    }
+}
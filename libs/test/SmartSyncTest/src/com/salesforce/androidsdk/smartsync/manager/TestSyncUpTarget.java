@@ -36,6 +36,7 @@ import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -47,6 +48,7 @@ public class TestSyncUpTarget extends SyncUpTarget {
 
     private static int seq = 0;
     private static ActionCollector actionCollector;
+    private static Set<String> missingRecordIds;
 
     private final SyncBehavior syncBehavior;
 
@@ -123,6 +125,15 @@ public class TestSyncUpTarget extends SyncUpTarget {
         }
     }
 
+    @Override
+    public Set<String> getIdsOfRecordsToSyncUp(SyncManager syncManager, String soupName) throws JSONException {
+        Set<String> ids = super.getIdsOfRecordsToSyncUp(syncManager, soupName);
+        if (missingRecordIds != null) {
+            ids.addAll(missingRecordIds);
+        }
+        return ids;
+    }
+
     //
     // Test support
     //
@@ -131,6 +142,14 @@ public class TestSyncUpTarget extends SyncUpTarget {
         actionCollector = collector;
     }
 
+    /**
+     * Have ids of records that don't exist (e.g. deleted in the meantime) returned along with the ids of the records to sync up
+     * @param ids (null to stop)
+     */
+    public static void setMissingRecordIds(Set<String> ids) {
+        missingRecordIds = ids;
+    }
+
     static class ActionCollector {
         public List<String> createdRecordIds = new ArrayList<String>();
         public List<String> updatedRecordIds = new ArrayList<String>();